@@ -0,0 +1,78 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream.benchmark;
+
+import me.stojan.camstream.EncodedFrameRing;
+import me.stojan.camstream.util.BufferPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffer pools and the encoded frame ring, which run once per frame and must not allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BufferBenchmark {
+
+    private static final int FRAME_BYTES = 16 * 1024;
+    private static final long FRAME_US = 33333;
+
+    private final BufferPool pool = new BufferPool(3, 1280 * 720 * 4);
+
+    // Room for about two seconds of 4Mbps video, so that steady state appends evict.
+    private final EncodedFrameRing ring = new EncodedFrameRing(1024 * 1024, 256, 10000000L);
+    private final ByteBuffer frame = ByteBuffer.allocateDirect(FRAME_BYTES);
+
+    private long presentationTimeUs;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < 120; i++) {
+            append();
+        }
+    }
+
+    @Benchmark
+    public void acquireRelease() {
+        pool.release(pool.acquire());
+    }
+
+    @Benchmark
+    public boolean append() {
+        presentationTimeUs += FRAME_US;
+
+        // A key frame every 30 frames.
+        final int flags = 0 == (presentationTimeUs / FRAME_US) % 30 ? EncodedFrameRing.FLAG_KEY_FRAME : 0;
+
+        frame.clear();
+        return ring.append(frame, presentationTimeUs, flags);
+    }
+}
@@ -0,0 +1,84 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream.benchmark;
+
+import me.stojan.camstream.util.EGLUtils;
+import me.stojan.camstream.util.ErrorChecks;
+import me.stojan.camstream.util.GLESUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of OpenGL ES and EGL error checks when there is no error, in each {@link ErrorChecks.Mode}. The formatting
+ * variants show the cost of passing the format values, which are boxed into an array on every call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ErrorCheckBenchmark {
+
+    @Param({ "STRICT", "SAMPLED", "OFF" })
+    public ErrorChecks.Mode mode;
+
+    private int value;
+
+    @Setup
+    public void setup() {
+        ErrorChecks.mode(mode);
+    }
+
+    @Benchmark
+    public void glError() {
+        GLESUtils.glError("glDrawArrays");
+    }
+
+    @Benchmark
+    public void glErrorFormat() {
+        value += 1;
+        GLESUtils.glError("glBindTexture(%d)", value);
+    }
+
+    @Benchmark
+    public void glFrameError() {
+        ErrorChecks.frame();
+        GLESUtils.glFrameError("draw");
+    }
+
+    @Benchmark
+    public void eglError() {
+        EGLUtils.eglError("eglSwapBuffers");
+    }
+
+    @Benchmark
+    public void eglErrorFormat() {
+        value += 1;
+        EGLUtils.eglError("eglMakeCurrent(%d)", value);
+    }
+}
@@ -0,0 +1,89 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream.benchmark;
+
+import me.stojan.camstream.FrameMailbox;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishing frames into a {@link FrameMailbox} while consumer threads read them. Each read checks that the frame's
+ * fields belong together and fails the benchmark if a torn frame is ever seen.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MailboxBenchmark {
+
+    @State(Scope.Group)
+    public static class Mailbox {
+        final FrameMailbox mailbox = new FrameMailbox();
+        final float[] stMatrix = new float[16];
+
+        long frameNumber;
+    }
+
+    @State(Scope.Thread)
+    public static class Consumer {
+        final FrameMailbox.Frame frame = new FrameMailbox.Frame();
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public void publish(Mailbox state) {
+        final long frameNumber = state.frameNumber += 1;
+
+        for (int i = 0; i < 16; i++) {
+            state.stMatrix[i] = frameNumber + i;
+        }
+
+        state.mailbox.publish(frameNumber * 1000, frameNumber, (int) frameNumber, state.stMatrix, 0);
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(3)
+    public boolean read(Mailbox state, Consumer consumer) {
+        final FrameMailbox.Frame frame = consumer.frame;
+
+        if (!state.mailbox.read(frame)) {
+            return false;
+        }
+
+        final long frameNumber = frame.frameNumber();
+
+        if (frame.timestamp() != frameNumber * 1000 || frame.textureId() != (int) frameNumber
+                || frame.stMatrix()[15] != (float) (frameNumber + 15)) {
+            throw new IllegalStateException("Torn frame " + frameNumber);
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,95 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream.benchmark;
+
+import android.opengl.Matrix;
+import me.stojan.camstream.CameraRenderer;
+import me.stojan.camstream.util.CameraFunction1;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Model-view-projection and texture matrix updates of {@link CameraRenderer}, and the CPU side of drawing with them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MatrixBenchmark {
+
+    private CameraRenderer renderer;
+
+    private final float[] matrix = new float[16];
+    private final float[] other = new float[16];
+
+    private final CameraFunction1<float[], float[]> updater = new CameraFunction1<float[], float[]>() {
+        @Override
+        public float[] apply(float[] mvp) {
+            Matrix.multiplyMM(mvp, 0, other, 0, matrix, 0);
+            return mvp;
+        }
+    };
+
+    @Setup
+    public void setup() {
+        renderer = new CameraRenderer();
+
+        Matrix.setIdentityM(matrix, 0);
+        Matrix.setIdentityM(other, 0);
+        other[12] = 0.5f;
+    }
+
+    @Benchmark
+    public void updateModelViewProjectionMatrix() {
+        renderer.updateModelViewProjectionMatrix(updater);
+    }
+
+    @Benchmark
+    public void setModelViewProjectionMatrix() {
+        matrix[12] += 1e-6f;
+        renderer.setModelViewProjectionMatrix(matrix, 0);
+    }
+
+    @Benchmark
+    public void setTextureMatrix() {
+        matrix[12] += 1e-6f;
+        renderer.setTextureMatrix(matrix, 0);
+    }
+
+    @Benchmark
+    public void drawUnchanged() {
+        renderer.draw();
+    }
+
+    @Benchmark
+    public void setAndDraw() {
+        matrix[12] += 1e-6f;
+        renderer.setModelViewProjectionMatrix(matrix, 0);
+        renderer.draw();
+    }
+}
@@ -0,0 +1,121 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream.benchmark;
+
+import me.stojan.camstream.EncodedFrameRing;
+import me.stojan.camstream.RtpPacketizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packetizing a synthetic H.264 access unit into RTP packets, written into a channel that discards them, so that only
+ * the start code scanning, header writing and gathering are measured. It must not allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketizerBenchmark {
+
+    private static final int SLICE_BYTES = 16 * 1024;
+    private static final long FRAME_US = 33333;
+
+    private static final class DiscardChannel implements GatheringByteChannel {
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long written = 0;
+
+            for (int i = offset; i < offset + length; i++) {
+                written += srcs[i].remaining();
+                srcs[i].position(srcs[i].limit());
+            }
+
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            final int written = src.remaining();
+            src.position(src.limit());
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // No-op.
+        }
+    }
+
+    private final RtpPacketizer packetizer = new RtpPacketizer(RtpPacketizer.Codec.H264, 96, 0x12345678)
+            .configBeforeKeyFrames(true);
+    private final DiscardChannel channel = new DiscardChannel();
+
+    private final ByteBuffer config = ByteBuffer.allocateDirect(32);
+    private final ByteBuffer accessUnit = ByteBuffer.allocateDirect(SLICE_BYTES + 16);
+
+    private long presentationTimeUs;
+
+    @Setup
+    public void setup() throws IOException {
+        config.put(new byte[] { 0, 0, 0, 1, 0x67, 0x42, 0, 0x1F, 0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80 });
+        config.flip();
+        packetizer.packetize(config, 0, EncodedFrameRing.FLAG_CODEC_CONFIG, channel);
+
+        // One slice NAL unit with a payload free of start codes.
+        accessUnit.put(new byte[] { 0, 0, 0, 1, 0x65 });
+
+        for (int i = 0; i < SLICE_BYTES; i++) {
+            accessUnit.put((byte) (1 + i % 255));
+        }
+
+        accessUnit.flip();
+    }
+
+    @Benchmark
+    public int packetize() throws IOException {
+        presentationTimeUs += FRAME_US;
+
+        // A key frame every 30 frames.
+        final int flags = 0 == (presentationTimeUs / FRAME_US) % 30 ? EncodedFrameRing.FLAG_KEY_FRAME : 0;
+
+        return packetizer.packetize(accessUnit, presentationTimeUs, flags, channel);
+    }
+}
@@ -0,0 +1,78 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream.benchmark;
+
+import me.stojan.camstream.FrameDecimator;
+import me.stojan.camstream.util.Histogram;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame timestamp handling: frame-rate limiting and recording timings.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimestampBenchmark {
+
+    private static final long FRAME_NANOS = 33333333L;
+
+    private final FrameDecimator decimator = new FrameDecimator();
+    private final Histogram histogram = new Histogram();
+    private final Histogram.Snapshot snapshot = new Histogram.Snapshot();
+
+    private long timestamp;
+
+    @Setup
+    public void setup() {
+        decimator.maxFrameRate(15);
+    }
+
+    @Benchmark
+    @Group("decimator")
+    public boolean decimate() {
+        // Jitter of up to 2ms around 30fps.
+        timestamp += FRAME_NANOS + (timestamp & 0x1FFFFF) - 0xFFFFF;
+        return decimator.accept(timestamp);
+    }
+
+    @Benchmark
+    @Group("histogram")
+    public void record() {
+        timestamp += 1;
+        histogram.record(timestamp & 0xFFFFFFL);
+    }
+
+    @Benchmark
+    @Group("histogram")
+    public long snapshot() {
+        return histogram.snapshot(snapshot).percentile(0.99);
+    }
+}
@@ -0,0 +1,51 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package android.graphics;
+
+import android.opengl.Matrix;
+
+/**
+ * Stub of the Android class for running benchmarks on a plain JVM. Each update latches a frame 33ms after the previous
+ * one.
+ */
+public class SurfaceTexture {
+
+    private long timestamp;
+
+    public SurfaceTexture(int texName) {
+    }
+
+    public void updateTexImage() {
+        timestamp += 33333333L;
+    }
+
+    public void getTransformMatrix(float[] mtx) {
+        Matrix.setIdentityM(mtx, 0);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void release() {
+    }
+}
@@ -0,0 +1,219 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package android.opengl;
+
+import java.nio.Buffer;
+
+/**
+ * Stub of the Android class for running benchmarks on a plain JVM. Calls do nothing, and queries report success.
+ */
+public class GLES20 {
+
+    public static final int GL_NO_ERROR = 0;
+    public static final int GL_TRUE = 1;
+    public static final int GL_TRIANGLE_STRIP = 0x0005;
+    public static final int GL_DEPTH_BUFFER_BIT = 0x0100;
+    public static final int GL_COLOR_BUFFER_BIT = 0x4000;
+    public static final int GL_VIEWPORT = 0x0BA2;
+    public static final int GL_TEXTURE_2D = 0x0DE1;
+    public static final int GL_UNSIGNED_BYTE = 0x1401;
+    public static final int GL_FLOAT = 0x1406;
+    public static final int GL_ALPHA = 0x1906;
+    public static final int GL_RGB = 0x1907;
+    public static final int GL_RGBA = 0x1908;
+    public static final int GL_LUMINANCE = 0x1909;
+    public static final int GL_LUMINANCE_ALPHA = 0x190A;
+    public static final int GL_RENDERER = 0x1F01;
+    public static final int GL_VERSION = 0x1F02;
+    public static final int GL_NEAREST = 0x2600;
+    public static final int GL_LINEAR = 0x2601;
+    public static final int GL_TEXTURE_MAG_FILTER = 0x2800;
+    public static final int GL_TEXTURE_MIN_FILTER = 0x2801;
+    public static final int GL_TEXTURE_WRAP_S = 0x2802;
+    public static final int GL_TEXTURE_WRAP_T = 0x2803;
+    public static final int GL_CLAMP_TO_EDGE = 0x812F;
+    public static final int GL_TEXTURE0 = 0x84C0;
+    public static final int GL_ARRAY_BUFFER = 0x8892;
+    public static final int GL_STATIC_DRAW = 0x88E4;
+    public static final int GL_FRAGMENT_SHADER = 0x8B30;
+    public static final int GL_VERTEX_SHADER = 0x8B31;
+    public static final int GL_COMPILE_STATUS = 0x8B81;
+    public static final int GL_LINK_STATUS = 0x8B82;
+    public static final int GL_FRAMEBUFFER_BINDING = 0x8CA6;
+    public static final int GL_FRAMEBUFFER_COMPLETE = 0x8CD5;
+    public static final int GL_COLOR_ATTACHMENT0 = 0x8CE0;
+    public static final int GL_FRAMEBUFFER = 0x8D40;
+
+    private static int names;
+
+    private static int name() {
+        names += 1;
+        return names;
+    }
+
+    private static void generate(int n, int[] names, int offset) {
+        for (int i = 0; i < n; i++) {
+            names[offset + i] = name();
+        }
+    }
+
+    public static int glGetError() {
+        return GL_NO_ERROR;
+    }
+
+    public static String glGetString(int name) {
+        return GL_VERSION == name ? "OpenGL ES 2.0 stub" : "stub";
+    }
+
+    public static void glGetIntegerv(int pname, int[] params, int offset) {
+        params[offset] = 0;
+    }
+
+    public static int glCreateShader(int type) {
+        return name();
+    }
+
+    public static void glShaderSource(int shader, String source) {
+    }
+
+    public static void glCompileShader(int shader) {
+    }
+
+    public static void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+        params[offset] = GL_TRUE;
+    }
+
+    public static String glGetShaderInfoLog(int shader) {
+        return "";
+    }
+
+    public static void glDeleteShader(int shader) {
+    }
+
+    public static int glCreateProgram() {
+        return name();
+    }
+
+    public static void glAttachShader(int program, int shader) {
+    }
+
+    public static void glBindAttribLocation(int program, int index, String name) {
+    }
+
+    public static void glLinkProgram(int program) {
+    }
+
+    public static void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        params[offset] = GL_TRUE;
+    }
+
+    public static String glGetProgramInfoLog(int program) {
+        return "";
+    }
+
+    public static void glDeleteProgram(int program) {
+    }
+
+    public static void glUseProgram(int program) {
+    }
+
+    public static int glGetUniformLocation(int program, String name) {
+        return 0;
+    }
+
+    public static void glUniform2f(int location, float x, float y) {
+    }
+
+    public static void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset) {
+    }
+
+    public static void glGenBuffers(int n, int[] buffers, int offset) {
+        generate(n, buffers, offset);
+    }
+
+    public static void glDeleteBuffers(int n, int[] buffers, int offset) {
+    }
+
+    public static void glBindBuffer(int target, int buffer) {
+    }
+
+    public static void glBufferData(int target, int size, Buffer data, int usage) {
+    }
+
+    public static void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, int offset) {
+    }
+
+    public static void glEnableVertexAttribArray(int index) {
+    }
+
+    public static void glGenTextures(int n, int[] textures, int offset) {
+        generate(n, textures, offset);
+    }
+
+    public static void glDeleteTextures(int n, int[] textures, int offset) {
+    }
+
+    public static void glActiveTexture(int texture) {
+    }
+
+    public static void glBindTexture(int target, int texture) {
+    }
+
+    public static void glTexImage2D(int target, int level, int internalformat, int width, int height, int border,
+                                    int format, int type, Buffer pixels) {
+    }
+
+    public static void glTexParameterf(int target, int pname, float param) {
+    }
+
+    public static void glTexParameteri(int target, int pname, int param) {
+    }
+
+    public static void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+        generate(n, framebuffers, offset);
+    }
+
+    public static void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+    }
+
+    public static void glBindFramebuffer(int target, int framebuffer) {
+    }
+
+    public static void glFramebufferTexture2D(int target, int attachment, int textarget, int texture, int level) {
+    }
+
+    public static int glCheckFramebufferStatus(int target) {
+        return GL_FRAMEBUFFER_COMPLETE;
+    }
+
+    public static void glViewport(int x, int y, int width, int height) {
+    }
+
+    public static void glClearColor(float red, float green, float blue, float alpha) {
+    }
+
+    public static void glClear(int mask) {
+    }
+
+    public static void glDrawArrays(int mode, int first, int count) {
+    }
+}
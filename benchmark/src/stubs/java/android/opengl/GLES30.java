@@ -0,0 +1,46 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package android.opengl;
+
+import java.nio.Buffer;
+
+/**
+ * Stub of the Android class for running benchmarks on a plain JVM. Calls do nothing.
+ */
+public class GLES30 extends GLES20 {
+
+    public static final int GL_PROGRAM_BINARY_LENGTH = 0x8741;
+    public static final int GL_NUM_PROGRAM_BINARY_FORMATS = 0x87FE;
+    public static final int GL_PROGRAM_BINARY_FORMATS = 0x87FF;
+    public static final int GL_PROGRAM_BINARY_RETRIEVABLE_HINT = 0x8257;
+
+    public static void glGetProgramBinary(int program, int bufSize, int[] length, int lengthOffset, int[] binaryFormat,
+                                          int binaryFormatOffset, Buffer binary) {
+        length[lengthOffset] = 0;
+    }
+
+    public static void glProgramBinary(int program, int binaryFormat, Buffer binary, int length) {
+    }
+
+    public static void glProgramParameteri(int program, int pname, int value) {
+    }
+}
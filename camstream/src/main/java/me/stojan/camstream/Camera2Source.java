@@ -0,0 +1,470 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Range;
+import android.util.Size;
+import android.view.Surface;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link CameraSource} using the {@link CameraDevice} API. Frames are streamed into the renderer's surface texture
+ * and, optionally, into an {@link ImageReader} in the same capture session, so that CPU consumers receive
+ * {@link ImageFormat#YUV_420_888} planes straight from the camera, without reading back from the GPU.
+ * <p>
+ * When the renderer has a {@link FrameInfoPool}, the exposure time and sensitivity of each capture are recorded into
+ * it, so that they end up in the {@link FrameInfo} of the frame.
+ * <p>
+ * The camera is opened and configured asynchronously on a thread owned by the source, on which the callbacks are
+ * called. The caller must hold the camera permission.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public final class Camera2Source implements CameraSource {
+
+    /**
+     * Receives images from the {@link ImageReader} stream.
+     */
+    public interface ImageCallback {
+
+        /**
+         * Called on the source's thread with the latest image, older ones are dropped if this falls behind. The image
+         * is closed after this returns, so its planes must not be used afterwards.
+         * @param source the source
+         * @param image the image
+         */
+        void onImage(Camera2Source source, Image image);
+    }
+
+    private static final long CLOSE_TIMEOUT_MS = 1000;
+
+    private final CameraManager manager;
+    private final String cameraId;
+    private final int requestedWidth;
+    private final int requestedHeight;
+
+    private int requestedImageWidth;
+    private int requestedImageHeight;
+    private int maxImages;
+    private ImageCallback imageCallback;
+    private Range<Integer> frameRate;
+
+    private HandlerThread thread;
+    private Handler handler;
+    private Surface previewSurface;
+    private ImageReader imageReader;
+    private Callback callback;
+    private CountDownLatch closed;
+    private volatile CameraRenderer renderer;
+
+    // Confined to the source's thread.
+    private CameraDevice device;
+    private CameraCaptureSession session;
+    private boolean stopping;
+
+    private volatile int width;
+    private volatile int height;
+
+    private final CameraDevice.StateCallback deviceCallback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(CameraDevice cameraDevice) {
+            device = cameraDevice;
+
+            if (stopping) {
+                cameraDevice.close();
+                return;
+            }
+
+            final List<Surface> surfaces = new ArrayList<>(2);
+            surfaces.add(previewSurface);
+
+            if (null != imageReader) {
+                surfaces.add(imageReader.getSurface());
+            }
+
+            try {
+                cameraDevice.createCaptureSession(surfaces, sessionCallback, handler);
+            } catch (CameraAccessException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void onClosed(CameraDevice cameraDevice) {
+            closed.countDown();
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice cameraDevice) {
+            device = cameraDevice;
+            fail(new RuntimeException(String.format((Locale) null, "Camera %s disconnected", cameraId)));
+        }
+
+        @Override
+        public void onError(CameraDevice cameraDevice, int error) {
+            device = cameraDevice;
+            fail(new RuntimeException(String.format((Locale) null, "Camera %s error %d", cameraId, error)));
+        }
+    };
+
+    private final CameraCaptureSession.StateCallback sessionCallback = new CameraCaptureSession.StateCallback() {
+        @Override
+        public void onConfigured(CameraCaptureSession cameraCaptureSession) {
+            session = cameraCaptureSession;
+
+            if (stopping) {
+                return;
+            }
+
+            try {
+                final CaptureRequest.Builder builder = device.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+                builder.addTarget(previewSurface);
+
+                if (null != imageReader) {
+                    builder.addTarget(imageReader.getSurface());
+                }
+
+                if (null != frameRate) {
+                    builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, frameRate);
+                }
+
+                cameraCaptureSession.setRepeatingRequest(builder.build(), captureCallback, handler);
+            } catch (CameraAccessException | RuntimeException e) {
+                fail(e);
+                return;
+            }
+
+            if (null != callback) {
+                callback.onStarted(Camera2Source.this);
+            }
+        }
+
+        @Override
+        public void onConfigureFailed(CameraCaptureSession cameraCaptureSession) {
+            fail(new RuntimeException(String.format((Locale) null, "Camera %s session configuration failed", cameraId)));
+        }
+    };
+
+    private final CameraCaptureSession.CaptureCallback captureCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
+            final CameraRenderer renderer = Camera2Source.this.renderer;
+            final FrameInfoPool pool = null == renderer ? null : renderer.frameInfoPool();
+
+            if (null == pool) {
+                return;
+            }
+
+            final Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            final Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            final Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+
+            if (null != timestamp) {
+                pool.captureResult(timestamp, null == exposureTime ? FrameInfo.UNKNOWN : exposureTime,
+                        null == sensitivity ? FrameInfo.UNKNOWN : sensitivity);
+            }
+        }
+    };
+
+    private final ImageReader.OnImageAvailableListener imageListener = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            final Image image = reader.acquireLatestImage();
+
+            if (null == image) {
+                return;
+            }
+
+            try {
+                imageCallback.onImage(Camera2Source.this, image);
+            } finally {
+                image.close();
+            }
+        }
+    };
+
+    private final Runnable close = new Runnable() {
+        @Override
+        public void run() {
+            stopping = true;
+
+            if (null != session) {
+                session.close();
+                session = null;
+            }
+
+            if (null != device) {
+                device.close();
+                device = null;
+            }
+
+            // If the camera is still opening, it is closed in onOpened, or it fails to open.
+        }
+    };
+
+    /**
+     * Create a new source. The supported surface texture size closest to the requested one is used.
+     * @param context the context, must not be null
+     * @param cameraId the camera's ID, must not be null, see {@link #cameraId(Context, int)}
+     * @param width the requested width in pixels
+     * @param height the requested height in pixels
+     */
+    public Camera2Source(Context context, String cameraId, int width, int height) {
+        if (null == context) {
+            throw new IllegalArgumentException("Argument context must not be null");
+        }
+
+        if (null == cameraId) {
+            throw new IllegalArgumentException("Argument cameraId must not be null");
+        }
+
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Arguments width and height must be positive");
+        }
+
+        this.manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        this.cameraId = cameraId;
+        this.requestedWidth = width;
+        this.requestedHeight = height;
+    }
+
+    /**
+     * Find a camera facing a direction.
+     * @param context the context, must not be null
+     * @param lensFacing the direction, for example {@link CameraCharacteristics#LENS_FACING_BACK}
+     * @return the first camera's ID, or null if there is none
+     * @throws CameraAccessException if the cameras can't be listed
+     */
+    public static String cameraId(Context context, int lensFacing) throws CameraAccessException {
+        if (null == context) {
+            throw new IllegalArgumentException("Argument context must not be null");
+        }
+
+        final CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+
+        for (String id : manager.getCameraIdList()) {
+            final Integer facing = manager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+
+            if (null != facing && lensFacing == facing) {
+                return id;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Also stream {@link ImageFormat#YUV_420_888} images to a callback. Must be called before
+     * {@link #start(CameraRenderer, Callback)}. The supported size closest to the requested one is used.
+     * @param width the requested width in pixels
+     * @param height the requested height in pixels
+     * @param maxImages the number of images in the reader's queue, at least 2 so that one can be written while the
+     *                  callback reads another
+     * @param callback the callback, or null not to stream images
+     * @return this source
+     */
+    public Camera2Source images(int width, int height, int maxImages, ImageCallback callback) {
+        if (null != callback && (width <= 0 || height <= 0 || maxImages < 2)) {
+            throw new IllegalArgumentException("Arguments width and height must be positive and maxImages at least 2");
+        }
+
+        this.requestedImageWidth = width;
+        this.requestedImageHeight = height;
+        this.maxImages = maxImages;
+        this.imageCallback = callback;
+
+        return this;
+    }
+
+    /**
+     * Set the auto-exposure target frame rate range. Must be called before {@link #start(CameraRenderer, Callback)}.
+     * Use a fixed range, like 30 to 30, for a steady frame rate when recording.
+     * @param min the minimum frame rate
+     * @param max the maximum frame rate
+     * @return this source
+     */
+    public Camera2Source frameRate(int min, int max) {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("Arguments min and max must be a positive range");
+        }
+
+        this.frameRate = new Range<>(min, max);
+
+        return this;
+    }
+
+    @Override
+    public void start(CameraRenderer renderer, Callback callback) {
+        if (null == renderer) {
+            throw new IllegalArgumentException("Argument renderer must not be null");
+        }
+
+        if (null != thread) {
+            throw new IllegalStateException("Source is already started");
+        }
+
+        this.callback = callback;
+        this.renderer = renderer;
+
+        thread = new HandlerThread("camera2-source");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        closed = new CountDownLatch(1);
+        stopping = false;
+
+        try {
+            final StreamConfigurationMap map = manager.getCameraCharacteristics(cameraId)
+                    .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+
+            final Size size = closest(map.getOutputSizes(SurfaceTexture.class), requestedWidth, requestedHeight);
+            width = size.getWidth();
+            height = size.getHeight();
+
+            final SurfaceTexture surfaceTexture = renderer.surfaceTexture();
+            surfaceTexture.setDefaultBufferSize(width, height);
+            previewSurface = new Surface(surfaceTexture);
+
+            if (null != imageCallback) {
+                final Size imageSize = closest(map.getOutputSizes(ImageFormat.YUV_420_888), requestedImageWidth,
+                        requestedImageHeight);
+
+                imageReader = ImageReader.newInstance(imageSize.getWidth(), imageSize.getHeight(),
+                        ImageFormat.YUV_420_888, maxImages);
+                imageReader.setOnImageAvailableListener(imageListener, handler);
+            }
+
+            manager.openCamera(cameraId, deviceCallback, handler);
+        } catch (CameraAccessException | RuntimeException e) {
+            closed.countDown();
+            stop();
+
+            if (null == callback) {
+                throw new RuntimeException(e);
+            }
+
+            callback.onError(this, e);
+        }
+    }
+
+    private static Size closest(Size[] sizes, int width, int height) {
+        if (null == sizes || 0 == sizes.length) {
+            throw new RuntimeException("Camera has no output sizes for the format");
+        }
+
+        Size closest = sizes[0];
+        int closestDistance = Integer.MAX_VALUE;
+
+        for (Size size : sizes) {
+            final int distance = Math.abs(size.getWidth() - width) + Math.abs(size.getHeight() - height);
+
+            if (distance < closestDistance) {
+                closest = size;
+                closestDistance = distance;
+            }
+        }
+
+        return closest;
+    }
+
+    private void fail(Exception error) {
+        final boolean report = !stopping;
+
+        close.run();
+
+        if (report && null != callback) {
+            callback.onError(this, error);
+        }
+    }
+
+    /**
+     * Stop streaming and close the camera, waiting up to a second for it to close.
+     */
+    @Override
+    public void stop() {
+        if (null == thread) {
+            return;
+        }
+
+        handler.post(close);
+
+        try {
+            closed.await(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        thread.quitSafely();
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (null != imageReader) {
+            imageReader.close();
+            imageReader = null;
+        }
+
+        if (null != previewSurface) {
+            previewSurface.release();
+            previewSurface = null;
+        }
+
+        thread = null;
+        handler = null;
+        callback = null;
+        renderer = null;
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+}
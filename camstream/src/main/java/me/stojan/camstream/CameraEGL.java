@@ -0,0 +1,195 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package me.stojan.camstream;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import me.stojan.camstream.util.EGLUtils;
+
+import java.util.Locale;
+
+/**
+ * The process-wide EGL display and config cache. The default display is initialized when the first reference is
+ * acquired and stays initialized when the last one is released, so that surfaces sharing a context never terminate the
+ * display under each other, and recreating a surface, for example when a {@link CameraSurfaceView} is destroyed and
+ * created again on rotation, does not initialize EGL again. Configs are chosen once per set of capabilities and
+ * reused. Call {@link #terminate()} once no more surfaces will be created to free the display.
+ * <p>
+ * Every {@link CameraSurface} holds one reference for as long as it is not released. All methods are thread-safe.
+ */
+public final class CameraEGL {
+
+    /** Capability: the config can be used for surfaces consumed by video encoders. */
+    public static final int CONFIG_RECORDABLE = 1;
+
+    /** Capability: the config has an 8-bit alpha channel. */
+    public static final int CONFIG_ALPHA = 1 << 1;
+
+    /** Capability: the config supports OpenGL ES 3 contexts, instead of OpenGL ES 2. */
+    public static final int CONFIG_ES3 = 1 << 2;
+
+    /** Capability: the config supports pbuffer surfaces, instead of window surfaces. */
+    public static final int CONFIG_PBUFFER = 1 << 3;
+
+    private static final Object lock = new Object();
+
+    private static EGLDisplay display;
+    private static int references;
+
+    private static final EGLConfig[] configs = new EGLConfig[CONFIG_PBUFFER << 1];
+
+    private CameraEGL() {
+        // No-op.
+    }
+
+    /**
+     * Acquire a reference to the default display, initializing it if this is the first reference.
+     * @return the initialized display, will not be null
+     */
+    public static EGLDisplay acquire() {
+        synchronized (lock) {
+            if (null == display) {
+                final EGLDisplay eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+
+                if (eglDisplay == EGL14.EGL_NO_DISPLAY) {
+                    throw new RuntimeException("unable to get EGL14 display");
+                }
+
+                final int[] version = new int[2];
+
+                if (!EGL14.eglInitialize(eglDisplay, version, 0, version, 1)) {
+                    throw new RuntimeException("unable to initialize EGL14");
+                }
+
+                display = eglDisplay;
+            }
+
+            references += 1;
+
+            return display;
+        }
+    }
+
+    /**
+     * Release a reference to the display. The display and the configs are kept when this was the last reference, so
+     * that the next {@link #acquire()} reuses them.
+     */
+    public static void release() {
+        synchronized (lock) {
+            if (0 == references) {
+                throw new IllegalStateException("CameraEGL released more times than acquired");
+            }
+
+            references -= 1;
+        }
+    }
+
+    /**
+     * Terminate the display and forget the configs, if the display is initialized. The next {@link #acquire()}
+     * initializes EGL again.
+     *
+     * @throws IllegalStateException if references are held
+     */
+    public static void terminate() {
+        synchronized (lock) {
+            if (0 != references) {
+                throw new IllegalStateException("CameraEGL must not be terminated while references are held");
+            }
+
+            if (null == display) {
+                return;
+            }
+
+            EGL14.eglTerminate(display);
+            display = null;
+
+            for (int i = 0; i < configs.length; i++) {
+                configs[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of references to the display.
+     * @return the number of references
+     */
+    public static int references() {
+        synchronized (lock) {
+            return references;
+        }
+    }
+
+    /**
+     * Returns an RGB888 config with the capabilities, choosing it on first use. A reference must be held.
+     * @param capabilities a combination of the {@code CONFIG_*} flags
+     * @return the config, will not be null
+     *
+     * @throws IllegalStateException if no reference is held
+     * @throws RuntimeException if no config has the capabilities
+     */
+    public static EGLConfig config(int capabilities) {
+        if (capabilities < 0 || capabilities >= configs.length) {
+            throw new IllegalArgumentException("Argument capabilities has unknown flags");
+        }
+
+        synchronized (lock) {
+            if (0 == references) {
+                throw new IllegalStateException("CameraEGL must be acquired before choosing a config");
+            }
+
+            EGLConfig config = configs[capabilities];
+
+            if (null == config) {
+                config = choose(display, capabilities);
+                configs[capabilities] = config;
+            }
+
+            return config;
+        }
+    }
+
+    private static EGLConfig choose(EGLDisplay eglDisplay, int capabilities) {
+        final int[] attributes = new int[] {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 0 != (capabilities & CONFIG_ALPHA) ? 8 : 0,
+                EGL14.EGL_RENDERABLE_TYPE, 0 != (capabilities & CONFIG_ES3) ? EGLExt.EGL_OPENGL_ES3_BIT_KHR : EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE, 0 != (capabilities & CONFIG_PBUFFER) ? EGL14.EGL_PBUFFER_BIT : EGL14.EGL_WINDOW_BIT,
+                CameraSurface.EGL_RECORDABLE_ANDROID, 0 != (capabilities & CONFIG_RECORDABLE) ? 1 : EGL14.EGL_DONT_CARE,
+                EGL14.EGL_NONE
+        };
+
+        final EGLConfig[] eglConfigs = new EGLConfig[1];
+        final int[] numConfigs = new int[1];
+        EGL14.eglChooseConfig(eglDisplay, attributes, 0, eglConfigs, 0, eglConfigs.length, numConfigs, 0);
+
+        EGLUtils.eglSetupError("eglChooseConfig capabilities 0x%x", capabilities);
+
+        if (numConfigs[0] < 1 || null == eglConfigs[0]) {
+            throw new RuntimeException(String.format((Locale) null, "unable to find an EGL14 config with capabilities 0x%x", capabilities));
+        }
+
+        return eglConfigs[0];
+    }
+}
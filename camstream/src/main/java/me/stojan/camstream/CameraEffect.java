@@ -0,0 +1,89 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+/**
+ * A shader effect applied to the camera image by a {@link CameraEffectChain}. Effects come in two kinds:
+ * <ul>
+ *     <li>{@link #color(String)} effects transform each pixel independently. Consecutive color effects are fused into
+ *     a single shader pass.</li>
+ *     <li>{@link #sampler(String)} effects may sample any texel of their input, for example to blur or detect edges.
+ *     Each one needs its input rendered into a texture first, so it starts a new pass.</li>
+ * </ul>
+ */
+public final class CameraEffect {
+
+    private final String source;
+    private final boolean sampling;
+
+    private CameraEffect(String source, boolean sampling) {
+        this.source = source;
+        this.sampling = sampling;
+    }
+
+    /**
+     * Create a per-pixel effect. The source is a sequence of GLSL statements which read and modify the
+     * {@code vec4 color} variable, for example {@code "color.rgb = vec3(dot(color.rgb, vec3(0.299, 0.587, 0.114)));"}.
+     * It is wrapped in its own block, so it may declare local variables.
+     * @param statements the GLSL statements, must not be null
+     * @return the effect
+     */
+    public static CameraEffect color(String statements) {
+        if (null == statements) {
+            throw new IllegalArgumentException("Argument statements must not be null");
+        }
+
+        return new CameraEffect(statements, false);
+    }
+
+    /**
+     * Create a sampling effect. The source declares the function {@code vec4 effect(vec2 uv)} which returns the color
+     * at the texture coordinate {@code uv}. It may read from the {@code sampler2D sTexture} holding the output of the
+     * previous pass, and use {@code vec2 uTexelSize} which holds the size of one texel in texture coordinates. The
+     * source may declare other functions and constants used by {@code effect}.
+     * @param source the GLSL source, must not be null
+     * @return the effect
+     */
+    public static CameraEffect sampler(String source) {
+        if (null == source) {
+            throw new IllegalArgumentException("Argument source must not be null");
+        }
+
+        return new CameraEffect(source, true);
+    }
+
+    /**
+     * Returns the GLSL source of this effect.
+     * @return the source, never null
+     */
+    public String source() {
+        return source;
+    }
+
+    /**
+     * Returns whether this effect samples neighbouring texels, and therefore needs a pass of its own.
+     * @return true for {@link #sampler(String)} effects
+     */
+    public boolean sampling() {
+        return sampling;
+    }
+}
@@ -0,0 +1,439 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import me.stojan.camstream.util.GLESUtils;
+
+/**
+ * An ordered list of {@link CameraEffect}s applied by a {@link CameraRenderer} to the camera image, set with
+ * {@link CameraRenderer#effects(CameraEffectChain)}.
+ * <p>
+ * Consecutive {@link CameraEffect#color(String)} effects are fused into a single pass. If the chain holds only color
+ * effects it is {@link #fused()}: they are applied while sampling the camera texture, directly into the render target,
+ * and no framebuffers are used.
+ * <p>
+ * Otherwise the camera texture is converted once per frame into a 2D texture, together with any leading color
+ * effects, and each {@link CameraEffect#sampler(String)} effect (with the color effects following it) is a further
+ * pass. The passes render into two textures used in turn, which are allocated once and reused for every frame. The
+ * result is then drawn into each render target with its own model-view-projection matrix, so a renderer drawing into
+ * several targets applies the chain only once per frame. A renderer with a {@link CameraRenderer#scale(float)} below 1
+ * renders even a fused chain this way, into textures smaller than the viewport.
+ * <p>
+ * All OpenGL ES resources are created lazily on the thread drawing the renderer, in the context current at the time.
+ * A chain may be used with several EGL contexts only if they share their objects, like the ones in a
+ * {@link CameraSurfaceGroup}.
+ */
+public final class CameraEffectChain {
+
+    private static final float[] IDENTITY = new float[16];
+
+    static {
+        Matrix.setIdentityM(IDENTITY, 0);
+    }
+
+    private static final String OUTPUT_SHADER =
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform sampler2D sTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+            "}\n";
+
+    private final String[] fragmentShaders;
+    private final CameraProgram[] programs;
+    private CameraProgram outputProgram;
+
+    private volatile int requestedWidth;
+    private volatile int requestedHeight;
+
+    // The two textures passes render into and sample from in turn. They are shared by all contexts, but framebuffers
+    // are not, so each context attaches the textures to framebuffers of its own. A new generation of textures
+    // requires the framebuffers to be attached again.
+    private final int[] textures = new int[2];
+    private final CameraTexturePool.Texture[] pooledTextures = new CameraTexturePool.Texture[2];
+    private CameraTexturePool pool;
+    private int textureWidth;
+    private int textureHeight;
+    private int textureGeneration;
+
+    private EGLContext[] framebufferContexts = new EGLContext[0];
+    private int[] framebuffers = new int[0];
+    private int[] framebufferGenerations = new int[0];
+
+    private long renderedFrame = -1;
+    private int resultTexture;
+
+    private final int[] savedViewport = new int[4];
+    private final int[] savedFramebuffer = new int[1];
+
+    /**
+     * Create a new chain. No OpenGL ES calls are made.
+     * @param effects the effects in the order they are applied, must not be null
+     */
+    public CameraEffectChain(CameraEffect... effects) {
+        this(null == effects ? null : Arrays.asList(effects));
+    }
+
+    /**
+     * Create a new chain. No OpenGL ES calls are made.
+     * @param effects the effects in the order they are applied, must not be null
+     */
+    public CameraEffectChain(List<CameraEffect> effects) {
+        if (null == effects) {
+            throw new IllegalArgumentException("Argument effects must not be null");
+        }
+
+        final List<String> shaders = new ArrayList<>();
+        final List<String> colors = new ArrayList<>();
+
+        // The first pass samples the camera texture, each sampling effect starts a new pass.
+        String sampler = null;
+        boolean external = true;
+
+        for (CameraEffect effect : effects) {
+            if (null == effect) {
+                throw new IllegalArgumentException("Argument effects must not contain null");
+            }
+
+            if (effect.sampling()) {
+                shaders.add(fragmentShader(external, sampler, colors));
+                colors.clear();
+
+                sampler = effect.source();
+                external = false;
+            } else {
+                colors.add(effect.source());
+            }
+        }
+
+        shaders.add(fragmentShader(external, sampler, colors));
+
+        fragmentShaders = shaders.toArray(new String[shaders.size()]);
+        programs = new CameraProgram[fragmentShaders.length];
+    }
+
+    private static String fragmentShader(boolean external, String sampler, List<String> colors) {
+        final StringBuilder builder = new StringBuilder();
+
+        if (external) {
+            builder.append("#extension GL_OES_EGL_image_external : require\n");
+        }
+
+        builder.append("precision mediump float;\n")
+                .append("varying vec2 vTextureCoord;\n")
+                .append("uniform ").append(external ? "samplerExternalOES" : "sampler2D").append(" sTexture;\n")
+                .append("uniform vec2 uTexelSize;\n");
+
+        if (null != sampler) {
+            builder.append(sampler).append('\n');
+        }
+
+        builder.append("void main() {\n")
+                .append("    vec4 color = ")
+                .append(null == sampler ? "texture2D(sTexture, vTextureCoord)" : "effect(vTextureCoord)")
+                .append(";\n");
+
+        for (String color : colors) {
+            builder.append("    {\n").append(color).append("\n    }\n");
+        }
+
+        return builder.append("    gl_FragColor = color;\n")
+                .append("}\n")
+                .toString();
+    }
+
+    /**
+     * Returns whether this chain is applied in a single pass directly into the render target, without framebuffers.
+     * This is the case when it holds no {@link CameraEffect#sampler(String)} effects.
+     * @return if the chain is fused
+     */
+    public boolean fused() {
+        return 1 == fragmentShaders.length;
+    }
+
+    /**
+     * Returns the number of passes rendered per frame, not counting the final draw into the render target of a chain
+     * that is not {@link #fused()}.
+     * @return the number of passes, at least 1
+     */
+    public int passes() {
+        return fragmentShaders.length;
+    }
+
+    /**
+     * Set the size of the textures the passes render into. By default, or if either dimension is 0, the size of the
+     * viewport the renderer draws into, times the renderer's {@link CameraRenderer#scale(float)}, is used. Has no
+     * effect on a {@link #fused()} chain drawn at full scale.
+     * @param width the width in pixels, 0 or more
+     * @param height the height in pixels, 0 or more
+     */
+    public void size(int width, int height) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Arguments width and height must not be negative");
+        }
+
+        requestedWidth = width;
+        requestedHeight = height;
+    }
+
+    /**
+     * Set the pool the textures the passes render into are acquired from. Changing the size returns the previous
+     * textures into the pool, so that switching between resolutions reuses them. Must be set before the chain is first
+     * rendered, or after {@link #release()}.
+     * @param pool the pool, or null to create and delete the textures
+     */
+    public void pool(CameraTexturePool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the program applying a {@link #fused()} chain onto the camera texture, compiling it if needed.
+     * @return the program
+     */
+    CameraProgram fusedProgram() {
+        return program(0);
+    }
+
+    /**
+     * Returns the program drawing the result of {@link #render(CameraRenderer, EGLContext, long, int, float[], float)},
+     * compiling it if needed.
+     * @return the program
+     */
+    CameraProgram outputProgram() {
+        if (null == outputProgram) {
+            outputProgram = CameraProgram.create(OUTPUT_SHADER, GLES20.GL_TEXTURE_2D);
+        }
+
+        return outputProgram;
+    }
+
+    private CameraProgram program(int pass) {
+        if (null == programs[pass]) {
+            programs[pass] = CameraProgram.create(fragmentShaders[pass],
+                    0 == pass ? GLES11Ext.GL_TEXTURE_EXTERNAL_OES : GLES20.GL_TEXTURE_2D);
+        }
+
+        return programs[pass];
+    }
+
+    /**
+     * Render the passes of a chain that is not {@link #fused()}, unless they have already been rendered for this
+     * frame. The renderer's vertex state must be bound, and the framebuffer binding and viewport are restored.
+     * @param renderer the renderer
+     * @param context the current EGL context
+     * @param frame the renderer's frame number
+     * @param cameraTexture the camera texture
+     * @param stMatrix the camera texture's transform matrix
+     * @param scale the scale applied to the viewport size, if no {@link #size(int, int)} is set
+     * @return the 2D texture holding the result
+     */
+    int render(CameraRenderer renderer, EGLContext context, long frame, int cameraTexture, float[] stMatrix,
+               float scale) {
+        if (frame == renderedFrame) {
+            return resultTexture;
+        }
+
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, savedViewport, 0);
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, savedFramebuffer, 0);
+
+        final boolean sized = requestedWidth > 0 && requestedHeight > 0;
+        final int width = sized ? requestedWidth : Math.max(1, Math.round(savedViewport[2] * scale));
+        final int height = sized ? requestedHeight : Math.max(1, Math.round(savedViewport[3] * scale));
+
+        allocate(width, height);
+
+        final int framebuffer = framebuffers(context);
+
+        GLES20.glViewport(0, 0, width, height);
+
+        int source = cameraTexture;
+
+        for (int pass = 0; pass < fragmentShaders.length; pass++) {
+            final int target = pass % 2;
+            final CameraProgram program = program(pass);
+
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[framebuffer + target]);
+
+            renderer.use(program);
+            program.matrices(IDENTITY, 0, 0 == pass ? stMatrix : IDENTITY);
+            program.textureSize(width, height);
+
+            GLES20.glBindTexture(program.textureTarget(), source);
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+            GLES20.glBindTexture(program.textureTarget(), 0);
+
+            source = textures[target];
+        }
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, savedFramebuffer[0]);
+        GLES20.glViewport(savedViewport[0], savedViewport[1], savedViewport[2], savedViewport[3]);
+
+        GLESUtils.glError("CameraEffectChain render");
+
+        renderedFrame = frame;
+        resultTexture = source;
+
+        return source;
+    }
+
+    private void allocate(int width, int height) {
+        if (width == textureWidth && height == textureHeight) {
+            return;
+        }
+
+        deleteTextures();
+
+        if (null != pool) {
+            for (int i = 0; i < 2; i++) {
+                pooledTextures[i] = pool.acquire(width, height, GLES20.GL_RGBA);
+                textures[i] = pooledTextures[i].textureId();
+            }
+        } else {
+            GLES20.glGenTextures(2, textures, 0);
+
+            for (int texture : textures) {
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0, GLES20.GL_RGBA,
+                        GLES20.GL_UNSIGNED_BYTE, null);
+                GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+                GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+                GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+                GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            }
+
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            GLESUtils.glError("CameraEffectChain glTexImage2D(%d, %d)", width, height);
+        }
+
+        textureWidth = width;
+        textureHeight = height;
+        textureGeneration += 1;
+        renderedFrame = -1;
+    }
+
+    /**
+     * Returns the index in {@link #framebuffers} of the two framebuffers of the context, creating them or attaching
+     * the current textures to them as needed.
+     */
+    private int framebuffers(EGLContext context) {
+        int index = -1;
+
+        for (int i = 0; i < framebufferContexts.length; i++) {
+            if (context.equals(framebufferContexts[i])) {
+                index = i;
+                break;
+            }
+        }
+
+        if (index < 0) {
+            index = framebufferContexts.length;
+
+            framebufferContexts = Arrays.copyOf(framebufferContexts, index + 1);
+            framebuffers = Arrays.copyOf(framebuffers, 2 * (index + 1));
+            framebufferGenerations = Arrays.copyOf(framebufferGenerations, index + 1);
+
+            framebufferContexts[index] = context;
+            GLES20.glGenFramebuffers(2, framebuffers, 2 * index);
+        }
+
+        if (framebufferGenerations[index] != textureGeneration) {
+            for (int i = 0; i < 2; i++) {
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[2 * index + i]);
+                GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                        GLES20.GL_TEXTURE_2D, textures[i], 0);
+
+                final int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+
+                if (GLES20.GL_FRAMEBUFFER_COMPLETE != status) {
+                    throw new RuntimeException(String.format((Locale) null, "Framebuffer %dx%d is not complete: 0x%x", textureWidth, textureHeight, status));
+                }
+            }
+
+            framebufferGenerations[index] = textureGeneration;
+        }
+
+        return 2 * index;
+    }
+
+    /**
+     * Release the programs and textures of this chain, and the framebuffers of the current EGL context. Framebuffers
+     * of other contexts are released with their context. Must be called on the thread drawing the renderer, after the
+     * chain has been removed from it. The chain can be used again, creating new resources.
+     */
+    public void release() {
+        for (int i = 0; i < programs.length; i++) {
+            if (null != programs[i]) {
+                programs[i].release();
+                programs[i] = null;
+            }
+        }
+
+        if (null != outputProgram) {
+            outputProgram.release();
+            outputProgram = null;
+        }
+
+        deleteTextures();
+        textureWidth = 0;
+        textureHeight = 0;
+
+        final EGLContext context = EGL14.eglGetCurrentContext();
+
+        for (int i = 0; i < framebufferContexts.length; i++) {
+            if (context.equals(framebufferContexts[i])) {
+                GLES20.glDeleteFramebuffers(2, framebuffers, 2 * i);
+            }
+        }
+
+        framebufferContexts = new EGLContext[0];
+        framebuffers = new int[0];
+        framebufferGenerations = new int[0];
+
+        renderedFrame = -1;
+    }
+
+    private void deleteTextures() {
+        if (0 == textureWidth) {
+            return;
+        }
+
+        if (null != pooledTextures[0]) {
+            for (int i = 0; i < 2; i++) {
+                pooledTextures[i].release();
+                pooledTextures[i] = null;
+            }
+        } else {
+            GLES20.glDeleteTextures(2, textures, 0);
+        }
+    }
+}
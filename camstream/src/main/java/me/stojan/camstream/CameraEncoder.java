@@ -0,0 +1,489 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package me.stojan.camstream;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.view.Surface;
+import me.stojan.camstream.util.CameraClock;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A hardware video encoder fed by a {@link CameraSurface}. The encoder's input surface is wrapped into a camera surface
+ * that shares an existing EGL context, so the camera's texture can be drawn into it, usually as a target of a
+ * {@link CameraSurfaceGroup}. The encoded output is drained on a dedicated thread and handed to a {@link Callback}.
+ * <p>
+ * Drawing into the encoder never blocks on a busy codec: when too many frames are waiting to be encoded,
+ * {@link #admit(long)} rejects new frames and they are counted as dropped. A frame stops waiting when output with its
+ * presentation time or a later one is drained, so frames that the codec silently drops don't hold a place, and frames
+ * that have waited longer than {@link #PENDING_TIMEOUT_MS} are given up on. While the encoder is {@link #paused(boolean)},
+ * for example because nothing moves in front of the camera, all frames are rejected and the stream resumes with a key
+ * frame.
+ * <p>
+ * The {@link FrameInfo} of each admitted frame is kept until its output is drained, and it is available from
+ * {@link #frameInfo()} in {@link Callback#onEncodedFrame(CameraEncoder, ByteBuffer, MediaCodec.BufferInfo)}.
+ *
+ * @see Callback
+ * @see CameraMuxer
+ */
+public final class CameraEncoder implements CameraSurfaceGroup.Gate, FrameInfo.Receiver {
+
+    /**
+     * Callbacks for the encoded output. All of them are called on the encoder's drain thread.
+     */
+    public interface Callback {
+        /**
+         * Called when the encoder's output format is known, before any encoded frame.
+         * @param encoder the encoder, will not be null
+         * @param format the output format, will not be null
+         */
+        void onOutputFormatChanged(CameraEncoder encoder, MediaFormat format);
+
+        /**
+         * Called for each non-empty output buffer, including codec configuration data. The buffer is only valid for
+         * the duration of the call and must not be modified.
+         * @param encoder the encoder, will not be null
+         * @param buffer the encoded data, between its position and limit, will not be null
+         * @param info the buffer info, will not be null
+         */
+        void onEncodedFrame(CameraEncoder encoder, ByteBuffer buffer, MediaCodec.BufferInfo info);
+
+        /**
+         * Called when the encoder has reached the end of the stream, after {@link #release()} has been called.
+         * @param encoder the encoder, will not be null
+         */
+        void onEndOfStream(CameraEncoder encoder);
+    }
+
+    /** The default number of frames that may wait in the encoder before new frames are dropped. */
+    public static final int DEFAULT_MAX_PENDING_FRAMES = 4;
+
+    /** The time after which a frame that has produced no output no longer counts as waiting in the encoder. */
+    public static final long PENDING_TIMEOUT_MS = 1000;
+
+    private static final long DRAIN_TIMEOUT_US = 10000;
+    private static final long END_OF_STREAM_TIMEOUT_MS = 1000;
+
+    private final EncoderCodec codec;
+    private final CameraSurface surface;
+    private final Callback callback;
+    private final int maxPendingFrames;
+    private final CameraClock clock;
+    private final Thread drainThread;
+
+    // The timestamps of admitted frames and the times they were admitted at, a ring in admission order.
+    private final Object pendingLock = new Object();
+    private final Object pauseLock = new Object();
+    private final long[] pendingTimestamps;
+    private final long[] pendingTimes;
+    private int pendingHead;
+    private int pendingFrames;
+
+    // Frame infos of admitted frames in presentation order, matched to the output on the drain thread.
+    private final ArrayBlockingQueue<FrameInfo> pendingInfos;
+    private FrameInfo outputInfo;
+
+    private volatile boolean stopped;
+    private volatile boolean paused;
+    private volatile long pausedFrames;
+    private volatile long encodedFrames;
+    private volatile long droppedFrames;
+
+    /**
+     * Create and start a new encoder with {@link #DEFAULT_MAX_PENDING_FRAMES}.
+     * @param format the video format, must not be null and must contain at least the MIME type, size, bit rate, frame
+     *               rate and I-frame interval
+     * @param sharedSurface the camera surface whose EGL context will be shared, must not be null or be released
+     * @param callback the callback, must not be null
+     * @return the new encoder
+     * @throws IOException if the encoder can't be created
+     */
+    public static CameraEncoder create(MediaFormat format, CameraSurface sharedSurface, Callback callback) throws IOException {
+        return create(format, sharedSurface, callback, DEFAULT_MAX_PENDING_FRAMES);
+    }
+
+    /**
+     * Create and start a new encoder.
+     * @param format the video format, must not be null and must contain at least the MIME type, size, bit rate, frame
+     *               rate and I-frame interval
+     * @param sharedSurface the camera surface whose EGL context will be shared, must not be null or be released
+     * @param callback the callback, must not be null
+     * @param maxPendingFrames the number of frames that may wait in the encoder before new frames are dropped, must be
+     *                         positive
+     * @return the new encoder
+     * @throws IOException if the encoder can't be created
+     */
+    public static CameraEncoder create(MediaFormat format, CameraSurface sharedSurface, Callback callback, int maxPendingFrames) throws IOException {
+        if (null == format) {
+            throw new IllegalArgumentException("Argument format must not be null");
+        }
+
+        if (null == sharedSurface) {
+            throw new IllegalArgumentException("Argument sharedSurface must not be null");
+        }
+
+        if (null == callback) {
+            throw new IllegalArgumentException("Argument callback must not be null");
+        }
+
+        if (maxPendingFrames < 1) {
+            throw new IllegalArgumentException("Argument maxPendingFrames must be positive");
+        }
+
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+
+        final MediaCodec codec = MediaCodec.createEncoderByType(format.getString(MediaFormat.KEY_MIME));
+
+        final CameraSurface surface;
+
+        try {
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+
+            final Surface inputSurface = codec.createInputSurface();
+            codec.start();
+
+            surface = CameraSurface.create(inputSurface, sharedSurface);
+        } catch (RuntimeException e) {
+            codec.release();
+            throw e;
+        }
+
+        return new CameraEncoder(new EncoderCodec.Adapter(codec), surface, callback, maxPendingFrames, CameraClock.SYSTEM);
+    }
+
+    // The surface is null when driven by a fake codec in tests.
+    CameraEncoder(EncoderCodec codec, CameraSurface surface, Callback callback, int maxPendingFrames, CameraClock clock) {
+        this.codec = codec;
+        this.surface = surface;
+        this.callback = callback;
+        this.maxPendingFrames = maxPendingFrames;
+        this.clock = clock;
+
+        pendingTimestamps = new long[maxPendingFrames];
+        pendingTimes = new long[maxPendingFrames];
+
+        // Frames the codec drops leave their frame infos behind until a later output passes them.
+        pendingInfos = new ArrayBlockingQueue<>(2 * maxPendingFrames);
+
+        drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "camera-encoder-drain");
+
+        drainThread.start();
+    }
+
+    /**
+     * Returns the camera surface over the encoder's input surface.
+     * @return the surface, will not be null
+     */
+    public CameraSurface surface() {
+        return surface;
+    }
+
+    /**
+     * Admit a frame into the encoder. Frames are rejected and counted as dropped while too many frames are waiting
+     * to be encoded. Every admitted frame must be published into {@link #surface()}.
+     * @param timestamp the frame's timestamp in nanoseconds
+     * @return true if the frame should be drawn and published, false if it should be dropped
+     */
+    @Override
+    public boolean admit(long timestamp) {
+        if (stopped) {
+            return false;
+        }
+
+        if (paused) {
+            pausedFrames += 1;
+            return false;
+        }
+
+        final long now = clock.nanoTime();
+
+        synchronized (pendingLock) {
+            // Give up on frames that should have produced output long ago.
+            while (pendingFrames > 0 && now - pendingTimes[pendingHead] > PENDING_TIMEOUT_MS * 1000000L) {
+                pendingHead = (pendingHead + 1) % maxPendingFrames;
+                pendingFrames -= 1;
+            }
+
+            if (pendingFrames >= maxPendingFrames) {
+                droppedFrames += 1;
+                return false;
+            }
+
+            final int tail = (pendingHead + pendingFrames) % maxPendingFrames;
+
+            pendingTimestamps[tail] = timestamp;
+            pendingTimes[tail] = now;
+            pendingFrames += 1;
+        }
+
+        return true;
+    }
+
+    // Stops counting the frames admitted before the output with the presentation time, and the output's own frame.
+    private void retire(long presentationTimeUs) {
+        synchronized (pendingLock) {
+            while (pendingFrames > 0 && pendingTimestamps[pendingHead] / 1000 <= presentationTimeUs) {
+                pendingHead = (pendingHead + 1) % maxPendingFrames;
+                pendingFrames -= 1;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of admitted frames that are waiting to be encoded.
+     * @return the number of frames
+     */
+    public int pendingFrames() {
+        synchronized (pendingLock) {
+            return pendingFrames;
+        }
+    }
+
+    /**
+     * Pause or resume encoding. While paused, frames are not admitted and the codec produces no output. On resuming a
+     * sync frame is requested, so that the stream continues with a key frame. May be called from any thread, calls
+     * are serialized so that each resume requests exactly one sync frame, and none after the encoder is released.
+     * @param paused true to pause, false to resume
+     */
+    public void paused(boolean paused) {
+        synchronized (pauseLock) {
+            if (this.paused && !paused && !stopped) {
+                codec.requestSyncFrame();
+            }
+
+            this.paused = paused;
+        }
+    }
+
+    /**
+     * Returns whether encoding is paused.
+     * @return true if paused
+     */
+    public boolean paused() {
+        return paused;
+    }
+
+    /**
+     * Keep the frame info of an admitted frame until the frame's output is drained. Frame infos beyond twice the
+     * maximum pending frames are not kept.
+     * @param info the frame info, must not be null
+     */
+    @Override
+    public void receive(FrameInfo info) {
+        if (null == info) {
+            throw new IllegalArgumentException("Argument info must not be null");
+        }
+
+        if (stopped) {
+            return;
+        }
+
+        if (!pendingInfos.offer(info.retain())) {
+            info.release();
+        }
+    }
+
+    /**
+     * Returns the frame info of the frame being handed to
+     * {@link Callback#onEncodedFrame(CameraEncoder, ByteBuffer, MediaCodec.BufferInfo)}, matched by its presentation
+     * time. It is only valid on the drain thread during the call, and must be retained to be kept longer.
+     * @return the frame info, or null for codec configuration data or if the frame had none
+     */
+    public FrameInfo frameInfo() {
+        return outputInfo;
+    }
+
+    /**
+     * Render the last latched frame of the renderer into the encoder, unless it is dropped. The renderer's EGL context
+     * must be shared with the encoder's surface.
+     * @param renderer the renderer, must not be null
+     * @return true if the frame was rendered, false if it was dropped
+     */
+    public boolean render(CameraRenderer renderer) {
+        if (null == renderer) {
+            throw new IllegalArgumentException("Argument renderer must not be null");
+        }
+
+        final long timestamp = renderer.timestamp();
+
+        if (!admit(timestamp)) {
+            return false;
+        }
+
+        final FrameInfo info = renderer.frameInfo();
+
+        if (null != info) {
+            receive(info);
+        }
+
+        surface.current();
+        renderer.draw();
+        surface.publish(timestamp);
+
+        return true;
+    }
+
+    /**
+     * Returns the number of encoded frames.
+     * @return the number of frames
+     */
+    public long encodedFrames() {
+        return encodedFrames;
+    }
+
+    /**
+     * Returns the number of frames dropped because the encoder was busy.
+     * @return the number of frames
+     */
+    public long droppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Returns the number of frames not admitted because the encoder was paused.
+     * @return the number of frames
+     */
+    public long pausedFrames() {
+        return pausedFrames;
+    }
+
+    /**
+     * Finish the stream and release the encoder and its surface. Blocks until the remaining output has been drained.
+     * The surface must not be current on any thread and must have been removed from any {@link CameraSurfaceGroup}.
+     */
+    public void release() {
+        if (!stopped) {
+            codec.signalEndOfInputStream();
+
+            join(END_OF_STREAM_TIMEOUT_MS);
+
+            stopped = true;
+
+            join(0);
+
+            synchronized (pauseLock) {
+                codec.release();
+            }
+
+            if (null != surface) {
+                surface.release();
+            }
+
+            FrameInfo info;
+
+            while (null != (info = pendingInfos.poll())) {
+                info.release();
+            }
+        }
+    }
+
+    private void join(long millis) {
+        boolean interrupted = false;
+
+        try {
+            while (drainThread.isAlive()) {
+                try {
+                    drainThread.join(millis);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void drain() {
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+        while (!stopped) {
+            final int index = codec.dequeueOutputBuffer(info, DRAIN_TIMEOUT_US);
+
+            if (MediaCodec.INFO_OUTPUT_FORMAT_CHANGED == index) {
+                callback.onOutputFormatChanged(this, codec.outputFormat());
+            } else if (index >= 0) {
+                if (0 == (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) && info.size > 0) {
+                    encodedFrames += 1;
+
+                    retire(info.presentationTimeUs);
+                    outputInfo = pollInfo(info.presentationTimeUs);
+                }
+
+                if (info.size > 0) {
+                    final ByteBuffer buffer = codec.outputBuffer(index);
+                    buffer.limit(info.offset + info.size);
+                    buffer.position(info.offset);
+
+                    try {
+                        callback.onEncodedFrame(this, buffer, info);
+                    } finally {
+                        if (null != outputInfo) {
+                            outputInfo.release();
+                            outputInfo = null;
+                        }
+                    }
+                }
+
+                codec.releaseOutputBuffer(index);
+
+                if (0 != (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM)) {
+                    callback.onEndOfStream(this);
+                    return;
+                }
+            }
+        }
+    }
+
+    // Returns the frame info with the presentation time, releasing the ones of earlier frames that the codec dropped.
+    private FrameInfo pollInfo(long presentationTimeUs) {
+        FrameInfo info;
+
+        while (null != (info = pendingInfos.peek())) {
+            final long infoTimeUs = info.presentationTimestamp() / 1000;
+
+            if (infoTimeUs > presentationTimeUs) {
+                return null;
+            }
+
+            pendingInfos.poll();
+
+            if (infoTimeUs == presentationTimeUs) {
+                return info;
+            }
+
+            info.release();
+        }
+
+        return null;
+    }
+}
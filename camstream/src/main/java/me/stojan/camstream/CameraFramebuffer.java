@@ -0,0 +1,146 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package me.stojan.camstream;
+
+import android.opengl.GLES20;
+import me.stojan.camstream.util.GLESUtils;
+
+import java.util.Locale;
+
+/**
+ * An offscreen render target: an OpenGL ES framebuffer object with an RGBA texture as its color attachment. It belongs
+ * to the EGL context (and its share group) that was current when it was created.
+ */
+public final class CameraFramebuffer implements CameraRenderTarget {
+
+    private final int width;
+    private final int height;
+
+    private int textureId;
+    private int framebufferId;
+
+    /**
+     * Create a new framebuffer in the current EGL context.
+     * @param width the width in pixels, must be positive
+     * @param height the height in pixels, must be positive
+     * @return the new framebuffer
+     */
+    public static CameraFramebuffer create(int width, int height) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Arguments width and height must be positive");
+        }
+
+        return new CameraFramebuffer(width, height);
+    }
+
+    private CameraFramebuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        final int[] names = new int[1];
+
+        GLES20.glGenTextures(1, names, 0);
+        textureId = names[0];
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0, GLES20.GL_RGBA,
+                GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLESUtils.glError("glTexImage2D %dx%d", width, height);
+
+        GLES20.glGenFramebuffers(1, names, 0);
+        framebufferId = names[0];
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebufferId);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D,
+                textureId, 0);
+
+        final int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        if (GLES20.GL_FRAMEBUFFER_COMPLETE != status) {
+            release();
+            throw new RuntimeException(String.format((Locale) null, "Framebuffer %dx%d is not complete: 0x%x", width, height, status));
+        }
+    }
+
+    /**
+     * Bind this framebuffer as the render target and set the viewport to cover it.
+     */
+    @Override
+    public void bind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebufferId);
+        GLES20.glViewport(0, 0, width, height);
+    }
+
+    /**
+     * Returns the width.
+     * @return the width in pixels
+     */
+    @Override
+    public int width() {
+        return width;
+    }
+
+    /**
+     * Returns the height.
+     * @return the height in pixels
+     */
+    @Override
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Returns the name of the color texture, a {@link GLES20#GL_TEXTURE_2D}.
+     * @return the texture name, or 0 if {@link #release()} has been called
+     */
+    public int textureId() {
+        return textureId;
+    }
+
+    /**
+     * Returns the name of the framebuffer object.
+     * @return the framebuffer name, or 0 if {@link #release()} has been called
+     */
+    public int framebufferId() {
+        return framebufferId;
+    }
+
+    /**
+     * Delete the framebuffer and its texture. Must be called with the owning EGL context current.
+     */
+    public void release() {
+        if (0 != framebufferId) {
+            GLES20.glDeleteFramebuffers(1, new int[] { framebufferId }, 0);
+            framebufferId = 0;
+        }
+
+        if (0 != textureId) {
+            GLES20.glDeleteTextures(1, new int[] { textureId }, 0);
+            textureId = 0;
+        }
+    }
+}
@@ -0,0 +1,513 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.Looper;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import me.stojan.camstream.util.GLESUtils;
+
+/**
+ * Detects motion in front of the camera on the GPU, reading back only a small grid of tiles per frame. Each frame is
+ * reduced to luma in a history framebuffer {@link #SUBSAMPLING} times the grid's size, and compared with the previous
+ * frame's history: every fragment of the grid averages the absolute differences of its tile, so the readback
+ * transfers a few hundred bytes instead of the frame.
+ * <p>
+ * A tile moves when its mean difference exceeds the tile threshold. Motion starts once the fraction of moving tiles
+ * reaches the start fraction for a number of consecutive frames, and stops once it has stayed below the lower stop
+ * fraction for the stop delay, so that noise and brief pauses don't toggle it. The {@link Listener} is told when
+ * motion starts and stops, for example to pause a {@link CameraEncoder} while nothing moves, see
+ * {@link #pausing(CameraEncoder)}.
+ * <p>
+ * The detector is a {@link CameraReadback.Pass}, use {@link #readback(int, Looper)} to run it. Drawing happens on the
+ * render thread, the analysis and the listener run on the readback's looper. With a {@link #pausing(CameraEncoder)}
+ * listener, creating the readback pauses the encoder unless there is motion, since the listener is only told of
+ * changes; creating the listener does not touch the encoder.
+ *
+ * @see Listener
+ */
+public final class CameraMotionDetector implements CameraReadback.Pass {
+
+    /**
+     * Receives the start and end of motion. Called on the readback's looper.
+     */
+    public interface Listener {
+        /**
+         * Called when motion starts.
+         * @param detector the detector, will not be null
+         * @param timestamp the timestamp of the frame in which motion started, in nanoseconds
+         */
+        void onMotionStarted(CameraMotionDetector detector, long timestamp);
+
+        /**
+         * Called when motion stops.
+         * @param detector the detector, will not be null
+         * @param timestamp the timestamp of the frame in which motion stopped, in nanoseconds
+         */
+        void onMotionStopped(CameraMotionDetector detector, long timestamp);
+    }
+
+    /** The default grid width in tiles. */
+    public static final int DEFAULT_GRID_WIDTH = 16;
+
+    /** The default grid height in tiles. */
+    public static final int DEFAULT_GRID_HEIGHT = 9;
+
+    /** The size of a tile in history texels, in each direction. */
+    public static final int SUBSAMPLING = 4;
+
+    private static final float[] IDENTITY = new float[16];
+
+    static {
+        Matrix.setIdentityM(IDENTITY, 0);
+    }
+
+    // Reduces the camera frame to luma, averaging four bilinear samples around each history texel.
+    private static final String LUMA_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform samplerExternalOES sTexture;\n" +
+            "uniform vec2 uTexelSize;\n" +
+            "float luma(vec2 uv) {\n" +
+            "    return dot(texture2D(sTexture, uv).rgb, vec3(0.299, 0.587, 0.114));\n" +
+            "}\n" +
+            "void main() {\n" +
+            "    vec2 d = uTexelSize * 0.25;\n" +
+            "    float y = luma(vTextureCoord + vec2(-d.x, -d.y)) + luma(vTextureCoord + vec2(d.x, -d.y)) +\n" +
+            "            luma(vTextureCoord + vec2(-d.x, d.y)) + luma(vTextureCoord + vec2(d.x, d.y));\n" +
+            "    gl_FragColor = vec4(y * 0.25, 0.0, 0.0, 1.0);\n" +
+            "}\n";
+
+    // Compares the tile of history texels around each grid fragment, into the mean and the peak difference.
+    private static final String DIFFERENCE_SHADER =
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform sampler2D sTexture;\n" +
+            "uniform sampler2D sPrevious;\n" +
+            "uniform vec2 uHistoryTexelSize;\n" +
+            "void main() {\n" +
+            "    float sum = 0.0;\n" +
+            "    float peak = 0.0;\n" +
+            "    for (int y = 0; y < " + SUBSAMPLING + "; y++) {\n" +
+            "        for (int x = 0; x < " + SUBSAMPLING + "; x++) {\n" +
+            "            vec2 uv = vTextureCoord + (vec2(float(x), float(y)) - " + (SUBSAMPLING - 1) / 2f + ") * uHistoryTexelSize;\n" +
+            "            float d = abs(texture2D(sTexture, uv).r - texture2D(sPrevious, uv).r);\n" +
+            "            sum += d;\n" +
+            "            peak = max(peak, d);\n" +
+            "        }\n" +
+            "    }\n" +
+            "    gl_FragColor = vec4(sum / " + (float) (SUBSAMPLING * SUBSAMPLING) + ", peak, 0.0, 1.0);\n" +
+            "}\n";
+
+    private final int gridWidth;
+    private final int gridHeight;
+    private final Listener listener;
+
+    // GPU state, only used on the render thread.
+    private CameraProgram lumaProgram;
+    private CameraProgram differenceProgram;
+    private final CameraFramebuffer[] history = new CameraFramebuffer[2];
+    private int currentHistory;
+    private final float[] cameraMatrix = new float[16];
+    private final int[] framebufferBinding = new int[1];
+
+    // Analysis state, only used on the readback's looper.
+    private final float[] means;
+    private final float[] peaks;
+    private volatile float tileThreshold = 0.04f;
+    private volatile float startFraction = 0.02f;
+    private volatile float stopFraction = 0.01f;
+    private volatile int startFrames = 2;
+    private volatile long stopDelayNanos = 2000000000L;
+
+    private long analyzedFrames;
+    private int aboveFrames;
+    private long belowSince = -1;
+    private float movingFraction;
+
+    private volatile boolean motion;
+
+    private final CameraReadback.Listener readbackListener = new CameraReadback.Listener() {
+        @Override
+        public void onFrame(CameraReadback readback, ByteBuffer pixels, int width, int height, long timestamp) {
+            try {
+                analyze(pixels, timestamp);
+            } finally {
+                readback.recycle(pixels);
+            }
+        }
+    };
+
+    private CameraMotionDetector(int gridWidth, int gridHeight, Listener listener) {
+        this.gridWidth = gridWidth;
+        this.gridHeight = gridHeight;
+        this.listener = listener;
+
+        means = new float[gridWidth * gridHeight];
+        peaks = new float[gridWidth * gridHeight];
+    }
+
+    /**
+     * Create a new detector with a {@link #DEFAULT_GRID_WIDTH} by {@link #DEFAULT_GRID_HEIGHT} grid. No OpenGL ES calls
+     * are made, the programs and framebuffers are created on the first draw.
+     * @param listener the listener, must not be null
+     * @return the detector
+     */
+    public static CameraMotionDetector create(Listener listener) {
+        return create(DEFAULT_GRID_WIDTH, DEFAULT_GRID_HEIGHT, listener);
+    }
+
+    /**
+     * Create a new detector. No OpenGL ES calls are made, the programs and framebuffers are created on the first draw.
+     * @param gridWidth the grid width in tiles, must be positive
+     * @param gridHeight the grid height in tiles, must be positive
+     * @param listener the listener, must not be null
+     * @return the detector
+     */
+    public static CameraMotionDetector create(int gridWidth, int gridHeight, Listener listener) {
+        if (gridWidth < 1 || gridHeight < 1) {
+            throw new IllegalArgumentException("Arguments gridWidth and gridHeight must be positive");
+        }
+
+        if (null == listener) {
+            throw new IllegalArgumentException("Argument listener must not be null");
+        }
+
+        return new CameraMotionDetector(gridWidth, gridHeight, listener);
+    }
+
+    /**
+     * Returns a listener that pauses the encoder while nothing moves and resumes it when motion starts. The encoder is
+     * left as it is until the detector is attached with {@link #readback(int, Looper)}, which pauses it unless there
+     * is motion.
+     * @param encoder the encoder, must not be null
+     * @return the listener
+     */
+    public static Listener pausing(CameraEncoder encoder) {
+        if (null == encoder) {
+            throw new IllegalArgumentException("Argument encoder must not be null");
+        }
+
+        return new PausingListener(encoder);
+    }
+
+    private static final class PausingListener implements Listener {
+        private final CameraEncoder encoder;
+
+        private PausingListener(CameraEncoder encoder) {
+            this.encoder = encoder;
+        }
+
+        @Override
+        public void onMotionStarted(CameraMotionDetector detector, long timestamp) {
+            encoder.paused(false);
+        }
+
+        @Override
+        public void onMotionStopped(CameraMotionDetector detector, long timestamp) {
+            encoder.paused(true);
+        }
+    }
+
+    /**
+     * Create a readback running this detector. Must be called with a current EGL context. If the listener is
+     * {@link #pausing(CameraEncoder)}, its encoder is paused unless there is motion.
+     * @param buffers the number of pooled buffers, see {@link CameraReadback#create(int, int, int, CameraReadback.Pass, CameraReadback.Listener, Looper)}
+     * @param looper the looper the analysis and the listener run on, must not be null
+     * @return the readback
+     */
+    public CameraReadback readback(int buffers, Looper looper) {
+        final CameraReadback readback = CameraReadback.create(gridWidth, gridHeight, buffers, this, readbackListener,
+                looper);
+
+        attached();
+
+        return readback;
+    }
+
+    // Brings a pausing listener's encoder in line with the motion state, since the listener is only told of changes.
+    void attached() {
+        if (listener instanceof PausingListener) {
+            ((PausingListener) listener).encoder.paused(!motion);
+        }
+    }
+
+    /**
+     * Set when a tile moves and when motion starts and stops. May be called from any thread.
+     * @param tileThreshold the mean luma difference above which a tile moves, in (0, 1)
+     * @param startFraction the fraction of moving tiles at which motion starts, in (0, 1]
+     * @param stopFraction the fraction of moving tiles below which motion stops, in [0, startFraction]
+     * @return this detector
+     */
+    public CameraMotionDetector thresholds(float tileThreshold, float startFraction, float stopFraction) {
+        if (!(tileThreshold > 0 && tileThreshold < 1)) {
+            throw new IllegalArgumentException("Argument tileThreshold must be in (0, 1)");
+        }
+
+        if (!(startFraction > 0 && startFraction <= 1)) {
+            throw new IllegalArgumentException("Argument startFraction must be in (0, 1]");
+        }
+
+        if (!(stopFraction >= 0 && stopFraction <= startFraction)) {
+            throw new IllegalArgumentException("Argument stopFraction must be in [0, startFraction]");
+        }
+
+        this.tileThreshold = tileThreshold;
+        this.startFraction = startFraction;
+        this.stopFraction = stopFraction;
+
+        return this;
+    }
+
+    /**
+     * Set how long the moving fraction must stay on either side of the thresholds. May be called from any thread.
+     * @param startFrames the number of consecutive frames at or above the start fraction for motion to start, must be
+     *                    positive
+     * @param stopDelayNanos the time below the stop fraction for motion to stop, in nanoseconds, must not be negative
+     * @return this detector
+     */
+    public CameraMotionDetector hysteresis(int startFrames, long stopDelayNanos) {
+        if (startFrames < 1) {
+            throw new IllegalArgumentException("Argument startFrames must be positive");
+        }
+
+        if (stopDelayNanos < 0) {
+            throw new IllegalArgumentException("Argument stopDelayNanos must not be negative");
+        }
+
+        this.startFrames = startFrames;
+        this.stopDelayNanos = stopDelayNanos;
+
+        return this;
+    }
+
+    /**
+     * Compare the latched camera frame with the previous one into the bound framebuffer, which must be the grid's
+     * size.
+     * @param renderer the renderer with the latched frame, will not be null
+     * @param width the width of the framebuffer in pixels
+     * @param height the height of the framebuffer in pixels
+     */
+    @Override
+    public void draw(CameraRenderer renderer, int width, int height) {
+        if (gridWidth != width || gridHeight != height) {
+            throw new IllegalArgumentException(String.format((Locale) null, "Framebuffer must be %dx%d, not %dx%d",
+                    gridWidth, gridHeight, width, height));
+        }
+
+        if (null == lumaProgram) {
+            setup(renderer);
+        }
+
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, framebufferBinding, 0);
+
+        final CameraFramebuffer current = history[currentHistory];
+        final CameraFramebuffer previous = history[1 - currentHistory];
+
+        current.bind();
+
+        renderer.prepare(lumaProgram);
+        lumaProgram.textureSize(current.width(), current.height());
+        renderer.surfaceTexture().getTransformMatrix(cameraMatrix);
+        renderer.drawTexture(lumaProgram, renderer.textureId(), IDENTITY, 0, cameraMatrix);
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebufferBinding[0]);
+        GLES20.glViewport(0, 0, width, height);
+
+        renderer.prepare(differenceProgram);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, previous.textureId());
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+
+        renderer.drawTexture(differenceProgram, current.textureId(), IDENTITY, 0, IDENTITY);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+
+        GLESUtils.glError("CameraMotionDetector draw");
+
+        currentHistory = 1 - currentHistory;
+    }
+
+    private void setup(CameraRenderer renderer) {
+        final int historyWidth = gridWidth * SUBSAMPLING;
+        final int historyHeight = gridHeight * SUBSAMPLING;
+
+        for (int i = 0; i < history.length; i++) {
+            history[i] = CameraFramebuffer.create(historyWidth, historyHeight);
+        }
+
+        lumaProgram = CameraProgram.create(LUMA_SHADER, GLES11Ext.GL_TEXTURE_EXTERNAL_OES);
+        differenceProgram = CameraProgram.create(DIFFERENCE_SHADER, GLES20.GL_TEXTURE_2D);
+
+        renderer.prepare(differenceProgram);
+        GLES20.glUniform1i(differenceProgram.uniformLocation("sPrevious"), 1);
+        GLES20.glUniform2f(differenceProgram.uniformLocation("uHistoryTexelSize"), 1f / historyWidth,
+                1f / historyHeight);
+
+        GLESUtils.glError("CameraMotionDetector setup");
+    }
+
+    // Reads the grid, tiles from the top left, and updates the motion state. Runs on the readback's looper.
+    void analyze(ByteBuffer pixels, long timestamp) {
+        final int base = pixels.position();
+        final float tileThreshold = this.tileThreshold;
+
+        int moving = 0;
+
+        // Rows are read back bottom to top.
+        for (int y = 0; y < gridHeight; y++) {
+            for (int x = 0; x < gridWidth; x++) {
+                final int offset = base + 4 * ((gridHeight - 1 - y) * gridWidth + x);
+                final int tile = y * gridWidth + x;
+
+                means[tile] = (pixels.get(offset) & 0xFF) / 255f;
+                peaks[tile] = (pixels.get(offset + 1) & 0xFF) / 255f;
+
+                if (means[tile] > tileThreshold) {
+                    moving += 1;
+                }
+            }
+        }
+
+        analyzedFrames += 1;
+
+        // The first frame is compared with an empty history.
+        if (analyzedFrames < 2) {
+            return;
+        }
+
+        movingFraction = (float) moving / means.length;
+
+        if (!motion) {
+            aboveFrames = movingFraction >= startFraction ? aboveFrames + 1 : 0;
+
+            if (aboveFrames >= startFrames) {
+                motion = true;
+                aboveFrames = 0;
+                belowSince = -1;
+                listener.onMotionStarted(this, timestamp);
+            }
+        } else if (movingFraction < stopFraction) {
+            if (belowSince < 0) {
+                belowSince = timestamp;
+            }
+
+            if (timestamp - belowSince >= stopDelayNanos) {
+                motion = false;
+                belowSince = -1;
+                listener.onMotionStopped(this, timestamp);
+            }
+        } else {
+            belowSince = -1;
+        }
+    }
+
+    /**
+     * Returns whether there is motion. May be called from any thread.
+     * @return true between {@link Listener#onMotionStarted(CameraMotionDetector, long)} and
+     *         {@link Listener#onMotionStopped(CameraMotionDetector, long)}
+     */
+    public boolean motion() {
+        return motion;
+    }
+
+    /**
+     * Returns the fraction of moving tiles in the last analyzed frame. Must be called on the readback's looper.
+     * @return the fraction, in [0, 1]
+     */
+    public float movingFraction() {
+        return movingFraction;
+    }
+
+    /**
+     * Copy the mean luma difference of each tile in the last analyzed frame, row by row from the top left. Must be
+     * called on the readback's looper.
+     * @param means the array, must not be null and must hold {@link #gridWidth()} times {@link #gridHeight()} values
+     *              after the offset
+     * @param offset the offset in the array
+     */
+    public void means(float[] means, int offset) {
+        copy(this.means, means, offset);
+    }
+
+    /**
+     * Copy the largest luma difference within each tile in the last analyzed frame, row by row from the top left.
+     * Must be called on the readback's looper.
+     * @param peaks the array, must not be null and must hold {@link #gridWidth()} times {@link #gridHeight()} values
+     *              after the offset
+     * @param offset the offset in the array
+     */
+    public void peaks(float[] peaks, int offset) {
+        copy(this.peaks, peaks, offset);
+    }
+
+    private static void copy(float[] source, float[] destination, int offset) {
+        if (null == destination || offset < 0 || destination.length - offset < source.length) {
+            throw new IllegalArgumentException("Argument array must hold the grid after offset");
+        }
+
+        System.arraycopy(source, 0, destination, offset, source.length);
+    }
+
+    /**
+     * Returns the grid width.
+     * @return the width in tiles
+     */
+    public int gridWidth() {
+        return gridWidth;
+    }
+
+    /**
+     * Returns the grid height.
+     * @return the height in tiles
+     */
+    public int gridHeight() {
+        return gridHeight;
+    }
+
+    /**
+     * Release the programs and framebuffers, on the render thread. The detector creates them again if it is used
+     * afterwards, starting with an empty history.
+     */
+    public void release() {
+        if (null != lumaProgram) {
+            lumaProgram.release();
+            differenceProgram.release();
+            lumaProgram = null;
+            differenceProgram = null;
+
+            for (int i = 0; i < history.length; i++) {
+                history[i].release();
+                history[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package me.stojan.camstream;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link CameraEncoder.Callback} that writes the encoded video into an MP4 file with {@link MediaMuxer}. The file is
+ * finalized when the encoder reaches the end of the stream.
+ */
+public final class CameraMuxer implements CameraEncoder.Callback {
+
+    private final MediaMuxer muxer;
+
+    private int track = -1;
+
+    /**
+     * Create a new muxer writing into an MP4 file.
+     * @param path the path of the file, must not be null
+     * @throws IOException if the file can't be created
+     */
+    public CameraMuxer(String path) throws IOException {
+        this(path, 0);
+    }
+
+    /**
+     * Create a new muxer writing into an MP4 file.
+     * @param path the path of the file, must not be null
+     * @param orientationHint the orientation hint in degrees: 0, 90, 180 or 270
+     * @throws IOException if the file can't be created
+     */
+    public CameraMuxer(String path, int orientationHint) throws IOException {
+        if (null == path) {
+            throw new IllegalArgumentException("Argument path must not be null");
+        }
+
+        muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        muxer.setOrientationHint(orientationHint);
+    }
+
+    @Override
+    public void onOutputFormatChanged(CameraEncoder encoder, MediaFormat format) {
+        if (track >= 0) {
+            throw new IllegalStateException("Output format changed twice");
+        }
+
+        track = muxer.addTrack(format);
+        muxer.start();
+    }
+
+    @Override
+    public void onEncodedFrame(CameraEncoder encoder, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        // The codec configuration is already a part of the output format.
+        if (track >= 0 && 0 == (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG)) {
+            muxer.writeSampleData(track, buffer, info);
+        }
+    }
+
+    @Override
+    public void onEndOfStream(CameraEncoder encoder) {
+        if (track >= 0) {
+            muxer.stop();
+        }
+
+        muxer.release();
+    }
+}
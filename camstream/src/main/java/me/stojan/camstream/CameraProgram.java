@@ -0,0 +1,172 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import android.opengl.GLES20;
+
+import java.util.Arrays;
+
+import me.stojan.camstream.util.GLESProgramCache;
+import me.stojan.camstream.util.GLESUtils;
+
+/**
+ * A linked program drawing the camera quad, with the uniform state last pushed into it. All programs bind
+ * {@link #ATTRIBUTE_POSITION} and {@link #ATTRIBUTE_TEXTURE_COORD} to the same locations, so switching between them
+ * does not require setting up the vertex attributes again.
+ */
+final class CameraProgram {
+
+    static final int ATTRIBUTE_POSITION = 0;
+    static final int ATTRIBUTE_TEXTURE_COORD = 1;
+
+    static final String VERTEX_SHADER =
+            "uniform mat4 uMVPMatrix;\n" +
+            "uniform mat4 uSTMatrix;\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec4 aTextureCoord;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = uMVPMatrix * aPosition;\n" +
+            "    vTextureCoord = (uSTMatrix * aTextureCoord).xy;\n" +
+            "}\n";
+
+    private final int program;
+    private final int textureTarget;
+
+    private final int mvpMatrixHandle;
+    private final int stMatrixHandle;
+    private final int texelSizeHandle;
+
+    // The values last pushed into the program's uniforms. Uniforms are program state, so they are shared by all EGL
+    // contexts sharing the program.
+    private final float[] uniformMVPMatrix = new float[16];
+    private final float[] uniformSTMatrix = new float[16];
+    private float uniformTexelWidth = Float.NaN;
+    private float uniformTexelHeight = Float.NaN;
+
+    private CameraProgram(int program, int textureTarget) {
+        this.program = program;
+        this.textureTarget = textureTarget;
+
+        mvpMatrixHandle = GLESUtils.glUniformLocation(program, "uMVPMatrix");
+        stMatrixHandle = GLESUtils.glUniformLocation(program, "uSTMatrix");
+
+        // Only effects sampling neighbouring texels use the texel size, the compiler removes it otherwise.
+        texelSizeHandle = GLES20.glGetUniformLocation(program, "uTexelSize");
+
+        Arrays.fill(uniformMVPMatrix, Float.NaN);
+        Arrays.fill(uniformSTMatrix, Float.NaN);
+    }
+
+    /**
+     * Compile a program in the current EGL context, using {@link #VERTEX_SHADER}.
+     * @param fragmentSource the fragment shader, sampling the texture in the sampler 0
+     * @param textureTarget the texture target sampled by the fragment shader
+     * @return the program
+     */
+    static CameraProgram create(String fragmentSource, int textureTarget) {
+        final int program = GLESProgramCache.createProgram(VERTEX_SHADER, fragmentSource, "aPosition", "aTextureCoord");
+
+        return new CameraProgram(program, textureTarget);
+    }
+
+    /**
+     * Returns the texture target this program samples.
+     * @return the target
+     */
+    int textureTarget() {
+        return textureTarget;
+    }
+
+    /**
+     * Returns the location of a uniform declared by the fragment shader.
+     * @param name the uniform name
+     * @return the location
+     */
+    int uniformLocation(String name) {
+        return GLESUtils.glUniformLocation(program, name);
+    }
+
+    /**
+     * Make this program current.
+     */
+    void use() {
+        GLES20.glUseProgram(program);
+    }
+
+    /**
+     * Push the matrices into this program's uniforms, if they differ from the ones last pushed. This program must be
+     * current.
+     * @param mvpMatrix the model-view-projection matrix
+     * @param mvpOffset the offset of the model-view-projection matrix
+     * @param stMatrix the texture matrix
+     */
+    void matrices(float[] mvpMatrix, int mvpOffset, float[] stMatrix) {
+        if (copyIfChanged(mvpMatrix, mvpOffset, uniformMVPMatrix)) {
+            GLES20.glUniformMatrix4fv(mvpMatrixHandle, 1, false, uniformMVPMatrix, 0);
+        }
+
+        if (copyIfChanged(stMatrix, 0, uniformSTMatrix)) {
+            GLES20.glUniformMatrix4fv(stMatrixHandle, 1, false, uniformSTMatrix, 0);
+        }
+    }
+
+    /**
+     * Push the size of the sampled texture into this program's uniforms, if it is used and has changed. This program
+     * must be current.
+     * @param width the texture width
+     * @param height the texture height
+     */
+    void textureSize(int width, int height) {
+        if (texelSizeHandle < 0) {
+            return;
+        }
+
+        final float texelWidth = 1f / width;
+        final float texelHeight = 1f / height;
+
+        if (texelWidth != uniformTexelWidth || texelHeight != uniformTexelHeight) {
+            uniformTexelWidth = texelWidth;
+            uniformTexelHeight = texelHeight;
+
+            GLES20.glUniform2f(texelSizeHandle, texelWidth, texelHeight);
+        }
+    }
+
+    /**
+     * Delete the program.
+     */
+    void release() {
+        GLES20.glDeleteProgram(program);
+    }
+
+    private static boolean copyIfChanged(float[] source, int offset, float[] destination) {
+        for (int i = 0; i < destination.length; i++) {
+            if (source[offset + i] != destination[i]) {
+                System.arraycopy(source, offset, destination, 0, destination.length);
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
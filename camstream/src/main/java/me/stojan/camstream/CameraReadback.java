@@ -0,0 +1,408 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package me.stojan.camstream;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import me.stojan.camstream.util.BufferPool;
+import me.stojan.camstream.util.GLESUtils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reads camera frames back into CPU memory at an analysis resolution, without stalling the render thread. Each frame
+ * is drawn into an offscreen {@link CameraFramebuffer} of the readback size. On OpenGL ES 3.0 the pixels are read into
+ * a ring of pixel buffer objects and mapped a few frames later, when the GPU has finished with them. On OpenGL ES 2.0
+ * the pixels are read synchronously.
+ * <p>
+ * The RGBA pixels are copied into buffers from a {@link BufferPool} and delivered to a {@link Listener} on the looper
+ * provided at creation. The listener must {@link #recycle(ByteBuffer)} each buffer when it is done with it, frames are
+ * dropped while no buffer is available. Rows are bottom to top, as is usual for OpenGL ES. The {@link FrameInfo} of a
+ * read back frame travels with its pixels and is available from {@link #frameInfo()} while the listener is called.
+ * <p>
+ * All methods except {@link #recycle(ByteBuffer)} must be called on the render thread, with the same EGL context
+ * current.
+ *
+ * @see Listener
+ * @see Pass
+ */
+public final class CameraReadback {
+
+    /**
+     * Receives the pixels of read back frames.
+     */
+    public interface Listener {
+        /**
+         * Called on the listener's looper for each read back frame.
+         * @param readback the readback, will not be null
+         * @param pixels the RGBA pixels, tightly packed, between position and limit, will not be null; must be passed
+         *               to {@link #recycle(ByteBuffer)} when no longer used
+         * @param width the width in pixels
+         * @param height the height in pixels
+         * @param timestamp the frame's timestamp in nanoseconds
+         */
+        void onFrame(CameraReadback readback, ByteBuffer pixels, int width, int height, long timestamp);
+    }
+
+    /**
+     * Draws a frame into the readback's framebuffer. The framebuffer is bound and the viewport covers it when this is
+     * called.
+     */
+    public interface Pass {
+        /**
+         * Draw the frame.
+         * @param renderer the renderer with the latched frame, will not be null
+         * @param width the width of the framebuffer in pixels
+         * @param height the height of the framebuffer in pixels
+         */
+        void draw(CameraRenderer renderer, int width, int height);
+    }
+
+    /** A pass that draws the camera frame with the renderer's model-view-projection matrix. */
+    public static final Pass DRAW = new Pass() {
+        @Override
+        public void draw(CameraRenderer renderer, int width, int height) {
+            renderer.draw();
+        }
+    };
+
+    private static final int MSG_FRAME = 0;
+    private static final int MSG_FRAME_INFO = 1;
+
+    private final int width;
+    private final int height;
+    private final int frameBytes;
+    private final Pass pass;
+    private final Listener listener;
+    private final Handler handler;
+    private final BufferPool pool;
+    private final CameraFramebuffer framebuffer;
+
+    // Pixel buffer objects, only on OpenGL ES 3.0 and later.
+    private final int[] pixelBuffers;
+    private final long[] pixelBufferTimestamps;
+    private final boolean[] pixelBufferPending;
+    private final FrameInfo[] pixelBufferInfos;
+    private int nextPixelBuffer;
+
+    // Frame infos of delivered frames, in the order of their messages, and the one being delivered.
+    private final ArrayBlockingQueue<FrameInfo> deliveredInfos;
+    private FrameInfo deliveredInfo;
+
+    private final int[] viewport = new int[4];
+    private final int[] framebufferBinding = new int[1];
+
+    private volatile long deliveredFrames;
+    private volatile long droppedFrames;
+
+    /**
+     * Create a new readback in the current EGL context that draws the camera frame with {@link #DRAW}.
+     * @param width the readback width in pixels, must be positive
+     * @param height the readback height in pixels, must be positive
+     * @param buffers the number of pooled pixel buffers, must be positive
+     * @param listener the listener, must not be null
+     * @param looper the looper on which the listener is called, must not be null
+     * @return the new readback
+     */
+    public static CameraReadback create(int width, int height, int buffers, Listener listener, Looper looper) {
+        return create(width, height, buffers, DRAW, listener, looper);
+    }
+
+    /**
+     * Create a new readback in the current EGL context.
+     * @param width the readback width in pixels, must be positive
+     * @param height the readback height in pixels, must be positive
+     * @param buffers the number of pooled pixel buffers, must be positive
+     * @param pass the pass that draws each frame, must not be null
+     * @param listener the listener, must not be null
+     * @param looper the looper on which the listener is called, must not be null
+     * @return the new readback
+     */
+    public static CameraReadback create(int width, int height, int buffers, Pass pass, Listener listener, Looper looper) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Arguments width and height must be positive");
+        }
+
+        if (null == pass) {
+            throw new IllegalArgumentException("Argument pass must not be null");
+        }
+
+        if (null == listener) {
+            throw new IllegalArgumentException("Argument listener must not be null");
+        }
+
+        if (null == looper) {
+            throw new IllegalArgumentException("Argument looper must not be null");
+        }
+
+        return new CameraReadback(width, height, buffers, pass, listener, looper);
+    }
+
+    private CameraReadback(int width, int height, int buffers, Pass pass, Listener listener, Looper looper) {
+        this.width = width;
+        this.height = height;
+        this.frameBytes = width * height * 4;
+        this.pass = pass;
+        this.listener = listener;
+
+        pool = new BufferPool(buffers, frameBytes);
+
+        // Every delivered frame holds a pooled buffer, so there are never more frame infos in flight than buffers.
+        deliveredInfos = new ArrayBlockingQueue<>(buffers);
+
+        handler = new Handler(looper, new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message message) {
+                if (MSG_FRAME != message.what && MSG_FRAME_INFO != message.what) {
+                    return false;
+                }
+
+                final long timestamp = ((long) message.arg1 << 32) | (message.arg2 & 0xFFFFFFFFL);
+
+                deliveredInfo = MSG_FRAME_INFO == message.what ? deliveredInfos.poll() : null;
+                deliveredFrames += 1;
+
+                try {
+                    CameraReadback.this.listener.onFrame(CameraReadback.this, (ByteBuffer) message.obj,
+                            CameraReadback.this.width, CameraReadback.this.height, timestamp);
+                } finally {
+                    if (null != deliveredInfo) {
+                        deliveredInfo.release();
+                        deliveredInfo = null;
+                    }
+                }
+
+                return true;
+            }
+        });
+
+        framebuffer = CameraFramebuffer.create(width, height);
+
+        if (GLESUtils.glMajorVersion() >= 3) {
+            // Three buffers: one being written by the GPU, one in flight, one being mapped.
+            pixelBuffers = new int[3];
+            pixelBufferTimestamps = new long[pixelBuffers.length];
+            pixelBufferPending = new boolean[pixelBuffers.length];
+            pixelBufferInfos = new FrameInfo[pixelBuffers.length];
+
+            GLES30.glGenBuffers(pixelBuffers.length, pixelBuffers, 0);
+
+            for (int pixelBuffer : pixelBuffers) {
+                GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffer);
+                GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, frameBytes, null, GLES30.GL_STREAM_READ);
+            }
+
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            GLESUtils.glError("glBufferData GL_PIXEL_PACK_BUFFER");
+        } else {
+            pixelBuffers = null;
+            pixelBufferTimestamps = null;
+            pixelBufferPending = null;
+            pixelBufferInfos = null;
+        }
+    }
+
+    /**
+     * Returns whether pixels are read back asynchronously with pixel buffer objects.
+     * @return true on OpenGL ES 3.0 and later, false otherwise
+     */
+    public boolean asynchronous() {
+        return null != pixelBuffers;
+    }
+
+    /**
+     * Read back the last latched frame of the renderer. With asynchronous readback, the frame is delivered a couple
+     * of calls later. The current framebuffer binding and viewport are restored afterwards.
+     * @param renderer the renderer, must not be null
+     */
+    public void readback(CameraRenderer renderer) {
+        if (null == renderer) {
+            throw new IllegalArgumentException("Argument renderer must not be null");
+        }
+
+        final long timestamp = renderer.timestamp();
+        final FrameInfo info = renderer.frameInfo();
+
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, viewport, 0);
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, framebufferBinding, 0);
+
+        framebuffer.bind();
+        pass.draw(renderer, width, height);
+
+        GLES20.glPixelStorei(GLES20.GL_PACK_ALIGNMENT, 1);
+
+        if (null == pixelBuffers) {
+            readSynchronously(timestamp, info);
+        } else {
+            readAsynchronously(timestamp, null == info ? null : info.retain());
+        }
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebufferBinding[0]);
+        GLES20.glViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
+
+        GLESUtils.glFrameError("readback");
+    }
+
+    /**
+     * Returns the frame info of the frame being delivered to the listener. It is only valid on the listener's looper
+     * during {@link Listener#onFrame(CameraReadback, ByteBuffer, int, int, long)}, and must be retained to be kept
+     * longer.
+     * @return the frame info, or null if the frame had none
+     */
+    public FrameInfo frameInfo() {
+        return deliveredInfo;
+    }
+
+    /**
+     * Return a buffer delivered to the listener, so that it can be reused. May be called from any thread.
+     * @param pixels the buffer, must not be null
+     */
+    public void recycle(ByteBuffer pixels) {
+        pool.release(pixels);
+    }
+
+    /**
+     * Returns the number of frames delivered to the listener.
+     * @return the number of frames
+     */
+    public long deliveredFrames() {
+        return deliveredFrames;
+    }
+
+    /**
+     * Returns the number of frames dropped because no pooled buffer was available.
+     * @return the number of frames
+     */
+    public long droppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Release the OpenGL ES resources. Frames still in flight are not delivered.
+     */
+    public void release() {
+        if (null != pixelBuffers) {
+            GLES30.glDeleteBuffers(pixelBuffers.length, pixelBuffers, 0);
+
+            for (int i = 0; i < pixelBufferInfos.length; i++) {
+                if (null != pixelBufferInfos[i]) {
+                    pixelBufferInfos[i].release();
+                    pixelBufferInfos[i] = null;
+                }
+            }
+        }
+
+        framebuffer.release();
+        handler.removeMessages(MSG_FRAME);
+        handler.removeMessages(MSG_FRAME_INFO);
+
+        FrameInfo info;
+
+        while (null != (info = deliveredInfos.poll())) {
+            info.release();
+        }
+    }
+
+    private void readSynchronously(long timestamp, FrameInfo info) {
+        final ByteBuffer pixels = pool.acquire();
+
+        if (null == pixels) {
+            droppedFrames += 1;
+            return;
+        }
+
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+
+        deliver(pixels, timestamp, null == info ? null : info.retain());
+    }
+
+    // Takes over the reference to the frame info.
+    private void readAsynchronously(long timestamp, FrameInfo info) {
+        final int current = nextPixelBuffer;
+        nextPixelBuffer = (nextPixelBuffer + 1) % pixelBuffers.length;
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffers[current]);
+        GLES30.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+
+        pixelBufferTimestamps[current] = timestamp;
+        pixelBufferPending[current] = true;
+        pixelBufferInfos[current] = info;
+
+        // The oldest pixel buffer was written a couple of frames ago, so mapping it should not wait for the GPU.
+        final int oldest = nextPixelBuffer;
+
+        if (pixelBufferPending[oldest]) {
+            final FrameInfo oldestInfo = pixelBufferInfos[oldest];
+
+            pixelBufferPending[oldest] = false;
+            pixelBufferInfos[oldest] = null;
+
+            final ByteBuffer pixels = pool.acquire();
+
+            if (null == pixels) {
+                droppedFrames += 1;
+                releaseInfo(oldestInfo);
+            } else {
+                GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffers[oldest]);
+
+                final ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0,
+                        frameBytes, GLES30.GL_MAP_READ_BIT);
+
+                if (null == mapped) {
+                    pool.release(pixels);
+                    droppedFrames += 1;
+                    releaseInfo(oldestInfo);
+                } else {
+                    pixels.put(mapped);
+                    pixels.flip();
+
+                    GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+
+                    deliver(pixels, pixelBufferTimestamps[oldest], oldestInfo);
+                }
+            }
+        }
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    // Takes over the reference to the frame info.
+    private void deliver(ByteBuffer pixels, long timestamp, FrameInfo info) {
+        final boolean withInfo = null != info && deliveredInfos.offer(info);
+
+        if (!withInfo) {
+            releaseInfo(info);
+        }
+
+        handler.obtainMessage(withInfo ? MSG_FRAME_INFO : MSG_FRAME, (int) (timestamp >>> 32), (int) timestamp, pixels)
+                .sendToTarget();
+    }
+
+    private static void releaseInfo(FrameInfo info) {
+        if (null != info) {
+            info.release();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package me.stojan.camstream;
+
+import android.graphics.SurfaceTexture;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import me.stojan.camstream.util.CameraClock;
+
+/**
+ * A dedicated render thread for a {@link CameraSurface}. The thread owns the surface's EGL context and the
+ * {@link CameraRenderer} it creates, so that slow buffer swaps never block the thread that delivers camera frames.
+ * Bursts of frame-available signals are coalesced by a {@link FrameScheduler} into a single draw and publish into
+ * each target of the thread's {@link CameraSurfaceGroup}.
+ * <p>
+ * After {@link #start(String, CameraSurface, Callback)} the surface must not be made current on any other thread
+ * until {@link #release()} returns.
+ *
+ * @see Callback
+ */
+public final class CameraRenderThread {
+
+    /**
+     * Callbacks for the renderer that this thread creates. All of them are called on the render thread.
+     */
+    public interface Callback {
+        /**
+         * Called when the renderer has been created, with the EGL context current. This is the place to connect the
+         * camera to {@link CameraRenderer#surfaceTexture()}.
+         * @param thread the render thread, will not be null
+         * @param renderer the renderer, will not be null
+         */
+        void onRendererCreated(CameraRenderThread thread, CameraRenderer renderer);
+
+        /**
+         * Called just before the renderer is released, with the EGL context current.
+         * @param thread the render thread, will not be null
+         * @param renderer the renderer, will not be null
+         */
+        void onRendererReleased(CameraRenderThread thread, CameraRenderer renderer);
+    }
+
+    private static final int MSG_START = 0;
+    private static final int MSG_RENDER = 1;
+    private static final int MSG_STOP = 2;
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final CameraSurface surface;
+    private final Callback callback;
+    private final FrameScheduler scheduler;
+
+    private CameraRenderer renderer;
+    private CameraSurfaceGroup group;
+
+    private volatile RenderGovernor governor;
+    private RenderGovernor.Level appliedLevel;
+
+    private final SurfaceTexture.OnFrameAvailableListener frameAvailableListener = new SurfaceTexture.OnFrameAvailableListener() {
+        @Override
+        public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+            if (scheduler.signal()) {
+                handler.sendEmptyMessage(MSG_RENDER);
+            }
+        }
+    };
+
+    private final FrameScheduler.Pass pass = new FrameScheduler.Pass() {
+        @Override
+        public void latch() {
+            group.update();
+        }
+
+        @Override
+        public void render() {
+            group.draw();
+        }
+    };
+
+    /**
+     * Start a new render thread for the surface.
+     * @param name the name of the thread, must not be null
+     * @param surface the surface to render into, must not be null or be released
+     * @param callback the callback, must not be null
+     * @return the started render thread
+     */
+    public static CameraRenderThread start(String name, CameraSurface surface, Callback callback) {
+        return start(name, surface, callback, CameraClock.SYSTEM);
+    }
+
+    /**
+     * Start a new render thread for the surface, timing the render passes with the provided clock.
+     * @param name the name of the thread, must not be null
+     * @param surface the surface to render into, must not be null or be released
+     * @param callback the callback, must not be null
+     * @param clock the clock, must not be null
+     * @return the started render thread
+     */
+    public static CameraRenderThread start(String name, CameraSurface surface, Callback callback, CameraClock clock) {
+        if (null == name) {
+            throw new IllegalArgumentException("Argument name must not be null");
+        }
+
+        if (null == surface) {
+            throw new IllegalArgumentException("Argument surface must not be null");
+        }
+
+        if (null == callback) {
+            throw new IllegalArgumentException("Argument callback must not be null");
+        }
+
+        return new CameraRenderThread(name, surface, callback, new FrameScheduler(clock));
+    }
+
+    private CameraRenderThread(String name, CameraSurface surface, Callback callback, FrameScheduler scheduler) {
+        this.surface = surface;
+        this.callback = callback;
+        this.scheduler = scheduler;
+
+        thread = new HandlerThread(name, Process.THREAD_PRIORITY_DISPLAY);
+        thread.start();
+
+        handler = new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message message) {
+                switch (message.what) {
+                    case MSG_START:
+                        onStart();
+                        return true;
+
+                    case MSG_RENDER:
+                        onRender();
+                        return true;
+
+                    case MSG_STOP:
+                        onStop();
+                        return true;
+
+                    default:
+                        return false;
+                }
+            }
+        });
+
+        handler.sendEmptyMessage(MSG_START);
+    }
+
+    private void onStart() {
+        surface.current();
+
+        renderer = new CameraRenderer();
+        group = new CameraSurfaceGroup(renderer, surface);
+        callback.onRendererCreated(this, renderer);
+
+        // The surface texture is created on this thread, so frame-available signals are delivered to its looper.
+        renderer.surfaceTexture().setOnFrameAvailableListener(frameAvailableListener);
+    }
+
+    private void onRender() {
+        if (null != renderer) {
+            final int frames = scheduler.run(pass);
+            final RenderGovernor governor = this.governor;
+
+            if (null != governor && frames > 0) {
+                governor.sample(scheduler.lastPassNanos(), frames - 1);
+
+                final RenderGovernor.Level level = governor.level();
+
+                if (level != appliedLevel) {
+                    renderer.scale(level.scale());
+                    group.primary().maxFrameRate(level.frameRate());
+                    appliedLevel = level;
+                }
+            }
+        }
+    }
+
+    private void onStop() {
+        if (null != renderer) {
+            renderer.surfaceTexture().setOnFrameAvailableListener(null);
+            callback.onRendererReleased(this, renderer);
+            group.release();
+            group = null;
+            renderer.release();
+            renderer = null;
+        }
+
+        surface.detach();
+    }
+
+    /**
+     * Set the governor adapting the output to the render loop's timing. After each render pass the governor is fed the
+     * pass duration and the frames coalesced into it, and its level's scale and frame rate are applied to the renderer
+     * and the primary target. Other targets can follow the level with a {@link RenderGovernor.Listener}. The governor
+     * is used on the render thread from then on.
+     * @param governor the governor, or null to stop adapting and keep the last applied level
+     */
+    public void governor(RenderGovernor governor) {
+        this.governor = governor;
+    }
+
+    /**
+     * Returns the scheduler, which reports the number of rendered and dropped frames.
+     * @return the scheduler, will not be null
+     */
+    public FrameScheduler scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Returns the group of surfaces this thread renders into, with {@link #surface()} as the primary target. The group
+     * may only be used on the render thread, see {@link #post(Runnable)}.
+     * @return the group, or null if the renderer has not been created yet or has been released
+     */
+    public CameraSurfaceGroup group() {
+        return group;
+    }
+
+    /**
+     * Run the runnable on the render thread, after all pending passes.
+     * @param runnable the runnable, must not be null
+     */
+    public void post(Runnable runnable) {
+        if (null == runnable) {
+            throw new IllegalArgumentException("Argument runnable must not be null");
+        }
+
+        handler.post(runnable);
+    }
+
+    /**
+     * Returns the surface this thread renders into.
+     * @return the surface, will not be null
+     */
+    public CameraSurface surface() {
+        return surface;
+    }
+
+    /**
+     * Release the renderer and stop the thread. Blocks until the thread has finished, after which the surface may be
+     * made current on another thread or be released. It is illegal to call this from the render thread.
+     */
+    public void release() {
+        if (Thread.currentThread() == thread) {
+            throw new IllegalStateException("Render thread must not be released from itself");
+        }
+
+        handler.sendEmptyMessage(MSG_STOP);
+        thread.quitSafely();
+
+        boolean interrupted = false;
+
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
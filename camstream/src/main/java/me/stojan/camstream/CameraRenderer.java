@@ -22,17 +22,19 @@ package me.stojan.camstream;
 
 import android.graphics.Color;
 import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
 import me.stojan.camstream.util.CameraFunction1;
+import me.stojan.camstream.util.ErrorChecks;
 import me.stojan.camstream.util.GLESUtils;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.Arrays;
-import java.util.Locale;
 
 /**
  * Renders an image from the Camera into the current EGL context.
@@ -52,18 +54,14 @@ public final class CameraRenderer {
              1.0f,  1.0f, 0, 1.f, 1.f,
     };
 
-    private final FloatBuffer triangleVerticesBuffer;
+    private static final float[] IDENTITY = new float[16];
 
-    private static final String VERTEX_SHADER =
-            "uniform mat4 uMVPMatrix;\n" +
-            "uniform mat4 uSTMatrix;\n" +
-            "attribute vec4 aPosition;\n" +
-            "attribute vec4 aTextureCoord;\n" +
-            "varying vec2 vTextureCoord;\n" +
-            "void main() {\n" +
-            "    gl_Position = uMVPMatrix * aPosition;\n" +
-            "    vTextureCoord = (uSTMatrix * aTextureCoord).xy;\n" +
-            "}\n";
+    static {
+        Matrix.setIdentityM(IDENTITY, 0);
+    }
+
+    private final FloatBuffer triangleVerticesBuffer;
+    private int triangleVerticesVBO;
 
     private static final String FRAGMENT_SHADER =
             "#extension GL_OES_EGL_image_external : require\n" +
@@ -74,16 +72,51 @@ public final class CameraRenderer {
             "    gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
             "}\n";
 
-    private volatile float[] mvpMatrix = new float[16];
-    private volatile float[] stMatrix = new float[16];
+    // The model-view-projection matrix, the texture matrix and the clear color are handed from any thread to the
+    // drawing thread without allocating.
+    private final PendingDrawState pending = new PendingDrawState();
+    private final float[] mvpMatrix = new float[16];
+
+    // The drawn texture matrix is the surface texture's transform followed by the texture matrix that has been set.
+    private final float[] surfaceMatrix = new float[16];
+    private final float[] textureMatrix = new float[16];
+    private final float[] stMatrix = new float[16];
+
+    // The matrices the updaters operate on, each guarded by itself.
+    private final float[] mvpScratch = new float[16];
+    private final float[] textureScratch = new float[16];
+
+    private final float[] clearColor = new float[] { 0f, 1f, 0f, 1f };
+
+    // The EGL contexts in which the vertex buffer and attributes have been bound, and the program current in each.
+    // Bindings are per-context state, so each context of a fan-out keeps its own, like the framebuffers of
+    // CameraEffectChain. A null context marks a free slot. The slot of the context being drawn is bound.
+    private EGLContext[] boundContexts = new EGLContext[0];
+    private CameraProgram[] boundPrograms = new CameraProgram[0];
+    private int bound;
 
-    private volatile float[] clearColor = new float[] { 0f, 1f, 0f, 1f };
+    private CameraProgram program;
 
-    private int glesProgram;
-    private int mvpMatrixHandle;
-    private int stMatrixHandle;
-    private int positionHandle;
-    private int textureHandle;
+    private volatile CameraEffectChain effects;
+
+    // The resolution scale, and the chain without effects used to render at a reduced scale when no effects are set.
+    private volatile float scale = 1f;
+    private CameraEffectChain scaleChain;
+
+    // Incremented on each update, so that an effect chain renders its passes once per camera frame.
+    private long frameNumber;
+
+    // Each latched frame is published here for other threads, with the transform matrix of the surface texture.
+    private final FrameMailbox frames = new FrameMailbox();
+    private final float[] latchedMatrix = new float[16];
+
+    // Each latched frame gets a frame info from this pool, if any, held by the renderer until the next frame.
+    private volatile FrameInfoPool frameInfoPool;
+    private FrameInfo frameInfo;
+
+    // The pool the camera texture, and the textures of the scale chain, are acquired from, if any.
+    private final CameraTexturePool pool;
+    private CameraTexturePool.Texture pooledTexture;
 
     private volatile int textureId = Integer.MIN_VALUE;
     private volatile SurfaceTexture surfaceTexture;
@@ -93,6 +126,27 @@ public final class CameraRenderer {
      * EGL context and surface to work.
      */
     public CameraRenderer() {
+        this(null);
+    }
+
+    /**
+     * Create a new renderer, acquiring its camera texture from a pool. This constructor uses OpenGL ES 2.0 calls and
+     * therefore it must be called with a valid EGL context and surface to work.
+     * @param pool the pool, or null to create the texture
+     */
+    public CameraRenderer(CameraTexturePool pool) {
+        this(pool, true);
+    }
+
+    /**
+     * Create a new renderer, optionally without the OpenGL ES setup so that the matrices and the clear color can be
+     * exercised without an EGL context.
+     * @param pool the pool, or null to create the texture
+     * @param setup whether to create the program, buffers and texture
+     */
+    CameraRenderer(CameraTexturePool pool, boolean setup) {
+        this.pool = pool;
+
         triangleVerticesBuffer = ByteBuffer.allocateDirect(
                 triangleVerticesData.length * FLOAT_SIZE_BYTES)
                 .order(ByteOrder.nativeOrder())
@@ -101,35 +155,48 @@ public final class CameraRenderer {
         triangleVerticesBuffer.put(triangleVerticesData).position(0);
 
         Matrix.setIdentityM(stMatrix, 0);
+        Matrix.setIdentityM(textureMatrix, 0);
         Matrix.setIdentityM(mvpMatrix, 0);
 
-        setup();
+        if (setup) {
+            setup();
+        }
     }
 
     private void setup() {
-        glesProgram = createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
-        positionHandle = glAttributeLocation(glesProgram, "aPosition");
-        textureHandle = glAttributeLocation(glesProgram, "aTextureCoord");
-
-        mvpMatrixHandle = glUniformLocation(glesProgram, "uMVPMatrix");
-        stMatrixHandle =  glUniformLocation(glesProgram, "uSTMatrix");
-
-        final int[] textures = new int[1];
-        GLES20.glGenTextures(1, textures, 0);
-
-        textureId = textures[0];
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
-        GLESUtils.glError("glBindTexture textureId");
-
-        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
-                GLES20.GL_NEAREST);
-        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
-                GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S,
-                GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T,
-                GLES20.GL_CLAMP_TO_EDGE);
-        GLESUtils.glError("glTexParameter");
+        program = CameraProgram.create(FRAGMENT_SHADER, GLES11Ext.GL_TEXTURE_EXTERNAL_OES);
+
+        final int[] buffers = new int[1];
+        GLES20.glGenBuffers(1, buffers, 0);
+
+        triangleVerticesVBO = buffers[0];
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, triangleVerticesVBO);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, triangleVerticesData.length * FLOAT_SIZE_BYTES,
+                triangleVerticesBuffer, GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLESUtils.glError("glBufferData triangleVerticesVBO");
+
+        if (null != pool) {
+            pooledTexture = pool.acquireExternal();
+            textureId = pooledTexture.textureId();
+        } else {
+            final int[] textures = new int[1];
+            GLES20.glGenTextures(1, textures, 0);
+
+            textureId = textures[0];
+            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+            GLESUtils.glError("glBindTexture textureId");
+
+            GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
+                    GLES20.GL_NEAREST);
+            GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
+                    GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S,
+                    GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T,
+                    GLES20.GL_CLAMP_TO_EDGE);
+            GLESUtils.glError("glTexParameter");
+        }
 
         surfaceTexture = new SurfaceTexture(textureId);
     }
@@ -143,10 +210,65 @@ public final class CameraRenderer {
     }
 
     /**
-     * Update the texture from {@link #surfaceTexture()}.
+     * Update the texture from {@link #surfaceTexture()}, and publish the latched frame into {@link #frames()}. With a
+     * frame info pool, the previous frame's info is released and the latched frame gets a new one.
      */
     public void update() {
+        ErrorChecks.frame();
         surfaceTexture.updateTexImage();
+        frameNumber += 1;
+
+        final long timestamp = surfaceTexture.getTimestamp();
+
+        surfaceTexture.getTransformMatrix(latchedMatrix);
+        frames.publish(timestamp, frameNumber, textureId, latchedMatrix, 0);
+
+        if (null != frameInfo) {
+            frameInfo.release();
+            frameInfo = null;
+        }
+
+        final FrameInfoPool frameInfoPool = this.frameInfoPool;
+
+        if (null != frameInfoPool) {
+            frameInfo = frameInfoPool.acquire(timestamp, frameNumber, latchedMatrix, 0);
+        }
+    }
+
+    /**
+     * Set the pool that each latched frame's {@link FrameInfo} is acquired from. May be called from any thread, it is
+     * used from the next {@link #update()}.
+     * @param pool the pool, or null for no frame infos
+     */
+    public void frameInfo(FrameInfoPool pool) {
+        this.frameInfoPool = pool;
+    }
+
+    /**
+     * Returns the pool that frame infos are acquired from, for sources that record capture metadata into it.
+     * @return the pool, or null
+     */
+    public FrameInfoPool frameInfoPool() {
+        return frameInfoPool;
+    }
+
+    /**
+     * Returns the frame info of the last latched frame. The renderer holds a reference until the next
+     * {@link #update()}, a stage that keeps the frame info longer must {@link FrameInfo#retain()} it. Must be called on
+     * the render thread.
+     * @return the frame info, or null if there is no pool or all frame infos were in use
+     */
+    public FrameInfo frameInfo() {
+        return frameInfo;
+    }
+
+    /**
+     * Returns the mailbox holding the latest latched frame, for consumers on other threads that need its timestamp,
+     * texture matrix and frame number as a consistent whole.
+     * @return the mailbox, will not be null
+     */
+    public FrameMailbox frames() {
+        return frames;
     }
 
     /**
@@ -154,57 +276,206 @@ public final class CameraRenderer {
      * @param color an Android {@link Color} integer
      */
     public void clearColor(int color) {
-        clearColor = new float[] {
-                ((float) Color.red(color))   / 256f,
-                ((float) Color.green(color)) / 256f,
-                ((float) Color.blue(color))  / 256f,
-                ((float) Color.alpha(color)) / 256f
-        };
+        pending.clearColor(color);
     }
 
     /**
      * Draw the {@link #surfaceTexture()} onto the current EGL context with surface.
      */
     public void draw() {
-        GLESUtils.glError("onDrawFrame start");
-        surfaceTexture.getTransformMatrix(stMatrix);
+        pending.latchMatrix(mvpMatrix);
+
+        draw(mvpMatrix, 0);
+    }
+
+    /**
+     * Draw the {@link #surfaceTexture()} onto the current EGL context with surface, using the provided
+     * model-view-projection matrix instead of this renderer's.
+     * @param mvpMatrix the 4x4 matrix, must not be null
+     * @param offset the offset of the matrix in the array
+     */
+    public void draw(float[] mvpMatrix, int offset) {
+        if (null == mvpMatrix) {
+            throw new IllegalArgumentException("Argument mvpMatrix must not be null");
+        }
 
-        final float[] clearColor = this.clearColor;
+        if (offset < 0 || mvpMatrix.length - offset < 16) {
+            throw new IllegalArgumentException("Argument mvpMatrix must have 16 elements after offset");
+        }
+
+        surfaceTexture.getTransformMatrix(surfaceMatrix);
+        pending.latchTextureMatrix(textureMatrix);
+        Matrix.multiplyMM(stMatrix, 0, surfaceMatrix, 0, textureMatrix, 0);
+
+        pending.latchClearColor(clearColor);
 
         GLES20.glClearColor(clearColor[0], clearColor[1], clearColor[2], clearColor[3]);
         GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
 
-        GLES20.glUseProgram(glesProgram);
-        GLESUtils.glError("glUseProgram");
+        bind();
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        final float[] stMatrix = this.stMatrix;
+        final float scale = this.scale;
+        CameraEffectChain effects = this.effects;
+
+        if (null == effects && scale < 1f) {
+            if (null == scaleChain) {
+                scaleChain = new CameraEffectChain();
+                scaleChain.pool(pool);
+            }
 
-        triangleVerticesBuffer.position(TRIANGLE_VERTICES_DATA_POS_OFFSET);
-        GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false,
-                TRIANGLE_VERTICES_DATA_STRIDE_BYTES, triangleVerticesBuffer);
-        GLESUtils.glError("glVertexAttribPointer maPosition");
-        GLES20.glEnableVertexAttribArray(positionHandle);
-        GLESUtils.glError("glEnableVertexAttribArray positionHandle");
+            effects = scaleChain;
+        }
+
+        if (null == effects) {
+            drawTexture(program, textureId, mvpMatrix, offset, stMatrix);
+        } else if (effects.fused() && scale >= 1f) {
+            drawTexture(effects.fusedProgram(), textureId, mvpMatrix, offset, stMatrix);
+        } else {
+            final int result = effects.render(this, boundContexts[bound], frameNumber, textureId, stMatrix, scale);
+            drawTexture(effects.outputProgram(), result, mvpMatrix, offset, IDENTITY);
+        }
+
+        GLESUtils.glFrameError("draw");
+    }
 
-        triangleVerticesBuffer.position(TRIANGLE_VERTICES_DATA_UV_OFFSET);
-        GLES20.glVertexAttribPointer(textureHandle, 2, GLES20.GL_FLOAT, false,
-                TRIANGLE_VERTICES_DATA_STRIDE_BYTES, triangleVerticesBuffer);
-        GLESUtils.glError("glVertexAttribPointer textureHandle");
-        GLES20.glEnableVertexAttribArray(textureHandle);
-        GLESUtils.glError("glEnableVertexAttribArray textureHandle");
+    /**
+     * Bind the vertex state in the current EGL context and make a program current, so that its own uniforms can be set
+     * before drawing with {@link #drawTexture(CameraProgram, int, float[], int, float[])}.
+     * @param program the program
+     */
+    void prepare(CameraProgram program) {
+        bind();
+        use(program);
+    }
 
-        GLES20.glUniformMatrix4fv(mvpMatrixHandle, 1, false, mvpMatrix, 0);
-        GLES20.glUniformMatrix4fv(stMatrixHandle, 1, false, stMatrix, 0);
+    /**
+     * Draw the quad with a program sampling a texture. The vertex state must be bound.
+     * @param program the program
+     * @param texture the texture, of the program's texture target
+     * @param mvpMatrix the model-view-projection matrix
+     * @param offset the offset of the model-view-projection matrix
+     * @param stMatrix the texture matrix
+     */
+    void drawTexture(CameraProgram program, int texture, float[] mvpMatrix, int offset, float[] stMatrix) {
+        use(program);
+        program.matrices(mvpMatrix, offset, stMatrix);
 
+        GLES20.glBindTexture(program.textureTarget(), texture);
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-        GLESUtils.glError("glDrawArrays");
 
         // IMPORTANT: on some devices, if you are sharing the external texture between two
         // contexts, one context may not see updates to the texture unless you un-bind and
         // re-bind it.  If you're not using shared EGL contexts, you don't need to bind
         // texture 0 here.
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+        GLES20.glBindTexture(program.textureTarget(), 0);
+    }
+
+    /**
+     * Make the program current in the bound EGL context, unless it already is.
+     * @param program the program
+     */
+    void use(CameraProgram program) {
+        if (program != boundPrograms[bound]) {
+            program.use();
+            boundPrograms[bound] = program;
+        }
+    }
+
+    /**
+     * Set the effects applied to the camera image from the next draw on, or null to draw the image as it is. May be
+     * called from any thread. The chain is not released by this renderer: release the previous chain on the drawing
+     * thread once it has been replaced.
+     * @param effects the effect chain, may be null
+     */
+    public void effects(CameraEffectChain effects) {
+        this.effects = effects;
+    }
+
+    /**
+     * Returns the effects applied to the camera image.
+     * @return the effect chain, or null
+     */
+    public CameraEffectChain effects() {
+        return effects;
+    }
+
+    /**
+     * Set the resolution scale. Below 1, the camera image and the effects are rendered into textures of the viewport's
+     * size times the scale, which are then drawn into the viewport, trading sharpness for GPU time. May be called from
+     * any thread.
+     * @param scale the scale, in (0, 1]
+     */
+    public void scale(float scale) {
+        if (!(scale > 0 && scale <= 1)) {
+            throw new IllegalArgumentException("Argument scale must be in (0, 1]");
+        }
+
+        this.scale = scale;
+    }
+
+    /**
+     * Returns the resolution scale.
+     * @return the scale
+     */
+    public float scale() {
+        return scale;
+    }
+
+    /**
+     * Forget the OpenGL ES state this renderer has bound in the current EGL context, so that the next {@link #draw()}
+     * binds it again. Call this after changing the current program, array buffer, active texture unit or vertex
+     * attributes between two draws in the same EGL context.
+     */
+    public void invalidateState() {
+        final EGLContext context = EGL14.eglGetCurrentContext();
+
+        for (int i = 0; i < boundContexts.length; i++) {
+            if (context.equals(boundContexts[i])) {
+                boundContexts[i] = null;
+                boundPrograms[i] = null;
+            }
+        }
+    }
+
+    private void bind() {
+        final EGLContext context = EGL14.eglGetCurrentContext();
+        int free = -1;
+
+        for (int i = 0; i < boundContexts.length; i++) {
+            if (context.equals(boundContexts[i])) {
+                bound = i;
+                return;
+            }
+
+            if (free < 0 && null == boundContexts[i]) {
+                free = i;
+            }
+        }
+
+        if (free < 0) {
+            free = boundContexts.length;
+            boundContexts = Arrays.copyOf(boundContexts, free + 1);
+            boundPrograms = Arrays.copyOf(boundPrograms, free + 1);
+        }
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, triangleVerticesVBO);
+
+        GLES20.glVertexAttribPointer(CameraProgram.ATTRIBUTE_POSITION, 3, GLES20.GL_FLOAT, false,
+                TRIANGLE_VERTICES_DATA_STRIDE_BYTES, TRIANGLE_VERTICES_DATA_POS_OFFSET * FLOAT_SIZE_BYTES);
+        GLES20.glEnableVertexAttribArray(CameraProgram.ATTRIBUTE_POSITION);
+
+        GLES20.glVertexAttribPointer(CameraProgram.ATTRIBUTE_TEXTURE_COORD, 2, GLES20.GL_FLOAT, false,
+                TRIANGLE_VERTICES_DATA_STRIDE_BYTES, TRIANGLE_VERTICES_DATA_UV_OFFSET * FLOAT_SIZE_BYTES);
+        GLES20.glEnableVertexAttribArray(CameraProgram.ATTRIBUTE_TEXTURE_COORD);
+
+        GLESUtils.glError("bind");
+
+        boundContexts[free] = context;
+        boundPrograms[free] = null;
+        bound = free;
     }
 
     /**
@@ -230,6 +501,9 @@ public final class CameraRenderer {
      * <p>
      * The update operation is decoupled from the drawing pass, meaning that if the update finishes after the draw,
      * then this will have no effect.
+     * <p>
+     * The provided array is owned by this renderer and reused by the next call, the updater must not keep it. Updates
+     * from different threads are serialized.
      * @param updater the updater function, must not be null
      */
     public void updateModelViewProjectionMatrix(CameraFunction1<float[], float[]> updater) {
@@ -237,28 +511,54 @@ public final class CameraRenderer {
             throw new IllegalArgumentException("Argument updater is null");
         }
 
-        final float[] mvp = mvpMatrix;
-        final float[] copyOfMVP = Arrays.copyOf(mvp, mvp.length);
+        synchronized (mvpScratch) {
+            pending.copyMatrix(mvpScratch);
+
+            final float[] update = updater.apply(mvpScratch);
 
-        final float[] update = updater.apply(copyOfMVP);
+            if (null == update) {
+                throw new RuntimeException("Updater must not return null");
+            }
 
-        if (null == update) {
-            throw new RuntimeException("Updater must not return null");
+            if (16 != update.length) {
+                throw new RuntimeException("Updater must return a 4x4 matrix");
+            }
+
+            pending.matrix(update, 0);
         }
+    }
 
-        if (16 != update.length) {
-            throw new RuntimeException("Updater must return a 4x4 matrix");
+    /**
+     * Set the model-view-projection matrix for the next {@link #draw()}. The matrix is copied and no memory is
+     * allocated, so this is safe to call on every frame from any thread.
+     * <p>
+     * The update operation is decoupled from the drawing pass, meaning that if the update finishes after the draw,
+     * then this will have no effect.
+     * @param matrix the 4x4 matrix, must not be null
+     * @param offset the offset of the matrix in the array
+     */
+    public void setModelViewProjectionMatrix(float[] matrix, int offset) {
+        if (null == matrix) {
+            throw new IllegalArgumentException("Argument matrix must not be null");
         }
 
-        mvpMatrix = update;
+        if (offset < 0 || matrix.length - offset < 16) {
+            throw new IllegalArgumentException("Argument matrix must have 16 elements after offset");
+        }
+
+        pending.matrix(matrix, offset);
     }
 
     /**
-     * Update the texture matrix (UV). It is important for the updater to return a non-null, 16-element (4x4) array. If
-     * this is not the case, the call will fail with an exception. It is OK to return and operate on the provided array.
+     * Update the texture matrix (UV), which is applied after the {@link #surfaceTexture()}'s transform. It is important
+     * for the updater to return a non-null, 16-element (4x4) array. If this is not the case, the call will fail with an
+     * exception. It is OK to return and operate on the provided array.
      * <p>
      * The update operation is decoupled from the drawing pass, meaning that if the update finishes after the draw,
      * then this will have no effect.
+     * <p>
+     * The provided array is owned by this renderer and reused by the next call, the updater must not keep it. Updates
+     * from different threads are serialized.
      * @param updater the updater function, must not be null
      */
     public void updateTextureMatrix(CameraFunction1<float[], float[]> updater) {
@@ -266,97 +566,77 @@ public final class CameraRenderer {
             throw new IllegalArgumentException("Argument updater is null");
         }
 
-        final float[] st = stMatrix;
-        final float[] copyST = Arrays.copyOf(st, st.length);
+        synchronized (textureScratch) {
+            pending.copyTextureMatrix(textureScratch);
 
-        final float[] update = updater.apply(copyST);
+            final float[] update = updater.apply(textureScratch);
 
-        if (null == update) {
-            throw new RuntimeException("Updater must not return null");
-        }
+            if (null == update) {
+                throw new RuntimeException("Updater must not return null");
+            }
 
-        if (16 != update.length) {
-            throw new RuntimeException("Updater must return a 4x4 matrix");
-        }
+            if (16 != update.length) {
+                throw new RuntimeException("Updater must return a 4x4 matrix");
+            }
 
-        stMatrix = update;
+            pending.textureMatrix(update, 0);
+        }
     }
 
     /**
-     * Release the surface texture. It is illegal to call {@link #draw()} or any other function after this call and the
-     * behavior of this object is unspecified.
+     * Set the texture matrix (UV) for the next {@link #draw()}, applied after the {@link #surfaceTexture()}'s
+     * transform. The matrix is copied and no memory is allocated, so this is safe to call on every frame from any
+     * thread.
+     * <p>
+     * The update operation is decoupled from the drawing pass, meaning that if the update finishes after the draw,
+     * then this will have no effect.
+     * @param matrix the 4x4 matrix, must not be null
+     * @param offset the offset of the matrix in the array
      */
-    public void release() {
-        textureId = Integer.MIN_VALUE;
-        surfaceTexture.release();
-        surfaceTexture = null;
-    }
-
-    private int loadShader(int shaderType, String source) {
-        final int shader = GLES20.glCreateShader(shaderType);
-        GLESUtils.glError("glCreateShader(%d)", shaderType);
-
-        GLES20.glShaderSource(shader, source);
-        GLES20.glCompileShader(shader);
-
-        final int[] compiled = new int[1];
-        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
-
-        if (0 == compiled[0]) {
-            GLES20.glDeleteShader(shader);
-            throw new RuntimeException(String.format((Locale) null, "Could not compile shader type %d: %s", shaderType, GLES20.glGetShaderInfoLog(shader)));
+    public void setTextureMatrix(float[] matrix, int offset) {
+        if (null == matrix) {
+            throw new IllegalArgumentException("Argument matrix must not be null");
         }
 
-        return shader;
-    }
-
-    private int createProgram(String vertexSource, String fragmentSource) {
-        final int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
-        final int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
-
-        final int program = GLES20.glCreateProgram();
-
-        if (0 == program) {
-            throw new RuntimeException("Unable to create GLES20 program");
+        if (offset < 0 || matrix.length - offset < 16) {
+            throw new IllegalArgumentException("Argument matrix must have 16 elements after offset");
         }
 
-        GLES20.glAttachShader(program, vertexShader);
-        GLESUtils.glError("glAttachShader(program, vertexShader)");
-
-        GLES20.glAttachShader(program, fragmentShader);
-        GLESUtils.glError("glAttachShader(program, fragmentShader)");
-
-        GLES20.glLinkProgram(program);
+        pending.textureMatrix(matrix, offset);
+    }
 
-        int[] linkStatus = new int[1];
-        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+    /**
+     * Release the surface texture. It is illegal to call {@link #draw()} or any other function after this call and the
+     * behavior of this object is unspecified.
+     */
+    public void release() {
+        GLES20.glDeleteBuffers(1, new int[] { triangleVerticesVBO }, 0);
+        program.release();
 
-        if (GLES20.GL_TRUE != linkStatus[0]) {
-            GLES20.glDeleteProgram(program);
-            throw new RuntimeException(String.format((Locale) null, "Unable to link GLES20 program: %s", GLES20.glGetProgramInfoLog(program)));
+        if (null != scaleChain) {
+            scaleChain.release();
+            scaleChain = null;
         }
+        boundContexts = new EGLContext[0];
+        boundPrograms = new CameraProgram[0];
+        bound = 0;
 
-        return program;
-    }
-
-    private static int glAttributeLocation(int program, String attribute) {
-        final int label = GLES20.glGetAttribLocation(program, attribute);
+        surfaceTexture.release();
+        surfaceTexture = null;
 
-        if (label < 0) {
-            throw new RuntimeException(String.format((Locale) null, "Unable to find attribute '%s' in program %d", attribute, program));
+        if (null != pooledTexture) {
+            pooledTexture.release();
+            pooledTexture = null;
+        } else {
+            GLES20.glDeleteTextures(1, new int[] { textureId }, 0);
         }
 
-        return label;
-    }
-
-    private static int glUniformLocation(int program, String locationName) {
-        final int location = GLES20.glGetUniformLocation(program, locationName);
+        textureId = Integer.MIN_VALUE;
 
-        if (location < 0) {
-            throw new RuntimeException(String.format((Locale) null, "Unable to find uniform location '%s' in program %d", locationName, program));
+        if (null != frameInfo) {
+            frameInfo.release();
+            frameInfo = null;
         }
-
-        return location;
     }
 
 }
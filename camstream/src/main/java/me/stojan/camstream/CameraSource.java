@@ -0,0 +1,79 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+/**
+ * A camera streaming frames into a {@link CameraRenderer}'s surface texture. Implementations wrap a camera API, so
+ * that rendering does not depend on which one is used.
+ * <p>
+ * A source is started on the renderer's thread once the renderer has been created, for example in
+ * {@link CameraRenderThread.Callback#onRendererCreated(CameraRenderThread, CameraRenderer)}, and stopped before the
+ * renderer is released.
+ */
+public interface CameraSource {
+
+    /**
+     * Receives the state changes of a source. Called on a thread chosen by the implementation.
+     */
+    interface Callback {
+
+        /**
+         * Called when the camera is streaming into the renderer.
+         * @param source the source
+         */
+        void onStarted(CameraSource source);
+
+        /**
+         * Called when the camera could not be opened or configured, or was lost while streaming. The source is
+         * stopped afterwards.
+         * @param source the source
+         * @param error the error
+         */
+        void onError(CameraSource source, Exception error);
+    }
+
+    /**
+     * Open the camera and start streaming into the renderer's surface texture. Depending on the implementation, the
+     * camera may be started asynchronously.
+     * @param renderer the renderer, must not be null or be released
+     * @param callback the callback, may be null
+     */
+    void start(CameraRenderer renderer, Callback callback);
+
+    /**
+     * Stop streaming and close the camera. Frames are no longer produced into the renderer once this returns. Does
+     * nothing if the source is not started.
+     */
+    void stop();
+
+    /**
+     * Returns the width of the frames streamed into the renderer.
+     * @return the width in pixels, 0 if not yet known
+     */
+    int width();
+
+    /**
+     * Returns the height of the frames streamed into the renderer.
+     * @return the height in pixels, 0 if not yet known
+     */
+    int height();
+}
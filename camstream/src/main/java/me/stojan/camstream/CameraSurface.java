@@ -26,24 +26,32 @@ import me.stojan.camstream.util.EGLUtils;
 
 /**
  * An output surface for the camera. This is basically an EGL context with a surface, and {@link CameraRenderer} renders
- * into this EGL context and surface.
+ * into this EGL context and surface. The EGL surface is either a window surface over an Android {@link Surface}, or an
+ * offscreen pbuffer surface for headless rendering.
+ * <p>
+ * Contexts are OpenGL ES 2 unless OpenGL ES 3 is requested with {@link #create(Surface, EGLContext, int)}. Surfaces
+ * created by sharing a camera surface's context use the same client version.
  */
-public final class CameraSurface {
+public final class CameraSurface implements CameraRenderTarget {
     /** EGL constant that makes the context / surface be "recordable." */
     public static final int EGL_RECORDABLE_ANDROID = 0x3142;
 
     private Surface surface;
     private EGLContainer eglContainer;
 
+    private final int[] surfaceSize = new int[1];
+
     private final static class EGLContainer {
         private final EGLDisplay eglDisplay;
         private final EGLContext eglContext;
         private final EGLSurface eglSurface;
+        private final int clientVersion;
 
-        private EGLContainer(EGLDisplay eglDisplay, EGLContext eglContext, EGLSurface eglSurface) {
+        private EGLContainer(EGLDisplay eglDisplay, EGLContext eglContext, EGLSurface eglSurface, int clientVersion) {
             this.eglDisplay = eglDisplay;
             this.eglContext = eglContext;
             this.eglSurface = eglSurface;
+            this.clientVersion = clientVersion;
         }
 
         private void release() {
@@ -51,90 +59,140 @@ public final class CameraSurface {
             EGL14.eglDestroySurface(eglDisplay, eglSurface);
             EGL14.eglDestroyContext(eglDisplay, eglContext);
             EGL14.eglReleaseThread();
-            EGL14.eglTerminate(eglDisplay);
+            CameraEGL.release();
         }
     }
 
-    private static EGLContainer setup(Surface surface, EGLContext sharedEGLContext) {
+    private static EGLContainer setup(Surface surface, EGLContext sharedEGLContext, int clientVersion) {
         if (null == surface) {
             throw new IllegalArgumentException("Argument surface must not be null");
         }
 
+        return setup(surface, 0, 0, sharedEGLContext, clientVersion);
+    }
+
+    // Sets up a window surface if surface is not null, or a pbuffer surface of width x height if it is.
+    private static EGLContainer setup(Surface surface, int width, int height, EGLContext sharedEGLContext,
+                                      int clientVersion) {
+        if (2 != clientVersion && 3 != clientVersion) {
+            throw new IllegalArgumentException("Argument clientVersion must be 2 or 3");
+        }
+
         if (null == sharedEGLContext) {
             sharedEGLContext = EGL14.EGL_NO_CONTEXT;
         }
 
-        final EGLDisplay eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        final EGLDisplay eglDisplay = CameraEGL.acquire();
 
-        if (eglDisplay == EGL14.EGL_NO_DISPLAY) {
-            throw new RuntimeException("unable to get EGL14 display");
-        }
+        try {
+            // Window surfaces are recordable, so that they can feed video encoders.
+            int capabilities = null != surface
+                    ? CameraEGL.CONFIG_ALPHA | CameraEGL.CONFIG_RECORDABLE
+                    : CameraEGL.CONFIG_ALPHA | CameraEGL.CONFIG_PBUFFER;
 
-        int[] version = new int[2];
+            if (3 == clientVersion) {
+                capabilities |= CameraEGL.CONFIG_ES3;
+            }
 
-        if (!EGL14.eglInitialize(eglDisplay, version, 0, version, 1)) {
-            throw new RuntimeException("unable to initialize EGL14");
+            final EGLConfig config = CameraEGL.config(capabilities);
+
+            return setup(eglDisplay, config, surface, width, height, sharedEGLContext, clientVersion);
+        } catch (RuntimeException e) {
+            CameraEGL.release();
+            throw e;
         }
+    }
+
+    private static EGLContainer setup(EGLDisplay eglDisplay, EGLConfig config, Surface surface, int width, int height, EGLContext sharedEGLContext, int clientVersion) {
+        int[] attributes;
 
-        // Configure EGL for recording and OpenGL ES 2.0.
-        int[] attributes = new int[] {
-                EGL14.EGL_RED_SIZE, 8,
-                EGL14.EGL_GREEN_SIZE, 8,
-                EGL14.EGL_BLUE_SIZE, 8,
-                EGL14.EGL_ALPHA_SIZE, 8,
-                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
-                EGL_RECORDABLE_ANDROID, 1,
+        // Configure context for OpenGL ES 2.0 or 3.0, matching the config.
+        attributes = new int[] {
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, clientVersion,
                 EGL14.EGL_NONE
         };
 
-        final EGLConfig[] configs = new EGLConfig[1];
-        int[] numConfigs = new int[1];
-        EGL14.eglChooseConfig(eglDisplay, attributes, 0, configs, 0, configs.length, numConfigs, 0);
+        final EGLContext eglContext = EGL14.eglCreateContext(eglDisplay, config, sharedEGLContext, attributes, 0);
 
-        EGLUtils.eglError("eglCreateContext RGB888+recordable ES2");
+        EGLUtils.eglSetupError("eglCreateContext");
 
-        // Configure context for OpenGL ES 2.0.
-        attributes = new int[] {
-                EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
-                EGL14.EGL_NONE
-        };
+        if (null == eglContext || EGL14.EGL_NO_CONTEXT.equals(eglContext)) {
+            throw new RuntimeException("unable to create EGL14 context");
+        }
 
-        final EGLContext eglContext = EGL14.eglCreateContext(eglDisplay, configs[0], sharedEGLContext, attributes, 0);
+        final EGLSurface eglSurface;
 
-        EGLUtils.eglError("eglCreateContext");
+        try {
+            if (null != surface) {
+                attributes = new int[] {
+                        EGL14.EGL_NONE
+                };
 
-        attributes = new int[] {
-                EGL14.EGL_NONE
-        };
+                eglSurface = EGL14.eglCreateWindowSurface(eglDisplay, config, surface, attributes, 0);
 
-        final EGLSurface eglSurface = EGL14.eglCreateWindowSurface(eglDisplay, configs[0], surface, attributes, 0);
+                EGLUtils.eglSetupError("eglCreateWindowSurface");
+            } else {
+                attributes = new int[] {
+                        EGL14.EGL_WIDTH, width,
+                        EGL14.EGL_HEIGHT, height,
+                        EGL14.EGL_NONE
+                };
 
-        EGLUtils.eglError("eglCreateWindowSurface");
+                eglSurface = EGL14.eglCreatePbufferSurface(eglDisplay, config, attributes, 0);
 
-        return new EGLContainer(eglDisplay, eglContext, eglSurface);
+                EGLUtils.eglSetupError("eglCreatePbufferSurface %dx%d", width, height);
+            }
+
+            if (null == eglSurface || EGL14.EGL_NO_SURFACE.equals(eglSurface)) {
+                throw new RuntimeException("unable to create EGL14 surface");
+            }
+        } catch (RuntimeException e) {
+            EGL14.eglDestroyContext(eglDisplay, eglContext);
+            throw e;
+        }
+
+        return new EGLContainer(eglDisplay, eglContext, eglSurface, clientVersion);
     }
 
     /**
      * Create an output surface for a camera by using the resources from an EGL context of a non-released camera
-     * surface.
+     * surface. The context has the same client version as the camera surface's.
      * @param surface the output surface, must not be null
      * @param cameraSurface the camera surface, must not be null or be released
      * @return the new camera surface
      */
     public static CameraSurface create(Surface surface, CameraSurface cameraSurface) {
-        final EGLContainer eglContainer = setup(surface, cameraSurface.eglContainer.eglContext);
+        final EGLContainer eglContainer = setup(surface, cameraSurface.eglContainer.eglContext,
+                cameraSurface.eglContainer.clientVersion);
 
         return new CameraSurface(surface, eglContainer);
     }
 
     /**
-     * Create an output surface for a camera by using the resources from the provided shared EGL context.
+     * Create an output surface for a camera by using the resources from the provided shared EGL context, with an
+     * OpenGL ES 2 context.
      * @param surface the output surface, must not be null
      * @param sharedEGLContext the shared EGL context, must not be null (may be {@link EGL14#EGL_NO_CONTEXT}
      * @return the new camera surface
      */
     public static CameraSurface create(Surface surface, EGLContext sharedEGLContext) {
-        final EGLContainer eglContainer = setup(surface, sharedEGLContext);
+        return create(surface, sharedEGLContext, 2);
+    }
+
+    /**
+     * Create an output surface for a camera by using the resources from the provided shared EGL context, with an
+     * OpenGL ES 2 or 3 context. OpenGL ES 3 contexts let {@link me.stojan.camstream.util.GLESProgramCache} cache
+     * program binaries, and fail to be created on devices without OpenGL ES 3 support.
+     * @param surface the output surface, must not be null
+     * @param sharedEGLContext the shared EGL context of the same client version, must not be null (may be
+     *                         {@link EGL14#EGL_NO_CONTEXT})
+     * @param clientVersion the OpenGL ES version of the context, 2 or 3
+     * @return the new camera surface
+     *
+     * @throws RuntimeException if no config supports the client version
+     */
+    public static CameraSurface create(Surface surface, EGLContext sharedEGLContext, int clientVersion) {
+        final EGLContainer eglContainer = setup(surface, sharedEGLContext, clientVersion);
 
         return new CameraSurface(surface, eglContainer);
     }
@@ -148,11 +206,40 @@ public final class CameraSurface {
         return create(surface, EGL14.EGL_NO_CONTEXT);
     }
 
-    private CameraSurface(Surface surface, EGLContainer eglContainer) {
-        if (null == surface) {
-            throw new IllegalArgumentException("Argument surface must not be null");
+    /**
+     * Create an offscreen camera surface backed by an EGL pbuffer, by using the resources from an EGL context of a
+     * non-released camera surface. Offscreen surfaces are meant for analysis, thumbnails and readback, usually by
+     * drawing into a {@link CameraFramebuffer}, and for rendering where no window is available. The context has the
+     * same client version as the camera surface's, or is OpenGL ES 2 without one.
+     * @param width the width in pixels, must be positive
+     * @param height the height in pixels, must be positive
+     * @param cameraSurface the camera surface, may be null for no shared EGL context
+     * @return the new camera surface
+     */
+    public static CameraSurface createOffscreen(int width, int height, CameraSurface cameraSurface) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Arguments width and height must be positive");
         }
 
+        final EGLContainer eglContainer = null == cameraSurface
+                ? setup(null, width, height, EGL14.EGL_NO_CONTEXT, 2)
+                : setup(null, width, height, cameraSurface.eglContainer.eglContext,
+                        cameraSurface.eglContainer.clientVersion);
+
+        return new CameraSurface(null, eglContainer);
+    }
+
+    /**
+     * Create an offscreen camera surface backed by an EGL pbuffer, without using any shared EGL context.
+     * @param width the width in pixels, must be positive
+     * @param height the height in pixels, must be positive
+     * @return the new camera surface
+     */
+    public static CameraSurface createOffscreen(int width, int height) {
+        return createOffscreen(width, height, null);
+    }
+
+    private CameraSurface(Surface surface, EGLContainer eglContainer) {
         this.surface = surface;
         this.eglContainer = eglContainer;
     }
@@ -177,8 +264,28 @@ public final class CameraSurface {
      * Make this surface the current EGL context and surface.
      */
     public void current() {
-        EGL14.eglMakeCurrent(eglContainer.eglDisplay, eglContainer.eglSurface, eglContainer.eglSurface, eglContainer.eglContext);
-        EGLUtils.eglError("eglMakeCurrent");
+        if (!EGL14.eglMakeCurrent(eglContainer.eglDisplay, eglContainer.eglSurface, eglContainer.eglSurface, eglContainer.eglContext)) {
+            EGLUtils.eglFailed("eglMakeCurrent");
+        }
+    }
+
+    /**
+     * Returns whether this surface is the calling thread's current EGL context and draw surface, as EGL reports it,
+     * so that a context made current elsewhere, for example by {@link #detach()} or by another component on the
+     * same thread, is never mistaken for this one.
+     * @return true if current
+     */
+    boolean isCurrent() {
+        return eglContainer.eglContext.equals(EGL14.eglGetCurrentContext())
+                && eglContainer.eglSurface.equals(EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW));
+    }
+
+    /**
+     * Detach this surface's EGL context from the calling thread, so that it may be made current on another thread.
+     */
+    public void detach() {
+        EGL14.eglMakeCurrent(eglContainer.eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        EGLUtils.eglError("eglMakeCurrent EGL_NO_CONTEXT");
     }
 
     /**
@@ -186,21 +293,69 @@ public final class CameraSurface {
      * @param timestamp the timestamp in nanoseconds
      */
     public void publish(long timestamp) {
-        EGLExt.eglPresentationTimeANDROID(eglContainer.eglDisplay, eglContainer.eglSurface, timestamp);
-        EGLUtils.eglError("eglPresentationTimeANDROID");
+        if (!EGLExt.eglPresentationTimeANDROID(eglContainer.eglDisplay, eglContainer.eglSurface, timestamp)) {
+            EGLUtils.eglFailed("eglPresentationTimeANDROID");
+        }
+
+        if (!EGL14.eglSwapBuffers(eglContainer.eglDisplay, eglContainer.eglSurface)) {
+            EGLUtils.eglFailed("eglSwapBuffers");
+        }
+    }
 
-        EGL14.eglSwapBuffers(eglContainer.eglDisplay, eglContainer.eglSurface);
-        EGLUtils.eglError("eglSwapBuffers");
+    /**
+     * Returns the OpenGL ES version of this surface's context.
+     * @return 2 or 3
+     */
+    public int clientVersion() {
+        return eglContainer.clientVersion;
     }
 
     /**
      * Return the surface.
-     * @return the surface
+     * @return the surface, or null if this is an offscreen surface
      */
     public Surface surface() {
         return surface;
     }
 
+    /**
+     * Returns whether this is an offscreen pbuffer surface.
+     * @return true if offscreen, false if over an Android surface
+     */
+    public boolean offscreen() {
+        return null == surface;
+    }
+
+    /**
+     * Make this surface current, bind its default framebuffer and set the viewport to cover it.
+     */
+    @Override
+    public void bind() {
+        current();
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(0, 0, width(), height());
+    }
+
+    /**
+     * Returns the current width of the EGL surface.
+     * @return the width in pixels
+     */
+    @Override
+    public int width() {
+        EGL14.eglQuerySurface(eglContainer.eglDisplay, eglContainer.eglSurface, EGL14.EGL_WIDTH, surfaceSize, 0);
+        return surfaceSize[0];
+    }
+
+    /**
+     * Returns the current height of the EGL surface.
+     * @return the height in pixels
+     */
+    @Override
+    public int height() {
+        EGL14.eglQuerySurface(eglContainer.eglDisplay, eglContainer.eglSurface, EGL14.EGL_HEIGHT, surfaceSize, 0);
+        return surfaceSize[0];
+    }
+
     /**
      * Renders the camera into this surface.
      * @param renderer the camera renderer which will render into this surface, must not be null
@@ -208,13 +363,41 @@ public final class CameraSurface {
      * @throws IllegalArgumentException if renderer is null
      */
     public void render(CameraRenderer renderer) {
+        render(renderer, null);
+    }
+
+    /**
+     * Renders the camera into this surface, recording the time spent in each stage.
+     * @param renderer the camera renderer which will render into this surface, must not be null
+     * @param timings the timings to record into, or null not to record
+     *
+     * @throws IllegalArgumentException if renderer is null
+     */
+    public void render(CameraRenderer renderer, FrameTimings timings) {
         if (null == renderer) {
             throw new IllegalArgumentException("Argument renderer must not be null");
         }
 
         current();
+
+        if (null == timings) {
+            renderer.update();
+            renderer.draw();
+            publish(renderer.timestamp());
+            return;
+        }
+
+        long time = timings.time();
         renderer.update();
+        time = timings.updated(time);
+
+        timings.beginDraw();
         renderer.draw();
-        publish(renderer.timestamp());
+        time = timings.drawn(time);
+
+        final long timestamp = renderer.timestamp();
+
+        publish(timestamp);
+        timings.framed(timings.swapped(time), timestamp);
     }
 }
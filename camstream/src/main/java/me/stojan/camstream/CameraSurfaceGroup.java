@@ -0,0 +1,417 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package me.stojan.camstream;
+
+import android.opengl.GLES20;
+import android.view.Surface;
+
+import java.util.ArrayList;
+
+/**
+ * Renders one camera frame into many {@link CameraSurface}s. The frame is latched once with
+ * {@link CameraRenderer#update()} in the primary surface's EGL context, and then drawn and published into each target
+ * whose frame-rate limit allows it. Additional targets share the primary surface's EGL context, so that they can all
+ * sample the renderer's texture.
+ * <p>
+ * This class is not thread-safe, all methods should be called from the thread that renders.
+ *
+ * @see Target
+ */
+public final class CameraSurfaceGroup {
+
+    /**
+     * Decides whether a frame may be drawn into a target, after the target's frame-rate limit has accepted it. A
+     * {@link CameraEncoder} is a gate that drops frames while the codec is busy. A gate that also implements
+     * {@link FrameInfo.Receiver} receives the {@link FrameInfo} of each frame it admits.
+     */
+    public interface Gate {
+        /**
+         * Admit a frame. If the frame is admitted, it will be drawn and published.
+         * @param timestamp the frame's timestamp in nanoseconds
+         * @return true if the frame should be drawn, false if it should be dropped
+         */
+        boolean admit(long timestamp);
+    }
+
+    /**
+     * A target surface of the group, with its own viewport, model-view-projection matrix and frame-rate limit.
+     */
+    public static final class Target {
+        private final CameraSurface surface;
+        private final boolean owned;
+        private final FrameDecimator decimator = new FrameDecimator();
+        private final float[] mvpMatrix = new float[16];
+
+        private boolean hasMVPMatrix;
+        private Gate gate;
+
+        private int viewportX;
+        private int viewportY;
+        private int viewportWidth;
+        private int viewportHeight;
+
+        private long renderedFrames;
+        private long skippedFrames;
+        private long droppedFrames;
+
+        private Target(CameraSurface surface, boolean owned) {
+            this.surface = surface;
+            this.owned = owned;
+        }
+
+        /**
+         * Returns the surface of this target.
+         * @return the surface, will not be null
+         */
+        public CameraSurface surface() {
+            return surface;
+        }
+
+        /**
+         * Set the viewport this target is drawn with. By default the viewport of the target's EGL context is not
+         * changed.
+         * @param x the x offset in pixels
+         * @param y the y offset in pixels
+         * @param width the width in pixels, 0 or less to leave the viewport unchanged
+         * @param height the height in pixels, 0 or less to leave the viewport unchanged
+         * @return this target
+         */
+        public Target viewport(int x, int y, int width, int height) {
+            viewportX = x;
+            viewportY = y;
+            viewportWidth = width;
+            viewportHeight = height;
+
+            return this;
+        }
+
+        /**
+         * Set the model-view-projection matrix this target is drawn with, instead of the renderer's. The matrix is
+         * copied.
+         * @param matrix the 4x4 matrix, or null to use the renderer's matrix
+         * @param offset the offset of the matrix in the array
+         * @return this target
+         */
+        public Target modelViewProjectionMatrix(float[] matrix, int offset) {
+            if (null == matrix) {
+                hasMVPMatrix = false;
+                return this;
+            }
+
+            if (offset < 0 || matrix.length - offset < 16) {
+                throw new IllegalArgumentException("Argument matrix must have 16 elements after offset");
+            }
+
+            System.arraycopy(matrix, offset, mvpMatrix, 0, 16);
+            hasMVPMatrix = true;
+
+            return this;
+        }
+
+        /**
+         * Limit the rate at which frames are drawn into this target.
+         * @param fps the maximum frames per second, 0 or less for no limit
+         * @return this target
+         */
+        public Target maxFrameRate(double fps) {
+            decimator.maxFrameRate(fps);
+            return this;
+        }
+
+        /**
+         * Set the gate that admits frames into this target.
+         * @param gate the gate, or null to admit every frame that passes the frame-rate limit
+         * @return this target
+         */
+        public Target gate(Gate gate) {
+            this.gate = gate;
+            return this;
+        }
+
+        /**
+         * Returns the number of frames drawn into this target.
+         * @return the number of frames
+         */
+        public long renderedFrames() {
+            return renderedFrames;
+        }
+
+        /**
+         * Returns the number of frames skipped because of the frame-rate limit.
+         * @return the number of frames
+         */
+        public long skippedFrames() {
+            return skippedFrames;
+        }
+
+        /**
+         * Returns the number of frames dropped because the gate did not admit them.
+         * @return the number of frames
+         */
+        public long droppedFrames() {
+            return droppedFrames;
+        }
+    }
+
+    private final CameraRenderer renderer;
+    private final Target primary;
+    private final ArrayList<Target> targets = new ArrayList<>();
+
+    private FrameTimings timings;
+    private TimestampNormalizer timestamps;
+
+    /**
+     * Create a new group.
+     * @param renderer the renderer, must not be null and must have been created in the primary surface's EGL context
+     * @param primary the primary surface, must not be null or be released
+     */
+    public CameraSurfaceGroup(CameraRenderer renderer, CameraSurface primary) {
+        if (null == renderer) {
+            throw new IllegalArgumentException("Argument renderer must not be null");
+        }
+
+        if (null == primary) {
+            throw new IllegalArgumentException("Argument primary must not be null");
+        }
+
+        this.renderer = renderer;
+        this.primary = new Target(primary, false);
+
+        targets.add(this.primary);
+    }
+
+    /**
+     * Returns the target of the primary surface. It is always a part of the group.
+     * @return the primary target, will not be null
+     */
+    public Target primary() {
+        return primary;
+    }
+
+    /**
+     * Add a target for the output surface. A new camera surface sharing the primary surface's EGL context is created
+     * and it will be released when the target is removed or the group is released.
+     * @param surface the output surface, must not be null
+     * @return the new target
+     */
+    public Target add(Surface surface) {
+        final Target target = new Target(CameraSurface.create(surface, primary.surface), true);
+        targets.add(target);
+
+        return target;
+    }
+
+    /**
+     * Add a target for an existing camera surface. The camera surface must share the primary surface's EGL context
+     * and it will not be released by the group.
+     * @param surface the camera surface, must not be null or be released
+     * @return the new target
+     */
+    public Target add(CameraSurface surface) {
+        if (null == surface) {
+            throw new IllegalArgumentException("Argument surface must not be null");
+        }
+
+        final Target target = new Target(surface, false);
+        targets.add(target);
+
+        return target;
+    }
+
+    /**
+     * Remove a target from the group, releasing its surface if the group created it. The primary target can't be
+     * removed.
+     * @param target the target, must not be null
+     */
+    public void remove(Target target) {
+        if (null == target) {
+            throw new IllegalArgumentException("Argument target must not be null");
+        }
+
+        if (primary == target) {
+            throw new IllegalArgumentException("Primary target can't be removed");
+        }
+
+        if (targets.remove(target) && target.owned) {
+            target.surface.release();
+        }
+    }
+
+    /**
+     * Set the timings recorded by {@link #update()} and {@link #draw()}.
+     * @param timings the timings, or null not to record
+     */
+    public void timings(FrameTimings timings) {
+        this.timings = timings;
+    }
+
+    /**
+     * Returns the timings recorded by this group.
+     * @return the timings, or null
+     */
+    public FrameTimings timings() {
+        return timings;
+    }
+
+    /**
+     * Set the normalizer mapping the renderer's timestamps onto the stream clock. The normalized timestamps are the
+     * ones that targets are published with, and that frame-rate limits, gates and timings see.
+     * @param timestamps the normalizer, or null to publish the renderer's timestamps as they are
+     */
+    public void timestamps(TimestampNormalizer timestamps) {
+        this.timestamps = timestamps;
+    }
+
+    /**
+     * Returns the normalizer used by this group.
+     * @return the normalizer, or null
+     */
+    public TimestampNormalizer timestamps() {
+        return timestamps;
+    }
+
+    /**
+     * Latch the next camera frame in the primary surface's EGL context, and draw and publish it into all targets.
+     */
+    public void render() {
+        update();
+        draw();
+    }
+
+    /**
+     * Latch the next camera frame in the primary surface's EGL context, without drawing it.
+     */
+    public void update() {
+        makeCurrent(primary.surface);
+
+        final FrameTimings timings = this.timings;
+
+        if (null == timings) {
+            renderer.update();
+        } else {
+            final long start = timings.time();
+            renderer.update();
+            timings.updated(start);
+        }
+    }
+
+    /**
+     * Draw and publish the last latched camera frame into all targets whose frame-rate limit and gate allow it. Afterwards the
+     * primary surface is current, so that the next frame can be latched. The renderer's {@link FrameInfo}, if any, gets
+     * the published timestamp before any target sees it.
+     */
+    public void draw() {
+        final TimestampNormalizer timestamps = this.timestamps;
+        final long timestamp = null == timestamps ? renderer.timestamp() : timestamps.normalize(renderer.timestamp());
+        final FrameTimings timings = this.timings;
+        final FrameInfo info = renderer.frameInfo();
+
+        if (null != info) {
+            info.presentationTimestamp(timestamp);
+        }
+
+        long time = 0;
+        boolean published = false;
+
+        for (int i = 0; i < targets.size(); i++) {
+            final Target target = targets.get(i);
+
+            if (!target.decimator.accept(timestamp)) {
+                target.skippedFrames += 1;
+                continue;
+            }
+
+            if (null != target.gate && !target.gate.admit(timestamp)) {
+                target.droppedFrames += 1;
+                continue;
+            }
+
+            if (null != info && target.gate instanceof FrameInfo.Receiver) {
+                ((FrameInfo.Receiver) target.gate).receive(info);
+            }
+
+            makeCurrent(target.surface);
+
+            if (target.viewportWidth > 0 && target.viewportHeight > 0) {
+                GLES20.glViewport(target.viewportX, target.viewportY, target.viewportWidth, target.viewportHeight);
+            }
+
+            if (null != timings) {
+                time = timings.time();
+                timings.beginDraw();
+            }
+
+            if (target.hasMVPMatrix) {
+                renderer.draw(target.mvpMatrix, 0);
+            } else {
+                renderer.draw();
+            }
+
+            if (null != timings) {
+                time = timings.drawn(time);
+            }
+
+            target.surface.publish(timestamp);
+            target.renderedFrames += 1;
+
+            if (null != timings) {
+                time = timings.swapped(time);
+            }
+
+            published = true;
+        }
+
+        if (null != timings) {
+            if (published) {
+                timings.framed(time, timestamp);
+            } else {
+                timings.discarded();
+            }
+        }
+
+        makeCurrent(primary.surface);
+    }
+
+    /**
+     * Release all targets that the group created. The primary surface and surfaces added with
+     * {@link #add(CameraSurface)} are not released.
+     */
+    public void release() {
+        for (int i = targets.size() - 1; i >= 0; i--) {
+            final Target target = targets.get(i);
+
+            if (target.owned) {
+                target.surface.release();
+            }
+        }
+
+        targets.clear();
+        targets.add(primary);
+    }
+
+    // Asks EGL what is current instead of remembering it, since releasing a surface or anything else on this thread
+    // may have changed it since the last call.
+    private void makeCurrent(CameraSurface surface) {
+        if (!surface.isCurrent()) {
+            surface.current();
+        }
+    }
+}
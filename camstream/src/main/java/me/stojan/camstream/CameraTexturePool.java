@@ -0,0 +1,525 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import me.stojan.camstream.util.GLESUtils;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * A pool of OpenGL ES textures, so that render passes and outputs reuse textures instead of generating and deleting
+ * them, which causes hitches and spikes in GPU memory when the resolution changes.
+ * <p>
+ * Textures are pooled by their size class, the exact width, height and format. Released textures stay resident and are
+ * handed out again by {@link #acquire(int, int, int)}, most recently released first. Whenever the resident textures
+ * take more than the byte budget, the least recently released ones are deleted. Textures in use are never deleted, so
+ * the budget may be exceeded while they are acquired.
+ * <p>
+ * Textures belong to the share group of the EGL context that was current when the pool created them. The framebuffer
+ * of a {@link Texture} belongs to the context it was created in, so a pool that hands out render targets should be
+ * used in a single context.
+ * <p>
+ * This class is not thread-safe, all methods should be called from the thread that renders.
+ */
+public final class CameraTexturePool {
+
+    /**
+     * A pooled texture. Its storage is allocated but not initialized. As a {@link CameraRenderTarget} it renders into
+     * the texture through a framebuffer, created on the first {@link #bind()}.
+     */
+    public static final class Texture implements CameraRenderTarget {
+        private final CameraTexturePool pool;
+        private final int target;
+        private final int width;
+        private final int height;
+        private final int format;
+        private final long bytes;
+
+        private int textureId;
+        private int framebufferId;
+
+        private boolean acquired;
+        private Throwable acquiredAt;
+
+        private Texture(CameraTexturePool pool, int target, int width, int height, int format, long bytes) {
+            this.pool = pool;
+            this.target = target;
+            this.width = width;
+            this.height = height;
+            this.format = format;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Returns the name of the texture.
+         * @return the texture name
+         */
+        public int textureId() {
+            return textureId;
+        }
+
+        /**
+         * Returns the texture target.
+         * @return {@link GLES20#GL_TEXTURE_2D}, or {@link GLES11Ext#GL_TEXTURE_EXTERNAL_OES} for external textures
+         */
+        public int target() {
+            return target;
+        }
+
+        /**
+         * Returns the format.
+         * @return the format, for example {@link GLES20#GL_RGBA}, or 0 for external textures
+         */
+        public int format() {
+            return format;
+        }
+
+        /**
+         * Returns the size of the texture's storage.
+         * @return the size in bytes, 0 for external textures
+         */
+        public long bytes() {
+            return bytes;
+        }
+
+        /**
+         * Bind the framebuffer rendering into this texture, creating it in the current EGL context if needed, and
+         * set the viewport to cover it.
+         *
+         * @throws IllegalStateException if this is an external texture
+         */
+        @Override
+        public void bind() {
+            if (GLES20.GL_TEXTURE_2D != target) {
+                throw new IllegalStateException("External textures can't be rendered into");
+            }
+
+            if (0 == framebufferId) {
+                final int[] names = new int[1];
+                GLES20.glGenFramebuffers(1, names, 0);
+                framebufferId = names[0];
+
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebufferId);
+                GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                        GLES20.GL_TEXTURE_2D, textureId, 0);
+
+                final int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+
+                if (GLES20.GL_FRAMEBUFFER_COMPLETE != status) {
+                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+                    GLES20.glDeleteFramebuffers(1, names, 0);
+                    framebufferId = 0;
+                    throw new RuntimeException(String.format((Locale) null, "Framebuffer %dx%d is not complete: 0x%x", width, height, status));
+                }
+            } else {
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebufferId);
+            }
+
+            GLES20.glViewport(0, 0, width, height);
+        }
+
+        /**
+         * Returns the width.
+         * @return the width in pixels, 0 for external textures
+         */
+        @Override
+        public int width() {
+            return width;
+        }
+
+        /**
+         * Returns the height.
+         * @return the height in pixels, 0 for external textures
+         */
+        @Override
+        public int height() {
+            return height;
+        }
+
+        /**
+         * Return this texture into its pool, where it stays resident unless the resident textures exceed the budget. It
+         * is not deleted, even if {@link CameraTexturePool#release()} was called while it was acquired. Same as
+         * {@link CameraTexturePool#release(Texture)}.
+         *
+         * @throws IllegalStateException if the texture is not acquired, usually because it was released twice
+         */
+        public void release() {
+            pool.release(this);
+        }
+
+        private void delete() {
+            if (0 != framebufferId) {
+                GLES20.glDeleteFramebuffers(1, new int[] { framebufferId }, 0);
+                framebufferId = 0;
+            }
+
+            if (0 != textureId) {
+                GLES20.glDeleteTextures(1, new int[] { textureId }, 0);
+                textureId = 0;
+            }
+        }
+    }
+
+    // Released textures, least recently released first.
+    private final ArrayList<Texture> free = new ArrayList<>();
+
+    // Acquired textures, only kept while leaks are tracked.
+    private final ArrayList<Texture> tracked = new ArrayList<>();
+
+    private long budgetBytes;
+    private boolean trackLeaks;
+
+    private long residentBytes;
+    private long acquiredBytes;
+    private int acquiredTextures;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private final int[] names = new int[1];
+
+    /**
+     * Create a new pool. No OpenGL ES calls are made.
+     * @param budgetBytes the maximum size of the resident textures in bytes, must not be negative
+     */
+    public CameraTexturePool(long budgetBytes) {
+        budget(budgetBytes);
+    }
+
+    /**
+     * Set the maximum size of the resident textures, deleting the least recently released textures above it.
+     * @param budgetBytes the budget in bytes, must not be negative
+     */
+    public void budget(long budgetBytes) {
+        if (budgetBytes < 0) {
+            throw new IllegalArgumentException("Argument budgetBytes must not be negative");
+        }
+
+        this.budgetBytes = budgetBytes;
+        evict();
+    }
+
+    /**
+     * Returns the maximum size of the resident textures.
+     * @return the budget in bytes
+     */
+    public long budget() {
+        return budgetBytes;
+    }
+
+    /**
+     * Set whether to track acquired textures, recording where each one was acquired so that textures that are never
+     * released can be found with {@link #leaks()}. Tracking allocates on each acquire, so it is meant for debug
+     * builds. Only textures acquired while tracking is on are tracked.
+     * @param track true to track, false to stop tracking
+     */
+    public void trackLeaks(boolean track) {
+        this.trackLeaks = track;
+
+        if (!track) {
+            for (int i = 0; i < tracked.size(); i++) {
+                tracked.get(i).acquiredAt = null;
+            }
+
+            tracked.clear();
+        }
+    }
+
+    /**
+     * Returns where each tracked texture that is still acquired was acquired.
+     * @return the stack traces of the acquisitions, empty if there are none or leaks are not tracked
+     */
+    public ArrayList<Throwable> leaks() {
+        final ArrayList<Throwable> leaks = new ArrayList<>(tracked.size());
+
+        for (int i = 0; i < tracked.size(); i++) {
+            leaks.add(tracked.get(i).acquiredAt);
+        }
+
+        return leaks;
+    }
+
+    /**
+     * Acquire a 2D texture, reusing a released one of the same size class or creating one in the current EGL context.
+     * @param width the width in pixels, must be positive
+     * @param height the height in pixels, must be positive
+     * @param format the format, one of {@link GLES20#GL_RGBA}, {@link GLES20#GL_RGB},
+     *               {@link GLES20#GL_LUMINANCE_ALPHA}, {@link GLES20#GL_LUMINANCE} or {@link GLES20#GL_ALPHA}, with
+     *               unsigned byte components
+     * @return the texture, with linear filtering and clamped to the edge
+     */
+    public Texture acquire(int width, int height, int format) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Arguments width and height must be positive");
+        }
+
+        final int bytesPerPixel = bytesPerPixel(format);
+
+        Texture texture = reuse(GLES20.GL_TEXTURE_2D, width, height, format);
+
+        if (null == texture) {
+            texture = new Texture(this, GLES20.GL_TEXTURE_2D, width, height, format,
+                    (long) width * height * bytesPerPixel);
+
+            GLES20.glGenTextures(1, names, 0);
+            texture.textureId = names[0];
+
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture.textureId);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0, format,
+                    GLES20.GL_UNSIGNED_BYTE, null);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            GLESUtils.glError("CameraTexturePool glTexImage2D %dx%d 0x%x", width, height, format);
+
+            created(texture);
+        }
+
+        return acquired(texture);
+    }
+
+    /**
+     * Acquire an external texture, for a {@link android.graphics.SurfaceTexture}, reusing a released one or creating
+     * one in the current EGL context. External textures have no storage of their own and don't count towards the
+     * budget.
+     * @return the texture, with nearest minification, linear magnification and clamped to the edge
+     */
+    public Texture acquireExternal() {
+        Texture texture = reuse(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0, 0, 0);
+
+        if (null == texture) {
+            texture = new Texture(this, GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0, 0, 0, 0);
+
+            GLES20.glGenTextures(1, names, 0);
+            texture.textureId = names[0];
+            created(texture);
+        }
+
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texture.textureId);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLESUtils.glError("CameraTexturePool external texture");
+
+        return acquired(texture);
+    }
+
+    private Texture reuse(int target, int width, int height, int format) {
+        for (int i = free.size() - 1; i >= 0; i--) {
+            final Texture texture = free.get(i);
+
+            if (target == texture.target && width == texture.width && height == texture.height && format == texture.format) {
+                free.remove(i);
+                hits += 1;
+                return texture;
+            }
+        }
+
+        misses += 1;
+        return null;
+    }
+
+    private void created(Texture texture) {
+        residentBytes += texture.bytes;
+    }
+
+    private Texture acquired(Texture texture) {
+        texture.acquired = true;
+        acquiredBytes += texture.bytes;
+        acquiredTextures += 1;
+
+        if (trackLeaks) {
+            texture.acquiredAt = new Throwable(String.format((Locale) null, "Texture %d (%dx%d) acquired here", texture.textureId, texture.width, texture.height));
+            tracked.add(texture);
+        }
+
+        // A new texture may push the resident size over the budget, released ones make room for it.
+        evict();
+
+        return texture;
+    }
+
+    /**
+     * Return a texture into the pool. It stays resident, unless the resident textures exceed the budget. Must be called
+     * with an EGL context of the pool's share group current.
+     * @param texture the texture, must not be null and must be acquired from this pool
+     *
+     * @throws IllegalStateException if the texture is not acquired, usually because it was released twice
+     */
+    public void release(Texture texture) {
+        if (null == texture) {
+            throw new IllegalArgumentException("Argument texture must not be null");
+        }
+
+        if (this != texture.pool) {
+            throw new IllegalArgumentException("Argument texture is not from this pool");
+        }
+
+        if (!texture.acquired) {
+            throw new IllegalStateException("Texture is not acquired, was it released twice?");
+        }
+
+        texture.acquired = false;
+        acquiredBytes -= texture.bytes;
+        acquiredTextures -= 1;
+
+        if (null != texture.acquiredAt) {
+            texture.acquiredAt = null;
+            tracked.remove(texture);
+        }
+
+        free.add(texture);
+        evict();
+    }
+
+    private void evict() {
+        while (residentBytes > budgetBytes && !free.isEmpty()) {
+            delete(free.remove(0));
+            evictions += 1;
+        }
+    }
+
+    private void delete(Texture texture) {
+        residentBytes -= texture.bytes;
+        texture.delete();
+    }
+
+    /**
+     * Delete all released textures, for example when the app is asked to trim its memory.
+     */
+    public void trim() {
+        for (int i = 0; i < free.size(); i++) {
+            delete(free.get(i));
+        }
+
+        free.clear();
+    }
+
+    /**
+     * Returns the number of acquisitions served by a released texture.
+     * @return the number of hits
+     */
+    public long hits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of acquisitions that created a texture.
+     * @return the number of misses
+     */
+    public long misses() {
+        return misses;
+    }
+
+    /**
+     * Returns the fraction of acquisitions served by a released texture.
+     * @return the hit rate in [0, 1], 0 if nothing has been acquired
+     */
+    public double hitRate() {
+        final long total = hits + misses;
+        return 0 == total ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Returns the number of released textures deleted to stay within the budget.
+     * @return the number of evictions
+     */
+    public long evictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the size of all textures the pool has created and not deleted, acquired or not.
+     * @return the size in bytes
+     */
+    public long residentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * Returns the size of the acquired textures.
+     * @return the size in bytes
+     */
+    public long acquiredBytes() {
+        return acquiredBytes;
+    }
+
+    /**
+     * Returns the number of acquired textures.
+     * @return the number of textures
+     */
+    public int acquiredTextures() {
+        return acquiredTextures;
+    }
+
+    /**
+     * Returns the number of released textures kept resident.
+     * @return the number of textures
+     */
+    public int freeTextures() {
+        return free.size();
+    }
+
+    /**
+     * Delete all released textures, like {@link #trim()}. Textures still acquired are not deleted: when they are
+     * released later they return to the pool like any other, and are deleted by the next {@link #trim()}, release or
+     * eviction. The pool can be used again afterwards.
+     *
+     * @throws IllegalStateException if leaks are tracked and tracked textures are still acquired, with the first one's
+     * acquisition as the cause, after the released textures have been deleted
+     */
+    public void release() {
+        trim();
+
+        if (!tracked.isEmpty()) {
+            throw new IllegalStateException(String.format((Locale) null, "%d textures were not released", tracked.size()),
+                    tracked.get(0).acquiredAt);
+        }
+    }
+
+    private static int bytesPerPixel(int format) {
+        switch (format) {
+            case GLES20.GL_RGBA:
+                return 4;
+
+            case GLES20.GL_RGB:
+                return 3;
+
+            case GLES20.GL_LUMINANCE_ALPHA:
+                return 2;
+
+            case GLES20.GL_LUMINANCE:
+            case GLES20.GL_ALPHA:
+                return 1;
+
+            default:
+                throw new IllegalArgumentException(String.format((Locale) null, "Argument format 0x%x is not supported", format));
+        }
+    }
+}
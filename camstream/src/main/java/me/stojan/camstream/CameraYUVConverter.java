@@ -0,0 +1,355 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.Looper;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import me.stojan.camstream.util.GLESUtils;
+
+/**
+ * Converts the camera frame to YUV on the GPU, for CPU consumers like software encoders and computer vision libraries.
+ * The frame is drawn into an RGBA framebuffer {@link #framebufferWidth()} by {@link #framebufferHeight()} pixels in
+ * size, whose bytes, read from the first row up, are the frame in the {@link Layout}: the full resolution Y plane
+ * followed by the subsampled chroma. Reading it back transfers 12 bits per pixel instead of 32, and the bytes need no
+ * conversion on the CPU.
+ * <p>
+ * The converter is a {@link CameraReadback.Pass}, use {@link #readback(int, CameraReadback.Listener, Looper)} to read
+ * the converted frames. The first row of the frame is the top of the camera image, as the renderer draws it.
+ */
+public final class CameraYUVConverter implements CameraReadback.Pass {
+
+    /**
+     * The byte layout of the converted frame.
+     */
+    public enum Layout {
+        /** The Y plane followed by interleaved U and V samples. */
+        NV12,
+
+        /** The Y plane followed by interleaved V and U samples, the default format of the legacy camera API. */
+        NV21,
+
+        /** The Y plane followed by the U plane and the V plane. */
+        I420
+    }
+
+    /**
+     * The RGB to YUV conversion matrix.
+     */
+    public enum ColorMatrix {
+        /** ITU-R BT.601 with video range, Y in 16 to 235: standard definition video and most encoders. */
+        BT601(new float[] {
+                 0.257f,  0.504f,  0.098f,  16f / 255f,
+                -0.148f, -0.291f,  0.439f, 128f / 255f,
+                 0.439f, -0.368f, -0.071f, 128f / 255f,
+        }),
+
+        /** ITU-R BT.601 with full range, Y in 0 to 255: JPEG and most computer vision libraries. */
+        BT601_FULL(new float[] {
+                 0.299f,     0.587f,     0.114f,     0f,
+                -0.168736f, -0.331264f,  0.5f,     128f / 255f,
+                 0.5f,      -0.418688f, -0.081312f, 128f / 255f,
+        }),
+
+        /** ITU-R BT.709 with video range, Y in 16 to 235: high definition video. */
+        BT709(new float[] {
+                 0.183f,  0.614f,  0.062f,  16f / 255f,
+                -0.101f, -0.339f,  0.439f, 128f / 255f,
+                 0.439f, -0.399f, -0.040f, 128f / 255f,
+        });
+
+        private final float[] coefficients;
+
+        ColorMatrix(float[] coefficients) {
+            this.coefficients = coefficients;
+        }
+    }
+
+    private static final float[] IDENTITY = new float[16];
+
+    static {
+        Matrix.setIdentityM(IDENTITY, 0);
+    }
+
+    private static final String HEADER =
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "#ifdef GL_FRAGMENT_PRECISION_HIGH\n" +
+            "precision highp float;\n" +
+            "#else\n" +
+            "precision mediump float;\n" +
+            "#endif\n" +
+            "uniform samplerExternalOES sTexture;\n" +
+            "uniform mat4 uCameraMatrix;\n" +
+            "uniform vec2 uSize;\n" +
+            "uniform vec4 uY;\n" +
+            "uniform vec4 uU;\n" +
+            "uniform vec4 uV;\n" +
+            // The color at a position in image pixels, from the top-left corner.
+            "vec3 rgb(vec2 pixel) {\n" +
+            "    vec2 uv = vec2(pixel.x / uSize.x, 1.0 - pixel.y / uSize.y);\n" +
+            "    return texture2D(sTexture, (uCameraMatrix * vec4(uv, 0.0, 1.0)).xy).rgb;\n" +
+            "}\n" +
+            "float luma(float x, float y) {\n" +
+            "    return dot(rgb(vec2(x, y)), uY.rgb) + uY.a;\n" +
+            "}\n" +
+            // The chroma of the 2x2 block of pixels starting at a position.
+            "vec2 chroma(float x, float y) {\n" +
+            "    vec3 color = rgb(vec2(x + 1.0, y + 1.0));\n" +
+            "    return vec2(dot(color, uU.rgb) + uU.a, dot(color, uV.rgb) + uV.a);\n" +
+            "}\n" +
+            "void main() {\n" +
+            "    vec2 position = floor(gl_FragCoord.xy);\n" +
+            "    float x = position.x * 4.0;\n" +
+            "    float y = position.y;\n" +
+            "    if (y < uSize.y) {\n" +
+            "        gl_FragColor = vec4(luma(x + 0.5, y + 0.5), luma(x + 1.5, y + 0.5), luma(x + 2.5, y + 0.5),\n" +
+            "                luma(x + 3.5, y + 0.5));\n" +
+            "        return;\n" +
+            "    }\n" +
+            "    y -= uSize.y;\n";
+
+    // Each row of chroma holds two chroma samples per fragment, for the pixels x to x + 3.
+    private static final String SEMI_PLANAR =
+            "    vec2 a = chroma(x, 2.0 * y);\n" +
+            "    vec2 b = chroma(x + 2.0, 2.0 * y);\n";
+
+    private static final String NV12 = SEMI_PLANAR +
+            "    gl_FragColor = vec4(a.x, a.y, b.x, b.y);\n" +
+            "}\n";
+
+    private static final String NV21 = SEMI_PLANAR +
+            "    gl_FragColor = vec4(a.y, a.x, b.y, b.x);\n" +
+            "}\n";
+
+    // Each plane is a quarter of the height, and each of its rows holds two rows of chroma samples.
+    private static final String I420 =
+            "    float quarter = uSize.y / 4.0;\n" +
+            "    bool v = y >= quarter;\n" +
+            "    if (v) {\n" +
+            "        y -= quarter;\n" +
+            "    }\n" +
+            "    float halfWidth = uSize.x / 2.0;\n" +
+            "    float row = 2.0 * y;\n" +
+            "    if (x >= halfWidth) {\n" +
+            "        x -= halfWidth;\n" +
+            "        row += 1.0;\n" +
+            "    }\n" +
+            "    vec2 c0 = chroma(2.0 * x, 2.0 * row);\n" +
+            "    vec2 c1 = chroma(2.0 * x + 2.0, 2.0 * row);\n" +
+            "    vec2 c2 = chroma(2.0 * x + 4.0, 2.0 * row);\n" +
+            "    vec2 c3 = chroma(2.0 * x + 6.0, 2.0 * row);\n" +
+            "    gl_FragColor = v ? vec4(c0.y, c1.y, c2.y, c3.y) : vec4(c0.x, c1.x, c2.x, c3.x);\n" +
+            "}\n";
+
+    private final int width;
+    private final int height;
+    private final Layout layout;
+    private final ColorMatrix colorMatrix;
+
+    private final float[] cameraMatrix = new float[16];
+    private final float[] uniformCameraMatrix = new float[16];
+
+    private CameraProgram program;
+    private int cameraMatrixHandle;
+
+    private CameraYUVConverter(int width, int height, Layout layout, ColorMatrix colorMatrix) {
+        this.width = width;
+        this.height = height;
+        this.layout = layout;
+        this.colorMatrix = colorMatrix;
+    }
+
+    /**
+     * Create a new converter. No OpenGL ES calls are made, the program is compiled on the first draw.
+     * @param width the frame width in pixels, a multiple of 8
+     * @param height the frame height in pixels, a multiple of 4
+     * @param layout the byte layout, must not be null
+     * @param colorMatrix the conversion matrix, must not be null
+     * @return the converter
+     */
+    public static CameraYUVConverter create(int width, int height, Layout layout, ColorMatrix colorMatrix) {
+        if (width <= 0 || 0 != width % 8) {
+            throw new IllegalArgumentException("Argument width must be a positive multiple of 8");
+        }
+
+        if (height <= 0 || 0 != height % 4) {
+            throw new IllegalArgumentException("Argument height must be a positive multiple of 4");
+        }
+
+        if (null == layout) {
+            throw new IllegalArgumentException("Argument layout must not be null");
+        }
+
+        if (null == colorMatrix) {
+            throw new IllegalArgumentException("Argument colorMatrix must not be null");
+        }
+
+        return new CameraYUVConverter(width, height, layout, colorMatrix);
+    }
+
+    /**
+     * Create a readback of the converted frames. The listener receives buffers of {@link #frameBytes()} bytes, with
+     * the framebuffer's width and height. Must be called with a current EGL context.
+     * @param buffers the number of pooled buffers, see {@link CameraReadback#create(int, int, int, CameraReadback.Pass, CameraReadback.Listener, Looper)}
+     * @param listener the listener, must not be null
+     * @param looper the looper the listener is called on, must not be null
+     * @return the readback
+     */
+    public CameraReadback readback(int buffers, CameraReadback.Listener listener, Looper looper) {
+        return CameraReadback.create(framebufferWidth(), framebufferHeight(), buffers, this, listener, looper);
+    }
+
+    /**
+     * Returns the frame width.
+     * @return the width in pixels
+     */
+    public int width() {
+        return width;
+    }
+
+    /**
+     * Returns the frame height.
+     * @return the height in pixels
+     */
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Returns the width of the RGBA framebuffer the frame is converted into.
+     * @return the width in pixels
+     */
+    public int framebufferWidth() {
+        return width / 4;
+    }
+
+    /**
+     * Returns the height of the RGBA framebuffer the frame is converted into.
+     * @return the height in pixels
+     */
+    public int framebufferHeight() {
+        return height * 3 / 2;
+    }
+
+    /**
+     * Returns the size of a converted frame.
+     * @return the size in bytes
+     */
+    public int frameBytes() {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * Returns the byte layout.
+     * @return the layout
+     */
+    public Layout layout() {
+        return layout;
+    }
+
+    /**
+     * Returns the conversion matrix.
+     * @return the matrix
+     */
+    public ColorMatrix colorMatrix() {
+        return colorMatrix;
+    }
+
+    /**
+     * Convert the latched camera frame into the bound framebuffer, which must be {@link #framebufferWidth()} by
+     * {@link #framebufferHeight()} pixels in size.
+     * @param renderer the renderer with the latched frame, will not be null
+     * @param width the width of the framebuffer in pixels
+     * @param height the height of the framebuffer in pixels
+     */
+    @Override
+    public void draw(CameraRenderer renderer, int width, int height) {
+        if (framebufferWidth() != width || framebufferHeight() != height) {
+            throw new IllegalArgumentException(String.format((Locale) null, "Framebuffer must be %dx%d, not %dx%d",
+                    framebufferWidth(), framebufferHeight(), width, height));
+        }
+
+        if (null == program) {
+            setup(renderer);
+        } else {
+            renderer.prepare(program);
+        }
+
+        renderer.surfaceTexture().getTransformMatrix(cameraMatrix);
+
+        if (!Arrays.equals(cameraMatrix, uniformCameraMatrix)) {
+            System.arraycopy(cameraMatrix, 0, uniformCameraMatrix, 0, cameraMatrix.length);
+            GLES20.glUniformMatrix4fv(cameraMatrixHandle, 1, false, uniformCameraMatrix, 0);
+        }
+
+        renderer.drawTexture(program, renderer.textureId(), IDENTITY, 0, IDENTITY);
+    }
+
+    private void setup(CameraRenderer renderer) {
+        final String body;
+
+        switch (layout) {
+            case NV12:
+                body = NV12;
+                break;
+
+            case NV21:
+                body = NV21;
+                break;
+
+            default:
+                body = I420;
+                break;
+        }
+
+        program = CameraProgram.create(HEADER + body, GLES11Ext.GL_TEXTURE_EXTERNAL_OES);
+        renderer.prepare(program);
+
+        cameraMatrixHandle = program.uniformLocation("uCameraMatrix");
+
+        final float[] c = colorMatrix.coefficients;
+
+        GLES20.glUniform2f(program.uniformLocation("uSize"), this.width, this.height);
+        GLES20.glUniform4f(program.uniformLocation("uY"), c[0], c[1], c[2], c[3]);
+        GLES20.glUniform4f(program.uniformLocation("uU"), c[4], c[5], c[6], c[7]);
+        GLES20.glUniform4f(program.uniformLocation("uV"), c[8], c[9], c[10], c[11]);
+
+        Arrays.fill(uniformCameraMatrix, Float.NaN);
+
+        GLESUtils.glError("CameraYUVConverter setup");
+    }
+
+    /**
+     * Release the program. The converter compiles it again if it is used afterwards.
+     */
+    public void release() {
+        if (null != program) {
+            program.release();
+            program = null;
+        }
+    }
+}
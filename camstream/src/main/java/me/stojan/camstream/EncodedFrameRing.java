@@ -0,0 +1,365 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package me.stojan.camstream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bounded in-memory ring of encoded frames, for keeping the last few seconds of video and writing them out when
+ * something interesting happens. The frame data lives in a single direct {@link ByteBuffer} slab that is allocated up
+ * front, so appending a frame only copies its bytes and never allocates.
+ * <p>
+ * Frames are evicted oldest first when the slab, the frame table or the time window is full. Eviction always removes
+ * whole groups of pictures, so the oldest retained frame is always a key frame and {@link #flush(Visitor)} always
+ * starts with one.
+ * <p>
+ * Flags use the same values as {@code MediaCodec.BUFFER_FLAG_*}, so an encoder's buffer info can be passed through.
+ * This class does not depend on Android and all methods are synchronized.
+ *
+ * @see Visitor
+ */
+public final class EncodedFrameRing {
+
+    /** Flag of a key frame, same as {@code MediaCodec.BUFFER_FLAG_KEY_FRAME}. */
+    public static final int FLAG_KEY_FRAME = 1;
+
+    /** Flag of codec configuration data, same as {@code MediaCodec.BUFFER_FLAG_CODEC_CONFIG}. */
+    public static final int FLAG_CODEC_CONFIG = 2;
+
+    /**
+     * Visits the frames of the ring.
+     */
+    public interface Visitor {
+        /**
+         * Visit one frame. The data is only valid for the duration of the call and must not be modified.
+         * @param data the encoded data, between its position and limit, will not be null
+         * @param presentationTimeUs the presentation time in microseconds
+         * @param flags the flags
+         */
+        void visit(ByteBuffer data, long presentationTimeUs, int flags);
+    }
+
+    private final ByteBuffer slab;
+    private final ByteBuffer view;
+    private final int capacity;
+    private final long windowUs;
+
+    private final long[] timestamps;
+    private final int[] offsets;
+    private final int[] sizes;
+    private final int[] flags;
+
+    // Indices of the retained key frames, oldest first, in the same ring layout as the frame table.
+    private final int[] keyFrames;
+    private int keyFramesHead;
+    private int keyFramesCount;
+
+    private int head;
+    private int count;
+    private int writePosition;
+    private int usedBytes;
+
+    private ByteBuffer config;
+    private long configTimeUs;
+
+    private long appendedFrames;
+    private long evictedFrames;
+    private long rejectedFrames;
+
+    /**
+     * Create a new ring.
+     * @param capacityBytes the size of the slab in bytes, must be positive
+     * @param maxFrames the maximum number of frames, must be positive
+     * @param windowUs the time window to keep in microseconds, frames older than the newest frame by more than this
+     *                 are evicted, or 0 or less to keep as much as fits
+     */
+    public EncodedFrameRing(int capacityBytes, int maxFrames, long windowUs) {
+        if (capacityBytes < 1) {
+            throw new IllegalArgumentException("Argument capacityBytes must be positive");
+        }
+
+        if (maxFrames < 1) {
+            throw new IllegalArgumentException("Argument maxFrames must be positive");
+        }
+
+        this.capacity = capacityBytes;
+        this.windowUs = windowUs;
+
+        slab = ByteBuffer.allocateDirect(capacityBytes);
+        view = slab.duplicate();
+
+        timestamps = new long[maxFrames];
+        offsets = new int[maxFrames];
+        sizes = new int[maxFrames];
+        flags = new int[maxFrames];
+        keyFrames = new int[maxFrames];
+    }
+
+    /**
+     * Append an encoded frame. Codec configuration data is kept aside and is not subject to eviction. Frames are
+     * rejected if they don't fit into the slab at all, or if they are not key frames and there is no key frame
+     * before them in the ring.
+     * @param data the encoded data between its position and limit, must not be null, its position is not changed
+     * @param presentationTimeUs the presentation time in microseconds
+     * @param flags the flags
+     * @return true if the frame was appended, false if it was rejected
+     */
+    public synchronized boolean append(ByteBuffer data, long presentationTimeUs, int flags) {
+        if (null == data) {
+            throw new IllegalArgumentException("Argument data must not be null");
+        }
+
+        if (0 != (flags & FLAG_CODEC_CONFIG)) {
+            config(data, presentationTimeUs);
+            return true;
+        }
+
+        final int size = data.remaining();
+        final boolean keyFrame = 0 != (flags & FLAG_KEY_FRAME);
+
+        if (size > capacity || (0 == count && !keyFrame)) {
+            rejectedFrames += 1;
+            return false;
+        }
+
+        if (count == timestamps.length) {
+            evict();
+        }
+
+        final int position = reserve(size);
+
+        if (!keyFrame && 0 == count) {
+            // Making room evicted the whole group of pictures this frame belongs to.
+            rejectedFrames += 1;
+            return false;
+        }
+
+        final int dataPosition = data.position();
+
+        slab.clear();
+        slab.position(position);
+        slab.put(data);
+
+        data.position(dataPosition);
+
+        final int index = (head + count) % timestamps.length;
+
+        timestamps[index] = presentationTimeUs;
+        offsets[index] = position;
+        sizes[index] = size;
+        this.flags[index] = flags;
+
+        if (keyFrame) {
+            keyFrames[(keyFramesHead + keyFramesCount) % keyFrames.length] = index;
+            keyFramesCount += 1;
+        }
+
+        count += 1;
+        usedBytes += size;
+        writePosition = position + size;
+        appendedFrames += 1;
+
+        if (windowUs > 0) {
+            evictOutsideWindow(presentationTimeUs - windowUs);
+        }
+
+        return true;
+    }
+
+    /**
+     * Visit the codec configuration data, if any, and then all retained frames from the oldest key frame on. The
+     * frames are not removed from the ring.
+     * @param visitor the visitor, must not be null
+     * @return the number of visited frames, not counting the codec configuration data
+     */
+    public synchronized int flush(Visitor visitor) {
+        if (null == visitor) {
+            throw new IllegalArgumentException("Argument visitor must not be null");
+        }
+
+        if (null != config) {
+            config.rewind();
+            visitor.visit(config, configTimeUs, FLAG_CODEC_CONFIG);
+        }
+
+        for (int i = 0; i < count; i++) {
+            final int index = (head + i) % timestamps.length;
+
+            view.clear();
+            view.limit(offsets[index] + sizes[index]);
+            view.position(offsets[index]);
+
+            visitor.visit(view, timestamps[index], flags[index]);
+        }
+
+        return count;
+    }
+
+    /**
+     * Remove all frames. The codec configuration data is kept.
+     */
+    public synchronized void clear() {
+        head = 0;
+        count = 0;
+        keyFramesHead = 0;
+        keyFramesCount = 0;
+        writePosition = 0;
+        usedBytes = 0;
+    }
+
+    /**
+     * Returns the size of the slab.
+     * @return the size in bytes
+     */
+    public int capacityBytes() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of bytes used by the retained frames.
+     * @return the number of bytes
+     */
+    public synchronized int usedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Returns the total off-heap memory held by this ring, the slab and the codec configuration data.
+     * @return the number of bytes
+     */
+    public synchronized long footprintBytes() {
+        return capacity + (null == config ? 0 : config.capacity());
+    }
+
+    /**
+     * Returns the number of retained frames.
+     * @return the number of frames
+     */
+    public synchronized int frameCount() {
+        return count;
+    }
+
+    /**
+     * Returns the time between the oldest and the newest retained frame.
+     * @return the duration in microseconds, 0 if there are fewer than two frames
+     */
+    public synchronized long durationUs() {
+        if (count < 2) {
+            return 0;
+        }
+
+        return timestamps[(head + count - 1) % timestamps.length] - timestamps[head];
+    }
+
+    /**
+     * Returns the number of frames appended so far.
+     * @return the number of frames
+     */
+    public synchronized long appendedFrames() {
+        return appendedFrames;
+    }
+
+    /**
+     * Returns the number of frames evicted so far.
+     * @return the number of frames
+     */
+    public synchronized long evictedFrames() {
+        return evictedFrames;
+    }
+
+    /**
+     * Returns the number of frames rejected so far.
+     * @return the number of frames
+     */
+    public synchronized long rejectedFrames() {
+        return rejectedFrames;
+    }
+
+    private void config(ByteBuffer data, long presentationTimeUs) {
+        final int size = data.remaining();
+
+        if (null == config || config.capacity() < size) {
+            // Codec configuration only arrives when the encoder starts, so this is not on the per-frame path.
+            config = ByteBuffer.allocateDirect(size);
+        }
+
+        final int dataPosition = data.position();
+
+        config.clear();
+        config.put(data);
+        config.flip();
+
+        data.position(dataPosition);
+
+        configTimeUs = presentationTimeUs;
+    }
+
+    // Evicts frames until there is a contiguous free region of the size, and returns its offset in the slab.
+    private int reserve(int size) {
+        int position = writePosition;
+
+        while (count > 0) {
+            final int oldest = offsets[head];
+
+            if (position > oldest) {
+                // All retained bytes are in [oldest, position), the free space is at the end and at the start.
+                if (capacity - position >= size) {
+                    return position;
+                }
+
+                position = 0;
+            } else if (oldest - position >= size) {
+                return position;
+            } else {
+                evict();
+            }
+        }
+
+        return capacity - position >= size ? position : 0;
+    }
+
+    private void evictOutsideWindow(long cutoffUs) {
+        // The newest key frame at or before the cutoff is needed to decode the window, everything before it is not.
+        while (keyFramesCount > 1 && timestamps[keyFrames[(keyFramesHead + 1) % keyFrames.length]] <= cutoffUs) {
+            evict();
+        }
+    }
+
+    // Evicts the oldest frame, and then all frames up to the next key frame since they can no longer be decoded.
+    private void evict() {
+        do {
+            if (0 != (flags[head] & FLAG_KEY_FRAME)) {
+                keyFramesHead = (keyFramesHead + 1) % keyFrames.length;
+                keyFramesCount -= 1;
+            }
+
+            usedBytes -= sizes[head];
+            head = (head + 1) % timestamps.length;
+            count -= 1;
+            evictedFrames += 1;
+        } while (count > 0 && 0 == (flags[head] & FLAG_KEY_FRAME));
+
+        if (0 == count) {
+            head = 0;
+            writePosition = 0;
+        }
+    }
+}
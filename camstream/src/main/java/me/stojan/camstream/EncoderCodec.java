@@ -0,0 +1,143 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The part of a video encoder that {@link CameraEncoder} drains, so that the encoder can be driven by a fake codec in
+ * tests. An {@link Adapter} drains a started {@link MediaCodec}.
+ */
+interface EncoderCodec {
+
+    /**
+     * Dequeue an output buffer, waiting at most the timeout.
+     * @param info the info to fill in
+     * @param timeoutUs the timeout in microseconds
+     * @return the buffer index, or {@link MediaCodec#INFO_TRY_AGAIN_LATER} or
+     *         {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED}
+     */
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    /**
+     * Returns the output format, after {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED}.
+     * @return the format
+     */
+    MediaFormat outputFormat();
+
+    /**
+     * Returns a dequeued output buffer.
+     * @param index the buffer index
+     * @return the buffer
+     */
+    ByteBuffer outputBuffer(int index);
+
+    /**
+     * Return a dequeued output buffer to the codec.
+     * @param index the buffer index
+     */
+    void releaseOutputBuffer(int index);
+
+    /**
+     * Make the next encoded frame a key frame.
+     */
+    void requestSyncFrame();
+
+    /**
+     * Signal that no more frames will be published into the input surface.
+     */
+    void signalEndOfInputStream();
+
+    /**
+     * Stop and release the codec.
+     */
+    void release();
+
+    /**
+     * Adapts a started media codec.
+     */
+    final class Adapter implements EncoderCodec {
+        private final MediaCodec codec;
+        private ByteBuffer[] outputBuffers;
+
+        Adapter(MediaCodec codec) {
+            this.codec = codec;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+            final int index = codec.dequeueOutputBuffer(info, timeoutUs);
+
+            // Output buffers are fetched when they first change, getOutputBuffer(int) needs API level 21.
+            if (MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED == index) {
+                outputBuffers = codec.getOutputBuffers();
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+
+            return index;
+        }
+
+        @Override
+        public MediaFormat outputFormat() {
+            return codec.getOutputFormat();
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public ByteBuffer outputBuffer(int index) {
+            if (null == outputBuffers) {
+                outputBuffers = codec.getOutputBuffers();
+            }
+
+            return outputBuffers[index];
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+            codec.releaseOutputBuffer(index, false);
+        }
+
+        @Override
+        public void requestSyncFrame() {
+            final Bundle parameters = new Bundle();
+            parameters.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+
+            codec.setParameters(parameters);
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+            codec.signalEndOfInputStream();
+        }
+
+        @Override
+        public void release() {
+            codec.stop();
+            codec.release();
+        }
+    }
+}
@@ -0,0 +1,509 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes H.264 video as fragmented MP4 (ISO/IEC 14496-12), the format that browsers, players and HTTP streaming
+ * servers play progressively. The init segment ({@code ftyp} and {@code moov}) describes the track from the codec
+ * configuration, and each access unit is written as one fragment ({@code moof} and {@code mdat}) that can be played on
+ * its own once the init segment and a key frame fragment have been read.
+ * <p>
+ * Access units are converted from the Annex B format output by {@code MediaCodec} into the length-prefixed format of
+ * MP4. The writer only writes into buffers passed to it and does not allocate after {@link #configure(ByteBuffer)}.
+ * This class does not depend on Android and is not thread-safe.
+ */
+public final class FragmentedMp4Writer {
+
+    /** The timescale of the track, 90 kHz like RTP video timestamps. */
+    public static final int TIMESCALE = 90000;
+
+    private static final int TRACK_ID = 1;
+
+    // The duration of the first sample, before the frame interval is known.
+    private static final long DEFAULT_DURATION_US = 33333;
+
+    // The sample flags of key frames (depends on no other sample) and of other frames (depends on others, not sync).
+    private static final int KEY_FRAME_FLAGS = 0x02000000;
+    private static final int FRAME_FLAGS = 0x01010000;
+
+    // The size of a fragment without its access unit: moof with one sample, and the mdat header.
+    private static final int FRAGMENT_OVERHEAD = 8 + 16 + 8 + 16 + 20 + 32 + 8;
+
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+
+    private final int width;
+    private final int height;
+
+    private byte[] sps;
+    private byte[] pps;
+
+    private long firstTimeUs = Long.MIN_VALUE;
+    private long lastTimeUs;
+    private long lastDecodeTime = -1;
+    private long durationUs = DEFAULT_DURATION_US;
+    private int sequenceNumber;
+
+    /**
+     * Create a new writer.
+     * @param width the width of the video in pixels, must be positive
+     * @param height the height of the video in pixels, must be positive
+     */
+    public FragmentedMp4Writer(int width, int height) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Arguments width and height must be positive");
+        }
+
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Take the sequence and picture parameter sets from the encoder's codec configuration data, which is output with
+     * {@code MediaCodec.BUFFER_FLAG_CODEC_CONFIG}.
+     * @param config the codec configuration in Annex B format between its position and limit, must not be null, its
+     *               position is not changed
+     * @return true if the writer is {@link #configured()}
+     */
+    public boolean configure(ByteBuffer config) {
+        if (null == config) {
+            throw new IllegalArgumentException("Argument config must not be null");
+        }
+
+        final int end = config.limit();
+        int nal = NalUnits.nextNal(config, config.position(), end);
+
+        while (nal >= 0 && nal < end) {
+            final int next = NalUnits.nextStartCode(config, nal, end);
+            final int nalEnd = NalUnits.end(config, nal, next < 0 ? end : next);
+
+            if (nalEnd > nal) {
+                final int type = config.get(nal) & 0x1F;
+
+                if (NAL_SPS == type || NAL_PPS == type) {
+                    final byte[] bytes = new byte[nalEnd - nal];
+
+                    for (int i = 0; i < bytes.length; i++) {
+                        bytes[i] = config.get(nal + i);
+                    }
+
+                    if (NAL_SPS == type) {
+                        sps = bytes;
+                    } else {
+                        pps = bytes;
+                    }
+                }
+            }
+
+            nal = next < 0 ? -1 : next + 3;
+        }
+
+        return configured();
+    }
+
+    /**
+     * Returns whether the parameter sets are known, so that the init segment can be written.
+     * @return true if configured
+     */
+    public boolean configured() {
+        return null != sps && sps.length >= 4 && null != pps;
+    }
+
+    /**
+     * Returns the size of the init segment.
+     * @return the size in bytes
+     *
+     * @throws IllegalStateException if not {@link #configured()}
+     */
+    public int initSegmentSize() {
+        if (!configured()) {
+            throw new IllegalStateException("Writer is not configured");
+        }
+
+        // ftyp, and moov with the avcC box holding the parameter sets.
+        return 32 + 602 + sps.length + pps.length;
+    }
+
+    /**
+     * Write the init segment at the buffer's position, advancing it.
+     * @param out the buffer, must not be null and must have {@link #initSegmentSize()} bytes remaining
+     * @return the number of bytes written
+     *
+     * @throws IllegalStateException if not {@link #configured()}
+     */
+    public int writeInitSegment(ByteBuffer out) {
+        if (null == out) {
+            throw new IllegalArgumentException("Argument out must not be null");
+        }
+
+        if (out.remaining() < initSegmentSize()) {
+            throw new IllegalArgumentException("Argument out does not have enough space remaining");
+        }
+
+        final ByteOrder order = out.order();
+        out.order(ByteOrder.BIG_ENDIAN);
+
+        final int start = out.position();
+
+        final int ftyp = begin(out, "ftyp");
+        fourcc(out, "iso5");
+        out.putInt(512);
+        fourcc(out, "iso5");
+        fourcc(out, "iso6");
+        fourcc(out, "avc1");
+        fourcc(out, "mp41");
+        end(out, ftyp);
+
+        final int moov = begin(out, "moov");
+
+        final int mvhd = beginFull(out, "mvhd", 0, 0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(1000);
+        out.putInt(0);
+        out.putInt(0x00010000);
+        out.putShort((short) 0x0100);
+        zeros(out, 10);
+        matrix(out);
+        zeros(out, 24);
+        out.putInt(TRACK_ID + 1);
+        end(out, mvhd);
+
+        final int trak = begin(out, "trak");
+
+        final int tkhd = beginFull(out, "tkhd", 0, 3);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(TRACK_ID);
+        out.putInt(0);
+        out.putInt(0);
+        zeros(out, 8);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        matrix(out);
+        out.putInt(width << 16);
+        out.putInt(height << 16);
+        end(out, tkhd);
+
+        final int mdia = begin(out, "mdia");
+
+        final int mdhd = beginFull(out, "mdhd", 0, 0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(TIMESCALE);
+        out.putInt(0);
+        out.putShort((short) 0x55C4);
+        out.putShort((short) 0);
+        end(out, mdhd);
+
+        final int hdlr = beginFull(out, "hdlr", 0, 0);
+        out.putInt(0);
+        fourcc(out, "vide");
+        zeros(out, 12);
+        fourcc(out, "Vide");
+        fourcc(out, "oHan");
+        fourcc(out, "dler");
+        out.put((byte) 0);
+        end(out, hdlr);
+
+        final int minf = begin(out, "minf");
+
+        final int vmhd = beginFull(out, "vmhd", 0, 1);
+        zeros(out, 8);
+        end(out, vmhd);
+
+        final int dinf = begin(out, "dinf");
+        final int dref = beginFull(out, "dref", 0, 0);
+        out.putInt(1);
+        end(out, beginFull(out, "url ", 0, 1));
+        end(out, dref);
+        end(out, dinf);
+
+        final int stbl = begin(out, "stbl");
+
+        final int stsd = beginFull(out, "stsd", 0, 0);
+        out.putInt(1);
+
+        final int avc1 = begin(out, "avc1");
+        zeros(out, 6);
+        out.putShort((short) 1);
+        zeros(out, 16);
+        out.putShort((short) width);
+        out.putShort((short) height);
+        out.putInt(0x00480000);
+        out.putInt(0x00480000);
+        out.putInt(0);
+        out.putShort((short) 1);
+        zeros(out, 32);
+        out.putShort((short) 0x0018);
+        out.putShort((short) -1);
+
+        final int avcC = begin(out, "avcC");
+        out.put((byte) 1);
+        out.put(sps[1]);
+        out.put(sps[2]);
+        out.put(sps[3]);
+        out.put((byte) 0xFF);
+        out.put((byte) 0xE1);
+        out.putShort((short) sps.length);
+        out.put(sps);
+        out.put((byte) 1);
+        out.putShort((short) pps.length);
+        out.put(pps);
+        end(out, avcC);
+
+        end(out, avc1);
+        end(out, stsd);
+
+        // The sample tables are empty, the samples are described by the fragments.
+        final int stts = beginFull(out, "stts", 0, 0);
+        out.putInt(0);
+        end(out, stts);
+
+        final int stsc = beginFull(out, "stsc", 0, 0);
+        out.putInt(0);
+        end(out, stsc);
+
+        final int stsz = beginFull(out, "stsz", 0, 0);
+        out.putInt(0);
+        out.putInt(0);
+        end(out, stsz);
+
+        final int stco = beginFull(out, "stco", 0, 0);
+        out.putInt(0);
+        end(out, stco);
+
+        end(out, stbl);
+        end(out, minf);
+        end(out, mdia);
+        end(out, trak);
+
+        final int mvex = begin(out, "mvex");
+        final int trex = beginFull(out, "trex", 0, 0);
+        out.putInt(TRACK_ID);
+        out.putInt(1);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        end(out, trex);
+        end(out, mvex);
+
+        end(out, moov);
+
+        out.order(order);
+
+        return out.position() - start;
+    }
+
+    /**
+     * Returns the maximum size of the fragment of an access unit.
+     * @param accessUnitBytes the size of the access unit in Annex B format
+     * @return the maximum size in bytes
+     */
+    public static int maxFragmentSize(int accessUnitBytes) {
+        // Each 3-byte start code becomes a 4-byte length.
+        return FRAGMENT_OVERHEAD + accessUnitBytes + accessUnitBytes / 3 + 4;
+    }
+
+    /**
+     * Write an access unit as a fragment at the buffer's position, advancing it. The sample duration is the interval
+     * since the previous access unit.
+     * @param accessUnit the access unit in Annex B format between its position and limit, must not be null, its
+     *                   position is not changed
+     * @param presentationTimeUs the presentation time in microseconds, should be increasing
+     * @param keyFrame whether the access unit is a key frame
+     * @param out the buffer, must not be null
+     * @return the number of bytes written, or -1 if the fragment did not fit and the buffer's position is unchanged
+     */
+    public int writeFragment(ByteBuffer accessUnit, long presentationTimeUs, boolean keyFrame, ByteBuffer out) {
+        if (null == accessUnit) {
+            throw new IllegalArgumentException("Argument accessUnit must not be null");
+        }
+
+        if (null == out) {
+            throw new IllegalArgumentException("Argument out must not be null");
+        }
+
+        final ByteOrder order = out.order();
+        out.order(ByteOrder.BIG_ENDIAN);
+
+        final int start = out.position();
+        final int written = fragment(accessUnit, presentationTimeUs, keyFrame, out);
+
+        if (written < 0) {
+            out.position(start);
+        }
+
+        out.order(order);
+
+        return written;
+    }
+
+    private int fragment(ByteBuffer accessUnit, long presentationTimeUs, boolean keyFrame, ByteBuffer out) {
+        final int start = out.position();
+
+        if (out.remaining() < FRAGMENT_OVERHEAD) {
+            return -1;
+        }
+
+        if (Long.MIN_VALUE == firstTimeUs) {
+            firstTimeUs = presentationTimeUs;
+        } else if (presentationTimeUs > lastTimeUs) {
+            durationUs = presentationTimeUs - lastTimeUs;
+        }
+
+        long decodeTime = ticks(presentationTimeUs - firstTimeUs);
+
+        if (decodeTime <= lastDecodeTime) {
+            decodeTime = lastDecodeTime + 1;
+        }
+
+        final int moof = begin(out, "moof");
+
+        final int mfhd = beginFull(out, "mfhd", 0, 0);
+        out.putInt(sequenceNumber + 1);
+        end(out, mfhd);
+
+        final int traf = begin(out, "traf");
+
+        // The data offsets are relative to the start of the moof box.
+        final int tfhd = beginFull(out, "tfhd", 0, 0x020000);
+        out.putInt(TRACK_ID);
+        end(out, tfhd);
+
+        final int tfdt = beginFull(out, "tfdt", 1, 0);
+        out.putLong(decodeTime);
+        end(out, tfdt);
+
+        final int trun = beginFull(out, "trun", 0, 0x000001 | 0x000100 | 0x000200 | 0x000400);
+        out.putInt(1);
+        final int dataOffset = out.position();
+        out.putInt(0);
+        out.putInt((int) ticks(durationUs));
+        final int sampleSize = out.position();
+        out.putInt(0);
+        out.putInt(keyFrame ? KEY_FRAME_FLAGS : FRAME_FLAGS);
+        end(out, trun);
+
+        end(out, traf);
+        end(out, moof);
+
+        final int mdat = begin(out, "mdat");
+        final int samples = out.position();
+
+        final int end = accessUnit.limit();
+        int nal = NalUnits.nextNal(accessUnit, accessUnit.position(), end);
+
+        if (nal < 0) {
+            // Without start codes the whole access unit is taken to be one NAL unit.
+            nal = accessUnit.position();
+        }
+
+        while (nal >= 0 && nal < end) {
+            final int next = NalUnits.nextStartCode(accessUnit, nal, end);
+            final int nalEnd = NalUnits.end(accessUnit, nal, next < 0 ? end : next);
+
+            if (nalEnd > nal) {
+                if (out.remaining() < 4 + nalEnd - nal) {
+                    return -1;
+                }
+
+                out.putInt(nalEnd - nal);
+
+                for (int i = nal; i < nalEnd; i++) {
+                    out.put(accessUnit.get(i));
+                }
+            }
+
+            nal = next < 0 ? -1 : next + 3;
+        }
+
+        end(out, mdat);
+
+        out.putInt(dataOffset, samples - start);
+        out.putInt(sampleSize, out.position() - samples);
+
+        sequenceNumber += 1;
+        lastTimeUs = presentationTimeUs;
+        lastDecodeTime = decodeTime;
+
+        return out.position() - start;
+    }
+
+    /**
+     * Returns the number of fragments written.
+     * @return the number of fragments
+     */
+    public int fragments() {
+        return sequenceNumber;
+    }
+
+    private static long ticks(long us) {
+        return (us * TIMESCALE + 500000L) / 1000000L;
+    }
+
+    private static int begin(ByteBuffer out, String type) {
+        final int start = out.position();
+        out.putInt(0);
+        fourcc(out, type);
+        return start;
+    }
+
+    private static int beginFull(ByteBuffer out, String type, int version, int flags) {
+        final int start = begin(out, type);
+        out.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private static void end(ByteBuffer out, int start) {
+        out.putInt(start, out.position() - start);
+    }
+
+    private static void fourcc(ByteBuffer out, String type) {
+        for (int i = 0; i < 4; i++) {
+            out.put((byte) type.charAt(i));
+        }
+    }
+
+    private static void zeros(ByteBuffer out, int count) {
+        for (int i = 0; i < count; i++) {
+            out.put((byte) 0);
+        }
+    }
+
+    private static void matrix(ByteBuffer out) {
+        out.putInt(0x00010000);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0x00010000);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0x40000000);
+    }
+}
@@ -0,0 +1,98 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package me.stojan.camstream;
+
+/**
+ * Decimates a stream of frames down to a maximum frame rate, by looking only at the frame timestamps. Small amounts of
+ * jitter in the source timestamps are tolerated, so that a 30 fps source decimated to 15 fps keeps every other frame
+ * instead of drifting.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class FrameDecimator {
+
+    private long intervalNanos;
+
+    private boolean started;
+    private long lastTimestamp;
+    private long nextTimestamp;
+
+    /**
+     * Set the maximum frame rate.
+     * @param fps the frames per second, 0 or less means every frame is accepted
+     */
+    public void maxFrameRate(double fps) {
+        intervalNanos = fps > 0 ? (long) (1000000000.0 / fps) : 0;
+        started = false;
+    }
+
+    /**
+     * Returns the minimal interval between two accepted frames.
+     * @return the interval in nanoseconds, 0 if every frame is accepted
+     */
+    public long intervalNanos() {
+        return intervalNanos;
+    }
+
+    /**
+     * Decide whether the frame with this timestamp should be kept.
+     * @param timestamp the frame's timestamp in nanoseconds
+     * @return true if the frame should be kept, false if it should be skipped
+     */
+    public boolean accept(long timestamp) {
+        if (0 == intervalNanos) {
+            return true;
+        }
+
+        final long delta = timestamp - lastTimestamp;
+
+        if (!started || delta < 0) {
+            started = true;
+            lastTimestamp = timestamp;
+            nextTimestamp = timestamp + intervalNanos;
+            return true;
+        }
+
+        lastTimestamp = timestamp;
+
+        final long tolerance = Math.min(intervalNanos / 4, delta / 2);
+
+        if (timestamp < nextTimestamp - tolerance) {
+            return false;
+        }
+
+        nextTimestamp += intervalNanos;
+
+        if (nextTimestamp <= timestamp) {
+            // There was a gap in the source, start counting from this frame.
+            nextTimestamp = timestamp + intervalNanos;
+        }
+
+        return true;
+    }
+
+    /**
+     * Forget the previous frames, so that the next frame is accepted.
+     */
+    public void reset() {
+        started = false;
+    }
+}
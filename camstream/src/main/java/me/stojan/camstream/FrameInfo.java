@@ -0,0 +1,198 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The metadata of one rendered camera frame, travelling with the frame through the stages that consume it, so that
+ * analysis results and encoded frames can be matched to the camera frame they came from. A frame info holds the
+ * frame's timestamps, frame number, texture matrix and, when the source reports them, its exposure, sensitivity and
+ * orientation.
+ * <p>
+ * Frame infos come from a {@link FrameInfoPool} and are reference counted. A stage that keeps a frame info beyond the
+ * call that handed it over must {@link #retain()} it, and {@link #release()} it when done. The frame info goes back
+ * into the pool when its last reference is released, after which it must not be used.
+ * <p>
+ * The values are written on the render thread before the frame info is handed to any stage, and not changed
+ * afterwards, so they can be read from any thread that holds a reference.
+ *
+ * @see FrameInfoPool
+ * @see CameraRenderer#frameInfo()
+ */
+public final class FrameInfo {
+
+    /**
+     * Receives the frame info of each frame drawn into a {@link CameraSurfaceGroup} target. A target's
+     * {@link CameraSurfaceGroup.Gate} that implements this interface is handed the frame info after it has admitted the
+     * frame, before the frame is published.
+     */
+    public interface Receiver {
+        /**
+         * Receive the frame info of an admitted frame. The frame info must be retained to be kept beyond this call.
+         * @param info the frame info, will not be null
+         */
+        void receive(FrameInfo info);
+    }
+
+    /** The value of {@link #exposureTimeNanos()} and {@link #sensitivity()} when the source did not report it. */
+    public static final int UNKNOWN = -1;
+
+    private final FrameInfoPool pool;
+    private final AtomicInteger references = new AtomicInteger();
+    private final float[] stMatrix = new float[16];
+
+    private long timestamp;
+    private long presentationTimestamp;
+    private long frameNumber;
+    private long exposureTimeNanos;
+    private int sensitivity;
+    private int orientation;
+
+    FrameInfo(FrameInfoPool pool) {
+        this.pool = pool;
+    }
+
+    // Called by the pool with the only reference, before the frame info is shared.
+    void set(long timestamp, long frameNumber, float[] stMatrix, int offset, long exposureTimeNanos, int sensitivity,
+             int orientation) {
+        this.timestamp = timestamp;
+        this.presentationTimestamp = timestamp;
+        this.frameNumber = frameNumber;
+        this.exposureTimeNanos = exposureTimeNanos;
+        this.sensitivity = sensitivity;
+        this.orientation = orientation;
+
+        System.arraycopy(stMatrix, offset, this.stMatrix, 0, 16);
+        references.set(1);
+    }
+
+    // Called by the render thread before the frame is handed to any stage.
+    void presentationTimestamp(long presentationTimestamp) {
+        this.presentationTimestamp = presentationTimestamp;
+    }
+
+    /**
+     * Returns the timestamp of the camera frame, as latched by the renderer.
+     * @return the timestamp in nanoseconds
+     */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the timestamp the frame was published with. It differs from {@link #timestamp()} when a
+     * {@link CameraSurfaceGroup} normalizes timestamps onto a stream clock, and it is the timestamp an encoder reports
+     * in microseconds.
+     * @return the timestamp in nanoseconds
+     */
+    public long presentationTimestamp() {
+        return presentationTimestamp;
+    }
+
+    /**
+     * Returns the renderer's frame number, starting at 1 for the first latched frame.
+     * @return the frame number
+     */
+    public long frameNumber() {
+        return frameNumber;
+    }
+
+    /**
+     * Returns the texture matrix of the surface texture for this frame. The array must not be modified.
+     * @return the 4x4 matrix, will not be null
+     */
+    public float[] stMatrix() {
+        return stMatrix;
+    }
+
+    /**
+     * Returns the exposure time of the frame, as reported by the camera.
+     * @return the exposure time in nanoseconds, or {@link #UNKNOWN}
+     */
+    public long exposureTimeNanos() {
+        return exposureTimeNanos;
+    }
+
+    /**
+     * Returns the sensor sensitivity of the frame, as reported by the camera.
+     * @return the ISO sensitivity, or {@link #UNKNOWN}
+     */
+    public int sensitivity() {
+        return sensitivity;
+    }
+
+    /**
+     * Returns the orientation the frame was captured in, see {@link FrameInfoPool#orientation(int)}.
+     * @return the clockwise rotation in degrees
+     */
+    public int orientation() {
+        return orientation;
+    }
+
+    /**
+     * Returns the number of references to this frame info.
+     * @return the number of references, 0 if it is back in the pool
+     */
+    public int references() {
+        return references.get();
+    }
+
+    /**
+     * Add a reference to this frame info. May be called from any thread that holds a reference.
+     * @return this frame info
+     *
+     * @throws IllegalStateException if the frame info has already been released into the pool
+     */
+    public FrameInfo retain() {
+        while (true) {
+            final int count = references.get();
+
+            if (count < 1) {
+                throw new IllegalStateException("Frame info has been released");
+            }
+
+            if (references.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Release a reference to this frame info, returning it into the pool if it was the last one. May be called from
+     * any thread.
+     *
+     * @throws IllegalStateException if the frame info has already been released into the pool
+     */
+    public void release() {
+        final int count = references.decrementAndGet();
+
+        if (count < 0) {
+            references.incrementAndGet();
+            throw new IllegalStateException("Frame info has been released too many times");
+        }
+
+        if (0 == count) {
+            pool.recycle(this);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A fixed pool of {@link FrameInfo}s. All frame infos are allocated up front, acquiring and recycling never allocates
+ * and never blocks. A renderer with a pool, see {@link CameraRenderer#frameInfo(FrameInfoPool)}, acquires a frame info
+ * for each latched frame, and frames go without one while all frame infos are in use.
+ * <p>
+ * The pool also collects the metadata that the camera reports apart from the pixels. A source records the exposure
+ * and sensitivity of each capture with {@link #captureResult(long, long, int)}, and the values are matched to the
+ * frame with the same timestamp among the last few captures. The orientation is set by the application.
+ * <p>
+ * Acquiring must be done on the render thread, everything else is safe from any thread.
+ */
+public final class FrameInfoPool {
+
+    private static final int CAPTURE_RESULTS = 8;
+
+    private final int count;
+    private final ArrayBlockingQueue<FrameInfo> free;
+
+    // The last capture results, written by the camera's thread and read by the render thread.
+    private final Object captureLock = new Object();
+    private final long[] captureTimestamps = new long[CAPTURE_RESULTS];
+    private final long[] captureExposureTimes = new long[CAPTURE_RESULTS];
+    private final int[] captureSensitivities = new int[CAPTURE_RESULTS];
+    private int captureResults;
+    private int nextCaptureResult;
+
+    private volatile int orientation;
+    private volatile long exhausted;
+
+    /**
+     * Create a new pool.
+     * @param count the number of frame infos, must be positive; it should cover the frames that all stages may hold
+     *              at once, usually the encoder's pending frames plus the readback's buffers plus a few
+     */
+    public FrameInfoPool(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Argument count must be positive");
+        }
+
+        this.count = count;
+
+        free = new ArrayBlockingQueue<>(count);
+
+        for (int i = 0; i < count; i++) {
+            free.offer(new FrameInfo(this));
+        }
+    }
+
+    /**
+     * Set the orientation that frames are captured in from now on, for example the rotation of the sensor relative to
+     * the display.
+     * @param degrees the clockwise rotation in degrees
+     */
+    public void orientation(int degrees) {
+        orientation = degrees;
+    }
+
+    /**
+     * Record the metadata of a capture, usually from a capture callback of the camera.
+     * @param timestamp the timestamp of the capture in nanoseconds, the same as the frame's timestamp
+     * @param exposureTimeNanos the exposure time in nanoseconds, or {@link FrameInfo#UNKNOWN}
+     * @param sensitivity the ISO sensitivity, or {@link FrameInfo#UNKNOWN}
+     */
+    public void captureResult(long timestamp, long exposureTimeNanos, int sensitivity) {
+        synchronized (captureLock) {
+            captureTimestamps[nextCaptureResult] = timestamp;
+            captureExposureTimes[nextCaptureResult] = exposureTimeNanos;
+            captureSensitivities[nextCaptureResult] = sensitivity;
+
+            nextCaptureResult = (nextCaptureResult + 1) % CAPTURE_RESULTS;
+            captureResults = Math.min(captureResults + 1, CAPTURE_RESULTS);
+        }
+    }
+
+    /**
+     * Acquire a frame info for a latched frame, holding a single reference. The exposure and sensitivity are those of
+     * the capture with the same timestamp, or of the latest capture if its result has not been recorded yet.
+     * @param timestamp the frame's timestamp in nanoseconds
+     * @param frameNumber the frame number
+     * @param stMatrix the texture matrix, must not be null
+     * @param offset the offset of the matrix in the array
+     * @return the frame info, or null if all frame infos are in use
+     */
+    public FrameInfo acquire(long timestamp, long frameNumber, float[] stMatrix, int offset) {
+        if (null == stMatrix || offset < 0 || stMatrix.length - offset < 16) {
+            throw new IllegalArgumentException("Argument stMatrix must have 16 elements after offset");
+        }
+
+        final FrameInfo info = free.poll();
+
+        if (null == info) {
+            exhausted += 1;
+            return null;
+        }
+
+        long exposureTimeNanos = FrameInfo.UNKNOWN;
+        int sensitivity = FrameInfo.UNKNOWN;
+
+        synchronized (captureLock) {
+            // Newest first, so that the latest capture is used when none matches.
+            for (int i = 1; i <= captureResults; i++) {
+                final int index = (nextCaptureResult - i + CAPTURE_RESULTS) % CAPTURE_RESULTS;
+
+                if (1 == i || captureTimestamps[index] == timestamp) {
+                    exposureTimeNanos = captureExposureTimes[index];
+                    sensitivity = captureSensitivities[index];
+
+                    if (captureTimestamps[index] == timestamp) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        info.set(timestamp, frameNumber, stMatrix, offset, exposureTimeNanos, sensitivity, orientation);
+
+        return info;
+    }
+
+    // Called by the frame info when its last reference is released.
+    void recycle(FrameInfo info) {
+        if (!free.offer(info)) {
+            throw new IllegalStateException("Frame info pool is full, was a frame info released twice?");
+        }
+    }
+
+    /**
+     * Returns the number of frame infos in the pool.
+     * @return the number of frame infos
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Returns the number of frame infos that are not in use.
+     * @return the number of frame infos
+     */
+    public int available() {
+        return free.size();
+    }
+
+    /**
+     * Returns the number of times a frame info could not be acquired because all were in use.
+     * @return the number of times
+     */
+    public long exhausted() {
+        return exhausted;
+    }
+}
@@ -0,0 +1,208 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free mailbox holding the metadata of the latest camera frame, handed from the thread that latches frames to
+ * any number of consumer threads. Each frame's timestamp, frame number, texture name and texture matrix are read as a
+ * consistent whole, and consumers learn how many frames they skipped.
+ * <p>
+ * The mailbox is a sequence lock: the producer makes the sequence odd, writes the fields and makes it even again,
+ * and a consumer retries a read when the sequence was odd or has changed while it read. Neither side locks or
+ * allocates, and the producer never waits for consumers. The fields are kept in atomic arrays, so that a read racing
+ * a write sees no torn values and is retried.
+ * <p>
+ * There must be a single producer, usually {@link CameraRenderer#update()}. Reading is safe from any thread.
+ *
+ * @see Frame
+ */
+public final class FrameMailbox {
+
+    /**
+     * A consumer's copy of a frame. Each consumer thread should use its own, it is reused by every
+     * {@link #read(Frame)}.
+     */
+    public static final class Frame {
+        private final float[] stMatrix = new float[16];
+
+        private long timestamp;
+        private long frameNumber = -1;
+        private int textureId;
+        private long skipped;
+        private long totalSkipped;
+
+        /**
+         * Returns the frame's timestamp.
+         * @return the timestamp in nanoseconds
+         */
+        public long timestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Returns the renderer's frame number, starting at 1 for the first latched frame.
+         * @return the frame number, -1 if no frame has been read
+         */
+        public long frameNumber() {
+            return frameNumber;
+        }
+
+        /**
+         * Returns the name of the texture the frame was latched into.
+         * @return the texture name
+         */
+        public int textureId() {
+            return textureId;
+        }
+
+        /**
+         * Returns the frame's texture matrix. The array is owned by this frame and overwritten by the next read.
+         * @return the 4x4 matrix
+         */
+        public float[] stMatrix() {
+            return stMatrix;
+        }
+
+        /**
+         * Returns the number of frames published between the previous frame read into this holder and this one.
+         * @return the number of skipped frames
+         */
+        public long skipped() {
+            return skipped;
+        }
+
+        /**
+         * Returns the number of frames skipped over all reads into this holder.
+         * @return the number of skipped frames
+         */
+        public long totalSkipped() {
+            return totalSkipped;
+        }
+    }
+
+    private static final int TIMESTAMP = 0;
+    private static final int FRAME_NUMBER = 1;
+    private static final int TEXTURE_ID = 2;
+    private static final int FIELDS = 3;
+
+    // Even while the fields are consistent, odd while they are being written.
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLongArray fields = new AtomicLongArray(FIELDS);
+    private final AtomicLongArray matrix = new AtomicLongArray(16);
+
+    /**
+     * Publish a frame, replacing the previous one. Must only be called from the producer thread.
+     * @param timestamp the frame's timestamp in nanoseconds
+     * @param frameNumber the frame number, must be increasing
+     * @param textureId the texture name
+     * @param stMatrix the texture matrix, must not be null
+     * @param offset the offset of the matrix in the array
+     */
+    public void publish(long timestamp, long frameNumber, int textureId, float[] stMatrix, int offset) {
+        if (null == stMatrix) {
+            throw new IllegalArgumentException("Argument stMatrix must not be null");
+        }
+
+        if (offset < 0 || stMatrix.length - offset < 16) {
+            throw new IllegalArgumentException("Argument stMatrix must have 16 elements after offset");
+        }
+
+        final long start = sequence.get() + 1;
+        sequence.set(start);
+
+        fields.set(TIMESTAMP, timestamp);
+        fields.set(FRAME_NUMBER, frameNumber);
+        fields.set(TEXTURE_ID, textureId);
+
+        for (int i = 0; i < 16; i++) {
+            matrix.set(i, Float.floatToRawIntBits(stMatrix[offset + i]));
+        }
+
+        sequence.set(start + 1);
+    }
+
+    /**
+     * Read the latest frame into the holder, if it is newer than the frame last read into it. Never blocks, but
+     * retries while the producer is publishing.
+     * @param frame the holder, must not be null
+     * @return true if a newer frame was read, false if there is none and the holder is unchanged
+     */
+    public boolean read(Frame frame) {
+        if (null == frame) {
+            throw new IllegalArgumentException("Argument frame must not be null");
+        }
+
+        for (;;) {
+            final long start = sequence.get();
+
+            if (0 == start) {
+                return false;
+            }
+
+            if (0 != (start & 1)) {
+                Thread.yield();
+                continue;
+            }
+
+            final long frameNumber = fields.get(FRAME_NUMBER);
+
+            if (frameNumber <= frame.frameNumber) {
+                if (start == sequence.get()) {
+                    return false;
+                }
+
+                continue;
+            }
+
+            final long timestamp = fields.get(TIMESTAMP);
+            final int textureId = (int) fields.get(TEXTURE_ID);
+
+            for (int i = 0; i < 16; i++) {
+                frame.stMatrix[i] = Float.intBitsToFloat((int) matrix.get(i));
+            }
+
+            if (start != sequence.get()) {
+                continue;
+            }
+
+            frame.skipped = frame.frameNumber < 0 ? 0 : frameNumber - frame.frameNumber - 1;
+            frame.totalSkipped += frame.skipped;
+            frame.frameNumber = frameNumber;
+            frame.timestamp = timestamp;
+            frame.textureId = textureId;
+
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of frames published.
+     * @return the number of frames
+     */
+    public long published() {
+        return sequence.get() >>> 1;
+    }
+}
@@ -0,0 +1,134 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package me.stojan.camstream;
+
+import me.stojan.camstream.util.CameraClock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesces frame-available signals into render passes. Signals may arrive from any thread, while passes are run on
+ * a single render thread. When signals arrive faster than passes can be run, all of the pending frames are latched and
+ * only the newest one is rendered, the rest are counted as dropped.
+ * <p>
+ * This class does not use any OpenGL ES or EGL calls on its own, all of the work is done by the {@link Pass}.
+ */
+public final class FrameScheduler {
+
+    /**
+     * A render pass, run on the render thread.
+     */
+    public interface Pass {
+        /**
+         * Latch the next pending frame, for example by calling {@link CameraRenderer#update()}. Called once for each
+         * pending frame, so that the newest frame is latched last.
+         */
+        void latch();
+
+        /**
+         * Render the last latched frame.
+         */
+        void render();
+    }
+
+    private final CameraClock clock;
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private volatile long renderedFrames;
+    private volatile long droppedFrames;
+    private volatile long lastPassNanos;
+
+    /**
+     * Create a new scheduler.
+     * @param clock the clock used to time passes, must not be null
+     */
+    public FrameScheduler(CameraClock clock) {
+        if (null == clock) {
+            throw new IllegalArgumentException("Argument clock must not be null");
+        }
+
+        this.clock = clock;
+    }
+
+    /**
+     * Signal that a new frame is available. May be called from any thread.
+     * @return true if the caller must schedule a call to {@link #run(Pass)}, false if one is already scheduled and it
+     * will pick up this frame
+     */
+    public boolean signal() {
+        return 0 == pending.getAndIncrement();
+    }
+
+    /**
+     * Run one pass over all of the frames signalled so far. Must be called from the render thread.
+     * @param pass the pass, must not be null
+     * @return the number of frames latched in this pass, 0 if there were no pending frames
+     */
+    public int run(Pass pass) {
+        if (null == pass) {
+            throw new IllegalArgumentException("Argument pass must not be null");
+        }
+
+        final int frames = pending.getAndSet(0);
+
+        if (0 == frames) {
+            return 0;
+        }
+
+        final long start = clock.nanoTime();
+
+        for (int i = 0; i < frames; i++) {
+            pass.latch();
+        }
+
+        pass.render();
+
+        lastPassNanos = clock.nanoTime() - start;
+        renderedFrames += 1;
+        droppedFrames += frames - 1;
+
+        return frames;
+    }
+
+    /**
+     * Returns the number of frames that have been rendered.
+     * @return the number of rendered frames
+     */
+    public long renderedFrames() {
+        return renderedFrames;
+    }
+
+    /**
+     * Returns the number of frames that have been latched but not rendered, because a newer frame was available.
+     * @return the number of dropped frames
+     */
+    public long droppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Returns the duration of the last pass, as measured by the clock.
+     * @return the duration in nanoseconds
+     */
+    public long lastPassNanos() {
+        return lastPassNanos;
+    }
+}
@@ -0,0 +1,272 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import me.stojan.camstream.util.CameraClock;
+import me.stojan.camstream.util.Histogram;
+
+/**
+ * Per-stage frame timings, recorded by {@link CameraSurface#render(CameraRenderer, FrameTimings)} and by a
+ * {@link CameraSurfaceGroup} with {@link CameraSurfaceGroup#timings(FrameTimings)} set. Each {@link Stage} is
+ * recorded into its own {@link Histogram}, which can be read from any thread with
+ * {@link #snapshot(Stage, Histogram.Snapshot)}, and an optional {@link Listener} receives each frame's timings on the
+ * rendering thread.
+ * <p>
+ * Recording does not allocate. Renderers and groups without timings do no timing work at all.
+ */
+public final class FrameTimings {
+
+    /**
+     * The measured stages of a frame.
+     */
+    public enum Stage {
+        /** Latching camera frames with {@link CameraRenderer#update()}, summed over the frames latched for a pass. */
+        UPDATE,
+
+        /** Issuing the draw calls of a target, on the CPU. */
+        DRAW,
+
+        /** Publishing a target, which includes {@code eglSwapBuffers} and any wait for a free buffer. */
+        SWAP,
+
+        /** The whole frame, from the first update to the last publish. */
+        TOTAL,
+
+        /**
+         * From the camera frame's timestamp to its publishing. Only meaningful if the camera timestamps are in the
+         * {@link CameraClock} time base, which is the case for most camera HALs and {@link CameraClock#SYSTEM}.
+         */
+        LATENCY,
+
+        /** The GPU time of the draw calls in the first EGL context drawn into, if {@link #gpu(boolean)} is enabled. */
+        GPU
+    }
+
+    /**
+     * Receives the timings of each frame.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the rendering thread after a frame has been published into all targets. Must not block.
+         * @param timings the timings
+         * @param updateNanos the update time
+         * @param drawNanos the draw time, summed over all targets
+         * @param swapNanos the publish time, summed over all targets
+         * @param totalNanos the whole frame
+         * @param latencyNanos the camera-to-publish latency, or -1 if unknown
+         */
+        void onFrame(FrameTimings timings, long updateNanos, long drawNanos, long swapNanos, long totalNanos, long latencyNanos);
+    }
+
+    // Latencies outside of this range are from timestamps in a different time base, and are not recorded.
+    private static final long MAX_LATENCY_NANOS = 10_000_000_000L;
+
+    private final CameraClock clock;
+    private final Histogram[] histograms = new Histogram[Stage.values().length];
+
+    private volatile Listener listener;
+    private volatile boolean gpu;
+
+    private GpuTimer gpuTimer;
+    private boolean gpuTimerCreated;
+
+    private long frameStart = -1;
+    private long updateNanos;
+    private long drawNanos;
+    private long swapNanos;
+
+    /**
+     * Create new timings using {@link CameraClock#SYSTEM}.
+     */
+    public FrameTimings() {
+        this(CameraClock.SYSTEM);
+    }
+
+    /**
+     * Create new timings.
+     * @param clock the clock, must not be null
+     */
+    public FrameTimings(CameraClock clock) {
+        if (null == clock) {
+            throw new IllegalArgumentException("Argument clock must not be null");
+        }
+
+        this.clock = clock;
+
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Set the listener receiving each frame's timings.
+     * @param listener the listener, may be null
+     */
+    public void listener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Enable or disable GPU timings. They are only available in OpenGL ES 3 contexts supporting
+     * {@code EXT_disjoint_timer_query}, and are recorded a few frames late.
+     * @param enabled whether to measure GPU time
+     */
+    public void gpu(boolean enabled) {
+        this.gpu = enabled;
+    }
+
+    /**
+     * Returns the histogram of a stage.
+     * @param stage the stage, must not be null
+     * @return the histogram
+     */
+    public Histogram histogram(Stage stage) {
+        if (null == stage) {
+            throw new IllegalArgumentException("Argument stage must not be null");
+        }
+
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * Copy the histogram of a stage into a snapshot. May be called from any thread.
+     * @param stage the stage, must not be null
+     * @param snapshot the snapshot to reuse, or null to create a new one
+     * @return the snapshot
+     */
+    public Histogram.Snapshot snapshot(Stage stage, Histogram.Snapshot snapshot) {
+        return histogram(stage).snapshot(snapshot);
+    }
+
+    /**
+     * Forget all recorded timings.
+     */
+    public void reset() {
+        for (Histogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Release the GPU timer. Must be called on the rendering thread, with the EGL context the first frame was drawn
+     * into current.
+     */
+    public void release() {
+        if (null != gpuTimer) {
+            gpuTimer.release();
+            gpuTimer = null;
+        }
+
+        gpuTimerCreated = false;
+    }
+
+    long time() {
+        return clock.nanoTime();
+    }
+
+    long updated(long start) {
+        final long now = clock.nanoTime();
+
+        if (frameStart < 0) {
+            frameStart = start;
+        }
+
+        updateNanos += now - start;
+        histograms[Stage.UPDATE.ordinal()].record(now - start);
+
+        return now;
+    }
+
+    void beginDraw() {
+        if (!gpu) {
+            return;
+        }
+
+        if (!gpuTimerCreated) {
+            gpuTimer = GpuTimer.create();
+            gpuTimerCreated = true;
+        }
+
+        if (null != gpuTimer) {
+            gpuTimer.begin(histograms[Stage.GPU.ordinal()]);
+        }
+    }
+
+    long drawn(long start) {
+        if (null != gpuTimer) {
+            gpuTimer.end();
+        }
+
+        final long now = clock.nanoTime();
+
+        if (frameStart < 0) {
+            frameStart = start;
+        }
+
+        drawNanos += now - start;
+        histograms[Stage.DRAW.ordinal()].record(now - start);
+
+        return now;
+    }
+
+    long swapped(long start) {
+        final long now = clock.nanoTime();
+
+        swapNanos += now - start;
+        histograms[Stage.SWAP.ordinal()].record(now - start);
+
+        return now;
+    }
+
+    void framed(long now, long timestamp) {
+        if (frameStart < 0) {
+            return;
+        }
+
+        final long total = now - frameStart;
+        histograms[Stage.TOTAL.ordinal()].record(total);
+
+        long latency = now - timestamp;
+
+        if (latency >= 0 && latency < MAX_LATENCY_NANOS) {
+            histograms[Stage.LATENCY.ordinal()].record(latency);
+        } else {
+            latency = -1;
+        }
+
+        final Listener listener = this.listener;
+
+        if (null != listener) {
+            listener.onFrame(this, updateNanos, drawNanos, swapNanos, total, latency);
+        }
+
+        discarded();
+    }
+
+    void discarded() {
+        frameStart = -1;
+        updateNanos = 0;
+        drawNanos = 0;
+        swapNanos = 0;
+    }
+}
@@ -0,0 +1,144 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import me.stojan.camstream.util.GLESUtils;
+import me.stojan.camstream.util.Histogram;
+
+/**
+ * Measures GPU time with {@code EXT_disjoint_timer_query} in one EGL context. Queries complete asynchronously, so a
+ * ring of them is kept and each is read a few frames after it was issued, without stalling the pipeline. Query objects
+ * are not shared between contexts, so only draws in the context the timer was created in are measured.
+ */
+final class GpuTimer {
+
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+    private static final int QUERIES = 3;
+
+    private final EGLContext context;
+    private final int[] queries = new int[QUERIES];
+    private final boolean[] pending = new boolean[QUERIES];
+    private final int[] result = new int[1];
+
+    private int next;
+    private boolean active;
+
+    private GpuTimer(EGLContext context) {
+        this.context = context;
+        GLES30.glGenQueries(QUERIES, queries, 0);
+    }
+
+    /**
+     * Create a timer in the current EGL context.
+     * @return the timer, or null if the context does not support timer queries
+     */
+    static GpuTimer create() {
+        if (GLESUtils.glMajorVersion() < 3) {
+            return null;
+        }
+
+        final String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+
+        if (null == extensions || !extensions.contains("GL_EXT_disjoint_timer_query")) {
+            return null;
+        }
+
+        return new GpuTimer(EGL14.eglGetCurrentContext());
+    }
+
+    /**
+     * Start measuring, if the current context is the timer's and a query is free.
+     * @param histogram the histogram receiving the results of completed queries
+     */
+    void begin(Histogram histogram) {
+        if (!context.equals(EGL14.eglGetCurrentContext())) {
+            return;
+        }
+
+        collect(histogram);
+
+        if (pending[next]) {
+            // The GPU is more than a ring behind, skip this measurement instead of waiting.
+            return;
+        }
+
+        GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, queries[next]);
+        active = true;
+    }
+
+    /**
+     * Stop measuring, if {@link #begin(Histogram)} started.
+     */
+    void end() {
+        if (!active) {
+            return;
+        }
+
+        GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+
+        pending[next] = true;
+        next = (next + 1) % QUERIES;
+        active = false;
+    }
+
+    private void collect(Histogram histogram) {
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, result, 0);
+
+        // A disjoint event (frequency change, power state) makes all pending results meaningless.
+        final boolean disjoint = 0 != result[0];
+
+        for (int i = 0; i < QUERIES; i++) {
+            final int query = (next + i) % QUERIES;
+
+            if (!pending[query]) {
+                continue;
+            }
+
+            GLES30.glGetQueryObjectuiv(queries[query], GLES30.GL_QUERY_RESULT_AVAILABLE, result, 0);
+
+            if (0 == result[0]) {
+                break;
+            }
+
+            GLES30.glGetQueryObjectuiv(queries[query], GLES30.GL_QUERY_RESULT, result, 0);
+            pending[query] = false;
+
+            if (!disjoint) {
+                histogram.record(result[0] & 0xFFFFFFFFL);
+            }
+        }
+    }
+
+    /**
+     * Delete the queries. Must be called in the timer's context.
+     */
+    void release() {
+        GLES30.glDeleteQueries(QUERIES, queries, 0);
+    }
+}
@@ -0,0 +1,140 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import android.hardware.Camera;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A {@link CameraSource} using the {@link Camera} API, available on all versions of Android. The camera is opened
+ * and started synchronously in {@link #start(CameraRenderer, Callback)}, so the callback is called on the starting
+ * thread, which must have a looper.
+ */
+@SuppressWarnings("deprecation")
+public final class LegacyCameraSource implements CameraSource {
+
+    private final int cameraId;
+    private final int requestedWidth;
+    private final int requestedHeight;
+
+    private Camera camera;
+    private int width;
+    private int height;
+
+    /**
+     * Create a new source. The preview size closest to the requested one is used.
+     * @param cameraId the camera's ID, between 0 and {@link Camera#getNumberOfCameras()}
+     * @param width the requested width in pixels
+     * @param height the requested height in pixels
+     */
+    public LegacyCameraSource(int cameraId, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Arguments width and height must be positive");
+        }
+
+        this.cameraId = cameraId;
+        this.requestedWidth = width;
+        this.requestedHeight = height;
+    }
+
+    @Override
+    public void start(CameraRenderer renderer, Callback callback) {
+        if (null == renderer) {
+            throw new IllegalArgumentException("Argument renderer must not be null");
+        }
+
+        if (null != camera) {
+            throw new IllegalStateException("Source is already started");
+        }
+
+        try {
+            camera = Camera.open(cameraId);
+
+            final Camera.Parameters parameters = camera.getParameters();
+            final Camera.Size size = closest(parameters.getSupportedPreviewSizes(), requestedWidth, requestedHeight);
+
+            if (null != size) {
+                parameters.setPreviewSize(size.width, size.height);
+                width = size.width;
+                height = size.height;
+            }
+
+            parameters.setRecordingHint(true);
+            camera.setParameters(parameters);
+
+            camera.setPreviewTexture(renderer.surfaceTexture());
+            camera.startPreview();
+        } catch (IOException | RuntimeException e) {
+            stop();
+
+            if (null == callback) {
+                throw new RuntimeException(e);
+            }
+
+            callback.onError(this, e);
+            return;
+        }
+
+        if (null != callback) {
+            callback.onStarted(this);
+        }
+    }
+
+    private static Camera.Size closest(List<Camera.Size> sizes, int width, int height) {
+        Camera.Size closest = null;
+        int closestDistance = Integer.MAX_VALUE;
+
+        if (null != sizes) {
+            for (Camera.Size size : sizes) {
+                final int distance = Math.abs(size.width - width) + Math.abs(size.height - height);
+
+                if (distance < closestDistance) {
+                    closest = size;
+                    closestDistance = distance;
+                }
+            }
+        }
+
+        return closest;
+    }
+
+    @Override
+    public void stop() {
+        if (null != camera) {
+            camera.stopPreview();
+            camera.release();
+            camera = null;
+        }
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+}
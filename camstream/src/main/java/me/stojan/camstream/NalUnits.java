@@ -0,0 +1,89 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds NAL units in Annex B byte streams, as output by {@code MediaCodec} for H.264 and H.265. Only absolute reads
+ * are used, so the buffer's position and limit are not changed, but the searched range must be within the limit.
+ */
+final class NalUnits {
+
+    private NalUnits() {
+        // No-op.
+    }
+
+    /**
+     * Returns the index of the next 3-byte start code (0x000001) at or after from, before end.
+     * @param buffer the buffer
+     * @param from the first index to search
+     * @param end the end of the range
+     * @return the index of the start code's first byte, or -1
+     */
+    static int nextStartCode(ByteBuffer buffer, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (0 == buffer.get(i + 2)) {
+                continue;
+            }
+
+            if (1 == buffer.get(i + 2) && 0 == buffer.get(i) && 0 == buffer.get(i + 1)) {
+                return i;
+            }
+
+            // The third byte is not zero, so no start code can begin before it.
+            i += 2;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the index of the first byte of the NAL unit after the next start code at or after from, before end.
+     * @param buffer the buffer
+     * @param from the first index to search
+     * @param end the end of the range
+     * @return the index, or -1 if there is no start code
+     */
+    static int nextNal(ByteBuffer buffer, int from, int end) {
+        final int startCode = nextStartCode(buffer, from, end);
+        return startCode < 0 ? -1 : startCode + 3;
+    }
+
+    /**
+     * Returns the end of the NAL unit starting at start, given the index of the next start code, without trailing
+     * zero bytes, which include the leading zero of a 4-byte start code.
+     * @param buffer the buffer
+     * @param start the index of the NAL unit's first byte
+     * @param next the index of the next start code, or the end of the range
+     * @return the end of the NAL unit, equal to start if it is empty
+     */
+    static int end(ByteBuffer buffer, int start, int next) {
+        int end = next;
+
+        while (end > start && 0 == buffer.get(end - 1)) {
+            end -= 1;
+        }
+
+        return end;
+    }
+}
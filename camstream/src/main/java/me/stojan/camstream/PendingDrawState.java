@@ -0,0 +1,170 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+/**
+ * Hands the model-view-projection matrix, the texture matrix and the clear color from any thread to the drawing thread
+ * of a {@link CameraRenderer}. Writers copy into a pending matrix or store a pending color and bump a sequence number,
+ * and the drawing thread copies them out only when the sequence has changed since its last draw. Neither side
+ * allocates, so both can run on every frame.
+ */
+final class PendingDrawState {
+
+    private final Object matrixLock = new Object();
+    private final float[] pendingMatrix = new float[16];
+    private volatile int matrixSequence;
+    private int latchedMatrixSequence;
+
+    private final Object textureMatrixLock = new Object();
+    private final float[] pendingTextureMatrix = new float[16];
+    private volatile int textureMatrixSequence;
+    private int latchedTextureMatrixSequence;
+
+    private volatile int pendingClearColor;
+    private volatile int clearColorSequence;
+    private int latchedClearColorSequence;
+
+    /**
+     * Create a new state with identity matrices. The clear color is only latched once it has been set.
+     */
+    PendingDrawState() {
+        for (int i = 0; i < 16; i += 5) {
+            pendingMatrix[i] = 1f;
+            pendingTextureMatrix[i] = 1f;
+        }
+    }
+
+    /**
+     * Set the matrix for the next draw. May be called from any thread.
+     * @param matrix the 4x4 matrix, must have 16 elements after offset
+     * @param offset the offset of the matrix in the array
+     */
+    void matrix(float[] matrix, int offset) {
+        synchronized (matrixLock) {
+            System.arraycopy(matrix, offset, pendingMatrix, 0, pendingMatrix.length);
+            matrixSequence += 1;
+        }
+    }
+
+    /**
+     * Copy the pending matrix. May be called from any thread.
+     * @param matrix the destination, must have 16 elements
+     */
+    void copyMatrix(float[] matrix) {
+        synchronized (matrixLock) {
+            System.arraycopy(pendingMatrix, 0, matrix, 0, pendingMatrix.length);
+        }
+    }
+
+    /**
+     * Copy the pending matrix into the drawn matrix if it has been set since the last call. Called by the drawing
+     * thread.
+     * @param matrix the drawn matrix, must have 16 elements
+     * @return true if the matrix was copied
+     */
+    boolean latchMatrix(float[] matrix) {
+        if (latchedMatrixSequence == matrixSequence) {
+            return false;
+        }
+
+        synchronized (matrixLock) {
+            System.arraycopy(pendingMatrix, 0, matrix, 0, pendingMatrix.length);
+            latchedMatrixSequence = matrixSequence;
+        }
+
+        return true;
+    }
+
+    /**
+     * Set the texture matrix for the next draw. May be called from any thread.
+     * @param matrix the 4x4 matrix, must have 16 elements after offset
+     * @param offset the offset of the matrix in the array
+     */
+    void textureMatrix(float[] matrix, int offset) {
+        synchronized (textureMatrixLock) {
+            System.arraycopy(matrix, offset, pendingTextureMatrix, 0, pendingTextureMatrix.length);
+            textureMatrixSequence += 1;
+        }
+    }
+
+    /**
+     * Copy the pending texture matrix. May be called from any thread.
+     * @param matrix the destination, must have 16 elements
+     */
+    void copyTextureMatrix(float[] matrix) {
+        synchronized (textureMatrixLock) {
+            System.arraycopy(pendingTextureMatrix, 0, matrix, 0, pendingTextureMatrix.length);
+        }
+    }
+
+    /**
+     * Copy the pending texture matrix into the drawn texture matrix if it has been set since the last call. Called by
+     * the drawing thread.
+     * @param matrix the drawn texture matrix, must have 16 elements
+     * @return true if the matrix was copied
+     */
+    boolean latchTextureMatrix(float[] matrix) {
+        if (latchedTextureMatrixSequence == textureMatrixSequence) {
+            return false;
+        }
+
+        synchronized (textureMatrixLock) {
+            System.arraycopy(pendingTextureMatrix, 0, matrix, 0, pendingTextureMatrix.length);
+            latchedTextureMatrixSequence = textureMatrixSequence;
+        }
+
+        return true;
+    }
+
+    /**
+     * Set the clear color for the next draw. May be called from any thread.
+     * @param color an Android {@link android.graphics.Color} integer
+     */
+    void clearColor(int color) {
+        pendingClearColor = color;
+        clearColorSequence += 1;
+    }
+
+    /**
+     * Convert the pending clear color into the drawn color components if it has been set since the last call. Called
+     * by the drawing thread.
+     * @param rgba the red, green, blue and alpha components, must have 4 elements
+     * @return true if the color was converted
+     */
+    boolean latchClearColor(float[] rgba) {
+        if (latchedClearColorSequence == clearColorSequence) {
+            return false;
+        }
+
+        latchedClearColorSequence = clearColorSequence;
+
+        final int color = pendingClearColor;
+
+        // The same components as Color.red(), green(), blue() and alpha().
+        rgba[0] = ((float) ((color >> 16) & 0xFF)) / 256f;
+        rgba[1] = ((float) ((color >> 8) & 0xFF))  / 256f;
+        rgba[2] = ((float) (color & 0xFF))         / 256f;
+        rgba[3] = ((float) ((color >>> 24)))       / 256f;
+
+        return true;
+    }
+}
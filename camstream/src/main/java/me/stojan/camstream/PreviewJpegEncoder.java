@@ -0,0 +1,139 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses the frames of a {@link CameraReadback} into JPEG images for the MJPEG stream of a {@link PreviewServer}.
+ * Frames are only compressed while the server has MJPEG clients. The readback should draw with {@link #FLIPPED}, so
+ * that its rows are top to bottom like those of a bitmap.
+ * <p>
+ * All methods must be called on the readback's listener looper.
+ */
+public final class PreviewJpegEncoder implements CameraReadback.Listener {
+
+    /** The default JPEG quality. */
+    public static final int DEFAULT_QUALITY = 70;
+
+    // Mirrors the frame vertically, so that the bottom-to-top rows read back from OpenGL ES are upright.
+    private static final float[] FLIP_MATRIX = new float[] {
+            1f,  0f, 0f, 0f,
+            0f, -1f, 0f, 0f,
+            0f,  0f, 1f, 0f,
+            0f,  0f, 0f, 1f
+    };
+
+    /**
+     * A readback pass that draws the camera frame upside down, without the renderer's model-view-projection matrix,
+     * so that the pixels read back are upright.
+     */
+    public static final CameraReadback.Pass FLIPPED = new CameraReadback.Pass() {
+        @Override
+        public void draw(CameraRenderer renderer, int width, int height) {
+            renderer.draw(FLIP_MATRIX, 0);
+        }
+    };
+
+    // Exposes its array, so that the compressed image is passed on without a copy.
+    private static final class JpegStream extends ByteArrayOutputStream {
+        private JpegStream() {
+            super(64 * 1024);
+        }
+
+        private ByteBuffer buffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private final PreviewServer server;
+    private final int quality;
+    private final JpegStream stream = new JpegStream();
+
+    private Bitmap bitmap;
+    private int bitmapWidth;
+    private int bitmapHeight;
+
+    /**
+     * Create a new encoder with the {@link #DEFAULT_QUALITY}.
+     * @param server the server, must not be null
+     */
+    public PreviewJpegEncoder(PreviewServer server) {
+        this(server, DEFAULT_QUALITY);
+    }
+
+    /**
+     * Create a new encoder.
+     * @param server the server, must not be null
+     * @param quality the JPEG quality, in [0, 100]
+     */
+    public PreviewJpegEncoder(PreviewServer server, int quality) {
+        if (null == server) {
+            throw new IllegalArgumentException("Argument server must not be null");
+        }
+
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("Argument quality must be in [0, 100]");
+        }
+
+        this.server = server;
+        this.quality = quality;
+    }
+
+    @Override
+    public void onFrame(CameraReadback readback, ByteBuffer pixels, int width, int height, long timestamp) {
+        if (0 == server.mjpegClients()) {
+            readback.recycle(pixels);
+            return;
+        }
+
+        if (null == bitmap || width != bitmapWidth || height != bitmapHeight) {
+            release();
+
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            bitmapWidth = width;
+            bitmapHeight = height;
+        }
+
+        bitmap.copyPixelsFromBuffer(pixels);
+        readback.recycle(pixels);
+
+        stream.reset();
+
+        if (bitmap.compress(Bitmap.CompressFormat.JPEG, quality, stream)) {
+            server.jpegFrame(stream.buffer());
+        }
+    }
+
+    /**
+     * Release the bitmap. The encoder can be used again afterwards.
+     */
+    public void release() {
+        if (null != bitmap) {
+            bitmap.recycle();
+            bitmap = null;
+        }
+    }
+}
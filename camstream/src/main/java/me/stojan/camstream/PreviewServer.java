@@ -0,0 +1,678 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * An embedded HTTP server for pulling live video from a device over the local network, as fragmented MP4 from an
+ * encoder at {@link #MP4_PATH}, or as MJPEG from a readback at {@link #MJPEG_PATH}. Any number of clients can connect,
+ * and all of them share one encode: each frame is written once into a chunk that is referenced by the queue of every
+ * client.
+ * <p>
+ * Each client's queue holds at most a bounded number of frames. When a client falls behind and its queue is full, its
+ * unsent frames are dropped and it skips ahead to the next key frame, so that slow clients never hold back the
+ * encoder or other clients, and never receive a frame they can't decode. Every JPEG is a key frame.
+ * <p>
+ * All sockets are served by one thread with a {@link Selector}. {@link #encodedFrame(ByteBuffer, long, int)} must be
+ * called from a single thread, usually the encoder's drain thread, and {@link #jpegFrame(ByteBuffer)} may be called
+ * from any thread. This class does not depend on Android, but on Android the app needs the {@code INTERNET} permission.
+ */
+public final class PreviewServer {
+
+    /** The path of the fragmented MP4 stream. */
+    public static final String MP4_PATH = "/video.mp4";
+
+    /** The path of the MJPEG stream. */
+    public static final String MJPEG_PATH = "/video.mjpeg";
+
+    /** The default number of frames that may be queued for a client. */
+    public static final int DEFAULT_MAX_QUEUED_FRAMES = 30;
+
+    private static final int STREAM_NONE = 0;
+    private static final int STREAM_MP4 = 1;
+    private static final int STREAM_MJPEG = 2;
+
+    private static final int FLAG_KEY_FRAME = EncodedFrameRing.FLAG_KEY_FRAME;
+    private static final int FLAG_CODEC_CONFIG = EncodedFrameRing.FLAG_CODEC_CONFIG;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final String MP4_HEADERS = "HTTP/1.1 200 OK\r\n" +
+            "Content-Type: video/mp4\r\n" +
+            "Cache-Control: no-cache\r\n" +
+            "Connection: close\r\n" +
+            "\r\n";
+
+    private static final String MJPEG_HEADERS = "HTTP/1.1 200 OK\r\n" +
+            "Content-Type: multipart/x-mixed-replace; boundary=frame\r\n" +
+            "Cache-Control: no-cache\r\n" +
+            "Connection: close\r\n" +
+            "\r\n";
+
+    private static final String NOT_FOUND = "HTTP/1.1 404 Not Found\r\n" +
+            "Content-Length: 0\r\n" +
+            "Connection: close\r\n" +
+            "\r\n";
+
+    private static final String UNAVAILABLE = "HTTP/1.1 503 Service Unavailable\r\n" +
+            "Content-Length: 0\r\n" +
+            "Connection: close\r\n" +
+            "\r\n";
+
+    // Bytes sent to clients, shared by the queues of all clients that send them. Pooled chunks go back into the pool
+    // when no queue references them anymore.
+    private static final class Chunk {
+        private final byte[] bytes;
+        private final boolean pooled;
+
+        private int length;
+        private boolean frame;
+        private boolean key;
+        private int references;
+
+        private Chunk(byte[] bytes, boolean pooled) {
+            this.bytes = bytes;
+            this.pooled = pooled;
+        }
+
+        private static Chunk constant(String text) {
+            final byte[] bytes = text.getBytes(ASCII);
+            final Chunk chunk = new Chunk(bytes, false);
+            chunk.length = bytes.length;
+            chunk.key = true;
+            return chunk;
+        }
+    }
+
+    private static final class Client {
+        private final SocketChannel channel;
+        private final ByteBuffer request = ByteBuffer.allocate(2048);
+        private final ArrayDeque<Chunk> queue = new ArrayDeque<>();
+
+        private int stream = STREAM_NONE;
+        private int queuedFrames;
+        private boolean waitingForKeyFrame = true;
+        private boolean closeWhenSent;
+
+        // A view of the chunk at the head of the queue while it is being sent.
+        private ByteBuffer sending;
+
+        private Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final Chunk mp4Headers = Chunk.constant(MP4_HEADERS);
+    private final Chunk mjpegHeaders = Chunk.constant(MJPEG_HEADERS);
+    private final Chunk notFound = Chunk.constant(NOT_FOUND);
+    private final Chunk unavailable = Chunk.constant(UNAVAILABLE);
+
+    private final int maxQueuedFrames;
+    private final FragmentedMp4Writer writer;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    // Guards the clients, their queues, the chunk pool and the init segment.
+    private final Object lock = new Object();
+    private final ArrayList<Client> clients = new ArrayList<>();
+    private final ArrayList<Chunk> freeChunks = new ArrayList<>();
+    private Chunk initSegment;
+
+    // Written with the lock held, read without it by the producers.
+    private volatile int mp4Clients;
+    private volatile int mjpegClients;
+
+    private long sentFrames;
+    private long droppedFrames;
+
+    /**
+     * Start a new server, with the {@link #DEFAULT_MAX_QUEUED_FRAMES}.
+     * @param address the address to listen on, must not be null, port 0 picks a free port
+     * @param width the width of the encoded video in pixels, must be positive
+     * @param height the height of the encoded video in pixels, must be positive
+     * @return the started server
+     * @throws IOException if the server socket can't be opened
+     */
+    public static PreviewServer start(InetSocketAddress address, int width, int height) throws IOException {
+        return start(address, width, height, DEFAULT_MAX_QUEUED_FRAMES);
+    }
+
+    /**
+     * Start a new server.
+     * @param address the address to listen on, must not be null, port 0 picks a free port
+     * @param width the width of the encoded video in pixels, must be positive
+     * @param height the height of the encoded video in pixels, must be positive
+     * @param maxQueuedFrames the maximum number of frames queued for a client, must be positive
+     * @return the started server
+     * @throws IOException if the server socket can't be opened
+     */
+    public static PreviewServer start(InetSocketAddress address, int width, int height, int maxQueuedFrames) throws IOException {
+        if (null == address) {
+            throw new IllegalArgumentException("Argument address must not be null");
+        }
+
+        if (maxQueuedFrames < 1) {
+            throw new IllegalArgumentException("Argument maxQueuedFrames must be positive");
+        }
+
+        return new PreviewServer(address, new FragmentedMp4Writer(width, height), maxQueuedFrames);
+    }
+
+    private PreviewServer(InetSocketAddress address, FragmentedMp4Writer writer, int maxQueuedFrames) throws IOException {
+        this.writer = writer;
+        this.maxQueuedFrames = maxQueuedFrames;
+
+        selector = Selector.open();
+
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(address);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            selector.close();
+            throw e;
+        }
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "preview-server");
+
+        thread.start();
+    }
+
+    /**
+     * Returns the address the server listens on, with the actual port.
+     * @return the address
+     */
+    public InetSocketAddress address() {
+        return (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * Stream an output buffer of the encoder to the fragmented MP4 clients, for example from
+     * {@link CameraEncoder.Callback#onEncodedFrame(CameraEncoder, ByteBuffer, android.media.MediaCodec.BufferInfo)}.
+     * Codec configuration data makes the init segment that clients receive first, until then clients are turned away.
+     * Frames are only written while there are clients. Must always be called from the same thread.
+     * @param data the H.264 data in Annex B format between its position and limit, must not be null, its position is
+     *             not changed
+     * @param presentationTimeUs the presentation time in microseconds
+     * @param flags the flags, {@code MediaCodec.BUFFER_FLAG_*} values
+     */
+    public void encodedFrame(ByteBuffer data, long presentationTimeUs, int flags) {
+        if (null == data) {
+            throw new IllegalArgumentException("Argument data must not be null");
+        }
+
+        if (0 != (flags & FLAG_CODEC_CONFIG)) {
+            if (writer.configure(data)) {
+                final Chunk chunk = acquire(writer.initSegmentSize());
+                chunk.length = writer.writeInitSegment(ByteBuffer.wrap(chunk.bytes));
+                chunk.frame = false;
+                chunk.key = true;
+
+                synchronized (lock) {
+                    if (null != initSegment) {
+                        release(initSegment);
+                    }
+
+                    // The server's own reference keeps the init segment out of the pool while clients come and go.
+                    chunk.references = 1;
+                    initSegment = chunk;
+                }
+            }
+
+            return;
+        }
+
+        if (!writer.configured() || 0 == mp4Clients) {
+            return;
+        }
+
+        final Chunk chunk = acquire(FragmentedMp4Writer.maxFragmentSize(data.remaining()));
+        chunk.length = writer.writeFragment(data, presentationTimeUs, 0 != (flags & FLAG_KEY_FRAME),
+                ByteBuffer.wrap(chunk.bytes));
+        chunk.frame = true;
+        chunk.key = 0 != (flags & FLAG_KEY_FRAME);
+
+        broadcast(STREAM_MP4, chunk);
+    }
+
+    /**
+     * Stream a JPEG image to the MJPEG clients. Images are only copied while there are clients, see
+     * {@link #mjpegClients()}.
+     * @param jpeg the JPEG data between its position and limit, must not be null, its position is not changed
+     */
+    public void jpegFrame(ByteBuffer jpeg) {
+        if (null == jpeg) {
+            throw new IllegalArgumentException("Argument jpeg must not be null");
+        }
+
+        if (0 == mjpegClients) {
+            return;
+        }
+
+        final byte[] header = String.format((Locale) null,
+                "--frame\r\nContent-Type: image/jpeg\r\nContent-Length: %d\r\n\r\n", jpeg.remaining()).getBytes(ASCII);
+
+        final Chunk chunk = acquire(header.length + jpeg.remaining() + 2);
+        final ByteBuffer out = ByteBuffer.wrap(chunk.bytes);
+
+        out.put(header);
+        out.put(jpeg.duplicate());
+        out.put((byte) '\r');
+        out.put((byte) '\n');
+
+        chunk.length = out.position();
+        chunk.frame = true;
+        chunk.key = true;
+
+        broadcast(STREAM_MJPEG, chunk);
+    }
+
+    private void broadcast(int stream, Chunk chunk) {
+        boolean queued = false;
+
+        synchronized (lock) {
+            // The reference held while queueing keeps the chunk out of the pool if no client takes it.
+            chunk.references = 1;
+
+            for (int i = 0; i < clients.size(); i++) {
+                final Client client = clients.get(i);
+
+                if (stream == client.stream) {
+                    queued |= enqueue(client, chunk);
+                }
+            }
+
+            release(chunk);
+        }
+
+        if (queued) {
+            selector.wakeup();
+        }
+    }
+
+    // Queues a frame for the client, or drops it. Must be called with the lock held.
+    private boolean enqueue(Client client, Chunk chunk) {
+        if (client.closeWhenSent) {
+            return false;
+        }
+
+        if (client.queuedFrames >= maxQueuedFrames) {
+            // The client has fallen behind: drop the frames it has not started to receive and skip to a key frame.
+            final Iterator<Chunk> queued = client.queue.iterator();
+
+            if (null != client.sending) {
+                queued.next();
+            }
+
+            while (queued.hasNext()) {
+                final Chunk frame = queued.next();
+
+                if (frame.frame) {
+                    queued.remove();
+                    release(frame);
+                    client.queuedFrames -= 1;
+                    droppedFrames += 1;
+                }
+            }
+
+            client.waitingForKeyFrame = true;
+        }
+
+        if (client.waitingForKeyFrame) {
+            if (!chunk.key) {
+                droppedFrames += 1;
+                return false;
+            }
+
+            client.waitingForKeyFrame = false;
+        }
+
+        chunk.references += 1;
+        client.queue.addLast(chunk);
+        client.queuedFrames += 1;
+
+        return true;
+    }
+
+    private Chunk acquire(int capacity) {
+        synchronized (lock) {
+            for (int i = freeChunks.size() - 1; i >= 0; i--) {
+                if (freeChunks.get(i).bytes.length >= capacity) {
+                    return freeChunks.remove(i);
+                }
+            }
+        }
+
+        // Room to grow, so that slightly larger frames later on can reuse the chunk.
+        return new Chunk(new byte[capacity + capacity / 4], true);
+    }
+
+    // Must be called with the lock held.
+    private void release(Chunk chunk) {
+        chunk.references -= 1;
+
+        if (chunk.pooled && chunk.references <= 0) {
+            if (freeChunks.size() < 2 * maxQueuedFrames) {
+                freeChunks.add(chunk);
+            } else {
+                // Keep the larger chunk, which can be reused for more frames.
+                int smallest = 0;
+
+                for (int i = 1; i < freeChunks.size(); i++) {
+                    if (freeChunks.get(i).bytes.length < freeChunks.get(smallest).bytes.length) {
+                        smallest = i;
+                    }
+                }
+
+                if (freeChunks.get(smallest).bytes.length < chunk.bytes.length) {
+                    freeChunks.set(smallest, chunk);
+                }
+            }
+        }
+    }
+
+    private void serve() {
+        try {
+            while (running) {
+                selector.select();
+
+                synchronized (lock) {
+                    for (int i = 0; i < clients.size(); i++) {
+                        final Client client = clients.get(i);
+                        final SelectionKey key = client.channel.keyFor(selector);
+
+                        if (null != key && key.isValid()) {
+                            key.interestOps(client.queue.isEmpty() ? SelectionKey.OP_READ
+                                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        }
+                    }
+                }
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    final Client client = (Client) key.attachment();
+
+                    try {
+                        if (key.isReadable()) {
+                            read(client);
+                        }
+
+                        if (key.isValid() && key.isWritable()) {
+                            write(client);
+                        }
+                    } catch (IOException e) {
+                        close(client);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // The selector failed, the server stops.
+        } finally {
+            synchronized (lock) {
+                while (!clients.isEmpty()) {
+                    close(clients.get(clients.size() - 1));
+                }
+            }
+
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                // Ignored, the server is stopping.
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignored, the server is stopping.
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+
+        if (null == channel) {
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        final Client client = new Client(channel);
+        channel.register(selector, SelectionKey.OP_READ, client);
+
+        synchronized (lock) {
+            clients.add(client);
+        }
+    }
+
+    private void read(Client client) throws IOException {
+        if (STREAM_NONE != client.stream || client.closeWhenSent) {
+            // Nothing more is expected from the client, except for it closing the connection.
+            client.request.clear();
+        }
+
+        if (client.channel.read(client.request) < 0) {
+            close(client);
+            return;
+        }
+
+        if (STREAM_NONE != client.stream || client.closeWhenSent) {
+            return;
+        }
+
+        final String request = new String(client.request.array(), 0, client.request.position(), ASCII);
+
+        if (!request.contains("\r\n\r\n") && client.request.hasRemaining()) {
+            return;
+        }
+
+        // The request line is "GET <path> HTTP/1.1", the query is ignored.
+        final String[] line = request.substring(0, Math.max(0, request.indexOf("\r\n"))).split(" ");
+        String path = line.length >= 2 && "GET".equals(line[0]) ? line[1] : "";
+
+        if (path.indexOf('?') >= 0) {
+            path = path.substring(0, path.indexOf('?'));
+        }
+
+        synchronized (lock) {
+            if (MP4_PATH.equals(path) && null != initSegment) {
+                client.stream = STREAM_MP4;
+                client.waitingForKeyFrame = true;
+                reply(client, mp4Headers);
+                reply(client, initSegment);
+                mp4Clients += 1;
+            } else if (MJPEG_PATH.equals(path)) {
+                client.stream = STREAM_MJPEG;
+                client.waitingForKeyFrame = true;
+                reply(client, mjpegHeaders);
+                mjpegClients += 1;
+            } else {
+                reply(client, MP4_PATH.equals(path) ? unavailable : notFound);
+                client.closeWhenSent = true;
+            }
+
+            client.channel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    // Queues a response that is not subject to the frame limit. Must be called with the lock held.
+    private void reply(Client client, Chunk chunk) {
+        chunk.references += 1;
+        client.queue.addLast(chunk);
+    }
+
+    private void write(Client client) throws IOException {
+        synchronized (lock) {
+            while (!client.queue.isEmpty()) {
+                final Chunk chunk = client.queue.peekFirst();
+
+                if (null == client.sending) {
+                    client.sending = ByteBuffer.wrap(chunk.bytes, 0, chunk.length);
+                }
+
+                client.channel.write(client.sending);
+
+                if (client.sending.hasRemaining()) {
+                    return;
+                }
+
+                client.queue.pollFirst();
+                client.sending = null;
+
+                if (chunk.frame) {
+                    client.queuedFrames -= 1;
+                    sentFrames += 1;
+                }
+
+                release(chunk);
+            }
+
+            if (client.closeWhenSent) {
+                close(client);
+            } else {
+                client.channel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    private void close(Client client) {
+        synchronized (lock) {
+            if (!clients.remove(client)) {
+                return;
+            }
+
+            while (!client.queue.isEmpty()) {
+                release(client.queue.pollFirst());
+            }
+
+            client.sending = null;
+
+            if (STREAM_MP4 == client.stream) {
+                mp4Clients -= 1;
+            } else if (STREAM_MJPEG == client.stream) {
+                mjpegClients -= 1;
+            }
+        }
+
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+            // Ignored, the client is gone.
+        }
+    }
+
+    /**
+     * Returns the number of clients receiving the fragmented MP4 stream.
+     * @return the number of clients
+     */
+    public int mp4Clients() {
+        return mp4Clients;
+    }
+
+    /**
+     * Returns the number of clients receiving the MJPEG stream. Producers of JPEG images can skip encoding while there
+     * are none.
+     * @return the number of clients
+     */
+    public int mjpegClients() {
+        return mjpegClients;
+    }
+
+    /**
+     * Returns the number of frames sent to clients, counting each client separately.
+     * @return the number of frames
+     */
+    public long sentFrames() {
+        synchronized (lock) {
+            return sentFrames;
+        }
+    }
+
+    /**
+     * Returns the number of frames dropped because clients fell behind, counting each client separately.
+     * @return the number of frames
+     */
+    public long droppedFrames() {
+        synchronized (lock) {
+            return droppedFrames;
+        }
+    }
+
+    /**
+     * Stop the server and disconnect all clients. Blocks until the server thread has finished.
+     */
+    public void release() {
+        running = false;
+        selector.wakeup();
+
+        boolean interrupted = false;
+
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,354 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import java.util.Arrays;
+import java.util.List;
+
+import me.stojan.camstream.util.CameraClock;
+
+/**
+ * Steps the output resolution and frame rate down when the render loop can't keep up, for example under thermal
+ * throttling, and back up once it has been keeping up comfortably for a while.
+ * <p>
+ * The governor is fed the duration of each render pass and the number of frames dropped before it with
+ * {@link #sample(long, int)}. Over each evaluation window it counts the passes over the frame budget of the current
+ * {@link Level}, where a level without a frame rate limit is budgeted the camera's frame interval measured over the
+ * previous window. If too many of them are, or too many frames were dropped, it steps one level down. It steps one level
+ * up only after passes have stayed well within the budget, without drops, for {@link #upHoldNanos(long)}. Any change
+ * is followed by a cooldown, so that the effects of a change are measured before the next one.
+ * <p>
+ * This class does not touch OpenGL ES or the camera, it only decides. {@link CameraRenderThread#governor(RenderGovernor)}
+ * applies the decisions to its renderer, and a {@link Listener} can follow them, for example to change an encoder's
+ * bitrate. It is not thread-safe, it is meant to be used on the rendering thread.
+ */
+public final class RenderGovernor {
+
+    /**
+     * An output quality level.
+     */
+    public static final class Level {
+        private final float scale;
+        private final double frameRate;
+
+        /**
+         * Create a new level.
+         * @param scale the resolution scale, in (0, 1]
+         * @param frameRate the target frame rate, positive, or 0 for no limit
+         */
+        public Level(float scale, double frameRate) {
+            if (!(scale > 0 && scale <= 1)) {
+                throw new IllegalArgumentException("Argument scale must be in (0, 1]");
+            }
+
+            if (!(frameRate >= 0)) {
+                throw new IllegalArgumentException("Argument frameRate must not be negative");
+            }
+
+            this.scale = scale;
+            this.frameRate = frameRate;
+        }
+
+        /**
+         * Returns the resolution scale, applied to each dimension.
+         * @return the scale
+         */
+        public float scale() {
+            return scale;
+        }
+
+        /**
+         * Returns the target frame rate.
+         * @return the frame rate, 0 if there is no limit
+         */
+        public double frameRate() {
+            return frameRate;
+        }
+
+        /**
+         * Returns the time available to render one frame at this level's frame rate.
+         * @return the budget in nanoseconds, 0 if there is no limit and the budget is the camera's frame interval
+         */
+        public long budgetNanos() {
+            return frameRate > 0 ? (long) (1e9 / frameRate) : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Level{scale=" + scale + ", frameRate=" + frameRate + "}";
+        }
+    }
+
+    /**
+     * Receives level changes.
+     */
+    public interface Listener {
+
+        /**
+         * Called from {@link #sample(long, int)} when the level changes.
+         * @param governor the governor
+         * @param previous the previous level
+         * @param level the new level
+         */
+        void onLevelChanged(RenderGovernor governor, Level previous, Level level);
+    }
+
+    /**
+     * The default levels: full quality at the camera's frame rate, then reduced resolution, then reduced frame rate.
+     */
+    public static final List<Level> DEFAULT_LEVELS = Arrays.asList(
+            new Level(1f, 0),
+            new Level(0.75f, 30),
+            new Level(0.75f, 24),
+            new Level(0.5f, 24),
+            new Level(0.5f, 15));
+
+    private final CameraClock clock;
+    private final Level[] levels;
+
+    private Listener listener;
+
+    private long windowNanos = 1000000000L;
+    private long upHoldNanos = 10000000000L;
+    private long cooldownNanos = 3000000000L;
+    private double overloadFraction = 0.2;
+    private double dropFraction = 0.1;
+    private double headroom = 0.5;
+
+    private int level;
+    private long lastChange;
+
+    private long windowStart;
+    private int windowPasses;
+    private int windowOverBudget;
+    private int windowDropped;
+    private long windowNanosSum;
+    private long calmSince = -1;
+
+    // The camera's frame interval measured over the last window, the budget of levels without a limit.
+    private long frameIntervalNanos = 33333333L;
+
+    /**
+     * Create a new governor with the {@link #DEFAULT_LEVELS} and {@link CameraClock#SYSTEM}.
+     */
+    public RenderGovernor() {
+        this(CameraClock.SYSTEM, DEFAULT_LEVELS);
+    }
+
+    /**
+     * Create a new governor, starting at the first level.
+     * @param clock the clock, must not be null
+     * @param levels the levels from the highest quality to the lowest, must not be null or empty
+     */
+    public RenderGovernor(CameraClock clock, List<Level> levels) {
+        if (null == clock) {
+            throw new IllegalArgumentException("Argument clock must not be null");
+        }
+
+        if (null == levels || levels.isEmpty()) {
+            throw new IllegalArgumentException("Argument levels must not be null or empty");
+        }
+
+        this.clock = clock;
+        this.levels = levels.toArray(new Level[levels.size()]);
+
+        for (Level level : this.levels) {
+            if (null == level) {
+                throw new IllegalArgumentException("Argument levels must not contain null");
+            }
+        }
+
+        windowStart = clock.nanoTime();
+        lastChange = windowStart;
+    }
+
+    /**
+     * Set the listener.
+     * @param listener the listener, may be null
+     */
+    public void listener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set the evaluation window. Defaults to one second.
+     * @param nanos the window in nanoseconds, positive
+     * @return this governor
+     */
+    public RenderGovernor windowNanos(long nanos) {
+        if (nanos <= 0) {
+            throw new IllegalArgumentException("Argument nanos must be positive");
+        }
+
+        this.windowNanos = nanos;
+        return this;
+    }
+
+    /**
+     * Set how long the loop must keep up comfortably before stepping up. Defaults to ten seconds.
+     * @param nanos the time in nanoseconds, not negative
+     * @return this governor
+     */
+    public RenderGovernor upHoldNanos(long nanos) {
+        if (nanos < 0) {
+            throw new IllegalArgumentException("Argument nanos must not be negative");
+        }
+
+        this.upHoldNanos = nanos;
+        return this;
+    }
+
+    /**
+     * Set the time after a change during which no other change is made. Defaults to three seconds.
+     * @param nanos the time in nanoseconds, not negative
+     * @return this governor
+     */
+    public RenderGovernor cooldownNanos(long nanos) {
+        if (nanos < 0) {
+            throw new IllegalArgumentException("Argument nanos must not be negative");
+        }
+
+        this.cooldownNanos = nanos;
+        return this;
+    }
+
+    /**
+     * Set the thresholds of the decisions.
+     * @param overloadFraction step down if more than this fraction of the passes in a window are over budget,
+     *                         defaults to 0.2
+     * @param dropFraction step down if more than this fraction of the frames in a window are dropped, defaults to 0.1
+     * @param headroom step up only if passes take less than this fraction of the budget on average, defaults to 0.5
+     * @return this governor
+     */
+    public RenderGovernor thresholds(double overloadFraction, double dropFraction, double headroom) {
+        if (!(overloadFraction >= 0 && overloadFraction < 1) || !(dropFraction >= 0 && dropFraction < 1)
+                || !(headroom > 0 && headroom < 1)) {
+            throw new IllegalArgumentException("Arguments must be fractions in [0, 1), headroom in (0, 1)");
+        }
+
+        this.overloadFraction = overloadFraction;
+        this.dropFraction = dropFraction;
+        this.headroom = headroom;
+        return this;
+    }
+
+    /**
+     * Returns the current level.
+     * @return the level, will not be null
+     */
+    public Level level() {
+        return levels[level];
+    }
+
+    /**
+     * Returns the index of the current level, 0 being the highest quality.
+     * @return the index
+     */
+    public int levelIndex() {
+        return level;
+    }
+
+    /**
+     * Record a render pass, and change the level if a window has ended and calls for it.
+     * @param passNanos the duration of the pass, for example {@link FrameScheduler#lastPassNanos()}
+     * @param droppedFrames the frames dropped before the pass, for example coalesced by the {@link FrameScheduler}
+     * @return true if the level changed
+     */
+    public boolean sample(long passNanos, int droppedFrames) {
+        windowPasses += 1;
+        windowNanosSum += passNanos;
+        windowDropped += Math.max(0, droppedFrames);
+
+        if (passNanos > budgetNanos()) {
+            windowOverBudget += 1;
+        }
+
+        final long now = clock.nanoTime();
+
+        if (now - windowStart < windowNanos) {
+            return false;
+        }
+
+        final boolean changed = evaluate(now);
+
+        // Every camera frame either got a pass or was dropped before one.
+        if (windowPasses + windowDropped > 0) {
+            frameIntervalNanos = (now - windowStart) / (windowPasses + windowDropped);
+        }
+
+        windowStart = now;
+        windowPasses = 0;
+        windowOverBudget = 0;
+        windowDropped = 0;
+        windowNanosSum = 0;
+
+        return changed;
+    }
+
+    private long budgetNanos() {
+        final long budget = levels[level].budgetNanos();
+        return budget > 0 ? budget : frameIntervalNanos;
+    }
+
+    private boolean evaluate(long now) {
+        final long budget = budgetNanos();
+
+        final boolean overloaded = windowOverBudget > overloadFraction * windowPasses
+                || windowDropped > dropFraction * (windowPasses + windowDropped);
+
+        final boolean calm = 0 == windowDropped && windowNanosSum < headroom * budget * windowPasses;
+
+        if (!calm) {
+            calmSince = -1;
+        } else if (calmSince < 0) {
+            calmSince = windowStart;
+        }
+
+        if (now - lastChange < cooldownNanos) {
+            return false;
+        }
+
+        if (overloaded && level < levels.length - 1) {
+            return change(now, level + 1);
+        }
+
+        if (calm && level > 0 && now - calmSince >= upHoldNanos) {
+            return change(now, level - 1);
+        }
+
+        return false;
+    }
+
+    private boolean change(long now, int next) {
+        final Level previous = levels[level];
+
+        level = next;
+        lastChange = now;
+        calmSince = -1;
+
+        if (null != listener) {
+            listener.onLevelChanged(this, previous, levels[level]);
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,373 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Locale;
+
+/**
+ * Splits encoded H.264 or H.265 access units into RTP packets and writes them into a channel that takes each packet
+ * whole, usually a connected {@link java.nio.channels.DatagramChannel}. NAL units that fit into a packet are sent as
+ * single NAL unit packets, larger ones are fragmented into FU-A (RFC 6184) or FU (RFC 7798) packets.
+ * <p>
+ * The payload is never copied: each packet is one gathering write of the RTP header, the fragmentation header if
+ * any, and a view of the encoder's output buffer. The header buffer is reused for every packet and views are reused
+ * while the same output buffer is passed in, so packetizing does not allocate once the encoder's buffers have been
+ * seen.
+ * <p>
+ * Access units are expected in Annex B format, with start codes, as {@code MediaCodec} outputs them. Flags use the
+ * same values as {@code MediaCodec.BUFFER_FLAG_*}. This class does not depend on Android and is not thread-safe, it is
+ * meant to be used on the encoder's drain thread.
+ */
+public final class RtpPacketizer {
+
+    /**
+     * The codec of the access units.
+     */
+    public enum Codec {
+        /** H.264, with 1-byte NAL unit headers and FU-A fragmentation. */
+        H264(1, 28),
+
+        /** H.265, with 2-byte NAL unit headers and FU fragmentation. */
+        H265(2, 49);
+
+        private final int nalHeaderSize;
+        private final int fragmentType;
+
+        Codec(int nalHeaderSize, int fragmentType) {
+            this.nalHeaderSize = nalHeaderSize;
+            this.fragmentType = fragmentType;
+        }
+    }
+
+    /** The size of the RTP header without CSRCs or extensions. */
+    public static final int RTP_HEADER_SIZE = 12;
+
+    /** The RTP clock rate of video, 90 kHz. */
+    public static final int CLOCK_RATE = 90000;
+
+    /** The default maximum packet size, which fits into an Ethernet MTU with IP and UDP headers to spare. */
+    public static final int DEFAULT_MAX_PACKET_SIZE = 1200;
+
+    private static final int FLAG_KEY_FRAME = EncodedFrameRing.FLAG_KEY_FRAME;
+    private static final int FLAG_CODEC_CONFIG = EncodedFrameRing.FLAG_CODEC_CONFIG;
+
+    private final Codec codec;
+    private final int payloadType;
+    private final int ssrc;
+    private final int maxPacketSize;
+
+    // The header of the packet being written: the RTP header and the fragmentation header, if any.
+    private final ByteBuffer header;
+    private final ByteBuffer[] packet = new ByteBuffer[2];
+
+    // A view of the last output buffer, reused while the same buffer is passed in.
+    private ByteBuffer source;
+    private ByteBuffer payload;
+
+    // The last codec configuration, sent again before each key frame if requested.
+    private ByteBuffer config;
+    private int configSize;
+    private boolean configBeforeKeyFrames;
+
+    private int sequenceNumber;
+
+    private long packets;
+    private long bytes;
+    private long nalUnits;
+    private long droppedPackets;
+
+    /**
+     * Create a new packetizer, with the {@link #DEFAULT_MAX_PACKET_SIZE}.
+     * @param codec the codec, must not be null
+     * @param payloadType the RTP payload type, a dynamic type in [96, 127] for H.264 and H.265
+     * @param ssrc the synchronization source identifier, should be random
+     */
+    public RtpPacketizer(Codec codec, int payloadType, int ssrc) {
+        this(codec, payloadType, ssrc, DEFAULT_MAX_PACKET_SIZE);
+    }
+
+    /**
+     * Create a new packetizer.
+     * @param codec the codec, must not be null
+     * @param payloadType the RTP payload type, a dynamic type in [96, 127] for H.264 and H.265
+     * @param ssrc the synchronization source identifier, should be random
+     * @param maxPacketSize the maximum size of a packet including the RTP header, at least 64 bytes
+     */
+    public RtpPacketizer(Codec codec, int payloadType, int ssrc, int maxPacketSize) {
+        if (null == codec) {
+            throw new IllegalArgumentException("Argument codec must not be null");
+        }
+
+        if (payloadType < 0 || payloadType > 127) {
+            throw new IllegalArgumentException("Argument payloadType must be in [0, 127]");
+        }
+
+        if (maxPacketSize < 64) {
+            throw new IllegalArgumentException("Argument maxPacketSize must be at least 64");
+        }
+
+        this.codec = codec;
+        this.payloadType = payloadType;
+        this.ssrc = ssrc;
+        this.maxPacketSize = maxPacketSize;
+
+        header = ByteBuffer.allocateDirect(RTP_HEADER_SIZE + codec.nalHeaderSize + 1);
+        packet[0] = header;
+    }
+
+    /**
+     * Set whether the last codec configuration (SPS and PPS, and VPS for H.265) is sent again before each key frame,
+     * so that receivers that join or lose packets can start decoding at the next key frame.
+     * @param repeat true to send it before key frames, false to send it only when the encoder outputs it
+     * @return this packetizer
+     */
+    public RtpPacketizer configBeforeKeyFrames(boolean repeat) {
+        this.configBeforeKeyFrames = repeat;
+        return this;
+    }
+
+    /**
+     * Set the next sequence number, for example to continue another packetizer's stream. Sequence numbers should
+     * otherwise start at a random value.
+     * @param sequenceNumber the sequence number, only the lower 16 bits are used
+     * @return this packetizer
+     */
+    public RtpPacketizer sequenceNumber(int sequenceNumber) {
+        this.sequenceNumber = sequenceNumber & 0xFFFF;
+        return this;
+    }
+
+    /**
+     * Packetize an access unit and write its packets into the channel. The marker bit is set on the last packet of the
+     * access unit, but not for codec configuration data, which belongs to the access unit that follows it.
+     * <p>
+     * The channel must write each packet whole, like a datagram channel does. A non-blocking channel that can't take
+     * a packet right away drops it, which is counted in {@link #droppedPackets()}.
+     * @param data the encoded data in Annex B format between its position and limit, must not be null, its position
+     *             is not changed
+     * @param presentationTimeUs the presentation time in microseconds
+     * @param flags the flags, {@code MediaCodec.BUFFER_FLAG_*} values
+     * @param channel the channel, must not be null
+     * @return the number of packets written
+     * @throws IOException if the channel fails, or writes a packet only in part
+     */
+    public int packetize(ByteBuffer data, long presentationTimeUs, int flags, GatheringByteChannel channel) throws IOException {
+        if (null == data) {
+            throw new IllegalArgumentException("Argument data must not be null");
+        }
+
+        if (null == channel) {
+            throw new IllegalArgumentException("Argument channel must not be null");
+        }
+
+        final int timestamp = (int) (presentationTimeUs * CLOCK_RATE / 1000000L);
+
+        if (0 != (flags & FLAG_CODEC_CONFIG)) {
+            keepConfig(data);
+            return write(view(data), data.position(), data.limit(), timestamp, false, channel);
+        }
+
+        int written = 0;
+
+        if (configBeforeKeyFrames && 0 != (flags & FLAG_KEY_FRAME) && null != config) {
+            written += write(config, 0, configSize, timestamp, false, channel);
+        }
+
+        return written + write(view(data), data.position(), data.limit(), timestamp, true, channel);
+    }
+
+    private ByteBuffer view(ByteBuffer data) {
+        if (data != source) {
+            source = data;
+            payload = data.duplicate();
+        }
+
+        payload.limit(payload.capacity());
+
+        return payload;
+    }
+
+    private void keepConfig(ByteBuffer data) {
+        final int size = data.remaining();
+
+        if (null == config || config.capacity() < size) {
+            config = ByteBuffer.allocateDirect(size);
+        }
+
+        config.clear();
+        config.put(data.duplicate());
+        configSize = size;
+    }
+
+    // Writes the packets of all NAL units in buffer between start and end.
+    private int write(ByteBuffer buffer, int start, int end, int timestamp, boolean marker, GatheringByteChannel channel) throws IOException {
+        int written = 0;
+        int nal = NalUnits.nextNal(buffer, start, end);
+
+        if (nal < 0) {
+            // Without start codes the whole buffer is taken to be one NAL unit.
+            nal = start;
+        }
+
+        while (nal >= 0 && nal < end) {
+            final int next = NalUnits.nextStartCode(buffer, nal, end);
+            final int following = next < 0 ? -1 : next + 3;
+            final int nalEnd = NalUnits.end(buffer, nal, next < 0 ? end : next);
+
+            if (nalEnd > nal) {
+                written += writeNal(buffer, nal, nalEnd, timestamp, marker && (following < 0 || following >= end), channel);
+                nalUnits += 1;
+            }
+
+            nal = following;
+        }
+
+        return written;
+    }
+
+    private int writeNal(ByteBuffer buffer, int start, int end, int timestamp, boolean marker, GatheringByteChannel channel) throws IOException {
+        final int maxPayload = maxPacketSize - RTP_HEADER_SIZE;
+
+        if (end - start <= maxPayload) {
+            rtpHeader(timestamp, marker);
+            send(buffer, start, end, channel);
+            return 1;
+        }
+
+        final int nalHeaderSize = codec.nalHeaderSize;
+        final int first = buffer.get(start) & 0xFF;
+        final int second = 2 == nalHeaderSize ? buffer.get(start + 1) & 0xFF : 0;
+        final int maxFragment = maxPayload - nalHeaderSize - 1;
+
+        int written = 0;
+        int offset = start + nalHeaderSize;
+
+        while (offset < end) {
+            final int fragmentEnd = Math.min(end, offset + maxFragment);
+            final boolean startFragment = start + nalHeaderSize == offset;
+            final boolean endFragment = end == fragmentEnd;
+
+            rtpHeader(timestamp, marker && endFragment);
+
+            final int bits = (startFragment ? 0x80 : 0) | (endFragment ? 0x40 : 0);
+
+            if (Codec.H264 == codec) {
+                // FU indicator with the NAL unit's F and NRI bits, FU header with its type.
+                header.put((byte) ((first & 0xE0) | codec.fragmentType));
+                header.put((byte) (bits | (first & 0x1F)));
+            } else {
+                // Payload header with the NAL unit's F bit, layer and temporal id, FU header with its type.
+                header.put((byte) ((first & 0x81) | (codec.fragmentType << 1)));
+                header.put((byte) second);
+                header.put((byte) (bits | ((first >> 1) & 0x3F)));
+            }
+
+            send(buffer, offset, fragmentEnd, channel);
+
+            offset = fragmentEnd;
+            written += 1;
+        }
+
+        return written;
+    }
+
+    private void rtpHeader(int timestamp, boolean marker) {
+        header.clear();
+        header.put((byte) 0x80);
+        header.put((byte) ((marker ? 0x80 : 0) | payloadType));
+        header.putShort((short) sequenceNumber);
+        header.putInt(timestamp);
+        header.putInt(ssrc);
+
+        sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+    }
+
+    private void send(ByteBuffer buffer, int start, int end, GatheringByteChannel channel) throws IOException {
+        header.flip();
+
+        // Setting the limit first clamps the position, which is then set within it.
+        buffer.limit(end);
+        buffer.position(start);
+        packet[1] = buffer;
+
+        final int size = header.remaining() + buffer.remaining();
+        long written = channel.write(packet, 0, 2);
+
+        // The whole buffer stays readable for finding the next start codes.
+        buffer.limit(buffer.capacity());
+        packet[1] = null;
+
+        if (0 == written) {
+            droppedPackets += 1;
+        } else if (written < size) {
+            // Only stream channels take a packet in part, and they carry no packet boundaries for RTP to rely on.
+            throw new IOException(String.format((Locale) null, "Channel wrote %d of %d bytes of a packet, it must write packets whole",
+                    written, size));
+        } else {
+            packets += 1;
+            bytes += size;
+        }
+    }
+
+    /**
+     * Returns the next sequence number.
+     * @return the sequence number
+     */
+    public int sequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /**
+     * Returns the number of packets written.
+     * @return the number of packets
+     */
+    public long packets() {
+        return packets;
+    }
+
+    /**
+     * Returns the number of bytes written, including headers.
+     * @return the number of bytes
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of NAL units packetized.
+     * @return the number of NAL units
+     */
+    public long nalUnits() {
+        return nalUnits;
+    }
+
+    /**
+     * Returns the number of packets a non-blocking channel could not take.
+     * @return the number of packets
+     */
+    public long droppedPackets() {
+        return droppedPackets;
+    }
+}
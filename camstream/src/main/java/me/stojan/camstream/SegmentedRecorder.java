@@ -0,0 +1,487 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records encoded H.264 video into a directory as a series of fragmented MP4 segments, so that a long recording is
+ * never lost as a whole when the app is killed. Each segment starts with a key frame and an init segment, so it plays
+ * on its own, and every frame is written as a fragment as soon as it is encoded. When the app is killed only the frame
+ * being written is lost, since written data is in the kernel's page cache. Segments are forced to storage when they
+ * are completed, so that a power loss costs at most the current segment.
+ * <p>
+ * A new segment is started at the first key frame after the segment duration has elapsed. Completed segments are
+ * listed in {@link #INDEX_NAME}, one per line with the file name, start time and duration in microseconds and size in
+ * bytes, separated by tabs. Segments left over by a previous run that did not complete them are added to the index when
+ * the recorder is created, with a start time and duration of -1. Oldest segments are deleted when the segments exceed
+ * the retention limits.
+ * <p>
+ * Forcing, closing, indexing and deleting segments is done on a background thread, so that the thread feeding
+ * frames, usually the encoder's drain thread, only ever writes fragments into the page cache. This class does not
+ * depend on Android. It is not thread-safe, all methods must be called from the same thread.
+ */
+public final class SegmentedRecorder {
+
+    /** The name of the index file in the recording directory. */
+    public static final String INDEX_NAME = "index.txt";
+
+    /** The default segment duration, one minute. */
+    public static final long DEFAULT_SEGMENT_DURATION_US = 60000000L;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".mp4";
+
+    private static final int FLAG_KEY_FRAME = EncodedFrameRing.FLAG_KEY_FRAME;
+    private static final int FLAG_CODEC_CONFIG = EncodedFrameRing.FLAG_CODEC_CONFIG;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final class Segment {
+        private final File file;
+        private final long startUs;
+        private final long durationUs;
+        private final long bytes;
+
+        private Segment(File file, long startUs, long durationUs, long bytes) {
+            this.file = file;
+            this.startUs = startUs;
+            this.durationUs = durationUs;
+            this.bytes = bytes;
+        }
+    }
+
+    private final File directory;
+    private final FragmentedMp4Writer writer;
+    private final long segmentDurationUs;
+    private final ExecutorService executor;
+
+    private volatile long maxBytes;
+    private volatile long maxAgeMs;
+
+    // The segment being written, only used on the recording thread.
+    private FileChannel channel;
+    private File file;
+    private long segmentStartUs;
+    private long segmentBytes;
+    private long lastTimeUs;
+    private int sequence;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+
+    private long droppedFrames;
+
+    // The completed segments, oldest first, only used on the background thread.
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private volatile int completedSegments;
+    private volatile int deletedSegments;
+
+    // The first failure on the background thread, thrown on the recording thread.
+    private volatile IOException failure;
+
+    /**
+     * Create a new recorder with the {@link #DEFAULT_SEGMENT_DURATION_US}.
+     * @param directory the recording directory, must not be null, created if it does not exist
+     * @param width the width of the video in pixels, must be positive
+     * @param height the height of the video in pixels, must be positive
+     * @return the new recorder
+     * @throws IOException if the directory can't be created, or its index can't be read
+     */
+    public static SegmentedRecorder create(File directory, int width, int height) throws IOException {
+        return create(directory, width, height, DEFAULT_SEGMENT_DURATION_US);
+    }
+
+    /**
+     * Create a new recorder.
+     * @param directory the recording directory, must not be null, created if it does not exist
+     * @param width the width of the video in pixels, must be positive
+     * @param height the height of the video in pixels, must be positive
+     * @param segmentDurationUs the minimum duration of a segment in microseconds, must be positive
+     * @return the new recorder
+     * @throws IOException if the directory can't be created, or its index can't be read
+     */
+    public static SegmentedRecorder create(File directory, int width, int height, long segmentDurationUs) throws IOException {
+        if (null == directory) {
+            throw new IllegalArgumentException("Argument directory must not be null");
+        }
+
+        if (segmentDurationUs < 1) {
+            throw new IllegalArgumentException("Argument segmentDurationUs must be positive");
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format((Locale) null, "Unable to create directory %s", directory));
+        }
+
+        return new SegmentedRecorder(directory, new FragmentedMp4Writer(width, height), segmentDurationUs);
+    }
+
+    private SegmentedRecorder(File directory, FragmentedMp4Writer writer, long segmentDurationUs) throws IOException {
+        this.directory = directory;
+        this.writer = writer;
+        this.segmentDurationUs = segmentDurationUs;
+
+        // Loaded before the first segment is opened, so that it is never mistaken for a leftover.
+        load();
+
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "segmented-recorder");
+            }
+        });
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    retain();
+                    writeIndex();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Set the retention limits. Whenever a segment is completed, the oldest segments are deleted while the completed
+     * segments together exceed the size, or while the oldest was last modified longer ago than the age. The segment
+     * being written is not counted.
+     * @param maxBytes the maximum size of the completed segments in bytes, 0 or less for no limit
+     * @param maxAgeMs the maximum age of a segment in milliseconds, 0 or less for no limit
+     * @return this recorder
+     */
+    public SegmentedRecorder retention(long maxBytes, long maxAgeMs) {
+        this.maxBytes = maxBytes;
+        this.maxAgeMs = maxAgeMs;
+        return this;
+    }
+
+    /**
+     * Record an output buffer of the encoder, for example from
+     * {@link CameraEncoder.Callback#onEncodedFrame(CameraEncoder, ByteBuffer, android.media.MediaCodec.BufferInfo)}.
+     * Frames are dropped until the codec configuration and a key frame have been seen.
+     * @param data the H.264 data in Annex B format between its position and limit, must not be null, its position is
+     *             not changed
+     * @param presentationTimeUs the presentation time in microseconds
+     * @param flags the flags, {@code MediaCodec.BUFFER_FLAG_*} values
+     * @throws IOException if writing fails, or completing a previous segment has failed in the background
+     */
+    public void encodedFrame(ByteBuffer data, long presentationTimeUs, int flags) throws IOException {
+        if (null == data) {
+            throw new IllegalArgumentException("Argument data must not be null");
+        }
+
+        checkFailure();
+
+        if (0 != (flags & FLAG_CODEC_CONFIG)) {
+            writer.configure(data);
+            return;
+        }
+
+        final boolean keyFrame = 0 != (flags & FLAG_KEY_FRAME);
+
+        if (null == channel) {
+            if (!keyFrame || !writer.configured()) {
+                droppedFrames += 1;
+                return;
+            }
+
+            open(presentationTimeUs);
+        } else if (keyFrame && presentationTimeUs - segmentStartUs >= segmentDurationUs) {
+            complete(presentationTimeUs - segmentStartUs);
+            open(presentationTimeUs);
+        }
+
+        final int size = FragmentedMp4Writer.maxFragmentSize(data.remaining());
+
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size + size / 4);
+        }
+
+        buffer.clear();
+        writer.writeFragment(data, presentationTimeUs, keyFrame, buffer);
+        buffer.flip();
+
+        write();
+        lastTimeUs = presentationTimeUs;
+    }
+
+    private void open(long presentationTimeUs) throws IOException {
+        file = new File(directory, String.format((Locale) null, "%s%013d-%05d%s", SEGMENT_PREFIX,
+                System.currentTimeMillis(), sequence, SEGMENT_SUFFIX));
+        sequence += 1;
+
+        channel = new FileOutputStream(file).getChannel();
+        segmentStartUs = presentationTimeUs;
+        segmentBytes = 0;
+
+        final int size = writer.initSegmentSize();
+
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+
+        buffer.clear();
+        writer.writeInitSegment(buffer);
+        buffer.flip();
+
+        write();
+    }
+
+    private void write() throws IOException {
+        segmentBytes += buffer.remaining();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // Hands the segment being written to the background thread, to be forced, closed and indexed.
+    private void complete(long durationUs) {
+        final FileChannel channel = this.channel;
+        final Segment segment = new Segment(file, segmentStartUs, durationUs, segmentBytes);
+
+        this.channel = null;
+        this.file = null;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    try {
+                        channel.force(true);
+                    } finally {
+                        channel.close();
+                    }
+
+                    segments.add(segment);
+                    completedSegments += 1;
+
+                    retain();
+                    writeIndex();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    // Reads the index, and adds the segments of the directory that are not in it. Runs before the background thread.
+    private void load() throws IOException {
+        final HashSet<String> indexed = new HashSet<>();
+        final File index = new File(directory, INDEX_NAME);
+
+        if (index.isFile()) {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), UTF_8));
+
+            try {
+                String line;
+
+                while (null != (line = reader.readLine())) {
+                    final String[] fields = line.split("\t");
+
+                    if (4 != fields.length) {
+                        continue;
+                    }
+
+                    final File file = new File(directory, fields[0]);
+
+                    if (file.isFile() && indexed.add(fields[0])) {
+                        try {
+                            segments.add(new Segment(file, Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                                    Long.parseLong(fields[3])));
+                        } catch (NumberFormatException e) {
+                            indexed.remove(fields[0]);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        final String[] names = directory.list();
+
+        if (null == names) {
+            return;
+        }
+
+        // Segment names sort in the order they were started.
+        Arrays.sort(names);
+
+        for (String name : names) {
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) && !indexed.contains(name)) {
+                final File file = new File(directory, name);
+                segments.add(new Segment(file, -1, -1, file.length()));
+            }
+        }
+    }
+
+    // Deletes the oldest segments beyond the retention limits. Runs on the background thread.
+    private void retain() {
+        final long maxBytes = this.maxBytes;
+        final long maxAgeMs = this.maxAgeMs;
+        final long now = System.currentTimeMillis();
+
+        long bytes = 0;
+
+        for (int i = 0; i < segments.size(); i++) {
+            bytes += segments.get(i).bytes;
+        }
+
+        while (!segments.isEmpty()) {
+            final Segment oldest = segments.get(0);
+
+            final boolean tooLarge = maxBytes > 0 && bytes > maxBytes;
+            final boolean tooOld = maxAgeMs > 0 && now - oldest.file.lastModified() > maxAgeMs;
+
+            if (!tooLarge && !tooOld) {
+                break;
+            }
+
+            segments.remove(0);
+            bytes -= oldest.bytes;
+
+            if (oldest.file.delete() || !oldest.file.exists()) {
+                deletedSegments += 1;
+            }
+        }
+    }
+
+    // Replaces the index with the current segments, through a temporary file. Runs on the background thread.
+    private void writeIndex() throws IOException {
+        final File temporary = new File(directory, INDEX_NAME + ".tmp");
+        final FileOutputStream stream = new FileOutputStream(temporary);
+
+        try {
+            final Writer writer = new OutputStreamWriter(stream, UTF_8);
+
+            for (int i = 0; i < segments.size(); i++) {
+                final Segment segment = segments.get(i);
+                writer.write(String.format((Locale) null, "%s\t%d\t%d\t%d\n", segment.file.getName(),
+                        segment.startUs, segment.durationUs, segment.bytes));
+            }
+
+            writer.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+
+        if (!temporary.renameTo(new File(directory, INDEX_NAME))) {
+            throw new IOException(String.format((Locale) null, "Unable to replace index in %s", directory));
+        }
+    }
+
+    private void fail(IOException e) {
+        if (null == failure) {
+            failure = e;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        final IOException failure = this.failure;
+
+        if (null != failure) {
+            throw new IOException("Recording failed in the background", failure);
+        }
+    }
+
+    /**
+     * Returns the segment being written.
+     * @return the file, or null if no segment is being written
+     */
+    public File currentSegment() {
+        return file;
+    }
+
+    /**
+     * Returns the number of segments completed, forced and indexed.
+     * @return the number of segments
+     */
+    public int completedSegments() {
+        return completedSegments;
+    }
+
+    /**
+     * Returns the number of segments deleted by the retention limits.
+     * @return the number of segments
+     */
+    public int deletedSegments() {
+        return deletedSegments;
+    }
+
+    /**
+     * Returns the number of frames dropped before the codec configuration and the first key frame.
+     * @return the number of frames
+     */
+    public long droppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Complete the segment being written, and wait until all segments are forced, indexed and retained.
+     * @throws IOException if completing a segment has failed
+     */
+    public void close() throws IOException {
+        if (null != channel) {
+            complete(lastTimeUs - segmentStartUs);
+        }
+
+        executor.shutdown();
+
+        boolean interrupted = false;
+
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        checkFailure();
+    }
+}
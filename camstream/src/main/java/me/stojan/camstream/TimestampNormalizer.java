@@ -0,0 +1,337 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import android.os.SystemClock;
+
+import me.stojan.camstream.util.CameraClock;
+
+/**
+ * Maps camera frame timestamps onto a single stream clock, suitable for {@code eglPresentationTimeANDROID} and for
+ * muxing with audio.
+ * <p>
+ * Camera timestamps are not in the same time base on all devices: most are in {@code CLOCK_MONOTONIC}, some in
+ * {@code CLOCK_BOOTTIME}, which runs on during deep sleep, and some are always zero or in an unknown base. The
+ * normalizer detects the {@link Domain} from the first frame by comparing its timestamp to both clocks, and maps all
+ * timestamps onto the monotonic clock, the base of {@link System#nanoTime()} and of audio timestamps. Frames without
+ * usable timestamps are stamped with their arrival time, smoothed to remove the delivery jitter.
+ * <p>
+ * The output is strictly increasing by at least a microsecond, the resolution of encoder and muxer timestamps, so
+ * frames are never dropped or reordered for having the same or an earlier timestamp than the previous one. Normalizing
+ * the same non-zero timestamp twice in a row returns the same result, so a frame drawn more than once keeps its
+ * timestamp. Without camera timestamps every call is taken to be a new frame.
+ * <p>
+ * This class is pure Java when created with its clocks, so it can be exercised with recorded timestamp traces. It is
+ * not thread-safe, it is meant to be used on the rendering thread.
+ */
+public final class TimestampNormalizer {
+
+    /**
+     * The time base of the camera timestamps.
+     */
+    public enum Domain {
+        /** No frame has been seen yet. */
+        UNDETERMINED,
+
+        /** {@code CLOCK_MONOTONIC}, used as is. */
+        MONOTONIC,
+
+        /** {@code CLOCK_BOOTTIME}, shifted by the time the device has been suspended. */
+        BOOTTIME,
+
+        /** An unknown base, shifted so that the first frame is stamped with its arrival time. */
+        OTHER,
+
+        /** No timestamps, frames are stamped with their smoothed arrival time. */
+        ZERO
+    }
+
+    /** The minimum increment between two output timestamps, one microsecond. */
+    public static final long MIN_INCREMENT_NANOS = 1000;
+
+    // A timestamp within this distance of a clock's current time is considered to be in that clock's base.
+    private static final long DOMAIN_TOLERANCE_NANOS = 1000000000L;
+
+    // How often the boottime offset is measured again, since it grows whenever the device suspends.
+    private static final long BOOTTIME_REFRESH_NANOS = 1000000000L;
+
+    // Camera time running ahead of the monotonic clock by more than any delivery jitter between two frames means the
+    // device has suspended, and the boottime offset is measured again at once.
+    private static final long SUSPEND_TOLERANCE_NANOS = 100000000L;
+
+    private final CameraClock monotonic;
+    private final CameraClock boottime;
+
+    private double smoothing = 0.1;
+
+    private Domain domain = Domain.UNDETERMINED;
+    private long offset;
+    private long offsetMeasuredAt;
+
+    private long lastRaw = Long.MIN_VALUE;
+    private long lastNow;
+    private long lastMeasured;
+    private long lastOutput = Long.MIN_VALUE;
+    private long origin = Long.MIN_VALUE;
+    private double interval;
+
+    private long frames;
+    private long adjustedFrames;
+
+    /**
+     * Create a new normalizer using {@link System#nanoTime()} and {@link SystemClock#elapsedRealtimeNanos()}.
+     */
+    public TimestampNormalizer() {
+        this(CameraClock.SYSTEM, new CameraClock() {
+            @Override
+            public long nanoTime() {
+                return SystemClock.elapsedRealtimeNanos();
+            }
+        });
+    }
+
+    /**
+     * Create a new normalizer.
+     * @param monotonic the monotonic clock, the stream clock's base, must not be null
+     * @param boottime the boottime clock, must not be null
+     */
+    public TimestampNormalizer(CameraClock monotonic, CameraClock boottime) {
+        if (null == monotonic) {
+            throw new IllegalArgumentException("Argument monotonic must not be null");
+        }
+
+        if (null == boottime) {
+            throw new IllegalArgumentException("Argument boottime must not be null");
+        }
+
+        this.monotonic = monotonic;
+        this.boottime = boottime;
+    }
+
+    /**
+     * Set how strongly arrival times are smoothed when the camera has no usable timestamps. Each frame's timestamp
+     * moves this fraction of the way from the predicted one towards its arrival time.
+     * @param fraction the fraction, in (0, 1], 1 to disable smoothing, defaults to 0.1
+     * @return this normalizer
+     */
+    public TimestampNormalizer smoothing(double fraction) {
+        if (!(fraction > 0 && fraction <= 1)) {
+            throw new IllegalArgumentException("Argument fraction must be in (0, 1]");
+        }
+
+        this.smoothing = fraction;
+        return this;
+    }
+
+    /**
+     * Map a camera timestamp onto the stream clock.
+     * @param timestamp the camera timestamp in nanoseconds, for example {@link CameraRenderer#timestamp()}
+     * @return the stream timestamp in nanoseconds, in the monotonic clock's base
+     */
+    public long normalize(long timestamp) {
+        if (0 != timestamp && timestamp == lastRaw) {
+            return lastOutput;
+        }
+
+        final long now = monotonic.nanoTime();
+
+        if (Domain.UNDETERMINED == domain) {
+            detect(timestamp, now);
+        }
+
+        long output;
+
+        if (Domain.ZERO == domain) {
+            output = smooth(now);
+        } else {
+            if (Domain.BOOTTIME == domain
+                    && (now - offsetMeasuredAt >= BOOTTIME_REFRESH_NANOS || suspended(timestamp, now))) {
+                measureBoottimeOffset(now);
+            }
+
+            output = timestamp + offset;
+        }
+
+        if (Long.MIN_VALUE != lastOutput && output < lastOutput + MIN_INCREMENT_NANOS) {
+            output = lastOutput + MIN_INCREMENT_NANOS;
+            adjustedFrames += 1;
+        }
+
+        if (Long.MIN_VALUE == origin) {
+            origin = output;
+        }
+
+        lastRaw = timestamp;
+        lastNow = now;
+        lastOutput = output;
+        frames += 1;
+
+        return output;
+    }
+
+    private void detect(long timestamp, long now) {
+        if (0 == timestamp) {
+            domain = Domain.ZERO;
+            offset = 0;
+            return;
+        }
+
+        final long boot = boottime.nanoTime();
+
+        final long monotonicDistance = Math.abs(now - timestamp);
+        final long boottimeDistance = Math.abs(boot - timestamp);
+
+        // If the device never suspended both clocks are close, and either base gives the same result.
+        if (monotonicDistance < DOMAIN_TOLERANCE_NANOS && monotonicDistance <= boottimeDistance) {
+            domain = Domain.MONOTONIC;
+            offset = 0;
+        } else if (boottimeDistance < DOMAIN_TOLERANCE_NANOS) {
+            domain = Domain.BOOTTIME;
+            measureBoottimeOffset(now);
+        } else {
+            domain = Domain.OTHER;
+            offset = now - timestamp;
+        }
+    }
+
+    private boolean suspended(long timestamp, long now) {
+        return Long.MIN_VALUE != lastRaw && (timestamp - lastRaw) - (now - lastNow) > SUSPEND_TOLERANCE_NANOS;
+    }
+
+    private void measureBoottimeOffset(long now) {
+        offset = now - boottime.nanoTime();
+        offsetMeasuredAt = now;
+    }
+
+    private long smooth(long measured) {
+        if (Long.MIN_VALUE == lastOutput) {
+            lastMeasured = measured;
+            return measured;
+        }
+
+        final long delta = measured - lastMeasured;
+        lastMeasured = measured;
+
+        if (0 == interval) {
+            interval = delta;
+            return measured;
+        }
+
+        final double predicted = lastOutput + interval;
+        final double error = measured - predicted;
+
+        // A gap of several frames, like a camera restart, resynchronizes instead of slowly catching up.
+        if (Math.abs(error) > 4 * interval) {
+            interval = delta > 0 && delta < 4 * interval ? delta : interval;
+            return measured;
+        }
+
+        interval += smoothing * (delta - interval);
+
+        return (long) (predicted + smoothing * error);
+    }
+
+    /**
+     * Map a camera timestamp onto the stream clock with the current mapping, without updating any state. Not
+     * meaningful in the {@link Domain#ZERO} domain.
+     * @param timestamp the camera timestamp in nanoseconds
+     * @return the stream timestamp in nanoseconds
+     */
+    public long toStream(long timestamp) {
+        return timestamp + offset;
+    }
+
+    /**
+     * Returns the detected time base.
+     * @return the domain
+     */
+    public Domain domain() {
+        return domain;
+    }
+
+    /**
+     * Returns the offset added to camera timestamps, so that audio or sensor data in the camera's time base can be
+     * aligned with the frames. It is 0 in the {@link Domain#MONOTONIC} domain.
+     * @return the offset in nanoseconds
+     */
+    public long offsetNanos() {
+        return offset;
+    }
+
+    /**
+     * Returns the first stream timestamp, for consumers that want timestamps relative to the start of the stream.
+     * @return the timestamp in nanoseconds, {@link Long#MIN_VALUE} if no frame has been seen
+     */
+    public long originNanos() {
+        return origin;
+    }
+
+    /**
+     * Returns the last stream timestamp.
+     * @return the timestamp in nanoseconds, {@link Long#MIN_VALUE} if no frame has been seen
+     */
+    public long lastNanos() {
+        return lastOutput;
+    }
+
+    /**
+     * Returns the smoothed frame interval, only measured in the {@link Domain#ZERO} domain.
+     * @return the interval in nanoseconds, 0 if unknown
+     */
+    public long intervalNanos() {
+        return (long) interval;
+    }
+
+    /**
+     * Returns the number of normalized frames.
+     * @return the number of frames
+     */
+    public long frames() {
+        return frames;
+    }
+
+    /**
+     * Returns the number of frames whose timestamp was moved forward to keep the output strictly increasing.
+     * @return the number of frames
+     */
+    public long adjustedFrames() {
+        return adjustedFrames;
+    }
+
+    /**
+     * Forget the domain and the stream, for example when the camera is restarted. The output after a reset is not
+     * guaranteed to be after the output before it.
+     */
+    public void reset() {
+        domain = Domain.UNDETERMINED;
+        offset = 0;
+        offsetMeasuredAt = 0;
+        lastRaw = Long.MIN_VALUE;
+        lastNow = 0;
+        lastMeasured = 0;
+        lastOutput = Long.MIN_VALUE;
+        origin = Long.MIN_VALUE;
+        interval = 0;
+        frames = 0;
+        adjustedFrames = 0;
+    }
+}
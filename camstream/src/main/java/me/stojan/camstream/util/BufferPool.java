@@ -0,0 +1,119 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package me.stojan.camstream.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A fixed pool of equally sized direct {@link ByteBuffer}s. All buffers are allocated up front, acquiring and
+ * releasing never allocates and never blocks. Safe to use from multiple threads.
+ */
+public final class BufferPool {
+
+    private final int capacity;
+    private final int count;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    /**
+     * Create a new pool.
+     * @param count the number of buffers, must be positive
+     * @param capacity the capacity of each buffer in bytes, must be positive
+     */
+    public BufferPool(int count, int capacity) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Argument count must be positive");
+        }
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Argument capacity must be positive");
+        }
+
+        this.capacity = capacity;
+        this.count = count;
+
+        free = new ArrayBlockingQueue<>(count);
+
+        for (int i = 0; i < count; i++) {
+            free.offer(ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder()));
+        }
+    }
+
+    /**
+     * Acquire a buffer from the pool. The buffer is cleared.
+     * @return the buffer, or null if all buffers are in use
+     */
+    public ByteBuffer acquire() {
+        final ByteBuffer buffer = free.poll();
+
+        if (null != buffer) {
+            buffer.clear();
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Return a buffer into the pool.
+     * @param buffer the buffer, must not be null and must have been acquired from this pool
+     *
+     * @throws IllegalArgumentException if the buffer is not from this pool
+     * @throws IllegalStateException if the pool is already full, usually because a buffer was released twice
+     */
+    public void release(ByteBuffer buffer) {
+        if (null == buffer) {
+            throw new IllegalArgumentException("Argument buffer must not be null");
+        }
+
+        if (capacity != buffer.capacity() || !buffer.isDirect()) {
+            throw new IllegalArgumentException("Argument buffer is not from this pool");
+        }
+
+        if (!free.offer(buffer)) {
+            throw new IllegalStateException("Buffer pool is full, was a buffer released twice?");
+        }
+    }
+
+    /**
+     * Returns the capacity of each buffer.
+     * @return the capacity in bytes
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of buffers in the pool.
+     * @return the number of buffers
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Returns the number of buffers that are not in use.
+     * @return the number of buffers
+     */
+    public int available() {
+        return free.size();
+    }
+}
@@ -32,25 +32,75 @@ public final class EGLUtils {
     }
 
     /**
-     * Check if an EGL error has occured. If it has, it throws an {@link EGLErrorException}.
+     * Check if an EGL error has occured. If it has, it throws an {@link EGLErrorException}. Whether the check is done
+     * and whether the error is thrown depends on the {@link ErrorChecks} mode.
+     * @param message the message, may be null
+     *
+     * @throws EGLErrorException if there is an EGL error
+     */
+    public static void eglError(String message) throws EGLErrorException {
+        if (ErrorChecks.enabled(false)) {
+            check(message, null);
+        }
+    }
+
+    /**
+     * Check if an EGL error has occured. If it has, it throws an {@link EGLErrorException}. Whether the check is done
+     * and whether the error is thrown depends on the {@link ErrorChecks} mode.
      * @param format the format/message, may be null (but values will be ignored then)
      * @param values the values
      *
      * @throws EGLErrorException if there is an EGL error
      */
     public static void eglError(String format, Object... values) throws EGLErrorException {
+        if (ErrorChecks.enabled(false)) {
+            check(format, values);
+        }
+    }
+
+    /**
+     * Check for the EGL error of a call that returned false. Since EGL calls report failure in their return value,
+     * this is the cheap way to check a call on the hot path: the error is only queried when the call has failed.
+     * @param message the message, may be null
+     *
+     * @throws EGLErrorException if there is an EGL error
+     */
+    public static void eglFailed(String message) throws EGLErrorException {
+        if (ErrorChecks.enabled(true)) {
+            check(message, null);
+        }
+    }
+
+    /**
+     * Check if an EGL error has occured after a setup call, such as creating a context or surface. Unlike
+     * {@link #eglError(String, Object...)}, the check is always done and the error is always thrown, whatever the
+     * {@link ErrorChecks} mode, since nothing can be rendered after a failed setup.
+     * @param format the format/message, may be null (but values will be ignored then)
+     * @param values the values
+     *
+     * @throws EGLErrorException if there is an EGL error
+     */
+    public static void eglSetupError(String format, Object... values) throws EGLErrorException {
         final int error = EGL14.eglGetError();
 
         if (EGL14.EGL_SUCCESS != error) {
-            final String message;
+            throw new EGLErrorException(error, message(format, values));
+        }
+    }
 
-            if (null == format || null == values || 0 == values.length) {
-                message = format;
-            } else {
-                message = String.format(null, format, values);
-            }
+    private static void check(String format, Object[] values) {
+        final int error = EGL14.eglGetError();
 
-            throw new EGLErrorException(error, message);
+        if (EGL14.EGL_SUCCESS != error) {
+            ErrorChecks.fail(new EGLErrorException(error, message(format, values)));
         }
     }
+
+    private static String message(String format, Object[] values) {
+        if (null == format || null == values || 0 == values.length) {
+            return format;
+        }
+
+        return String.format(null, format, values);
+    }
 }
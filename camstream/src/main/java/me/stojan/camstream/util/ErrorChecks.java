@@ -0,0 +1,159 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+package me.stojan.camstream.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The process-wide policy for {@link GLESUtils} and {@link EGLUtils} error checks. Checking for an OpenGL ES error
+ * forces a round trip to the driver, which on many devices stalls the GPU pipeline, so release builds may want to
+ * check less often or not at all.
+ * <p>
+ * Checks are either per-call checks, done after individual calls, or frame checks, done once at the end of a frame.
+ * Since OpenGL ES errors are sticky until queried, a frame check still catches an error, but not the exact call that
+ * caused it.
+ *
+ * @see Mode
+ */
+public final class ErrorChecks {
+
+    /**
+     * How errors are checked.
+     */
+    public enum Mode {
+        /**
+         * Every check is done and errors are thrown. This is the default.
+         */
+        STRICT,
+
+        /**
+         * Every check is done on every {@link #sampleInterval()}-th frame, while on other frames only frame checks
+         * are done. Errors are thrown.
+         */
+        SAMPLED,
+
+        /**
+         * Every check is done, but errors are not thrown. The first error, with the stack trace of the failing call
+         * site, is kept in {@link #firstError()}.
+         */
+        RECORD,
+
+        /**
+         * No checks are done.
+         */
+        OFF
+    }
+
+    private static volatile Mode mode = Mode.STRICT;
+    private static volatile int sampleInterval = 30;
+    private static volatile int frame;
+
+    private static final AtomicReference<RuntimeException> firstError = new AtomicReference<>();
+
+    private ErrorChecks() {
+        // No-op.
+    }
+
+    /**
+     * Set the mode.
+     * @param mode the mode, must not be null
+     */
+    public static void mode(Mode mode) {
+        if (null == mode) {
+            throw new IllegalArgumentException("Argument mode must not be null");
+        }
+
+        ErrorChecks.mode = mode;
+    }
+
+    /**
+     * Returns the mode.
+     * @return the mode, will not be null
+     */
+    public static Mode mode() {
+        return mode;
+    }
+
+    /**
+     * Set how often all checks are done in {@link Mode#SAMPLED} mode.
+     * @param frames the number of frames, must be positive
+     */
+    public static void sampleInterval(int frames) {
+        if (frames < 1) {
+            throw new IllegalArgumentException("Argument frames must be positive");
+        }
+
+        sampleInterval = frames;
+    }
+
+    /**
+     * Returns how often all checks are done in {@link Mode#SAMPLED} mode.
+     * @return the number of frames
+     */
+    public static int sampleInterval() {
+        return sampleInterval;
+    }
+
+    /**
+     * Mark the start of a new frame. Called by the renderer each time it latches a camera frame.
+     */
+    public static void frame() {
+        // Racing increments from multiple render threads only skew the sampling, which is fine.
+        frame += 1;
+    }
+
+    /**
+     * Returns the first error seen in {@link Mode#RECORD} mode.
+     * @return a {@link GLESErrorException} or {@link EGLErrorException}, or null if there was no error
+     */
+    public static RuntimeException firstError() {
+        return firstError.get();
+    }
+
+    /**
+     * Forget the first error, so that the next one is recorded.
+     */
+    public static void clearFirstError() {
+        firstError.set(null);
+    }
+
+    static boolean enabled(boolean frameCheck) {
+        switch (mode) {
+            case STRICT:
+            case RECORD:
+                return true;
+
+            case SAMPLED:
+                return frameCheck || 0 == (frame & Integer.MAX_VALUE) % sampleInterval;
+
+            default:
+                return false;
+        }
+    }
+
+    static void fail(RuntimeException error) {
+        if (Mode.RECORD == mode) {
+            firstError.compareAndSet(null, error);
+        } else {
+            throw error;
+        }
+    }
+}
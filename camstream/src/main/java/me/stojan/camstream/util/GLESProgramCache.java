@@ -0,0 +1,402 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream.util;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The process-wide cache of linked program binaries. Linked programs can't outlive their EGL context, but contexts are
+ * recreated with their surfaces, so this cache holds program binaries instead. A program created for the same
+ * sources on the same driver is loaded with {@code glProgramBinary} instead of compiling and linking its shaders.
+ * <p>
+ * Binaries are keyed by a hash of the shader sources, the attribute bindings, {@code GL_RENDERER} and
+ * {@code GL_VERSION}, so a driver update never loads a stale binary. If a {@link #directory(File)} is set, binaries
+ * are also persisted there and survive the process. A binary rejected by the driver is dropped and the program is
+ * compiled again. Programs compiled by the cache are linked with {@code GL_PROGRAM_BINARY_RETRIEVABLE_HINT}, so that
+ * drivers keep their binaries retrievable.
+ * <p>
+ * Program binaries require an OpenGL ES 3 context, such as one created with
+ * {@link me.stojan.camstream.CameraSurface#create(android.view.Surface, android.opengl.EGLContext, int)} and client
+ * version 3. In OpenGL ES 2 contexts the cache always compiles the program: {@code GL_OES_get_program_binary} offers
+ * the same functions there, but Android has no Java bindings for them. All methods are thread-safe,
+ * {@link #createProgram(String, String, String...)} must be called with a current context.
+ */
+public final class GLESProgramCache {
+
+    private static final int FILE_MAGIC = 0x43534250; // "CSBP"
+    private static final String FILE_SUFFIX = ".bin";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final class Binary {
+        final int format;
+        final byte[] data;
+
+        Binary(int format, byte[] data) {
+            this.format = format;
+            this.data = data;
+        }
+    }
+
+    private static final Object lock = new Object();
+
+    private static final Map<String, Binary> binaries = new HashMap<>();
+    private static File directory;
+
+    private static int hits;
+    private static int misses;
+    private static int rejected;
+
+    private GLESProgramCache() {
+        // No-op.
+    }
+
+    /**
+     * Set the directory where binaries are persisted, usually a subdirectory of the application's cache directory. It
+     * is created if needed.
+     * @param directory the directory, or null to keep binaries in memory only
+     */
+    public static void directory(File directory) {
+        synchronized (lock) {
+            GLESProgramCache.directory = directory;
+        }
+    }
+
+    /**
+     * Returns the directory where binaries are persisted.
+     * @return the directory, or null
+     */
+    public static File directory() {
+        synchronized (lock) {
+            return directory;
+        }
+    }
+
+    /**
+     * Create a program in the current EGL context from a cached binary, or compile and link it with
+     * {@link GLESUtils#createProgram(String, String, String...)} and cache its binary.
+     * @param vertexSource the vertex shader source, must not be null
+     * @param fragmentSource the fragment shader source, must not be null
+     * @param attributes the attribute names to bind, in location order
+     * @return the program name
+     *
+     * @throws RuntimeException if a shader does not compile or the program does not link
+     */
+    public static int createProgram(String vertexSource, String fragmentSource, String... attributes) {
+        if (null == vertexSource || null == fragmentSource) {
+            throw new IllegalArgumentException("Arguments vertexSource and fragmentSource must not be null");
+        }
+
+        if (GLESUtils.glMajorVersion() < 3) {
+            return GLESUtils.createProgram(vertexSource, fragmentSource, attributes);
+        }
+
+        final int[] formats = binaryFormats();
+
+        if (0 == formats.length) {
+            return GLESUtils.createProgram(vertexSource, fragmentSource, attributes);
+        }
+
+        final String key = key(vertexSource, fragmentSource, attributes);
+        final Binary binary = load(key);
+
+        if (null != binary) {
+            final int program = programFromBinary(binary, formats);
+
+            if (0 != program) {
+                synchronized (lock) {
+                    hits += 1;
+                }
+
+                return program;
+            }
+
+            synchronized (lock) {
+                rejected += 1;
+                binaries.remove(key);
+                delete(key);
+            }
+        }
+
+        final int program = GLESUtils.createRetrievableProgram(vertexSource, fragmentSource, attributes);
+
+        synchronized (lock) {
+            misses += 1;
+        }
+
+        store(key, binaryFromProgram(program));
+
+        return program;
+    }
+
+    /**
+     * Forget the binaries held in memory. Persisted binaries are kept.
+     */
+    public static void clear() {
+        synchronized (lock) {
+            binaries.clear();
+        }
+    }
+
+    /**
+     * Returns the number of programs loaded from a binary.
+     * @return the number of hits
+     */
+    public static int hits() {
+        synchronized (lock) {
+            return hits;
+        }
+    }
+
+    /**
+     * Returns the number of programs compiled because no binary was cached or the cached one was rejected.
+     * @return the number of misses
+     */
+    public static int misses() {
+        synchronized (lock) {
+            return misses;
+        }
+    }
+
+    /**
+     * Returns the number of cached binaries the driver rejected.
+     * @return the number of rejected binaries
+     */
+    public static int rejected() {
+        synchronized (lock) {
+            return rejected;
+        }
+    }
+
+    private static int[] binaryFormats() {
+        final int[] count = new int[1];
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, count, 0);
+
+        final int[] formats = new int[Math.max(0, count[0])];
+
+        if (formats.length > 0) {
+            GLES20.glGetIntegerv(GLES30.GL_PROGRAM_BINARY_FORMATS, formats, 0);
+        }
+
+        return formats;
+    }
+
+    private static int programFromBinary(Binary binary, int[] formats) {
+        boolean supported = false;
+
+        for (int format : formats) {
+            supported |= format == binary.format;
+        }
+
+        // Only a format the driver lists is loaded, so a rejected binary fails to link instead of raising an error.
+        if (!supported) {
+            return 0;
+        }
+
+        final int program = GLES20.glCreateProgram();
+
+        if (0 == program) {
+            return 0;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(binary.data.length).order(ByteOrder.nativeOrder());
+        buffer.put(binary.data).position(0);
+
+        GLES30.glProgramBinary(program, binary.format, buffer, binary.data.length);
+
+        final int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+
+        if (GLES20.GL_TRUE != linkStatus[0]) {
+            GLES20.glDeleteProgram(program);
+            return 0;
+        }
+
+        return program;
+    }
+
+    private static Binary binaryFromProgram(int program) {
+        final int[] length = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+
+        if (length[0] <= 0) {
+            return null;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        final int[] format = new int[1];
+
+        final int capacity = length[0];
+        GLES30.glGetProgramBinary(program, capacity, length, 0, format, 0, buffer);
+
+        // The length written is 0 if the driver could not retrieve the binary.
+        if (length[0] <= 0 || length[0] > capacity) {
+            return null;
+        }
+
+        final byte[] data = new byte[length[0]];
+        buffer.position(0);
+        buffer.get(data);
+
+        return new Binary(format[0], data);
+    }
+
+    private static String key(String vertexSource, String fragmentSource, String[] attributes) {
+        final MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        update(digest, GLES20.glGetString(GLES20.GL_RENDERER));
+        update(digest, GLES20.glGetString(GLES20.GL_VERSION));
+        update(digest, vertexSource);
+        update(digest, fragmentSource);
+
+        if (null != attributes) {
+            for (String attribute : attributes) {
+                update(digest, attribute);
+            }
+        }
+
+        final byte[] hash = digest.digest();
+        final StringBuilder builder = new StringBuilder(2 * hash.length);
+
+        for (byte b : hash) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return builder.toString();
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        if (null != value) {
+            digest.update(value.getBytes(UTF_8));
+        }
+
+        // Separate the values, so that moving text from one to the next changes the hash.
+        digest.update((byte) 0);
+    }
+
+    private static Binary load(String key) {
+        final File file;
+
+        synchronized (lock) {
+            final Binary binary = binaries.get(key);
+
+            if (null != binary || null == directory) {
+                return binary;
+            }
+
+            file = new File(directory, key + FILE_SUFFIX);
+        }
+
+        if (!file.isFile()) {
+            return null;
+        }
+
+        Binary binary = null;
+
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            if (FILE_MAGIC == input.readInt()) {
+                final int format = input.readInt();
+                final int length = input.readInt();
+
+                if (length > 0 && length <= file.length()) {
+                    final byte[] data = new byte[length];
+                    input.readFully(data);
+
+                    binary = new Binary(format, data);
+                }
+            }
+        } catch (IOException e) {
+            binary = null;
+        }
+
+        synchronized (lock) {
+            if (null == binary) {
+                delete(key);
+            } else {
+                binaries.put(key, binary);
+            }
+        }
+
+        return binary;
+    }
+
+    private static void store(String key, Binary binary) {
+        if (null == binary) {
+            return;
+        }
+
+        final File directory;
+
+        synchronized (lock) {
+            binaries.put(key, binary);
+            directory = GLESProgramCache.directory;
+        }
+
+        if (null == directory || (!directory.isDirectory() && !directory.mkdirs())) {
+            return;
+        }
+
+        // Write to a temporary file and rename it, so that a crash never leaves a truncated binary behind.
+        final File temporary = new File(directory, key + ".tmp");
+
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(temporary))) {
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(binary.format);
+            output.writeInt(binary.data.length);
+            output.write(binary.data);
+        } catch (IOException e) {
+            temporary.delete();
+            return;
+        }
+
+        if (!temporary.renameTo(new File(directory, key + FILE_SUFFIX))) {
+            temporary.delete();
+        }
+    }
+
+    private static void delete(String key) {
+        if (null != directory) {
+            new File(directory, key + FILE_SUFFIX).delete();
+        }
+    }
+}
@@ -21,6 +21,9 @@
 package me.stojan.camstream.util;
 
 import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.util.Locale;
 
 /**
  * Contains OpenGL ES utilities.
@@ -32,13 +35,184 @@ public final class GLESUtils {
     }
 
     /**
-     * Check if there is an OpenGL ES error and throw {@link GLESErrorException}.
+     * Check if there is an OpenGL ES error and throw {@link GLESErrorException}. Whether the check is done and whether
+     * the error is thrown depends on the {@link ErrorChecks} mode.
+     * @param message the message, may be null
+     *
+     * @throws GLESErrorException if there is an OpenGL ES error
+     */
+    public static void glError(String message) throws GLESErrorException {
+        if (ErrorChecks.enabled(false)) {
+            check(message, null);
+        }
+    }
+
+    /**
+     * Check if there is an OpenGL ES error and throw {@link GLESErrorException}. Whether the check is done and whether
+     * the error is thrown depends on the {@link ErrorChecks} mode.
      * @param format the format/message, if null values will be ignored
      * @param values the format values
      *
      * @throws GLESErrorException if there is an OpenGL ES error
      */
     public static void glError(String format, Object... values) throws GLESErrorException {
+        if (ErrorChecks.enabled(false)) {
+            check(format, values);
+        }
+    }
+
+    /**
+     * Check if there is an OpenGL ES error at the end of a frame and throw {@link GLESErrorException}. Unlike
+     * {@link #glError(String)}, this check is also done on every frame in {@link ErrorChecks.Mode#SAMPLED} mode.
+     * @param message the message, may be null
+     *
+     * @throws GLESErrorException if there is an OpenGL ES error
+     */
+    public static void glFrameError(String message) throws GLESErrorException {
+        if (ErrorChecks.enabled(true)) {
+            check(message, null);
+        }
+    }
+
+    /**
+     * Returns the major OpenGL ES version of the current context, for example 3 for an OpenGL ES 3.1 context.
+     * @return the major version, 2 if it can't be determined
+     */
+    public static int glMajorVersion() {
+        // The version string is "OpenGL ES <major>.<minor> <vendor-specific information>".
+        final String version = GLES20.glGetString(GLES20.GL_VERSION);
+        final String prefix = "OpenGL ES ";
+
+        if (null != version && version.startsWith(prefix) && version.length() > prefix.length()) {
+            final int major = Character.digit(version.charAt(prefix.length()), 10);
+
+            if (major > 2) {
+                return major;
+            }
+        }
+
+        return 2;
+    }
+
+    /**
+     * Compile a shader in the current EGL context.
+     * @param shaderType the shader type, {@link GLES20#GL_VERTEX_SHADER} or {@link GLES20#GL_FRAGMENT_SHADER}
+     * @param source the GLSL source, must not be null
+     * @return the shader name
+     *
+     * @throws RuntimeException if the shader does not compile
+     */
+    public static int loadShader(int shaderType, String source) {
+        if (null == source) {
+            throw new IllegalArgumentException("Argument source must not be null");
+        }
+
+        final int shader = GLES20.glCreateShader(shaderType);
+        glError("glCreateShader(%d)", shaderType);
+
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+
+        final int[] compiled = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+
+        if (0 == compiled[0]) {
+            final String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            throw new RuntimeException(String.format((Locale) null, "Could not compile shader type %d: %s", shaderType, log));
+        }
+
+        return shader;
+    }
+
+    /**
+     * Compile and link a program in the current EGL context. The attributes are bound to the locations given by their
+     * index in the array before linking, so programs created with the same attributes can share vertex attribute
+     * state. The shaders are deleted once the program is linked.
+     * @param vertexSource the vertex shader source, must not be null
+     * @param fragmentSource the fragment shader source, must not be null
+     * @param attributes the attribute names to bind, in location order
+     * @return the program name
+     *
+     * @throws RuntimeException if a shader does not compile or the program does not link
+     */
+    public static int createProgram(String vertexSource, String fragmentSource, String... attributes) {
+        return createProgram(vertexSource, fragmentSource, false, attributes);
+    }
+
+    /**
+     * Compile and link a program like {@link #createProgram(String, String, String...)}, hinting before linking that
+     * its binary will be retrieved. Requires an OpenGL ES 3 context.
+     */
+    static int createRetrievableProgram(String vertexSource, String fragmentSource, String... attributes) {
+        return createProgram(vertexSource, fragmentSource, true, attributes);
+    }
+
+    private static int createProgram(String vertexSource, String fragmentSource, boolean retrievable, String... attributes) {
+        final int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        final int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+
+        final int program = GLES20.glCreateProgram();
+
+        if (0 == program) {
+            GLES20.glDeleteShader(vertexShader);
+            GLES20.glDeleteShader(fragmentShader);
+            throw new RuntimeException("Unable to create GLES20 program");
+        }
+
+        GLES20.glAttachShader(program, vertexShader);
+        glError("glAttachShader(program, vertexShader)");
+
+        GLES20.glAttachShader(program, fragmentShader);
+        glError("glAttachShader(program, fragmentShader)");
+
+        if (null != attributes) {
+            for (int i = 0; i < attributes.length; i++) {
+                GLES20.glBindAttribLocation(program, i, attributes[i]);
+            }
+        }
+
+        if (retrievable) {
+            GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+        }
+
+        GLES20.glLinkProgram(program);
+
+        // The shaders are flagged for deletion and go away with the program.
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+
+        final int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+
+        if (GLES20.GL_TRUE != linkStatus[0]) {
+            final String log = GLES20.glGetProgramInfoLog(program);
+            GLES20.glDeleteProgram(program);
+            throw new RuntimeException(String.format((Locale) null, "Unable to link GLES20 program: %s", log));
+        }
+
+        return program;
+    }
+
+    /**
+     * Returns the location of a uniform in a program.
+     * @param program the program
+     * @param name the uniform name
+     * @return the location
+     *
+     * @throws RuntimeException if the program has no such active uniform
+     */
+    public static int glUniformLocation(int program, String name) {
+        final int location = GLES20.glGetUniformLocation(program, name);
+
+        if (location < 0) {
+            throw new RuntimeException(String.format((Locale) null, "Unable to find uniform location '%s' in program %d", name, program));
+        }
+
+        return location;
+    }
+
+    private static void check(String format, Object[] values) {
         final int error = GLES20.glGetError();
 
         if (GLES20.GL_NO_ERROR != error) {
@@ -50,7 +224,7 @@ public final class GLESUtils {
                 message = String.format(null, format, values);
             }
 
-            throw new GLESErrorException(error, message);
+            ErrorChecks.fail(new GLESErrorException(error, message));
         }
     }
 }
@@ -0,0 +1,221 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values, usually durations in nanoseconds. Values are counted in fixed buckets:
+ * each power of two is split into {@value #SUB_BUCKETS} buckets, so a value is known to within 25% at worst.
+ * <p>
+ * Recording never allocates or locks and can be done from any number of threads. Snapshots are taken without stopping
+ * the recorders, so a snapshot taken while values are being recorded may miss some of them.
+ */
+public final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+
+    /** The number of buckets each power of two is split into. */
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** The number of buckets. */
+    public static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * A copy of the histogram's counts. Snapshots can be reused, so that periodically reading a histogram does not
+     * allocate.
+     */
+    public static final class Snapshot {
+        private final long[] counts = new long[BUCKETS];
+        private long count;
+        private long sum;
+        private long max;
+
+        /**
+         * Returns the number of recorded values.
+         * @return the count
+         */
+        public long count() {
+            return count;
+        }
+
+        /**
+         * Returns the mean of the recorded values.
+         * @return the mean, 0 if there are none
+         */
+        public double mean() {
+            return 0 == count ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Returns the largest recorded value.
+         * @return the maximum, 0 if there are none
+         */
+        public long max() {
+            return max;
+        }
+
+        /**
+         * Returns the number of values recorded in a bucket.
+         * @param bucket the bucket, between 0 and {@link #BUCKETS}
+         * @return the count
+         */
+        public long count(int bucket) {
+            return counts[bucket];
+        }
+
+        /**
+         * Returns an upper bound for the value below which a fraction of the recorded values fall, for example 0.99 for
+         * the 99th percentile.
+         * @param fraction the fraction, between 0 and 1
+         * @return the value, 0 if there are none
+         */
+        public long percentile(double fraction) {
+            if (fraction < 0 || fraction > 1) {
+                throw new IllegalArgumentException("Argument fraction must be between 0 and 1");
+            }
+
+            long total = 0;
+
+            for (long bucketCount : counts) {
+                total += bucketCount;
+            }
+
+            if (0 == total) {
+                return 0;
+            }
+
+            final long rank = Math.max(1, (long) Math.ceil(fraction * total));
+            long seen = 0;
+
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+
+            return max;
+        }
+    }
+
+    /**
+     * Record a value.
+     * @param value the value, negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current = max.get();
+
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Returns the number of recorded values.
+     * @return the count
+     */
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * Copy the histogram into a snapshot.
+     * @param snapshot the snapshot to reuse, or null to create a new one
+     * @return the snapshot, will not be null
+     */
+    public Snapshot snapshot(Snapshot snapshot) {
+        if (null == snapshot) {
+            snapshot = new Snapshot();
+        }
+
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot.counts[i] = counts.get(i);
+        }
+
+        snapshot.count = count.get();
+        snapshot.sum = sum.get();
+        snapshot.max = max.get();
+
+        return snapshot;
+    }
+
+    /**
+     * Forget all recorded values. Values recorded concurrently may be partially kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Returns the bucket of a value.
+     * @param value the value, not negative
+     * @return the bucket
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return magnitude * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the largest value counted in a bucket.
+     * @param bucket the bucket
+     * @return the value
+     */
+    public static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        final int magnitude = bucket / SUB_BUCKETS;
+        final long lower = (1L << magnitude) | ((long) (bucket % SUB_BUCKETS) << (magnitude - SUB_BUCKET_BITS));
+
+        return lower + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,266 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import me.stojan.camstream.util.CameraClock;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a {@link CameraEncoder} with a fake codec.
+ */
+public class CameraEncoderTest {
+
+    // A codec that outputs what the test queues, and ends the stream when its input is signalled to end.
+    private static final class FakeCodec implements EncoderCodec {
+        private final LinkedBlockingQueue<long[]> outputs = new LinkedBlockingQueue<>();
+        private final ByteBuffer buffer = ByteBuffer.allocate(64);
+        private final AtomicInteger syncFrameRequests = new AtomicInteger();
+        private volatile boolean released;
+
+        void output(long presentationTimeUs, int flags) {
+            outputs.add(new long[] { presentationTimeUs, flags });
+        }
+
+        @Override
+        public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+            final long[] output;
+
+            try {
+                output = outputs.poll(timeoutUs, TimeUnit.MICROSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+
+            if (null == output) {
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+
+            info.offset = 0;
+            info.size = 0 != (output[1] & MediaCodec.BUFFER_FLAG_END_OF_STREAM) ? 0 : 16;
+            info.presentationTimeUs = output[0];
+            info.flags = (int) output[1];
+
+            return 0;
+        }
+
+        @Override
+        public MediaFormat outputFormat() {
+            return null;
+        }
+
+        @Override
+        public ByteBuffer outputBuffer(int index) {
+            return buffer;
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+            // No-op.
+        }
+
+        @Override
+        public void requestSyncFrame() {
+            syncFrameRequests.incrementAndGet();
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+            output(0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    // Counts the callbacks, so that tests can wait for the drain thread.
+    private static final class Recorder implements CameraEncoder.Callback {
+        private final LinkedBlockingQueue<Long> frames = new LinkedBlockingQueue<>();
+        private volatile boolean ended;
+
+        @Override
+        public void onOutputFormatChanged(CameraEncoder encoder, MediaFormat format) {
+            // No-op.
+        }
+
+        @Override
+        public void onEncodedFrame(CameraEncoder encoder, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            frames.add(info.presentationTimeUs);
+        }
+
+        @Override
+        public void onEndOfStream(CameraEncoder encoder) {
+            ended = true;
+        }
+
+        long await() throws InterruptedException {
+            final Long frame = frames.poll(5, TimeUnit.SECONDS);
+            assertTrue("no encoded frame", null != frame);
+            return frame;
+        }
+    }
+
+    private static final class FakeClock implements CameraClock {
+        private volatile long nanoTime;
+
+        @Override
+        public long nanoTime() {
+            return nanoTime;
+        }
+    }
+
+    private final FakeCodec codec = new FakeCodec();
+    private final Recorder recorder = new Recorder();
+    private final FakeClock clock = new FakeClock();
+    private final CameraEncoder encoder = new CameraEncoder(codec, null, recorder, 4, clock);
+
+    @After
+    public void release() {
+        encoder.release();
+    }
+
+    private static long timestamp(int frame) {
+        return frame * 33333000L;
+    }
+
+    @Test
+    public void dropsFramesWhileTheCodecIsBusy() throws InterruptedException {
+        for (int frame = 0; frame < 4; frame++) {
+            assertTrue(encoder.admit(timestamp(frame)));
+        }
+
+        assertFalse(encoder.admit(timestamp(4)));
+        assertEquals(1, encoder.droppedFrames());
+
+        codec.output(timestamp(0) / 1000, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        recorder.await();
+
+        assertEquals(3, encoder.pendingFrames());
+        assertTrue(encoder.admit(timestamp(5)));
+    }
+
+    @Test
+    public void framesDroppedByTheCodecDoNotStayPending() throws InterruptedException {
+        int frame = 0;
+
+        // The codec only outputs every third frame, far more than the pending limit drops over time.
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue("round " + round, encoder.admit(timestamp(frame + i)));
+            }
+
+            codec.output(timestamp(frame + 2) / 1000, 0);
+            recorder.await();
+
+            assertEquals(0, encoder.pendingFrames());
+            frame += 3;
+        }
+
+        assertEquals(0, encoder.droppedFrames());
+        assertEquals(20, encoder.encodedFrames());
+    }
+
+    @Test
+    public void codecConfigDoesNotRetireFrames() throws InterruptedException {
+        assertTrue(encoder.admit(timestamp(1)));
+
+        codec.output(timestamp(1) / 1000, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        recorder.await();
+
+        assertEquals(1, encoder.pendingFrames());
+        assertEquals(0, encoder.encodedFrames());
+    }
+
+    @Test
+    public void framesWithoutOutputExpire() {
+        for (int frame = 0; frame < 4; frame++) {
+            assertTrue(encoder.admit(timestamp(frame)));
+        }
+
+        clock.nanoTime += CameraEncoder.PENDING_TIMEOUT_MS * 1000000L;
+        assertFalse(encoder.admit(timestamp(4)));
+
+        clock.nanoTime += 1;
+        assertTrue(encoder.admit(timestamp(5)));
+        assertEquals(1, encoder.pendingFrames());
+    }
+
+    @Test
+    public void pausingRejectsFramesAndResumingRequestsASyncFrame() {
+        encoder.paused(true);
+
+        assertFalse(encoder.admit(timestamp(0)));
+        assertEquals(1, encoder.pausedFrames());
+        assertEquals(0, encoder.droppedFrames());
+
+        encoder.paused(false);
+        encoder.paused(false);
+
+        assertEquals(1, codec.syncFrameRequests.get());
+        assertTrue(encoder.admit(timestamp(1)));
+    }
+
+    @Test
+    public void motionPausingPausesWhenAttached() {
+        final CameraMotionDetector.Listener listener = CameraMotionDetector.pausing(encoder);
+
+        assertFalse(encoder.paused());
+
+        CameraMotionDetector.create(listener).attached();
+
+        assertTrue(encoder.paused());
+        assertFalse(encoder.admit(timestamp(0)));
+
+        listener.onMotionStarted(null, timestamp(1));
+
+        assertFalse(encoder.paused());
+        assertEquals(1, codec.syncFrameRequests.get());
+        assertTrue(encoder.admit(timestamp(1)));
+
+        listener.onMotionStopped(null, timestamp(2));
+
+        assertTrue(encoder.paused());
+    }
+
+    @Test
+    public void releaseDrainsToTheEndOfStream() {
+        encoder.release();
+
+        assertTrue(recorder.ended);
+        assertTrue(codec.released);
+        assertFalse(encoder.admit(timestamp(0)));
+    }
+}
@@ -0,0 +1,178 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+package me.stojan.camstream;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the analysis of a {@link CameraMotionDetector} synthetic grids, as they are read back.
+ */
+public class CameraMotionDetectorTest {
+
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 2;
+
+    private static final long SECOND = 1000000000L;
+
+    // Records the motion callbacks as "start" or "stop" and the timestamp.
+    private static final class Recorder implements CameraMotionDetector.Listener {
+        private final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onMotionStarted(CameraMotionDetector detector, long timestamp) {
+            events.add("start " + timestamp);
+        }
+
+        @Override
+        public void onMotionStopped(CameraMotionDetector detector, long timestamp) {
+            events.add("stop " + timestamp);
+        }
+    }
+
+    private final Recorder recorder = new Recorder();
+    private final CameraMotionDetector detector = CameraMotionDetector.create(WIDTH, HEIGHT, recorder)
+            .thresholds(0.04f, 0.25f, 0.125f)
+            .hysteresis(3, SECOND);
+
+    // Reads back a grid in which the given number of tiles move, from the top left.
+    private void frame(long timestamp, int moving) {
+        final ByteBuffer pixels = ByteBuffer.allocate(4 * WIDTH * HEIGHT);
+
+        for (int tile = 0; tile < moving; tile++) {
+            final int y = tile / WIDTH;
+            final int x = tile % WIDTH;
+
+            pixels.put(4 * ((HEIGHT - 1 - y) * WIDTH + x), (byte) 255);
+        }
+
+        detector.analyze(pixels, timestamp);
+    }
+
+    private void assertEvents(String... events) {
+        assertEquals(Arrays.asList(events), recorder.events);
+    }
+
+    @Test
+    public void theFirstFrameIsIgnored() {
+        detector.hysteresis(1, SECOND);
+
+        frame(0, WIDTH * HEIGHT);
+
+        assertEquals(0, detector.movingFraction(), 0);
+        assertFalse(detector.motion());
+        assertEvents();
+
+        frame(1, WIDTH * HEIGHT);
+
+        assertEquals(1, detector.movingFraction(), 0);
+        assertTrue(detector.motion());
+        assertEvents("start 1");
+    }
+
+    @Test
+    public void motionStartsAfterConsecutiveFramesAtTheStartFraction() {
+        frame(0, 0);
+
+        frame(1, 2);
+        frame(2, 2);
+        // One frame below the start fraction starts the count over.
+        frame(3, 1);
+        frame(4, 2);
+        frame(5, 8);
+
+        assertFalse(detector.motion());
+        assertEvents();
+
+        frame(6, 2);
+
+        assertTrue(detector.motion());
+        assertEvents("start 6");
+    }
+
+    @Test
+    public void motionStopsAfterTheStopDelayBelowTheStopFraction() {
+        frame(0, 0);
+        frame(1, 8);
+        frame(2, 8);
+        frame(3, 8);
+        assertEvents("start 3");
+
+        // Between the stop and start fractions motion goes on.
+        frame(SECOND, 1);
+        frame(10 * SECOND, 1);
+        assertTrue(detector.motion());
+
+        frame(11 * SECOND, 0);
+        frame(11 * SECOND + SECOND / 2, 0);
+        // Anything at or above the stop fraction restarts the delay.
+        frame(11 * SECOND + SECOND - 1, 1);
+        frame(12 * SECOND, 0);
+        frame(13 * SECOND - 1, 0);
+        assertTrue(detector.motion());
+
+        frame(13 * SECOND, 0);
+
+        assertFalse(detector.motion());
+        assertEvents("start 3", "stop " + 13 * SECOND);
+
+        // And it needs the start frames to start again.
+        frame(14 * SECOND, 8);
+        frame(14 * SECOND + 1, 8);
+        assertFalse(detector.motion());
+    }
+
+    @Test
+    public void rowsAreReadBackBottomUp() {
+        final ByteBuffer pixels = ByteBuffer.allocate(4 + 4 * WIDTH * HEIGHT);
+        pixels.position(4);
+
+        // The top left tile is the first pixel of the last row, with the mean in red and the peak in green.
+        pixels.put(4 + 4 * (HEIGHT - 1) * WIDTH, (byte) 255);
+        pixels.put(4 + 4 * (HEIGHT - 1) * WIDTH + 1, (byte) 255);
+        // The bottom right tile is the last pixel of the first row.
+        pixels.put(4 + 4 * (WIDTH - 1) + 1, (byte) 51);
+
+        detector.analyze(pixels, 0);
+
+        final float[] means = new float[WIDTH * HEIGHT];
+        final float[] peaks = new float[WIDTH * HEIGHT];
+        detector.means(means, 0);
+        detector.peaks(peaks, 0);
+
+        assertEquals(1, means[0], 0);
+        assertEquals(1, peaks[0], 0);
+        assertEquals(0, means[WIDTH * HEIGHT - 1], 0);
+        assertEquals(0.2f, peaks[WIDTH * HEIGHT - 1], 1e-6f);
+
+        for (int tile = 1; tile < WIDTH * HEIGHT - 1; tile++) {
+            assertEquals(0, means[tile], 0);
+            assertEquals(0, peaks[tile], 0);
+        }
+    }
+}
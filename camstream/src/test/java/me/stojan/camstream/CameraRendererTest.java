@@ -0,0 +1,157 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import me.stojan.camstream.util.CameraFunction1;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the public matrix and clear color setters of {@link CameraRenderer} hand off without allocating.
+ */
+public class CameraRendererTest {
+
+    private static final int ITERATIONS = 100000;
+
+    // Measuring itself may allocate a little, but far less than a byte per iteration.
+    private static final long TOLERANCE_BYTES = 4096;
+
+    private final CameraRenderer renderer = new CameraRenderer(null, false);
+    private final float[] matrix = new float[20];
+    private final float[] seen = new float[16];
+
+    private final CameraFunction1<float[], float[]> translate = new CameraFunction1<float[], float[]>() {
+        @Override
+        public float[] apply(float[] mvp) {
+            mvp[12] += 1f;
+            return mvp;
+        }
+    };
+
+    private final CameraFunction1<float[], float[]> copy = new CameraFunction1<float[], float[]>() {
+        @Override
+        public float[] apply(float[] st) {
+            System.arraycopy(st, 0, seen, 0, seen.length);
+            return st;
+        }
+    };
+
+    private com.sun.management.ThreadMXBean threads;
+
+    @Before
+    public void threads() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    private long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Sets a changing matrix, texture matrix and color, and runs the updaters, as a frame loop would.
+    private void frames(int count) {
+        for (int i = 0; i < count; i++) {
+            matrix[4 + (i & 15)] = i;
+            renderer.setModelViewProjectionMatrix(matrix, 4);
+            renderer.setTextureMatrix(matrix, 4);
+            renderer.clearColor(i);
+            renderer.updateModelViewProjectionMatrix(translate);
+            renderer.updateTextureMatrix(translate);
+        }
+    }
+
+    @Test
+    public void settersAndUpdatersDoNotAllocate() {
+        // Warm up, so that the interpreter and compiler are done with the loop.
+        frames(ITERATIONS);
+
+        final long before = allocatedBytes();
+        frames(ITERATIONS);
+        final long allocated = allocatedBytes() - before;
+
+        assertTrue(allocated + " bytes allocated", allocated < TOLERANCE_BYTES);
+    }
+
+    @Test
+    public void updatersSeeTheSetMatrices() {
+        for (int i = 0; i < 16; i++) {
+            matrix[4 + i] = i;
+        }
+
+        renderer.setTextureMatrix(matrix, 4);
+        renderer.updateTextureMatrix(copy);
+        assertArrayEquals(new float[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15 }, seen, 0);
+
+        renderer.setModelViewProjectionMatrix(matrix, 4);
+        renderer.updateModelViewProjectionMatrix(translate);
+        renderer.updateModelViewProjectionMatrix(copy);
+        assertEquals(13, seen[12], 0);
+        assertEquals(11, seen[11], 0);
+
+        // The texture matrix is separate from the model-view-projection matrix.
+        renderer.updateTextureMatrix(copy);
+        assertEquals(12, seen[12], 0);
+    }
+
+    @Test
+    public void updatersReuseTheirMatrix() {
+        final float[][] arrays = new float[2][];
+
+        final CameraFunction1<float[], float[]> keep = new CameraFunction1<float[], float[]>() {
+            private int calls;
+
+            @Override
+            public float[] apply(float[] mvp) {
+                arrays[calls++] = mvp;
+                return mvp;
+            }
+        };
+
+        renderer.updateModelViewProjectionMatrix(keep);
+        renderer.updateModelViewProjectionMatrix(keep);
+
+        assertSame(arrays[0], arrays[1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setTextureMatrixRejectsShortMatrices() {
+        renderer.setTextureMatrix(matrix, 5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setModelViewProjectionMatrixRejectsNull() {
+        renderer.setModelViewProjectionMatrix(null, 0);
+    }
+}
@@ -0,0 +1,197 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Appends synthetic access units to an {@link EncodedFrameRing} and checks what it flushes.
+ */
+public class EncodedFrameRingTest {
+
+    private static final int KEY = EncodedFrameRing.FLAG_KEY_FRAME;
+    private static final int CONFIG = EncodedFrameRing.FLAG_CODEC_CONFIG;
+
+    // A frame of the given size, filled with a byte derived from its presentation time.
+    private static ByteBuffer frame(long presentationTimeUs, int size) {
+        final ByteBuffer data = ByteBuffer.allocate(size);
+
+        for (int i = 0; i < size; i++) {
+            data.put((byte) (presentationTimeUs + i));
+        }
+
+        data.flip();
+        return data;
+    }
+
+    // Records the flushed frames, checking that their data is intact.
+    private static final class Flushed implements EncodedFrameRing.Visitor {
+        private final List<Long> times = new ArrayList<>();
+        private final List<Integer> flags = new ArrayList<>();
+
+        @Override
+        public void visit(ByteBuffer data, long presentationTimeUs, int flags) {
+            assertEquals(frame(presentationTimeUs, data.remaining()), data);
+
+            times.add(presentationTimeUs);
+            this.flags.add(flags);
+        }
+    }
+
+    private static Flushed flush(EncodedFrameRing ring) {
+        final Flushed flushed = new Flushed();
+        assertEquals(ring.frameCount(), ring.flush(flushed));
+        return flushed;
+    }
+
+    // Appends count frames from the frame numbered from on, 1 ms apart, with a key frame every gop frames.
+    private static void append(EncodedFrameRing ring, int from, int count, int gop, int size) {
+        for (int i = from; i < from + count; i++) {
+            assertTrue(ring.append(frame(i * 1000L, size), i * 1000L, 0 == i % gop ? KEY : 0));
+        }
+    }
+
+    @Test
+    public void flushStartsWithTheConfigurationAndAKeyFrame() {
+        final EncodedFrameRing ring = new EncodedFrameRing(4096, 16, 0);
+
+        assertFalse(ring.append(frame(0, 10), 0, 0));
+        assertTrue(ring.append(frame(5, 19), 5, CONFIG));
+
+        append(ring, 1, 4, 1, 100);
+
+        final Flushed flushed = flush(ring);
+
+        assertEquals(5, flushed.times.size());
+        assertEquals(Long.valueOf(5), flushed.times.get(0));
+        assertEquals(Integer.valueOf(CONFIG), flushed.flags.get(0));
+        assertEquals(Integer.valueOf(KEY), flushed.flags.get(1));
+        assertEquals(1, ring.rejectedFrames());
+        assertEquals(400, ring.usedBytes());
+        assertEquals(3000, ring.durationUs());
+    }
+
+    @Test
+    public void framesWrapAroundTheSlab() {
+        // 1000 bytes hold three frames of 300 bytes, so every fourth frame wraps to the start of the slab.
+        final EncodedFrameRing ring = new EncodedFrameRing(1000, 64, 0);
+
+        for (int i = 0; i < 40; i++) {
+            assertTrue(ring.append(frame(i * 1000L, 300), i * 1000L, KEY));
+
+            final Flushed flushed = flush(ring);
+
+            assertTrue(ring.usedBytes() <= ring.capacityBytes());
+            assertEquals(Long.valueOf(i * 1000L), flushed.times.get(flushed.times.size() - 1));
+
+            for (int j = 1; j < flushed.times.size(); j++) {
+                assertEquals(flushed.times.get(j - 1) + 1000, (long) flushed.times.get(j));
+            }
+        }
+
+        assertEquals(3, ring.frameCount());
+        assertEquals(37, ring.evictedFrames());
+    }
+
+    @Test
+    public void theOldestGroupOfPicturesIsOverwrittenWhole() {
+        // Room for ten frames, in groups of four.
+        final EncodedFrameRing ring = new EncodedFrameRing(1000, 10, 0);
+
+        append(ring, 0, 10, 4, 100);
+        assertEquals(10, ring.frameCount());
+
+        append(ring, 10, 1, 4, 100);
+
+        // Frame 0 and the rest of its group went together.
+        Flushed flushed = flush(ring);
+
+        assertEquals(Long.valueOf(4000), flushed.times.get(0));
+        assertEquals(Integer.valueOf(KEY), flushed.flags.get(0));
+        assertEquals(7, ring.frameCount());
+        assertEquals(4, ring.evictedFrames());
+
+        append(ring, 11, 10, 4, 100);
+
+        flushed = flush(ring);
+
+        assertEquals(Integer.valueOf(KEY), flushed.flags.get(0));
+        assertEquals(0, flushed.times.get(0) % 4000);
+        assertEquals(Long.valueOf(20000), flushed.times.get(flushed.times.size() - 1));
+    }
+
+    @Test
+    public void theWindowKeepsTheLastKeyFrameBeforeIt() {
+        // A 10 ms window over frames 1 ms apart with a key frame every 8.
+        final EncodedFrameRing ring = new EncodedFrameRing(1 << 16, 256, 10000);
+
+        append(ring, 0, 100, 8, 10);
+
+        // Frame 99 needs frames from 89 on, and 88 is the last key frame at or before it.
+        final Flushed flushed = flush(ring);
+
+        assertEquals(Long.valueOf(88000), flushed.times.get(0));
+        assertEquals(Integer.valueOf(KEY), flushed.flags.get(0));
+        assertEquals(12, ring.frameCount());
+        assertEquals(11000, ring.durationUs());
+    }
+
+    @Test
+    public void aFrameWhoseGroupWasEvictedIsRejected() {
+        final EncodedFrameRing ring = new EncodedFrameRing(1000, 64, 0);
+
+        append(ring, 0, 5, 100, 150);
+
+        // Making room for a large delta frame evicts its own group of pictures.
+        assertFalse(ring.append(frame(5000, 900), 5000, 0));
+        assertEquals(0, ring.frameCount());
+        assertEquals(1, ring.rejectedFrames());
+
+        assertFalse(ring.append(frame(6000, 1001), 6000, KEY));
+        assertTrue(ring.append(frame(7000, 1000), 7000, KEY));
+        assertEquals(1, ring.frameCount());
+    }
+
+    @Test
+    public void clearKeepsTheConfiguration() {
+        final EncodedFrameRing ring = new EncodedFrameRing(1000, 8, 0);
+
+        ring.append(frame(0, 19), 0, CONFIG);
+        append(ring, 0, 4, 2, 100);
+
+        ring.clear();
+
+        final Flushed flushed = flush(ring);
+
+        assertEquals(1, flushed.times.size());
+        assertEquals(Integer.valueOf(CONFIG), flushed.flags.get(0));
+        assertEquals(0, ring.usedBytes());
+    }
+}
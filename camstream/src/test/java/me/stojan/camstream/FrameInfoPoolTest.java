@@ -0,0 +1,186 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+package me.stojan.camstream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Acquires, shares and recycles the frame infos of a {@link FrameInfoPool}.
+ */
+public class FrameInfoPoolTest {
+
+    private final FrameInfoPool pool = new FrameInfoPool(2);
+    private final float[] stMatrix = new float[18];
+
+    private FrameInfo acquire(long timestamp) {
+        return pool.acquire(timestamp, 1, stMatrix, 2);
+    }
+
+    @Test
+    public void acquiringSetsTheFrame() {
+        for (int i = 0; i < 16; i++) {
+            stMatrix[2 + i] = i;
+        }
+
+        pool.orientation(90);
+
+        final FrameInfo info = pool.acquire(1000L, 7, stMatrix, 2);
+
+        assertEquals(1000L, info.timestamp());
+        assertEquals(1000L, info.presentationTimestamp());
+        assertEquals(7, info.frameNumber());
+        assertEquals(90, info.orientation());
+        assertEquals(FrameInfo.UNKNOWN, info.exposureTimeNanos());
+        assertEquals(FrameInfo.UNKNOWN, info.sensitivity());
+        assertArrayEquals(new float[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15 }, info.stMatrix(), 0);
+        assertEquals(1, info.references());
+    }
+
+    @Test
+    public void theLastReleaseRecycles() {
+        final FrameInfo info = acquire(1000L);
+
+        assertEquals(1, pool.available());
+
+        assertSame(info, info.retain());
+        assertEquals(2, info.references());
+
+        info.release();
+        assertEquals(1, info.references());
+        assertEquals(1, pool.available());
+
+        info.release();
+        assertEquals(0, info.references());
+        assertEquals(2, pool.available());
+    }
+
+    @Test
+    public void recycledFrameInfosAreReused() {
+        final FrameInfo first = acquire(1000L);
+        final FrameInfo second = acquire(2000L);
+
+        first.release();
+
+        final FrameInfo third = acquire(3000L);
+
+        assertSame(first, third);
+        assertEquals(3000L, third.timestamp());
+        assertEquals(1, third.references());
+
+        second.release();
+        third.release();
+
+        assertEquals(pool.count(), pool.available());
+    }
+
+    @Test
+    public void releasingTwiceThrows() {
+        final FrameInfo info = acquire(1000L);
+        info.release();
+
+        try {
+            info.release();
+            fail("released twice");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+
+        assertEquals(0, info.references());
+        assertEquals(2, pool.available());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void retainingAReleasedFrameInfoThrows() {
+        final FrameInfo info = acquire(1000L);
+        info.release();
+
+        info.retain();
+    }
+
+    @Test
+    public void exhaustionIsCounted() {
+        final FrameInfo first = acquire(1000L);
+        assertNotNull(first);
+        assertNotNull(acquire(2000L));
+
+        assertEquals(0, pool.exhausted());
+        assertNull(acquire(3000L));
+        assertNull(acquire(4000L));
+        assertEquals(2, pool.exhausted());
+
+        first.release();
+
+        assertNotNull(acquire(5000L));
+        assertEquals(2, pool.exhausted());
+    }
+
+    @Test
+    public void captureResultsMatchTheTimestamp() {
+        pool.captureResult(1000L, 10000L, 100);
+        pool.captureResult(2000L, 20000L, 200);
+        pool.captureResult(3000L, 30000L, 300);
+
+        final FrameInfo info = acquire(2000L);
+
+        assertEquals(20000L, info.exposureTimeNanos());
+        assertEquals(200, info.sensitivity());
+    }
+
+    @Test
+    public void otherwiseTheNewestCaptureResultIsUsed() {
+        pool.captureResult(1000L, 10000L, 100);
+        pool.captureResult(2000L, 20000L, 200);
+
+        final FrameInfo info = acquire(2500L);
+
+        assertEquals(20000L, info.exposureTimeNanos());
+        assertEquals(200, info.sensitivity());
+    }
+
+    @Test
+    public void onlyTheLastEightCaptureResultsAreMatched() {
+        for (int i = 1; i <= 9; i++) {
+            pool.captureResult(i * 1000L, i * 10000L, i * 100);
+        }
+
+        final FrameInfo oldest = acquire(1000L);
+
+        // The first capture has been overwritten, so the newest is used.
+        assertEquals(90000L, oldest.exposureTimeNanos());
+        assertEquals(900, oldest.sensitivity());
+
+        final FrameInfo kept = acquire(2000L);
+
+        assertEquals(20000L, kept.exposureTimeNanos());
+        assertEquals(200, kept.sensitivity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void acquiringRejectsShortMatrices() {
+        pool.acquire(1000L, 1, stMatrix, 3);
+    }
+}
@@ -0,0 +1,211 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishes frames into a {@link FrameMailbox} from several threads while others read them, checking that no read is
+ * torn and that the latest frame wins.
+ */
+public class FrameMailboxTest {
+
+    private static final int WRITERS = 3;
+    private static final int READERS = 4;
+    private static final int FRAMES = 200000;
+
+    // Every field of a frame is derived from its number, so a torn read shows as a mismatch.
+    private static void frame(long frameNumber, float[] stMatrix) {
+        for (int i = 0; i < 16; i++) {
+            stMatrix[i] = frameNumber + i;
+        }
+    }
+
+    private static void check(FrameMailbox.Frame frame) {
+        final long frameNumber = frame.frameNumber();
+
+        assertEquals(frameNumber * 1000, frame.timestamp());
+        assertEquals((int) frameNumber, frame.textureId());
+
+        for (int i = 0; i < 16; i++) {
+            assertEquals((float) (frameNumber + i), frame.stMatrix()[i], 0);
+        }
+    }
+
+    @Test
+    public void emptyMailboxHasNoFrame() {
+        final FrameMailbox mailbox = new FrameMailbox();
+        final FrameMailbox.Frame frame = new FrameMailbox.Frame();
+
+        assertFalse(mailbox.read(frame));
+        assertEquals(-1, frame.frameNumber());
+    }
+
+    @Test
+    public void readersSkipToTheLatestFrame() {
+        final FrameMailbox mailbox = new FrameMailbox();
+        final FrameMailbox.Frame frame = new FrameMailbox.Frame();
+        final float[] stMatrix = new float[17];
+
+        for (long frameNumber = 1; frameNumber <= 5; frameNumber++) {
+            frame(frameNumber, stMatrix);
+            System.arraycopy(stMatrix, 0, stMatrix, 1, 16);
+            mailbox.publish(frameNumber * 1000, frameNumber, (int) frameNumber, stMatrix, 1);
+        }
+
+        assertTrue(mailbox.read(frame));
+        check(frame);
+        assertEquals(5, frame.frameNumber());
+        assertEquals(0, frame.skipped());
+        assertFalse(mailbox.read(frame));
+
+        frame(9, stMatrix);
+        mailbox.publish(9000, 9, 9, stMatrix, 0);
+
+        assertTrue(mailbox.read(frame));
+        check(frame);
+        assertEquals(3, frame.skipped());
+        assertEquals(3, frame.totalSkipped());
+    }
+
+    @Test
+    public void concurrentReadsAreNeverTorn() throws InterruptedException {
+        final FrameMailbox mailbox = new FrameMailbox();
+        final Object producer = new Object();
+        final long[] published = new long[1];
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] reads = new long[READERS];
+
+        final ArrayList<Thread> writers = new ArrayList<>();
+        final ArrayList<Thread> readers = new ArrayList<>();
+
+        // The writers take turns as the single producer, so publishes come from many threads but never overlap.
+        for (int w = 0; w < WRITERS; w++) {
+            writers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final float[] stMatrix = new float[16];
+
+                    try {
+                        start.await();
+
+                        for (;;) {
+                            synchronized (producer) {
+                                if (published[0] == FRAMES) {
+                                    return;
+                                }
+
+                                final long frameNumber = published[0] + 1;
+                                frame(frameNumber, stMatrix);
+                                mailbox.publish(frameNumber * 1000, frameNumber, (int) frameNumber, stMatrix, 0);
+                                published[0] = frameNumber;
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+
+        for (int r = 0; r < READERS; r++) {
+            final int reader = r;
+
+            readers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final FrameMailbox.Frame frame = new FrameMailbox.Frame();
+                    long first = -1;
+                    long last = -1;
+
+                    try {
+                        start.await();
+
+                        while (!done.get() || last < FRAMES) {
+                            if (!mailbox.read(frame)) {
+                                continue;
+                            }
+
+                            check(frame);
+                            assertTrue(frame.frameNumber() > last);
+
+                            if (first < 0) {
+                                first = frame.frameNumber();
+                            }
+
+                            last = frame.frameNumber();
+                            reads[reader] += 1;
+                        }
+
+                        // Every frame between the first and the last read was either read or counted as skipped.
+                        assertEquals(FRAMES, last);
+                        assertEquals(last - first + 1, reads[reader] + frame.totalSkipped());
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : writers) {
+            thread.start();
+        }
+
+        for (Thread thread : readers) {
+            thread.start();
+        }
+
+        start.countDown();
+
+        for (Thread thread : writers) {
+            thread.join();
+        }
+
+        done.set(true);
+
+        for (Thread thread : readers) {
+            thread.join(10000);
+            assertFalse("reader did not see the latest frame", thread.isAlive());
+        }
+
+        if (null != failure.get()) {
+            throw new AssertionError(failure.get());
+        }
+
+        assertEquals(FRAMES, mailbox.published());
+
+        for (long count : reads) {
+            assertTrue(count > 0);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+package me.stojan.camstream;
+
+import me.stojan.camstream.util.CameraClock;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a {@link FrameScheduler} with a fake pass on a fake clock.
+ */
+public class FrameSchedulerTest {
+
+    private static final class FakeClock implements CameraClock {
+        private long nanoTime;
+
+        @Override
+        public long nanoTime() {
+            return nanoTime;
+        }
+    }
+
+    // Counts latches and renders, and takes the given time to latch and to render.
+    private static final class FakePass implements FrameScheduler.Pass {
+        private final FakeClock clock;
+
+        private int latches;
+        private int renders;
+        private int latchesBeforeRender;
+
+        private long latchNanos;
+        private long renderNanos;
+
+        private FakePass(FakeClock clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        public void latch() {
+            latches += 1;
+            clock.nanoTime += latchNanos;
+        }
+
+        @Override
+        public void render() {
+            renders += 1;
+            latchesBeforeRender = latches;
+            clock.nanoTime += renderNanos;
+        }
+    }
+
+    private final FakeClock clock = new FakeClock();
+    private final FakePass pass = new FakePass(clock);
+    private final FrameScheduler scheduler = new FrameScheduler(clock);
+
+    @Test
+    public void onlyTheFirstSignalOfABurstSchedules() {
+        assertTrue(scheduler.signal());
+        assertFalse(scheduler.signal());
+        assertFalse(scheduler.signal());
+
+        scheduler.run(pass);
+
+        assertTrue(scheduler.signal());
+        assertFalse(scheduler.signal());
+    }
+
+    @Test
+    public void aPassLatchesEachPendingFrameAndRendersOnce() {
+        for (int i = 0; i < 5; i++) {
+            scheduler.signal();
+        }
+
+        assertEquals(5, scheduler.run(pass));
+        assertEquals(5, pass.latches);
+        assertEquals(1, pass.renders);
+        assertEquals(5, pass.latchesBeforeRender);
+    }
+
+    @Test
+    public void renderedAndDroppedFramesAreCounted() {
+        scheduler.signal();
+        scheduler.run(pass);
+
+        assertEquals(1, scheduler.renderedFrames());
+        assertEquals(0, scheduler.droppedFrames());
+
+        for (int i = 0; i < 4; i++) {
+            scheduler.signal();
+        }
+
+        scheduler.run(pass);
+
+        assertEquals(2, scheduler.renderedFrames());
+        assertEquals(3, scheduler.droppedFrames());
+
+        scheduler.signal();
+        scheduler.signal();
+        scheduler.run(pass);
+
+        assertEquals(3, scheduler.renderedFrames());
+        assertEquals(4, scheduler.droppedFrames());
+    }
+
+    @Test
+    public void theLastPassIsTimedWithTheClock() {
+        clock.nanoTime = 1000000000L;
+        pass.latchNanos = 1000L;
+        pass.renderNanos = 5000000L;
+
+        scheduler.signal();
+        scheduler.signal();
+        scheduler.run(pass);
+
+        assertEquals(5002000L, scheduler.lastPassNanos());
+
+        pass.renderNanos = 3000000L;
+
+        scheduler.signal();
+        scheduler.run(pass);
+
+        assertEquals(3001000L, scheduler.lastPassNanos());
+    }
+
+    @Test
+    public void runningWithNothingPendingDoesNothing() {
+        clock.nanoTime = 1000L;
+        pass.renderNanos = 7000L;
+
+        assertEquals(0, scheduler.run(pass));
+        assertEquals(0, pass.latches);
+        assertEquals(0, pass.renders);
+
+        scheduler.signal();
+        scheduler.run(pass);
+
+        final long lastPassNanos = scheduler.lastPassNanos();
+
+        assertEquals(0, scheduler.run(pass));
+        assertEquals(1, pass.latches);
+        assertEquals(1, pass.renders);
+        assertEquals(1, scheduler.renderedFrames());
+        assertEquals(lastPassNanos, scheduler.lastPassNanos());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void runRejectsANullPass() {
+        scheduler.run(null);
+    }
+}
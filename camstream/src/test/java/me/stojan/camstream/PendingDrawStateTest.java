@@ -0,0 +1,127 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the matrix, texture matrix and clear color handoff of the renderer, {@link PendingDrawState}, does not allocate.
+ */
+public class PendingDrawStateTest {
+
+    private static final int ITERATIONS = 100000;
+
+    // Measuring itself may allocate a little, but far less than a byte per iteration.
+    private static final long TOLERANCE_BYTES = 4096;
+
+    private final PendingDrawState state = new PendingDrawState();
+    private final float[] matrix = new float[20];
+    private final float[] drawn = new float[16];
+    private final float[] drawnTexture = new float[16];
+    private final float[] rgba = new float[4];
+
+    private com.sun.management.ThreadMXBean threads;
+
+    @Before
+    public void threads() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    private long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Sets and latches a changing matrix, texture matrix and color, as a frame loop would.
+    private void frames(int count) {
+        for (int i = 0; i < count; i++) {
+            matrix[4 + (i & 15)] = i;
+            state.matrix(matrix, 4);
+            state.textureMatrix(matrix, 4);
+            state.clearColor(i);
+
+            assertTrue(state.latchMatrix(drawn));
+            assertTrue(state.latchTextureMatrix(drawnTexture));
+            assertTrue(state.latchClearColor(rgba));
+        }
+    }
+
+    @Test
+    public void settingAndLatchingDoesNotAllocate() {
+        // Warm up, so that the interpreter and compiler are done with the loop.
+        frames(ITERATIONS);
+
+        final long before = allocatedBytes();
+        frames(ITERATIONS);
+        final long allocated = allocatedBytes() - before;
+
+        assertTrue(allocated + " bytes allocated", allocated < TOLERANCE_BYTES);
+    }
+
+    @Test
+    public void latchingOnlyCopiesChanges() {
+        assertFalse(state.latchMatrix(drawn));
+        assertFalse(state.latchTextureMatrix(drawnTexture));
+        assertFalse(state.latchClearColor(rgba));
+
+        state.copyMatrix(drawn);
+        assertArrayEquals(new float[] { 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1 }, drawn, 0);
+        state.copyTextureMatrix(drawnTexture);
+        assertArrayEquals(drawn, drawnTexture, 0);
+
+        matrix[4] = 2;
+        state.matrix(matrix, 4);
+        state.clearColor(0x80ff4000);
+
+        assertTrue(state.latchMatrix(drawn));
+        assertEquals(2, drawn[0], 0);
+        assertFalse(state.latchMatrix(drawn));
+        assertFalse(state.latchTextureMatrix(drawnTexture));
+
+        matrix[5] = 3;
+        state.textureMatrix(matrix, 4);
+
+        assertFalse(state.latchMatrix(drawn));
+        assertTrue(state.latchTextureMatrix(drawnTexture));
+        assertEquals(3, drawnTexture[1], 0);
+        assertEquals(2, drawn[0], 0);
+        assertFalse(state.latchTextureMatrix(drawnTexture));
+
+        assertTrue(state.latchClearColor(rgba));
+        assertArrayEquals(new float[] { 255 / 256f, 64 / 256f, 0, 128 / 256f }, rgba, 0);
+        assertFalse(state.latchClearColor(rgba));
+    }
+}
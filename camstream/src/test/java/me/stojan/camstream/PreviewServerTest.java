@@ -0,0 +1,225 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams synthetic H.264 access units through a {@link PreviewServer} to clients on the loopback interface.
+ */
+public class PreviewServerTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 96;
+
+    private static final byte[] CONFIG = {
+            0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1e, 0x01, 0x02, 0x03,
+            0, 0, 0, 1, 0x68, (byte) 0xce, 0x38, (byte) 0x80,
+    };
+
+    private PreviewServer server;
+    private long presentationTimeUs;
+
+    @Before
+    public void start() throws IOException {
+        server = PreviewServer.start(new InetSocketAddress("127.0.0.1", 0), WIDTH, HEIGHT);
+    }
+
+    @After
+    public void release() {
+        server.release();
+    }
+
+    @Test
+    public void unconfiguredStreamIsUnavailable() throws IOException {
+        final Socket socket = connect(PreviewServer.MP4_PATH);
+
+        try {
+            assertTrue(readHeaders(new DataInputStream(socket.getInputStream())).startsWith("HTTP/1.1 503"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void unknownPathIsNotFound() throws IOException {
+        configure();
+
+        final Socket socket = connect("/nothing");
+
+        try {
+            assertTrue(readHeaders(new DataInputStream(socket.getInputStream())).startsWith("HTTP/1.1 404"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void clientsJoiningLaterReceiveTheInitSegment() throws Exception {
+        configure();
+
+        final byte[] initSegment = expectedInitSegment();
+        final Socket[] sockets = new Socket[3];
+
+        try {
+            for (int i = 0; i < sockets.length; i++) {
+                sockets[i] = connect(PreviewServer.MP4_PATH);
+
+                final DataInputStream in = new DataInputStream(sockets[i].getInputStream());
+
+                assertTrue(readHeaders(in).startsWith("HTTP/1.1 200"));
+
+                final byte[] received = new byte[initSegment.length];
+                in.readFully(received);
+
+                assertArrayEquals("client " + i, initSegment, received);
+
+                awaitClients(i + 1);
+
+                // Small frames, which fit into the chunk holding the init segment if it were in the pool.
+                for (int frame = 0; frame < 10; frame++) {
+                    encode(0 == frame);
+                }
+
+                for (int frame = 0; frame < 10; frame++) {
+                    assertEquals("moof", readBox(in));
+                    assertEquals("mdat", readBox(in));
+                }
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                if (null != socket) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void clientsStartWithAKeyFrame() throws Exception {
+        configure();
+
+        final Socket socket = connect(PreviewServer.MP4_PATH);
+
+        try {
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            readHeaders(in);
+            in.readFully(new byte[expectedInitSegment().length]);
+
+            awaitClients(1);
+
+            encode(false);
+            encode(false);
+            encode(true);
+
+            assertEquals("moof", readBox(in));
+            assertEquals("mdat", readBox(in));
+            assertEquals(2, server.droppedFrames());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void configure() {
+        server.encodedFrame(ByteBuffer.wrap(CONFIG), 0, EncodedFrameRing.FLAG_CODEC_CONFIG);
+    }
+
+    private void encode(boolean keyFrame) {
+        final byte[] frame = new byte[64];
+        frame[3] = 1;
+        frame[4] = (byte) (keyFrame ? 0x65 : 0x41);
+        Arrays.fill(frame, 5, frame.length, (byte) presentationTimeUs);
+
+        server.encodedFrame(ByteBuffer.wrap(frame), presentationTimeUs, keyFrame ? EncodedFrameRing.FLAG_KEY_FRAME : 0);
+        presentationTimeUs += 33333;
+    }
+
+    private static byte[] expectedInitSegment() {
+        final FragmentedMp4Writer writer = new FragmentedMp4Writer(WIDTH, HEIGHT);
+        writer.configure(ByteBuffer.wrap(CONFIG));
+
+        final ByteBuffer out = ByteBuffer.allocate(writer.initSegmentSize());
+        writer.writeInitSegment(out);
+
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private void awaitClients(int clients) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+
+        while (server.mp4Clients() < clients) {
+            assertTrue("clients not counted", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private Socket connect(String path) throws IOException {
+        final Socket socket = new Socket();
+        socket.connect(server.address(), 5000);
+        socket.setSoTimeout(5000);
+
+        final OutputStream out = socket.getOutputStream();
+        out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(ASCII));
+        out.flush();
+
+        return socket;
+    }
+
+    private static String readHeaders(DataInputStream in) throws IOException {
+        final StringBuilder headers = new StringBuilder();
+
+        while (headers.length() < 4 || !headers.substring(headers.length() - 4).equals("\r\n\r\n")) {
+            headers.append((char) in.readUnsignedByte());
+        }
+
+        return headers.toString();
+    }
+
+    // Reads a whole box and returns its type.
+    private static String readBox(DataInputStream in) throws IOException {
+        final int size = in.readInt();
+        final byte[] type = new byte[4];
+
+        in.readFully(type);
+        in.readFully(new byte[size - 8]);
+
+        return new String(type, ASCII);
+    }
+}
@@ -0,0 +1,99 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import me.stojan.camstream.util.CameraClock;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds a {@link RenderGovernor} synthetic render passes on a fake clock.
+ */
+public class RenderGovernorTest {
+
+    private static final long FRAME_60_FPS = 16666666L;
+
+    private static final class FakeClock implements CameraClock {
+        private long nanoTime;
+
+        @Override
+        public long nanoTime() {
+            return nanoTime;
+        }
+    }
+
+    private final FakeClock clock = new FakeClock();
+    private final RenderGovernor governor = new RenderGovernor(clock, RenderGovernor.DEFAULT_LEVELS);
+
+    // Runs passes of the given duration at the camera's frame interval.
+    private void run(long seconds, long frameIntervalNanos, long passNanos) {
+        final long end = clock.nanoTime + seconds * 1000000000L;
+
+        while (clock.nanoTime < end) {
+            clock.nanoTime += frameIntervalNanos;
+            governor.sample(passNanos, 0);
+        }
+    }
+
+    @Test
+    public void theFirstDefaultLevelIsUncapped() {
+        assertEquals(0, governor.level().frameRate(), 0);
+        assertEquals(0, governor.level().budgetNanos());
+
+        for (int i = 1; i < RenderGovernor.DEFAULT_LEVELS.size(); i++) {
+            assertTrue(RenderGovernor.DEFAULT_LEVELS.get(i).frameRate() > 0);
+        }
+    }
+
+    @Test
+    public void anUncappedLevelIsBudgetedTheCameraFrameInterval() {
+        // Passes of 20 ms fit a 30 fps budget, but not a 60 fps camera.
+        run(1, FRAME_60_FPS, 2000000L);
+        assertEquals(0, governor.levelIndex());
+
+        run(5, FRAME_60_FPS, 20000000L);
+        assertEquals(1, governor.levelIndex());
+    }
+
+    @Test
+    public void aLevelWithinTheCameraFrameIntervalStays() {
+        run(30, FRAME_60_FPS, 12000000L);
+        assertEquals(0, governor.levelIndex());
+    }
+
+    @Test
+    public void negativeFrameRatesAreRejected() {
+        boolean thrown = false;
+
+        try {
+            new RenderGovernor.Level(1f, -1);
+        } catch (IllegalArgumentException e) {
+            thrown = true;
+        }
+
+        assertTrue(thrown);
+        assertFalse(new RenderGovernor.Level(0.5f, 15).budgetNanos() == 0);
+    }
+}
@@ -0,0 +1,356 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Packetizes synthetic access units with an {@link RtpPacketizer} into a datagram channel on the loopback interface,
+ * and parses the packets that arrive.
+ */
+public class RtpPacketizerTest {
+
+    private static final int PAYLOAD_TYPE = 96;
+    private static final int SSRC = 0x12345678;
+
+    // Small packets, so that small NAL units are fragmented: 52 bytes of payload after the RTP header.
+    private static final int MAX_PACKET_SIZE = 64;
+
+    private static final byte[] SPS = { 0x67, 0x42, 0x00, 0x1e, 0x01, 0x02, 0x03 };
+    private static final byte[] PPS = { 0x68, (byte) 0xce, 0x38, (byte) 0x80 };
+
+    private static final class Packet {
+        private final int version;
+        private final boolean marker;
+        private final int payloadType;
+        private final int sequenceNumber;
+        private final int timestamp;
+        private final int ssrc;
+        private final byte[] payload;
+
+        private Packet(ByteBuffer datagram) {
+            final int first = datagram.get() & 0xFF;
+            final int second = datagram.get() & 0xFF;
+
+            version = first >> 6;
+            marker = 0 != (second & 0x80);
+            payloadType = second & 0x7F;
+            sequenceNumber = datagram.getShort() & 0xFFFF;
+            timestamp = datagram.getInt();
+            ssrc = datagram.getInt();
+            payload = new byte[datagram.remaining()];
+            datagram.get(payload);
+        }
+    }
+
+    private DatagramChannel receiver;
+    private DatagramChannel sender;
+
+    @Before
+    public void connect() throws IOException {
+        receiver = DatagramChannel.open();
+        receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        receiver.configureBlocking(false);
+
+        sender = DatagramChannel.open();
+        sender.connect(receiver.getLocalAddress());
+    }
+
+    @After
+    public void close() throws IOException {
+        sender.close();
+        receiver.close();
+    }
+
+    private List<Packet> receive(int count) throws IOException {
+        final ArrayList<Packet> packets = new ArrayList<>();
+        final ByteBuffer datagram = ByteBuffer.allocate(2048);
+        final long deadline = System.currentTimeMillis() + 5000;
+
+        while (packets.size() < count) {
+            datagram.clear();
+
+            if (null == receiver.receive(datagram)) {
+                if (System.currentTimeMillis() > deadline) {
+                    fail("Received " + packets.size() + " of " + count + " packets");
+                }
+
+                Thread.yield();
+                continue;
+            }
+
+            datagram.flip();
+            packets.add(new Packet(datagram));
+        }
+
+        datagram.clear();
+        assertEquals(null, receiver.receive(datagram));
+
+        return packets;
+    }
+
+    // An access unit in Annex B format, with a 4-byte start code before the first NAL unit and 3-byte ones after it.
+    private static ByteBuffer accessUnit(byte[]... nalUnits) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (int i = 0; i < nalUnits.length; i++) {
+            if (0 == i) {
+                out.write(0);
+            }
+
+            out.write(0);
+            out.write(0);
+            out.write(1);
+            out.write(nalUnits[i], 0, nalUnits[i].length);
+        }
+
+        // A direct buffer with room after the limit, like a codec's output buffer.
+        final ByteBuffer data = ByteBuffer.allocateDirect(out.size() + 32);
+        data.put(out.toByteArray()).flip();
+        return data;
+    }
+
+    // A NAL unit with the header bytes and a body free of start codes.
+    private static byte[] nal(int size, int... header) {
+        final byte[] nal = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            nal[i] = i < header.length ? (byte) header[i] : (byte) (1 + i % 200);
+        }
+
+        return nal;
+    }
+
+    private static RtpPacketizer packetizer(RtpPacketizer.Codec codec) {
+        return new RtpPacketizer(codec, PAYLOAD_TYPE, SSRC, MAX_PACKET_SIZE);
+    }
+
+    private static void assertHeader(Packet packet, long presentationTimeUs) {
+        assertEquals(2, packet.version);
+        assertEquals(PAYLOAD_TYPE, packet.payloadType);
+        assertEquals(SSRC, packet.ssrc);
+        assertEquals((int) (presentationTimeUs * 90 / 1000), packet.timestamp);
+    }
+
+    @Test
+    public void smallNalUnitsAreSentWhole() throws IOException {
+        final RtpPacketizer packetizer = packetizer(RtpPacketizer.Codec.H264).sequenceNumber(100);
+
+        final ByteBuffer config = accessUnit(SPS, PPS);
+        final int position = config.position();
+
+        assertEquals(2, packetizer.packetize(config, 0, EncodedFrameRing.FLAG_CODEC_CONFIG, sender));
+        assertEquals(position, config.position());
+
+        final byte[] idr = nal(40, 0x65);
+        assertEquals(1, packetizer.packetize(accessUnit(idr), 33333, EncodedFrameRing.FLAG_KEY_FRAME, sender));
+
+        final List<Packet> packets = receive(3);
+
+        assertArrayEquals(SPS, packets.get(0).payload);
+        assertArrayEquals(PPS, packets.get(1).payload);
+        assertArrayEquals(idr, packets.get(2).payload);
+
+        // Configuration belongs to the next access unit, so only the slice ends one.
+        assertFalse(packets.get(0).marker);
+        assertFalse(packets.get(1).marker);
+        assertTrue(packets.get(2).marker);
+
+        assertHeader(packets.get(0), 0);
+        assertHeader(packets.get(2), 33333);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(100 + i, packets.get(i).sequenceNumber);
+        }
+
+        assertEquals(3, packetizer.packets());
+        assertEquals(3, packetizer.nalUnits());
+        assertEquals(3 * RtpPacketizer.RTP_HEADER_SIZE + SPS.length + PPS.length + idr.length, packetizer.bytes());
+    }
+
+    @Test
+    public void largeH264NalUnitsAreSentAsFuA() throws IOException {
+        final RtpPacketizer packetizer = packetizer(RtpPacketizer.Codec.H264);
+
+        // An NRI of 3 and type 5: 199 bytes after the header, in fragments of 50.
+        final byte[] idr = nal(200, 0x65);
+        assertEquals(4, packetizer.packetize(accessUnit(idr), 1000, EncodedFrameRing.FLAG_KEY_FRAME, sender));
+
+        final List<Packet> packets = receive(4);
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        for (int i = 0; i < packets.size(); i++) {
+            final Packet packet = packets.get(i);
+            final boolean last = packets.size() - 1 == i;
+
+            assertHeader(packet, 1000);
+            assertTrue(packet.payload.length <= MAX_PACKET_SIZE - RtpPacketizer.RTP_HEADER_SIZE);
+
+            assertEquals(0x60 | 28, packet.payload[0] & 0xFF);
+            assertEquals((0 == i ? 0x80 : 0) | (last ? 0x40 : 0) | 5, packet.payload[1] & 0xFF);
+            assertEquals(last, packet.marker);
+
+            body.write(packet.payload, 2, packet.payload.length - 2);
+        }
+
+        assertArrayEquals(Arrays.copyOfRange(idr, 1, idr.length), body.toByteArray());
+        assertEquals(1, packetizer.nalUnits());
+    }
+
+    @Test
+    public void largeH265NalUnitsAreSentAsFu() throws IOException {
+        final RtpPacketizer packetizer = packetizer(RtpPacketizer.Codec.H265);
+
+        // An IDR_W_RADL NAL unit, type 19, with a temporal id of 1: 118 bytes after the header, in fragments of 49.
+        final byte[] idr = nal(120, 19 << 1, 0x01);
+        assertEquals(3, packetizer.packetize(accessUnit(idr), 2000, EncodedFrameRing.FLAG_KEY_FRAME, sender));
+
+        final List<Packet> packets = receive(3);
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        for (int i = 0; i < packets.size(); i++) {
+            final Packet packet = packets.get(i);
+            final boolean last = packets.size() - 1 == i;
+
+            assertEquals(49 << 1, packet.payload[0] & 0xFF);
+            assertEquals(0x01, packet.payload[1] & 0xFF);
+            assertEquals((0 == i ? 0x80 : 0) | (last ? 0x40 : 0) | 19, packet.payload[2] & 0xFF);
+            assertEquals(last, packet.marker);
+
+            body.write(packet.payload, 3, packet.payload.length - 3);
+        }
+
+        assertArrayEquals(Arrays.copyOfRange(idr, 2, idr.length), body.toByteArray());
+    }
+
+    @Test
+    public void theMarkerEndsTheAccessUnit() throws IOException {
+        final RtpPacketizer packetizer = packetizer(RtpPacketizer.Codec.H264).configBeforeKeyFrames(true);
+
+        packetizer.packetize(accessUnit(SPS, PPS), 0, EncodedFrameRing.FLAG_CODEC_CONFIG, sender);
+        receive(2);
+
+        // The configuration is repeated before the key frame, and the access unit has an SEI and a slice in two
+        // fragments.
+        final byte[] sei = nal(20, 0x06);
+        final byte[] slice = nal(100, 0x65);
+
+        assertEquals(5, packetizer.packetize(accessUnit(sei, slice), 5000, EncodedFrameRing.FLAG_KEY_FRAME, sender));
+
+        final List<Packet> packets = receive(5);
+
+        assertArrayEquals(SPS, packets.get(0).payload);
+        assertArrayEquals(PPS, packets.get(1).payload);
+        assertArrayEquals(sei, packets.get(2).payload);
+
+        for (int i = 0; i < packets.size(); i++) {
+            assertEquals(4 == i, packets.get(i).marker);
+            assertHeader(packets.get(i), 5000);
+        }
+
+        // A delta frame gets no configuration.
+        assertEquals(1, packetizer.packetize(accessUnit(nal(10, 0x41)), 6000, 0, sender));
+        assertTrue(receive(1).get(0).marker);
+    }
+
+    @Test
+    public void sequenceNumbersWrap() throws IOException {
+        final RtpPacketizer packetizer = packetizer(RtpPacketizer.Codec.H264).sequenceNumber(0xFFFE);
+
+        assertEquals(4, packetizer.packetize(accessUnit(nal(200, 0x65)), 0, EncodedFrameRing.FLAG_KEY_FRAME, sender));
+
+        final List<Packet> packets = receive(4);
+
+        assertEquals(0xFFFE, packets.get(0).sequenceNumber);
+        assertEquals(0xFFFF, packets.get(1).sequenceNumber);
+        assertEquals(0, packets.get(2).sequenceNumber);
+        assertEquals(1, packets.get(3).sequenceNumber);
+        assertEquals(2, packetizer.sequenceNumber());
+    }
+
+    @Test
+    public void packetsWrittenInPartFail() throws IOException {
+        final RtpPacketizer packetizer = packetizer(RtpPacketizer.Codec.H264);
+
+        // A channel taking at most 10 bytes per write, like a stream channel with a full send buffer.
+        final GatheringByteChannel partial = new GatheringByteChannel() {
+            @Override
+            public long write(ByteBuffer[] srcs, int offset, int length) {
+                int written = 0;
+
+                for (int i = offset; i < offset + length && written < 10; i++) {
+                    final int part = Math.min(10 - written, srcs[i].remaining());
+                    srcs[i].position(srcs[i].position() + part);
+                    written += part;
+                }
+
+                return written;
+            }
+
+            @Override
+            public long write(ByteBuffer[] srcs) {
+                return write(srcs, 0, srcs.length);
+            }
+
+            @Override
+            public int write(ByteBuffer src) {
+                return (int) write(new ByteBuffer[] { src }, 0, 1);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+                // No-op.
+            }
+        };
+
+        try {
+            packetizer.packetize(accessUnit(nal(40, 0x65)), 0, EncodedFrameRing.FLAG_KEY_FRAME, partial);
+            fail("A packet written in part must fail");
+        } catch (IOException e) {
+            assertEquals(0, packetizer.packets());
+        }
+    }
+}
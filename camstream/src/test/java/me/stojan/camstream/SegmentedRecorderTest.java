@@ -0,0 +1,235 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records synthetic H.264 access units with a {@link SegmentedRecorder} into a temporary directory.
+ */
+public class SegmentedRecorderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 96;
+
+    // One second segments, with a key frame every half second at 20 frames per second.
+    private static final long SEGMENT_DURATION_US = 1000000L;
+    private static final long FRAME_DURATION_US = 50000L;
+    private static final int KEY_FRAME_INTERVAL = 10;
+
+    private static final byte[] CONFIG = {
+            0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1e, 0x01, 0x02, 0x03,
+            0, 0, 0, 1, 0x68, (byte) 0xce, 0x38, (byte) 0x80,
+    };
+
+    private static final String LEFTOVER = "segment-0000000000001-00000.mp4";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private SegmentedRecorder recorder;
+    private int frame;
+
+    @Before
+    public void create() throws IOException {
+        directory = folder.newFolder("recording");
+    }
+
+    @After
+    public void close() throws IOException {
+        if (null != recorder) {
+            recorder.close();
+        }
+    }
+
+    @Test
+    public void framesBeforeAKeyFrameAreDropped() throws IOException {
+        recorder = SegmentedRecorder.create(directory, WIDTH, HEIGHT, SEGMENT_DURATION_US);
+
+        // Without the codec configuration even the key frame is dropped.
+        record(KEY_FRAME_INTERVAL);
+        assertNull(recorder.currentSegment());
+
+        recorder.encodedFrame(ByteBuffer.wrap(CONFIG), 0, EncodedFrameRing.FLAG_CODEC_CONFIG);
+        record(KEY_FRAME_INTERVAL);
+
+        assertEquals(KEY_FRAME_INTERVAL, recorder.droppedFrames());
+        assertTrue(recorder.currentSegment().isFile());
+    }
+
+    @Test
+    public void segmentsStartAtKeyFramesAfterTheDuration() throws IOException {
+        recorder = start();
+        record(100);
+
+        final File current = recorder.currentSegment();
+        recorder.close();
+
+        final List<String[]> index = index();
+
+        // Every twentieth frame starts a segment, and the last segment ends at frame 99.
+        assertEquals(5, index.size());
+        assertEquals(current.getName(), index.get(4)[0]);
+
+        for (int i = 0; i < index.size(); i++) {
+            final String[] entry = index.get(i);
+
+            assertEquals(i * 20 * FRAME_DURATION_US, Long.parseLong(entry[1]));
+            assertEquals(new File(directory, entry[0]).length(), Long.parseLong(entry[3]));
+        }
+
+        assertEquals(20 * FRAME_DURATION_US, Long.parseLong(index.get(0)[2]));
+        assertEquals(19 * FRAME_DURATION_US, Long.parseLong(index.get(4)[2]));
+        assertEquals(5, recorder.completedSegments());
+    }
+
+    @Test
+    public void leftoverSegmentsAreIndexedOnce() throws IOException {
+        final File leftover = new File(directory, LEFTOVER);
+        write(leftover, 100);
+
+        for (int run = 0; run < 10; run++) {
+            // Recording starts at once, racing the recorder's own startup work.
+            recorder = start();
+            record(30);
+            recorder.close();
+            recorder = null;
+        }
+
+        final List<String[]> index = index();
+        final HashSet<String> names = new HashSet<>();
+
+        assertEquals(LEFTOVER, index.get(0)[0]);
+        assertEquals("-1", index.get(0)[1]);
+        assertEquals("100", index.get(0)[3]);
+
+        for (String[] entry : index) {
+            assertTrue(entry[0], names.add(entry[0]));
+            assertEquals(entry[0], new File(directory, entry[0]).length(), Long.parseLong(entry[3]));
+        }
+
+        // Every run leaves two segments, and the directory holds nothing that isn't indexed.
+        assertEquals(1 + 10 * 2, index.size());
+        assertEquals(names.size() + 1, directory.list().length);
+    }
+
+    @Test
+    public void retentionDeletesTheOldestSegments() throws IOException {
+        write(new File(directory, LEFTOVER), 100000);
+
+        recorder = start();
+        recorder.retention(40000, 0);
+
+        // The leftover alone exceeds the limit.
+        record(100);
+
+        final File current = recorder.currentSegment();
+        recorder.close();
+
+        assertFalse(new File(directory, LEFTOVER).exists());
+        assertTrue(current.isFile());
+
+        long bytes = 0;
+
+        for (String[] entry : index()) {
+            bytes += Long.parseLong(entry[3]);
+        }
+
+        assertTrue(bytes <= 40000);
+        assertTrue(recorder.deletedSegments() >= 1);
+    }
+
+    private SegmentedRecorder start() throws IOException {
+        final SegmentedRecorder recorder = SegmentedRecorder.create(directory, WIDTH, HEIGHT, SEGMENT_DURATION_US);
+        recorder.encodedFrame(ByteBuffer.wrap(CONFIG), 0, EncodedFrameRing.FLAG_CODEC_CONFIG);
+        frame = 0;
+        return recorder;
+    }
+
+    private void record(int frames) throws IOException {
+        for (int i = 0; i < frames; i++, frame++) {
+            final boolean keyFrame = 0 == frame % KEY_FRAME_INTERVAL;
+            final byte[] data = new byte[512];
+            data[3] = 1;
+            data[4] = (byte) (keyFrame ? 0x65 : 0x41);
+            Arrays.fill(data, 5, data.length, (byte) frame);
+
+            recorder.encodedFrame(ByteBuffer.wrap(data), frame * FRAME_DURATION_US,
+                    keyFrame ? EncodedFrameRing.FLAG_KEY_FRAME : 0);
+        }
+    }
+
+    private static void write(File file, int bytes) throws IOException {
+        final FileOutputStream stream = new FileOutputStream(file);
+
+        try {
+            stream.write(new byte[bytes]);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private List<String[]> index() throws IOException {
+        final ArrayList<String[]> entries = new ArrayList<>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(new File(directory, SegmentedRecorder.INDEX_NAME)), UTF_8));
+
+        try {
+            String line;
+
+            while (null != (line = reader.readLine())) {
+                final String[] fields = line.split("\t");
+                assertEquals(line, 4, fields.length);
+                entries.add(fields);
+            }
+        } finally {
+            reader.close();
+        }
+
+        return entries;
+    }
+}
@@ -0,0 +1,226 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+
+
+package me.stojan.camstream;
+
+import me.stojan.camstream.util.CameraClock;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays synthetic camera timestamp traces through a {@link TimestampNormalizer} with fake clocks: delivery jitter,
+ * gaps and clock jumps.
+ */
+public class TimestampNormalizerTest {
+
+    private static final long FRAME = 33333333L;
+    private static final long SECOND = 1000000000L;
+
+    // The monotonic clock, and the boottime clock which is ahead by the time the device has been suspended.
+    private static final class Clocks {
+        private long monotonic = 1000 * SECOND;
+        private long suspended = 3600 * SECOND;
+
+        private final CameraClock monotonicClock = new CameraClock() {
+            @Override
+            public long nanoTime() {
+                return monotonic;
+            }
+        };
+
+        private final CameraClock boottimeClock = new CameraClock() {
+            @Override
+            public long nanoTime() {
+                return monotonic + suspended;
+            }
+        };
+
+        long boottime() {
+            return monotonic + suspended;
+        }
+    }
+
+    private final Clocks clocks = new Clocks();
+    private final TimestampNormalizer normalizer = new TimestampNormalizer(clocks.monotonicClock, clocks.boottimeClock);
+    private final Random random = new Random(42);
+
+    // The delivery latency of a frame, 5 ms plus up to 10 ms of jitter.
+    private long latency() {
+        return 5000000L + (long) (random.nextDouble() * 10000000L);
+    }
+
+    @Test
+    public void monotonicTimestampsAreKeptDespiteJitter() {
+        final long start = clocks.monotonic;
+
+        for (int i = 0; i < 300; i++) {
+            final long timestamp = start + i * FRAME;
+            clocks.monotonic = timestamp + latency();
+
+            assertEquals(timestamp, normalizer.normalize(timestamp));
+        }
+
+        assertEquals(TimestampNormalizer.Domain.MONOTONIC, normalizer.domain());
+        assertEquals(0, normalizer.adjustedFrames());
+        assertEquals(start, normalizer.originNanos());
+    }
+
+    @Test
+    public void aFrameDrawnTwiceKeepsItsTimestamp() {
+        clocks.monotonic += 10000000L;
+        final long first = normalizer.normalize(clocks.monotonic - 5000000L);
+
+        clocks.monotonic += 1000000L;
+        assertEquals(first, normalizer.normalize(clocks.monotonic - 6000000L));
+        assertEquals(1, normalizer.frames());
+    }
+
+    @Test
+    public void boottimeTimestampsFollowASuspend() {
+        long timestamp = clocks.boottime();
+
+        for (int i = 0; i < 150; i++) {
+            timestamp += FRAME;
+            clocks.monotonic += FRAME;
+
+            assertEquals(timestamp - clocks.suspended, normalizer.normalize(timestamp));
+        }
+
+        assertEquals(TimestampNormalizer.Domain.BOOTTIME, normalizer.domain());
+
+        // The device sleeps for ten seconds: boottime runs on, the monotonic clock stands still.
+        clocks.suspended += 10 * SECOND;
+        final long beforeSuspend = normalizer.lastNanos();
+
+        long capture = clocks.monotonic;
+
+        for (int i = 0; i < 150; i++) {
+            capture += FRAME;
+            timestamp = capture + clocks.suspended;
+            clocks.monotonic = capture + latency();
+
+            final long output = normalizer.normalize(timestamp);
+
+            if (0 == i) {
+                // The stream continues from where it stopped, it does not jump by the time spent asleep.
+                assertTrue(output - beforeSuspend < SECOND);
+            }
+
+            assertEquals(capture, output);
+        }
+
+        assertEquals(0, normalizer.adjustedFrames());
+    }
+
+    @Test
+    public void anUnknownBaseStartsAtTheArrivalTime() {
+        long timestamp = 5 * SECOND;
+        clocks.monotonic += latency();
+
+        assertEquals(clocks.monotonic, normalizer.normalize(timestamp));
+        assertEquals(TimestampNormalizer.Domain.OTHER, normalizer.domain());
+
+        final long offset = normalizer.offsetNanos();
+
+        for (int i = 0; i < 100; i++) {
+            timestamp += FRAME;
+            clocks.monotonic += FRAME;
+
+            assertEquals(timestamp + offset, normalizer.normalize(timestamp));
+        }
+    }
+
+    @Test
+    public void timestampsJumpingBackwardsStayIncreasing() {
+        long timestamp = clocks.monotonic;
+        long previous = Long.MIN_VALUE;
+
+        for (int i = 0; i < 200; i++) {
+            // At frame 100 the camera's clock jumps back by half a second.
+            timestamp += 100 == i ? -SECOND / 2 : FRAME;
+            clocks.monotonic += FRAME;
+
+            final long output = normalizer.normalize(timestamp);
+
+            assertTrue(output >= previous + TimestampNormalizer.MIN_INCREMENT_NANOS);
+            previous = output;
+        }
+
+        // Frames are pushed forward only until the camera's timestamps catch up with the stream.
+        assertTrue(normalizer.adjustedFrames() > 0);
+        assertTrue(normalizer.adjustedFrames() <= 1 + SECOND / 2 / FRAME);
+        assertEquals(timestamp, normalizer.lastNanos());
+    }
+
+    @Test
+    public void arrivalTimesAreSmoothedWithoutTimestamps() {
+        final long start = clocks.monotonic;
+        long previous = Long.MIN_VALUE;
+
+        double inputSquares = 0;
+        double outputSquares = 0;
+        int samples = 0;
+
+        for (int i = 0; i < 600; i++) {
+            final long arrival = start + i * FRAME + latency();
+            final long input = arrival - clocks.monotonic;
+            clocks.monotonic = arrival;
+
+            final long output = normalizer.normalize(0);
+
+            assertTrue(output > previous);
+
+            // Measure the variation of the intervals once the smoothing has settled.
+            if (i > 100) {
+                inputSquares += (double) (input - FRAME) * (input - FRAME);
+                outputSquares += (double) (output - previous - FRAME) * (output - previous - FRAME);
+                samples += 1;
+            }
+
+            previous = output;
+        }
+
+        assertEquals(TimestampNormalizer.Domain.ZERO, normalizer.domain());
+        assertEquals(FRAME, normalizer.intervalNanos(), FRAME / 100);
+        assertTrue(Math.sqrt(outputSquares / samples) < 0.25 * Math.sqrt(inputSquares / samples));
+    }
+
+    @Test
+    public void aGapWithoutTimestampsResynchronizes() {
+        for (int i = 0; i < 100; i++) {
+            clocks.monotonic += FRAME;
+            normalizer.normalize(0);
+        }
+
+        // The camera stalls for two seconds.
+        clocks.monotonic += 2 * SECOND;
+
+        assertEquals(clocks.monotonic, normalizer.normalize(0));
+
+        clocks.monotonic += FRAME;
+        assertEquals(FRAME, normalizer.normalize(0) - (clocks.monotonic - FRAME), FRAME / 10);
+        assertEquals(FRAME, normalizer.intervalNanos(), FRAME / 100);
+    }
+}
@@ -0,0 +1,183 @@
+// Copyright (c) 2016 Stojan Dimitrovski
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy of
+// this software and associated documentation files (the "Software"), to deal in
+// the Software without restriction, including without limitation the rights to
+// use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+// of the Software, and to permit persons to whom the Software is furnished to do
+// so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+package me.stojan.camstream.util;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the buckets, percentiles and snapshots of a {@link Histogram}, and that recording does not allocate.
+ */
+public class HistogramTest {
+
+    private static final int ITERATIONS = 100000;
+
+    // Measuring itself may allocate a little, but far less than a byte per iteration.
+    private static final long TOLERANCE_BYTES = 4096;
+
+    private final Histogram histogram = new Histogram();
+
+    @Test
+    public void smallValuesHaveTheirOwnBuckets() {
+        for (int value = 0; value < Histogram.SUB_BUCKETS; value++) {
+            assertEquals(value, Histogram.bucket(value));
+            assertEquals(value, Histogram.upperBound(value));
+        }
+    }
+
+    @Test
+    public void eachPowerOfTwoIsSplitIntoSubBuckets() {
+        assertEquals(8, Histogram.bucket(4));
+        assertEquals(11, Histogram.bucket(7));
+        assertEquals(12, Histogram.bucket(8));
+        assertEquals(12, Histogram.bucket(9));
+        assertEquals(13, Histogram.bucket(10));
+        assertEquals(40, Histogram.bucket(1024));
+        assertEquals(40, Histogram.bucket(1279));
+        assertEquals(41, Histogram.bucket(1280));
+
+        assertEquals(9, Histogram.upperBound(12));
+        assertEquals(1279, Histogram.upperBound(40));
+        assertEquals(Long.MAX_VALUE, Histogram.upperBound(Histogram.bucket(Long.MAX_VALUE)));
+        assertTrue(Histogram.bucket(Long.MAX_VALUE) < Histogram.BUCKETS);
+    }
+
+    @Test
+    public void upperBoundsAreTheLastValueOfTheirBucket() {
+        for (int bucket = 2 * Histogram.SUB_BUCKETS; bucket < Histogram.bucket(Long.MAX_VALUE); bucket++) {
+            final long upper = Histogram.upperBound(bucket);
+
+            assertEquals(bucket, Histogram.bucket(upper));
+            assertTrue(Histogram.bucket(upper + 1) > bucket);
+        }
+    }
+
+    @Test
+    public void percentilesOfAUniformDistribution() {
+        for (int value = 1; value <= 100; value++) {
+            histogram.record(value);
+        }
+
+        final Histogram.Snapshot snapshot = histogram.snapshot(null);
+
+        assertEquals(1, snapshot.percentile(0));
+        assertEquals(55, snapshot.percentile(0.5));
+        assertEquals(95, snapshot.percentile(0.9));
+        // The bucket of 99 reaches 111, but no value above the maximum is reported.
+        assertEquals(100, snapshot.percentile(0.99));
+        assertEquals(100, snapshot.percentile(1));
+    }
+
+    @Test
+    public void percentilesOfALongTail() {
+        for (int i = 0; i < 900; i++) {
+            histogram.record(1000L);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            histogram.record(1000000L);
+        }
+
+        final Histogram.Snapshot snapshot = histogram.snapshot(null);
+
+        assertEquals(1023, snapshot.percentile(0.5));
+        assertEquals(1023, snapshot.percentile(0.9));
+        assertEquals(1000000L, snapshot.percentile(0.91));
+        assertEquals(1000000L, snapshot.percentile(0.99));
+    }
+
+    @Test
+    public void anEmptyHistogramHasNoPercentiles() {
+        final Histogram.Snapshot snapshot = histogram.snapshot(null);
+
+        assertEquals(0, snapshot.count());
+        assertEquals(0, snapshot.mean(), 0);
+        assertEquals(0, snapshot.max());
+        assertEquals(0, snapshot.percentile(0.99));
+    }
+
+    @Test
+    public void snapshotsCopyTheCounts() {
+        histogram.record(10);
+        histogram.record(20);
+        histogram.record(-5);
+
+        final Histogram.Snapshot snapshot = histogram.snapshot(null);
+
+        assertNotNull(snapshot);
+        assertEquals(3, snapshot.count());
+        assertEquals(10, snapshot.mean(), 0);
+        assertEquals(20, snapshot.max());
+        assertEquals(1, snapshot.count(0));
+        assertEquals(1, snapshot.count(Histogram.bucket(10)));
+        assertEquals(1, snapshot.count(Histogram.bucket(20)));
+
+        // Later recordings are not in the snapshot until it is taken again.
+        histogram.record(30);
+        assertEquals(3, snapshot.count());
+
+        assertSame(snapshot, histogram.snapshot(snapshot));
+        assertEquals(4, snapshot.count());
+        assertEquals(30, snapshot.max());
+
+        histogram.reset();
+        histogram.snapshot(snapshot);
+
+        assertEquals(0, snapshot.count());
+        assertEquals(0, snapshot.max());
+        assertEquals(0, snapshot.count(Histogram.bucket(10)));
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        final long thread = Thread.currentThread().getId();
+
+        // Warm up, so that the interpreter and compiler are done with the loop.
+        record(ITERATIONS);
+
+        final long before = threads.getThreadAllocatedBytes(thread);
+        record(ITERATIONS);
+        final long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue(allocated + " bytes allocated", allocated < TOLERANCE_BYTES);
+        assertEquals(2 * ITERATIONS, histogram.count());
+    }
+
+    private void record(int count) {
+        for (int i = 0; i < count; i++) {
+            histogram.record(i * 1000L);
+        }
+    }
+}
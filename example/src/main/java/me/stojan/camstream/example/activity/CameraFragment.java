@@ -1,8 +1,10 @@
 package me.stojan.camstream.example.activity;
 
-import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
 import android.opengl.Matrix;
+import android.os.Build;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
@@ -10,63 +12,55 @@ import android.view.LayoutInflater;
 import android.view.SurfaceHolder;
 import android.view.View;
 import android.view.ViewGroup;
+import me.stojan.camstream.Camera2Source;
+import me.stojan.camstream.CameraRenderThread;
 import me.stojan.camstream.CameraRenderer;
+import me.stojan.camstream.CameraSource;
 import me.stojan.camstream.CameraSurface;
 import me.stojan.camstream.CameraSurfaceView;
-import me.stojan.camstream.util.CameraFunction1;
+import me.stojan.camstream.LegacyCameraSource;
+import me.stojan.camstream.util.GLESProgramCache;
 
-import java.io.IOException;
+import java.io.File;
 
 /**
  * A simple CameraFragment that shows a {@link CameraSurfaceView}.
  */
 public class CameraFragment extends Fragment {
 
-    Camera camera;
-    CameraRenderer cameraRenderer;
+    CameraSource cameraSource;
+    CameraRenderThread renderThread;
     CameraSurfaceView cameraSurfaceView;
 
+    final float[] mvpMatrix = new float[16];
+
     @Nullable
     @Override
     public View onCreateView(LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
+        GLESProgramCache.directory(new File(getActivity().getCacheDir(), "programs"));
+
         cameraSurfaceView = new CameraSurfaceView(getActivity());
         cameraSurfaceView.setCallback(new CameraSurfaceView.Callback() {
             @Override
             public void onCameraSurfaceCreated(final CameraSurface cameraSurface, final SurfaceHolder surfaceHolder) {
-                cameraSurface.current();
-
-                if (null != camera) {
-                    camera.release();
-                }
+                releaseRenderThread();
 
-                if (null != cameraRenderer) {
-                    cameraRenderer.release();
-                }
-
-                cameraRenderer = new CameraRenderer();
-                cameraRenderer.updateModelViewProjectionMatrix(new CameraFunction1<float[], float[]>() {
+                renderThread = CameraRenderThread.start("camera-render", cameraSurface, new CameraRenderThread.Callback() {
                     @Override
-                    public float[] apply(float[] parameter) {
-                        Matrix.rotateM(parameter, 0, 45, 0, 0, 1);
-                        return parameter;
-                    }
-                });
-
-
-                camera = Camera.open(Camera.CameraInfo.CAMERA_FACING_BACK);
-                camera.getParameters().setRecordingHint(true);
-                try {
-                    camera.setPreviewTexture(cameraRenderer.surfaceTexture());
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
+                    public void onRendererCreated(CameraRenderThread thread, CameraRenderer cameraRenderer) {
+                        Matrix.setRotateM(mvpMatrix, 0, 45, 0, 0, 1);
+                        cameraRenderer.setModelViewProjectionMatrix(mvpMatrix, 0);
 
-                camera.startPreview();
+                        cameraSource = createCameraSource();
+                        cameraSource.start(cameraRenderer, null);
+                    }
 
-                cameraRenderer.surfaceTexture().setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
                     @Override
-                    public void onFrameAvailable(SurfaceTexture surfaceTexture) {
-                        cameraSurface.render(cameraRenderer);
+                    public void onRendererReleased(CameraRenderThread thread, CameraRenderer cameraRenderer) {
+                        if (null != cameraSource) {
+                            cameraSource.stop();
+                            cameraSource = null;
+                        }
                     }
                 });
             }
@@ -78,25 +72,41 @@ public class CameraFragment extends Fragment {
 
             @Override
             public void onCameraSurfaceDestroyed(CameraSurface cameraSurface, SurfaceHolder surfaceHolder) {
-                if (null != camera) {
-                    camera.release();
-                    camera = null;
-                }
-
-                cameraRenderer.surfaceTexture().setOnFrameAvailableListener(null);
+                releaseRenderThread();
             }
         });
 
         return cameraSurfaceView;
     }
 
+    @SuppressWarnings("deprecation")
+    CameraSource createCameraSource() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                final String cameraId = Camera2Source.cameraId(getActivity(), CameraCharacteristics.LENS_FACING_BACK);
+
+                if (null != cameraId) {
+                    return new Camera2Source(getActivity(), cameraId, 1280, 720);
+                }
+            } catch (CameraAccessException e) {
+                // Fall back to the legacy API.
+            }
+        }
+
+        return new LegacyCameraSource(Camera.CameraInfo.CAMERA_FACING_BACK, 1280, 720);
+    }
+
+    void releaseRenderThread() {
+        if (null != renderThread) {
+            renderThread.release();
+            renderThread = null;
+        }
+    }
+
     @Override
     public void onPause() {
         super.onPause();
 
-        if (null != camera) {
-            camera.release();
-            camera = null;
-        }
+        releaseRenderThread();
     }
 }